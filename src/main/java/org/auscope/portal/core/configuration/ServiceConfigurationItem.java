@@ -13,8 +13,14 @@ import java.io.UnsupportedEncodingException;
 
 public class ServiceConfigurationItem {
 
+    /** The default number of pages that will be requested at once from a paging service*/
+    public static final int DEFAULT_MAX_CONCURRENT_PAGES = 2;
+
     String id, url;
     boolean paging;
+    String[] mirrorUrls;
+    int maxConcurrentPages = DEFAULT_MAX_CONCURRENT_PAGES;
+    boolean downloadCacheable = true;
 
 
     public ServiceConfigurationItem(String id, String url, boolean paging){
@@ -47,4 +53,81 @@ public class ServiceConfigurationItem {
         return paging;
     }
 
+    /**
+     * The maximum number of pages that will be requested at once when downloading from this (paging) service
+     * @return
+     */
+    public int getMaxConcurrentPages() {
+        return maxConcurrentPages;
+    }
+
+    /**
+     * The maximum number of pages that will be requested at once when downloading from this (paging) service
+     * (1 for strictly sequential paging)
+     * @param maxConcurrentPages
+     */
+    public void setMaxConcurrentPages(int maxConcurrentPages) {
+        this.maxConcurrentPages = maxConcurrentPages;
+    }
+
+    /**
+     * Whether downloads from this service can be served from a DownloadCache (false for services serving live data)
+     * @return
+     */
+    public boolean isDownloadCacheable() {
+        return downloadCacheable;
+    }
+
+    /**
+     * Whether downloads from this service can be served from a DownloadCache (false for services serving live data)
+     * @param downloadCacheable
+     */
+    public void setDownloadCacheable(boolean downloadCacheable) {
+        this.downloadCacheable = downloadCacheable;
+    }
+
+    /**
+     * Gets the list of URLs that host an identical copy of the service at url (can be null).
+     * @return
+     */
+    public String[] getMirrorUrls() {
+        return mirrorUrls;
+    }
+
+    /**
+     * Sets the list of URLs that host an identical copy of the service at url. Requests to
+     * this service may be hedged against these mirrors.
+     * @param mirrorUrls can be null
+     */
+    public void setMirrorUrls(String[] mirrorUrls) {
+        this.mirrorUrls = mirrorUrls;
+    }
+
+    /**
+     * Rewrites a request URL (that matches this item) so that it targets each of this item's mirrors instead.
+     *
+     * The configured url will be replaced in both its raw and URL encoded forms (as the portal often proxies requests
+     * with the service URL as a parameter).
+     *
+     * @param requestUrl A URL that matches this item (see matchUrl)
+     * @return An array of rewritten URLs (one per mirror), never null
+     */
+    public String[] getMirrorRequestUrls(String requestUrl) {
+        if (mirrorUrls == null || mirrorUrls.length == 0) {
+            return new String[0];
+        }
+
+        String[] rewritten = new String[mirrorUrls.length];
+        for (int i = 0; i < mirrorUrls.length; i++) {
+            try {
+                String encodedUrl = java.net.URLEncoder.encode(this.url, "UTF-8");
+                String encodedMirror = java.net.URLEncoder.encode(mirrorUrls[i], "UTF-8");
+                rewritten[i] = requestUrl.replace(this.url, mirrorUrls[i]).replace(encodedUrl, encodedMirror);
+            } catch (UnsupportedEncodingException e) {
+                rewritten[i] = requestUrl.replace(this.url, mirrorUrls[i]);
+            }
+        }
+        return rewritten;
+    }
+
 }
@@ -1,8 +1,15 @@
 package org.auscope.portal.core.server.controllers;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import javax.servlet.http.HttpServletResponse;
+
+import org.auscope.portal.core.services.CSWExportService;
+import org.auscope.portal.core.services.CSWExportService.ExportFormat;
+import org.auscope.portal.core.services.PortalServiceException;
+import org.auscope.portal.core.services.responses.csw.CSWGeographicBoundingBox;
 import org.auscope.portal.core.services.responses.csw.CSWRecord;
 import org.auscope.portal.core.view.ViewCSWRecordFactory;
 import org.auscope.portal.core.view.ViewKnownLayerFactory;
@@ -115,4 +122,22 @@ public abstract class BaseCSWController extends BasePortalController {
 
         return generateJSONResponseMAV(true, viewRecords, "");
     }
+
+    /**
+     * Utility for streaming a gzip compressed export of every cached CSWRecord (or a filtered subset) to response
+     * as a file attachment.
+     * @param exportService Will write the export
+     * @param response Will receive the export
+     * @param format The format of the export
+     * @param keywords [Optional] Only records containing every one of these keywords will be exported
+     * @param bbox [Optional] Only records intersecting this bounding box will be exported
+     * @return The number of records exported
+     * @throws PortalServiceException
+     * @throws IOException
+     */
+    protected int writeCSWRecordExport(CSWExportService exportService, HttpServletResponse response, ExportFormat format, String[] keywords, CSWGeographicBoundingBox bbox) throws PortalServiceException, IOException {
+        response.setContentType("application/gzip");
+        response.setHeader("Content-Disposition", "attachment; filename=\"" + exportService.getFileName(format) + "\"");
+        return exportService.export(format, keywords, bbox, response.getOutputStream());
+    }
 }
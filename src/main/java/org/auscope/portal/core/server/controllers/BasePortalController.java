@@ -8,12 +8,16 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.ConnectException;
 import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
 import java.net.UnknownHostException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.HttpEntity;
@@ -22,6 +26,8 @@ import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.conn.ConnectTimeoutException;
 import org.apache.http.entity.StringEntity;
 import org.auscope.portal.core.server.http.download.DownloadResponse;
+import org.auscope.portal.core.server.http.download.DownloadTracker;
+import org.auscope.portal.core.server.http.download.ServiceDownloadManager;
 import org.auscope.portal.core.services.PortalServiceException;
 import org.auscope.portal.core.util.FileIOUtil;
 import org.auscope.portal.core.view.JSONView;
@@ -267,4 +273,29 @@ public abstract class BasePortalController {
         // An error we don't specifically handle or expect
         return this.generateJSONResponseMAV(false, null, FILTER_FAILED, makeDebugInfoModel(request));
     }
+
+    /**
+     * Utility for streaming every download of sdm straight into response as a zip attachment. Each download is
+     * written to the response as soon as it completes (see ServiceDownloadManager.downloadAllToZip) so the client
+     * starts receiving data straight away and nothing is written to disk.
+     *
+     * Clients that need to fetch the zip later (or resume fetching it) should use a DownloadTracker instead.
+     *
+     * @param sdm The downloads to make
+     * @param response Will receive the zip
+     * @param fileName The file name the client will save the zip as
+     * @return The number of downloads that were successfully written
+     * @throws URISyntaxException
+     * @throws InterruptedException
+     * @throws IOException If the response cannot be written to (eg the client has disconnected)
+     */
+    protected int writeDownloadsToZipResponse(ServiceDownloadManager sdm, HttpServletResponse response, String fileName) throws URISyntaxException, InterruptedException, IOException {
+        response.setContentType("application/zip");
+        response.setHeader("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
+        ZipOutputStream zout = new ZipOutputStream(response.getOutputStream());
+        int count = sdm.downloadAllToZip(zout, DownloadTracker.getZipCompressionPolicy(), null, null);
+        zout.finish();
+        zout.flush();
+        return count;
+    }
 }
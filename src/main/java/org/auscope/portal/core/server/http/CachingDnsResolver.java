@@ -0,0 +1,158 @@
+package org.auscope.portal.core.server.http;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.conn.DnsResolver;
+
+/**
+ * A DnsResolver for prefetching hosts (eg at startup) so that DNS resolution is removed from the first request
+ * to each host.
+ *
+ * Lookups are made with InetAddress, so they are already cached by the JVM (according to its
+ * "networkaddress.cache.ttl" security property). An address returned by the JVM can be up to that TTL old, so
+ * any TTL used here adds to the JVM's. For that reason the default TTL is 0 (prefetching simply warms the JVM's
+ * cache) unless the JVM's cache is disabled, in which case DEFAULT_TTL_MS is used. Failed lookups are never cached.
+ *
+ * Use with HttpServiceCaller.setDnsResolver (or pass it to the PoolingClientConnectionManager given to
+ * HttpServiceCaller.setConnectionManager).
+ */
+public class CachingDnsResolver implements DnsResolver {
+    /** Used if the JVM doesn't cache successful lookups*/
+    public static final long DEFAULT_TTL_MS = 30L * 1000L;
+
+    private final Log log = LogFactory.getLog(getClass());
+    private ConcurrentHashMap<String, CacheEntry> cache;
+    private long ttlMs;
+
+    /**
+     * Creates a new resolver that only caches lookups if the JVM doesn't
+     */
+    public CachingDnsResolver() {
+        this(getDefaultTtlMs(Security.getProperty("networkaddress.cache.ttl")));
+    }
+
+    /**
+     * Creates a new resolver with a specific TTL
+     * @param ttlMs How long (in milli seconds) a lookup will be cached for (on top of the JVM's cache)
+     */
+    public CachingDnsResolver(long ttlMs) {
+        this.ttlMs = ttlMs;
+        this.cache = new ConcurrentHashMap<String, CacheEntry>();
+    }
+
+    /**
+     * Gets the TTL to use given the value of the JVM's "networkaddress.cache.ttl" security property
+     * @param jvmTtl The property value (can be null)
+     * @return 0 if the JVM caches successful lookups, DEFAULT_TTL_MS otherwise
+     */
+    static long getDefaultTtlMs(String jvmTtl) {
+        try {
+            if (jvmTtl != null && Long.parseLong(jvmTtl.trim()) == 0) {
+                return DEFAULT_TTL_MS;
+            }
+        } catch (NumberFormatException ex) {
+            //The JVM ignores unparseable values (and uses its own default)
+        }
+        return 0;
+    }
+
+    /**
+     * How long (in milli seconds) a lookup will be cached for (on top of the JVM's cache)
+     * @return
+     */
+    public long getTtlMs() {
+        return ttlMs;
+    }
+
+    /**
+     * How long (in milli seconds) a lookup will be cached for (on top of the JVM's cache)
+     * @param ttlMs
+     */
+    public void setTtlMs(long ttlMs) {
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * Performs the actual lookup (bypassing the cache)
+     * @param host
+     * @return
+     * @throws UnknownHostException
+     */
+    protected InetAddress[] lookup(String host) throws UnknownHostException {
+        return InetAddress.getAllByName(host);
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        long now = System.currentTimeMillis();
+        CacheEntry entry = cache.get(host);
+        if (entry != null && entry.expiry > now) {
+            return entry.addresses.clone();
+        }
+
+        InetAddress[] addresses = lookup(host);
+        if (ttlMs > 0) {
+            cache.put(host, new CacheEntry(addresses, now + ttlMs));
+        }
+        return addresses.clone();
+    }
+
+    /**
+     * Resolves host (replacing any existing cache entry, and warming the JVM's cache) so that subsequent requests
+     * don't need to wait on DNS
+     * @param host
+     * @return true if host was resolved, false otherwise
+     */
+    public boolean prefetch(String host) {
+        cache.remove(host);
+        try {
+            resolve(host);
+            return true;
+        } catch (UnknownHostException ex) {
+            log.warn(String.format("Unable to resolve '%1$s': %2$s", host, ex));
+            return false;
+        }
+    }
+
+    /**
+     * Gets the hosts that currently have an unexpired cache entry
+     * @return
+     */
+    public List<String> getCachedHosts() {
+        long now = System.currentTimeMillis();
+        List<String> hosts = new ArrayList<String>();
+        for (String host : cache.keySet()) {
+            CacheEntry entry = cache.get(host);
+            if (entry != null && entry.expiry > now) {
+                hosts.add(host);
+            }
+        }
+        Collections.sort(hosts);
+        return hosts;
+    }
+
+    /**
+     * Removes every cache entry
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    private static class CacheEntry {
+        private InetAddress[] addresses;
+        private long expiry;
+
+        public CacheEntry(InetAddress[] addresses, long expiry) {
+            this.addresses = addresses;
+            this.expiry = expiry;
+        }
+    }
+}
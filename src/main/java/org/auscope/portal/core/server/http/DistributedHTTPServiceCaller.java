@@ -55,14 +55,35 @@ public class DistributedHTTPServiceCaller implements Iterator<InputStream> {
      * @param serviceCaller The service caller that will run the specified methods
      */
     public DistributedHTTPServiceCaller(List<HttpRequestBase> methods, List<Object> additionalInformation, HttpServiceCaller serviceCaller) {
+        this(methods, null, additionalInformation, serviceCaller);
+    }
+
+    /**
+     * Creates a DistributedHTTPServiceCaller for calling the specified list of methods.
+     *
+     * Each method may also have a set of equivalent 'mirror' methods that the request will be hedged against
+     * should the original method be slow to respond.
+     *
+     * Ensure that beginCallingServices is run before any of the iterator methods are called.
+     *
+     * @param methods The HTTP methods to call
+     * @param mirrorMethods If not null, must be the same length as methods. Each element is the (possibly null) set of mirrors for the corresponding method
+     * @param additionalInformation Must be the same length as methods. Made available through getAdditionalInformation function during iteration
+     * @param serviceCaller The service caller that will run the specified methods
+     */
+    public DistributedHTTPServiceCaller(List<HttpRequestBase> methods, List<HttpRequestBase[]> mirrorMethods, List<Object> additionalInformation, HttpServiceCaller serviceCaller) {
         if (additionalInformation != null && additionalInformation.size() != methods.size()) {
             throw new IllegalArgumentException("additionalInformation.size() != methods.size()");
         }
+        if (mirrorMethods != null && mirrorMethods.size() != methods.size()) {
+            throw new IllegalArgumentException("mirrorMethods.size() != methods.size()");
+        }
 
         additionalInformationObjs = additionalInformation;
         statusList = new ArrayList<ServiceCallStatus>(methods.size());
-        for (HttpRequestBase method : methods) {
-            statusList.add(new ServiceCallStatus(this, method, serviceCaller));
+        for (int i = 0; i < methods.size(); i++) {
+            HttpRequestBase[] mirrors = mirrorMethods == null ? null : mirrorMethods.get(i);
+            statusList.add(new ServiceCallStatus(this, methods.get(i), mirrors, serviceCaller));
         }
     }
 
@@ -181,6 +202,7 @@ public class DistributedHTTPServiceCaller implements Iterator<InputStream> {
      */
     private class ServiceCallStatus extends Thread {
         private HttpRequestBase method;
+        private HttpRequestBase[] mirrors;
         private HttpServiceCaller serviceCaller;
         private DistributedHTTPServiceCaller parent;
         private InputStream resultingData;
@@ -190,10 +212,11 @@ public class DistributedHTTPServiceCaller implements Iterator<InputStream> {
         private volatile boolean abortStart;
 
         public ServiceCallStatus(DistributedHTTPServiceCaller parent, HttpRequestBase method,
-                HttpServiceCaller serviceCaller) {
+                HttpRequestBase[] mirrors, HttpServiceCaller serviceCaller) {
             this.parent = parent;
             this.running = true;
             this.method = method;
+            this.mirrors = mirrors;
             this.serviceCaller = serviceCaller;
         }
 
@@ -256,7 +279,11 @@ public class DistributedHTTPServiceCaller implements Iterator<InputStream> {
             Exception error = null;
 
             try {
-                data = serviceCaller.getMethodResponseAsStream(method);
+                if (mirrors != null && mirrors.length > 0) {
+                    data = serviceCaller.getMethodResponseAsHttpResponse(method, mirrors).getEntity().getContent();
+                } else {
+                    data = serviceCaller.getMethodResponseAsStream(method);
+                }
             } catch (Exception e) {
                 error = e;
             } finally {
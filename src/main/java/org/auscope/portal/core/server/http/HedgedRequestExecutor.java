@@ -0,0 +1,391 @@
+package org.auscope.portal.core.server.http;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpParamsNames;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Executes a HTTP request against a primary endpoint and (if the primary is slow to respond) issues hedged requests
+ * against equivalent mirrors. Each time the hedging delay expires (or an outstanding request fails) the next untried
+ * mirror is requested. Whichever request responds first is returned, the others are aborted.
+ *
+ * Requests with a body are only hedged if the body is repeatable (see HttpEntity.isRepeatable) as every attempt
+ * needs to send it.
+ *
+ * The delay before hedging is calculated by a HedgingPolicy from the latencies previously observed for the
+ * primary host.
+ *
+ * This class also tracks how often requests are hedged and how often the hedged request "wins".
+ */
+public class HedgedRequestExecutor {
+    private final Log log = LogFactory.getLog(getClass());
+
+    private HedgingPolicy policy;
+    private volatile ExecutorService executor;
+    private ConcurrentHashMap<String, LatencyHistogram> hostLatencies;
+
+    private AtomicLong requestCount;
+    private AtomicLong hedgedCount;
+    private AtomicLong hedgeWinCount;
+
+    /**
+     * Creates a new instance using the specified policy
+     * @param policy Controls the delay before making a hedged request
+     */
+    public HedgedRequestExecutor(HedgingPolicy policy) {
+        this.policy = policy;
+        this.hostLatencies = new ConcurrentHashMap<String, LatencyHistogram>();
+        this.requestCount = new AtomicLong();
+        this.hedgedCount = new AtomicLong();
+        this.hedgeWinCount = new AtomicLong();
+    }
+
+    /**
+     * Gets the policy used to control hedged requests
+     * @return
+     */
+    public HedgingPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Sets the policy used to control hedged requests
+     * @param policy
+     */
+    public void setPolicy(HedgingPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Lazily creates the daemon thread pool that runs the individual requests
+     * @return
+     */
+    private ExecutorService getExecutor() {
+        if (executor == null) {
+            synchronized (this) {
+                if (executor == null) {
+                    executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "HedgedRequestExecutor");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Gets the observed latency histogram for a particular host (creating it if it DNE)
+     * @param host
+     * @return
+     */
+    private LatencyHistogram getHostLatencies(String host) {
+        LatencyHistogram histogram = hostLatencies.get(host);
+        if (histogram == null) {
+            LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = hostLatencies.putIfAbsent(host, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Makes a copy of method that is directed at mirrorUrl instead of serviceUrl. The copy will
+     * have the same headers, parameters and request body as method. A repeatable request body is copied into
+     * a new entity (so attempts never share one) whereas a non repeatable body is shared - execute will never
+     * hedge such a request.
+     *
+     * @param method The original request (must be a HttpGet or HttpPost)
+     * @param serviceUrl The service URL that method was generated with
+     * @param mirrorUrl An equivalent service URL that will replace serviceUrl
+     * @return
+     */
+    public static HttpRequestBase makeMirrorMethod(HttpRequestBase method, String serviceUrl, String mirrorUrl) throws IOException {
+        String originalUri = method.getURI().toString();
+        String mirrorUri = originalUri.startsWith(serviceUrl) ? mirrorUrl + originalUri.substring(serviceUrl.length()) : originalUri.replace(serviceUrl, mirrorUrl);
+
+        HttpRequestBase mirror;
+        if (method instanceof HttpPost) {
+            HttpPost post = new HttpPost(mirrorUri);
+            post.setEntity(copyEntity(((HttpEntityEnclosingRequest) method).getEntity()));
+            mirror = post;
+        } else if (method instanceof HttpGet) {
+            mirror = new HttpGet(mirrorUri);
+        } else {
+            throw new IllegalArgumentException("Unsupported method type: " + method.getMethod());
+        }
+
+        for (Header header : method.getAllHeaders()) {
+            mirror.addHeader(header);
+        }
+        HttpParams params = method.getParams();
+        if (params instanceof HttpParamsNames) {
+            for (String name : ((HttpParamsNames) params).getNames()) {
+                mirror.getParams().setParameter(name, params.getParameter(name));
+            }
+        }
+
+        return mirror;
+    }
+
+    /**
+     * Makes a new entity with the same content and headers as entity (if it's repeatable)
+     * @param entity
+     * @return entity itself if it is null or not repeatable
+     * @throws IOException
+     */
+    private static HttpEntity copyEntity(HttpEntity entity) throws IOException {
+        if (entity == null || !entity.isRepeatable()) {
+            return entity;
+        }
+
+        ByteArrayEntity copy = new ByteArrayEntity(EntityUtils.toByteArray(entity));
+        copy.setContentType(entity.getContentType());
+        copy.setContentEncoding(entity.getContentEncoding());
+        copy.setChunked(entity.isChunked());
+        return copy;
+    }
+
+    /**
+     * Returns true if method can be sent more than once (ie it has no body or its body is repeatable)
+     */
+    private static boolean isRepeatable(HttpRequestBase method) {
+        if (!(method instanceof HttpEntityEnclosingRequest)) {
+            return true;
+        }
+        HttpEntity entity = ((HttpEntityEnclosingRequest) method).getEntity();
+        return entity == null || entity.isRepeatable();
+    }
+
+    /**
+     * Executes method via serviceCaller. Each time the delay calculated by this executor's policy expires without a
+     * response (or an outstanding request fails) the next untried mirror will be requested. The first successful
+     * response will be returned, the remaining requests will be aborted. Requests whose body isn't repeatable are
+     * never hedged.
+     *
+     * If any mirror is requested, every request (including mirrors that were never tried) other than the one that
+     * produced the returned response will be aborted. Callers can use this to find which endpoint responded.
+     *
+     * @param serviceCaller Used to make the actual requests
+     * @param method The primary request
+     * @param mirrors Equivalent requests to method that are directed at mirror endpoints (can be empty)
+     * @return
+     * @throws Exception The primary request's exception if every request fails
+     */
+    public HttpResponse execute(final HttpServiceCaller serviceCaller, HttpRequestBase method, HttpRequestBase[] mirrors) throws Exception {
+        if (mirrors == null || mirrors.length == 0 || policy == null || !policy.isEnabled()) {
+            return serviceCaller.getMethodResponseAsHttpResponse(method);
+        }
+
+        //A body that can only be sent once can't be sent to a mirror as well
+        for (HttpRequestBase mirror : mirrors) {
+            if (!isRepeatable(mirror)) {
+                return serviceCaller.getMethodResponseAsHttpResponse(method);
+            }
+        }
+        if (!isRepeatable(method)) {
+            return serviceCaller.getMethodResponseAsHttpResponse(method);
+        }
+
+        requestCount.incrementAndGet();
+
+        List<HttpRequestBase> attempts = new ArrayList<HttpRequestBase>();
+        attempts.add(method);
+
+        CompletionService<HttpResponse> completionService = new ExecutorCompletionService<HttpResponse>(getExecutor());
+        List<Future<HttpResponse>> futures = new ArrayList<Future<HttpResponse>>();
+        long delay = policy.calculateDelay(hostLatencies.get(HttpMetricsRegistry.getHost(method)));
+
+        futures.add(completionService.submit(new TimedRequest(serviceCaller, method)));
+        int outstanding = 1;
+        int nextMirror = 0;
+        int winner = -1;
+        Exception primaryError = null;
+        Exception lastError = null;
+
+        try {
+            while (outstanding > 0 || nextMirror < mirrors.length) {
+                Future<HttpResponse> completed = null;
+                if (nextMirror >= mirrors.length) {
+                    completed = completionService.take();
+                } else if (outstanding > 0) {
+                    completed = completionService.poll(delay, TimeUnit.MILLISECONDS);
+                }
+
+                if (completed == null) {
+                    //Everything outstanding has failed or is taking too long - time to hedge with the next mirror
+                    HttpRequestBase mirror = mirrors[nextMirror++];
+                    if (attempts.size() == 1) {
+                        hedgedCount.incrementAndGet();
+                    }
+                    log.debug(String.format("Hedging request to '%1$s' with mirror '%2$s' after %3$dms", method.getURI(), mirror.getURI(), delay));
+                    attempts.add(mirror);
+                    futures.add(completionService.submit(new TimedRequest(serviceCaller, mirror)));
+                    outstanding++;
+                    continue;
+                }
+
+                outstanding--;
+                int index = futures.indexOf(completed);
+                try {
+                    HttpResponse response = completed.get();
+                    winner = index;
+                    if (index > 0) {
+                        hedgeWinCount.incrementAndGet();
+                    }
+                    return response;
+                } catch (ExecutionException ex) {
+                    lastError = ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+                    if (index == 0) {
+                        primaryError = lastError;
+                    }
+                    log.debug(String.format("Request to '%1$s' failed: %2$s", attempts.get(index).getURI(), lastError));
+                    //If nothing else is outstanding, the next mirror is requested straight away (outstanding == 0)
+                }
+            }
+        } finally {
+            //Abort every request that isn't the winner (this will also release any late responses)
+            for (int i = 0; i < futures.size(); i++) {
+                if (i != winner) {
+                    attempts.get(i).abort();
+                    futures.get(i).cancel(true);
+                    closeCompletedResponse(futures.get(i));
+                }
+            }
+            for (int i = nextMirror; i < mirrors.length; i++) {
+                mirrors[i].abort();
+            }
+        }
+
+        throw primaryError != null ? primaryError : lastError;
+    }
+
+    /**
+     * If future has already completed with a response (that lost the race), closes its entity so that its connection
+     * (and rate limiter permit) is released. Responses that complete later are closed by TimedRequest.
+     */
+    private void closeCompletedResponse(Future<HttpResponse> future) {
+        if (!future.isDone() || future.isCancelled()) {
+            return;
+        }
+        try {
+            HttpResponse response = future.get();
+            if (response != null && response.getEntity() != null) {
+                response.getEntity().getContent().close();
+            }
+        } catch (Exception ex) {
+            log.debug("Unable to close losing response", ex);
+        }
+    }
+
+    /**
+     * Gets the number of requests that were made with at least one mirror available
+     * @return
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Gets the number of requests that resulted in a hedged request being made
+     * @return
+     */
+    public long getHedgedCount() {
+        return hedgedCount.get();
+    }
+
+    /**
+     * Gets the number of hedged requests that responded before the primary request
+     * @return
+     */
+    public long getHedgeWinCount() {
+        return hedgeWinCount.get();
+    }
+
+    /**
+     * Gets the proportion [0, 1] of requests that were hedged
+     * @return
+     */
+    public double getHedgeRate() {
+        long requests = requestCount.get();
+        return requests == 0 ? 0.0 : (double) hedgedCount.get() / (double) requests;
+    }
+
+    /**
+     * Gets the proportion [0, 1] of hedged requests that responded before the primary request
+     * @return
+     */
+    public double getHedgeWinRate() {
+        long hedges = hedgedCount.get();
+        return hedges == 0 ? 0.0 : (double) hedgeWinCount.get() / (double) hedges;
+    }
+
+    /**
+     * Makes a single request, recording its latency against the host's histogram. Failed requests are recorded
+     * too (a host that fails slowly should be hedged as early as one that responds slowly). Requests that we
+     * abort are NOT recorded - they were cut short so their latency would bias the histogram downwards.
+     */
+    private class TimedRequest implements Callable<HttpResponse> {
+        private HttpServiceCaller serviceCaller;
+        private HttpRequestBase method;
+
+        public TimedRequest(HttpServiceCaller serviceCaller, HttpRequestBase method) {
+            this.serviceCaller = serviceCaller;
+            this.method = method;
+        }
+
+        @Override
+        public HttpResponse call() throws Exception {
+            long start = System.currentTimeMillis();
+            HttpResponse response;
+            try {
+                response = serviceCaller.getMethodResponseAsHttpResponse(method);
+            } finally {
+                if (!method.isAborted()) {
+                    getHostLatencies(HttpMetricsRegistry.getHost(method)).recordValue(System.currentTimeMillis() - start);
+                }
+            }
+
+            //If we've lost the race, nobody will read this response so close it now to free the connection
+            if (method.isAborted() && response.getEntity() != null) {
+                try {
+                    response.getEntity().getContent().close();
+                } catch (Exception ex) {
+                    log.debug("Unable to close aborted response", ex);
+                }
+            }
+            return response;
+        }
+    }
+}
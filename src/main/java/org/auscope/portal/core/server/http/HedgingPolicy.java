@@ -0,0 +1,142 @@
+package org.auscope.portal.core.server.http;
+
+/**
+ * Configuration for how HttpServiceCaller will issue hedged requests against a set of equivalent (mirrored) endpoints.
+ *
+ * A hedged request is a second, identical request made to a mirror when the first request has not responded within
+ * a delay. The delay is derived from the observed latency distribution of the host being queried (eg the 95th percentile)
+ * so that only the slowest requests are hedged.
+ *
+ * This class is normally configured as a spring bean.
+ */
+public class HedgingPolicy {
+    /** Whether hedged requests will be made at all*/
+    private boolean enabled = true;
+    /** The percentile of observed latencies that a request must exceed before a hedged request is made*/
+    private double delayPercentile = 95.0;
+    /** The minimum number of observed latencies for a host before the percentile will be used*/
+    private int minimumSamples = 20;
+    /** The delay to use (in milli seconds) when there aren't enough observed latencies*/
+    private long defaultDelayMs = 1000L;
+    /** The calculated delay will never be shorter than this (in milli seconds)*/
+    private long minimumDelayMs = 50L;
+    /** The calculated delay will never be longer than this (in milli seconds)*/
+    private long maximumDelayMs = 10000L;
+
+    /**
+     * Creates a new enabled policy with default values
+     */
+    public HedgingPolicy() {
+
+    }
+
+    /**
+     * Calculates the delay (in milli seconds) that should be waited before issuing a hedged request
+     * @param hostLatencies The observed latencies for the host that is about to be queried (can be null)
+     * @return
+     */
+    public long calculateDelay(LatencyHistogram hostLatencies) {
+        long delay = defaultDelayMs;
+        if (hostLatencies != null && hostLatencies.getCount() >= minimumSamples) {
+            delay = hostLatencies.getValueAtPercentile(delayPercentile);
+        }
+
+        return Math.min(Math.max(delay, minimumDelayMs), maximumDelayMs);
+    }
+
+    /**
+     * Whether hedged requests will be made at all
+     * @return
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Whether hedged requests will be made at all
+     * @param enabled
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * The percentile of observed latencies that a request must exceed before a hedged request is made
+     * @return
+     */
+    public double getDelayPercentile() {
+        return delayPercentile;
+    }
+
+    /**
+     * The percentile of observed latencies that a request must exceed before a hedged request is made
+     * @param delayPercentile A value in the range [0, 100]
+     */
+    public void setDelayPercentile(double delayPercentile) {
+        this.delayPercentile = delayPercentile;
+    }
+
+    /**
+     * The minimum number of observed latencies for a host before the percentile will be used
+     * @return
+     */
+    public int getMinimumSamples() {
+        return minimumSamples;
+    }
+
+    /**
+     * The minimum number of observed latencies for a host before the percentile will be used
+     * @param minimumSamples
+     */
+    public void setMinimumSamples(int minimumSamples) {
+        this.minimumSamples = minimumSamples;
+    }
+
+    /**
+     * The delay to use (in milli seconds) when there aren't enough observed latencies
+     * @return
+     */
+    public long getDefaultDelayMs() {
+        return defaultDelayMs;
+    }
+
+    /**
+     * The delay to use (in milli seconds) when there aren't enough observed latencies
+     * @param defaultDelayMs
+     */
+    public void setDefaultDelayMs(long defaultDelayMs) {
+        this.defaultDelayMs = defaultDelayMs;
+    }
+
+    /**
+     * The calculated delay will never be shorter than this (in milli seconds)
+     * @return
+     */
+    public long getMinimumDelayMs() {
+        return minimumDelayMs;
+    }
+
+    /**
+     * The calculated delay will never be shorter than this (in milli seconds)
+     * @param minimumDelayMs
+     */
+    public void setMinimumDelayMs(long minimumDelayMs) {
+        this.minimumDelayMs = minimumDelayMs;
+    }
+
+    /**
+     * The calculated delay will never be longer than this (in milli seconds)
+     * @return
+     */
+    public long getMaximumDelayMs() {
+        return maximumDelayMs;
+    }
+
+    /**
+     * The calculated delay will never be longer than this (in milli seconds)
+     * @param maximumDelayMs
+     */
+    public void setMaximumDelayMs(long maximumDelayMs) {
+        this.maximumDelayMs = maximumDelayMs;
+    }
+}
@@ -0,0 +1,123 @@
+package org.auscope.portal.core.server.http;
+
+/**
+ * The rate and concurrency limits that HostRateLimiter will enforce for a single host.
+ *
+ * This class is normally configured as a spring bean.
+ */
+public class HostLimits {
+    /** The sustained number of requests per second that can be started (0 or less for unlimited)*/
+    private double requestsPerSecond = 0;
+    /** The number of requests that can be started in a burst above requestsPerSecond*/
+    private int burst = 1;
+    /** The maximum number of requests (including reading their response) that can be running at once (0 or less for unlimited)*/
+    private int maxConcurrent = 0;
+    /** The number of concurrent slots that only INTERACTIVE requests can use*/
+    private int interactiveReserve = 1;
+
+    /**
+     * Creates a new unlimited instance
+     */
+    public HostLimits() {
+
+    }
+
+    /**
+     * Creates a new instance
+     * @param requestsPerSecond The sustained number of requests per second that can be started (0 or less for unlimited)
+     * @param burst The number of requests that can be started in a burst above requestsPerSecond
+     * @param maxConcurrent The maximum number of requests that can be running at once (0 or less for unlimited)
+     */
+    public HostLimits(double requestsPerSecond, int burst, int maxConcurrent) {
+        this.requestsPerSecond = requestsPerSecond;
+        this.burst = burst;
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    /**
+     * Returns true if these limits don't restrict anything
+     * @return
+     */
+    public boolean isUnlimited() {
+        return requestsPerSecond <= 0 && maxConcurrent <= 0;
+    }
+
+    /**
+     * Gets the maximum number of concurrent requests that a request of the specified priority can run alongside
+     * @param priority
+     * @return
+     */
+    public int getMaxConcurrent(RequestPriority priority) {
+        if (maxConcurrent <= 0) {
+            return Integer.MAX_VALUE;
+        }
+        if (priority == RequestPriority.INTERACTIVE) {
+            return maxConcurrent;
+        }
+        return Math.max(1, maxConcurrent - interactiveReserve);
+    }
+
+    /**
+     * The sustained number of requests per second that can be started (0 or less for unlimited)
+     * @return
+     */
+    public double getRequestsPerSecond() {
+        return requestsPerSecond;
+    }
+
+    /**
+     * The sustained number of requests per second that can be started (0 or less for unlimited)
+     * @param requestsPerSecond
+     */
+    public void setRequestsPerSecond(double requestsPerSecond) {
+        this.requestsPerSecond = requestsPerSecond;
+    }
+
+    /**
+     * The number of requests that can be started in a burst above requestsPerSecond
+     * @return
+     */
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * The number of requests that can be started in a burst above requestsPerSecond
+     * @param burst
+     */
+    public void setBurst(int burst) {
+        this.burst = burst;
+    }
+
+    /**
+     * The maximum number of requests (including reading their response) that can be running at once (0 or less for unlimited)
+     * @return
+     */
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * The maximum number of requests (including reading their response) that can be running at once (0 or less for unlimited)
+     * @param maxConcurrent
+     */
+    public void setMaxConcurrent(int maxConcurrent) {
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    /**
+     * The number of concurrent slots that only INTERACTIVE requests can use
+     * @return
+     */
+    public int getInteractiveReserve() {
+        return interactiveReserve;
+    }
+
+    /**
+     * The number of concurrent slots that only INTERACTIVE requests can use
+     * @param interactiveReserve
+     */
+    public void setInteractiveReserve(int interactiveReserve) {
+        this.interactiveReserve = interactiveReserve;
+    }
+}
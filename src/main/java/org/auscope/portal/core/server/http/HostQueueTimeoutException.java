@@ -0,0 +1,18 @@
+package org.auscope.portal.core.server.http;
+
+import org.apache.http.conn.ConnectTimeoutException;
+
+/**
+ * Thrown when a request cannot be dispatched to a host before its deadline because the host's
+ * rate or concurrency limits have been exhausted by other requests.
+ */
+public class HostQueueTimeoutException extends ConnectTimeoutException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param message
+     */
+    public HostQueueTimeoutException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,426 @@
+package org.auscope.portal.core.server.http;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.methods.HttpRequestBase;
+
+/**
+ * A single, host keyed rate limiter and concurrency governor shared by every request made through HttpServiceCaller.
+ *
+ * Each host has a token bucket (limiting the rate that requests are started) and a concurrency limit (limiting how
+ * many requests can be running at once - a request runs until its response has been completely read or closed).
+ * Requests that cannot start immediately are queued in order of RequestPriority (then arrival) and will fail with a
+ * HostQueueTimeoutException if they cannot start before their priority's maximum queue wait.
+ *
+ * Non INTERACTIVE requests can never use the last HostLimits.interactiveReserve concurrent slots, so bulk downloads
+ * and background harvests can never starve interactive requests to the same host.
+ *
+ * A permit that hasn't been used (see Permit.touch) for longer than maxPermitIdleMs is reclaimed, so a response
+ * whose caller stopped reading part way through (without closing or aborting it) can't hold a slot forever.
+ *
+ * By default every host is unlimited.
+ */
+public class HostRateLimiter {
+    private final Log log = LogFactory.getLog(getClass());
+
+    /** The name of the HttpParams parameter used to store a request's absolute deadline (in milli seconds since epoch) for starting*/
+    public static final String PARAM_DEADLINE = "org.auscope.portal.core.deadline";
+
+    /** A permit that doesn't need releasing (used for unlimited hosts)*/
+    private static final Permit UNLIMITED_PERMIT = new Permit(null);
+
+    private HostLimits defaultLimits = new HostLimits();
+    private Map<String, HostLimits> hostLimits = new HashMap<String, HostLimits>();
+    private Map<RequestPriority, Long> maxQueueWaitMs;
+    private ConcurrentHashMap<String, HostGovernor> governors = new ConcurrentHashMap<String, HostGovernor>();
+    private long maxPermitIdleMs = 5L * 60L * 1000L;
+
+    /**
+     * Creates a new unlimited rate limiter
+     */
+    public HostRateLimiter() {
+        maxQueueWaitMs = new EnumMap<RequestPriority, Long>(RequestPriority.class);
+        maxQueueWaitMs.put(RequestPriority.INTERACTIVE, 30L * 1000L);
+        maxQueueWaitMs.put(RequestPriority.DOWNLOAD, 10L * 60L * 1000L);
+        maxQueueWaitMs.put(RequestPriority.BACKGROUND, 30L * 60L * 1000L);
+    }
+
+    /**
+     * Sets the deadline (in milli seconds since epoch) by which method must start or fail. This overrides the
+     * maximum queue wait of method's priority.
+     * @param method
+     * @param deadline
+     */
+    public static void setDeadline(HttpRequestBase method, long deadline) {
+        method.getParams().setLongParameter(PARAM_DEADLINE, deadline);
+    }
+
+    /**
+     * The limits applied to any host without specific limits
+     * @return
+     */
+    public HostLimits getDefaultLimits() {
+        return defaultLimits;
+    }
+
+    /**
+     * The limits applied to any host without specific limits
+     * @param defaultLimits
+     */
+    public void setDefaultLimits(HostLimits defaultLimits) {
+        this.defaultLimits = defaultLimits;
+        governors.clear();
+    }
+
+    /**
+     * Limits for specific hosts (keyed by host name, including the port if non default)
+     * @return
+     */
+    public Map<String, HostLimits> getHostLimits() {
+        return hostLimits;
+    }
+
+    /**
+     * Limits for specific hosts (keyed by host name, including the port if non default)
+     * @param hostLimits
+     */
+    public void setHostLimits(Map<String, HostLimits> hostLimits) {
+        this.hostLimits = hostLimits;
+        governors.clear();
+    }
+
+    /**
+     * The maximum time (in milli seconds) a request of each priority will wait in a host's queue
+     * @return
+     */
+    public Map<RequestPriority, Long> getMaxQueueWaitMs() {
+        return maxQueueWaitMs;
+    }
+
+    /**
+     * The maximum time (in milli seconds) a request of each priority will wait in a host's queue
+     * @param maxQueueWaitMs
+     */
+    public void setMaxQueueWaitMs(Map<RequestPriority, Long> maxQueueWaitMs) {
+        this.maxQueueWaitMs.putAll(maxQueueWaitMs);
+    }
+
+    /**
+     * The maximum time (in milli seconds) a permit can go unused before it is reclaimed. Values <= 0 will never
+     * reclaim a permit.
+     * @return
+     */
+    public long getMaxPermitIdleMs() {
+        return maxPermitIdleMs;
+    }
+
+    /**
+     * The maximum time (in milli seconds) a permit can go unused before it is reclaimed. Values <= 0 will never
+     * reclaim a permit.
+     * @param maxPermitIdleMs
+     */
+    public void setMaxPermitIdleMs(long maxPermitIdleMs) {
+        this.maxPermitIdleMs = maxPermitIdleMs;
+        governors.clear();
+    }
+
+    /**
+     * Gets the limits that apply to the specified host
+     * @param host
+     * @return
+     */
+    public HostLimits getLimits(String host) {
+        HostLimits limits = hostLimits == null ? null : hostLimits.get(host);
+        return limits == null ? defaultLimits : limits;
+    }
+
+    /**
+     * Gets (creating if it DNE) the governor for host
+     * @param host
+     * @return
+     */
+    private HostGovernor getGovernor(String host) {
+        HostGovernor governor = governors.get(host);
+        if (governor == null) {
+            HostGovernor newGovernor = new HostGovernor(getLimits(host), maxPermitIdleMs);
+            governor = governors.putIfAbsent(host, newGovernor);
+            if (governor == null) {
+                governor = newGovernor;
+            }
+        }
+        return governor;
+    }
+
+    /**
+     * Blocks until method is allowed to start against its host (according to its priority/deadline).
+     *
+     * The returned permit MUST be released once method's response has been completely read (or it fails)
+     *
+     * @param method
+     * @return
+     * @throws HostQueueTimeoutException If method cannot start before its deadline
+     * @throws InterruptedException
+     */
+    public Permit acquire(HttpRequestBase method) throws HostQueueTimeoutException, InterruptedException {
+        String host = HttpMetricsRegistry.getHost(method);
+        HostLimits limits = getLimits(host);
+        if (limits == null || limits.isUnlimited()) {
+            return UNLIMITED_PERMIT;
+        }
+
+        RequestPriority priority = RequestPriority.getPriority(method);
+        long deadline = method.getParams().getLongParameter(PARAM_DEADLINE, -1);
+        if (deadline < 0) {
+            Long maxWait = maxQueueWaitMs.get(priority);
+            deadline = System.currentTimeMillis() + (maxWait == null ? 0 : maxWait);
+        }
+
+        return getGovernor(host).acquire(host, priority, deadline);
+    }
+
+    /**
+     * Gets the number of requests currently queued for host
+     * @param host
+     * @return
+     */
+    public int getQueueLength(String host) {
+        HostGovernor governor = governors.get(host);
+        return governor == null ? 0 : governor.getQueueLength();
+    }
+
+    /**
+     * Gets the number of requests currently running against host
+     * @param host
+     * @return
+     */
+    public int getActiveCount(String host) {
+        HostGovernor governor = governors.get(host);
+        return governor == null ? 0 : governor.getActiveCount();
+    }
+
+    /**
+     * Represents permission for a single request to run against a host. Must be released when the request completes.
+     */
+    public static class Permit {
+        private HostGovernor governor;
+        private AtomicBoolean released = new AtomicBoolean(false);
+        private volatile long lastUsed;
+
+        private Permit(HostGovernor governor) {
+            this.governor = governor;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        /**
+         * Records that this permit's request is still making progress (eg part of its response was read). A permit
+         * that isn't touched for the limiter's maxPermitIdleMs will be reclaimed.
+         */
+        public void touch() {
+            if (governor != null) {
+                lastUsed = System.currentTimeMillis();
+            }
+        }
+
+        /**
+         * Releases this permit. Only the first call will have any effect.
+         */
+        public void release() {
+            if (governor != null && released.compareAndSet(false, true)) {
+                governor.release(this);
+            }
+        }
+    }
+
+    /**
+     * A request waiting in a HostGovernor's queue
+     */
+    private static class Waiter {
+        private RequestPriority priority;
+        private long sequence;
+
+        public Waiter(RequestPriority priority, long sequence) {
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Enforces the rate/concurrency limits for a single host
+     */
+    private class HostGovernor {
+        private HostLimits limits;
+        private long maxPermitIdleMs;
+        private Set<Permit> held = new HashSet<Permit>();
+        private ReentrantLock lock = new ReentrantLock();
+        private Condition changed = lock.newCondition();
+        private TreeSet<Waiter> queue;
+        private long nextSequence = 0;
+        private int active = 0;
+        private double tokens;
+        private long lastRefill;
+
+        public HostGovernor(HostLimits limits, long maxPermitIdleMs) {
+            this.limits = limits;
+            this.maxPermitIdleMs = maxPermitIdleMs;
+            this.tokens = Math.max(1, limits.getBurst());
+            this.lastRefill = System.nanoTime();
+            this.queue = new TreeSet<Waiter>(new Comparator<Waiter>() {
+                @Override
+                public int compare(Waiter a, Waiter b) {
+                    int cmp = a.priority.compareTo(b.priority);
+                    if (cmp != 0) {
+                        return cmp;
+                    }
+                    return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+                }
+            });
+        }
+
+        /**
+         * Tops up the token bucket according to the time elapsed since the last refill. Must hold lock.
+         */
+        private void refill() {
+            if (limits.getRequestsPerSecond() <= 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            double elapsedSeconds = (now - lastRefill) / 1e9;
+            tokens = Math.min(Math.max(1, limits.getBurst()), tokens + elapsedSeconds * limits.getRequestsPerSecond());
+            lastRefill = now;
+        }
+
+        /**
+         * The time (in milli seconds) until the next token will be available. Must hold lock.
+         * @return
+         */
+        private long millisUntilToken() {
+            if (limits.getRequestsPerSecond() <= 0 || tokens >= 1.0) {
+                return 0;
+            }
+            return (long) Math.ceil(((1.0 - tokens) / limits.getRequestsPerSecond()) * 1000.0);
+        }
+
+        /**
+         * Releases every held permit that has been idle for longer than maxPermitIdleMs. Must hold lock.
+         * @return The time (in milli seconds) until the next held permit could be reclaimed (or -1 if never)
+         */
+        private long reclaimIdlePermits(String host) {
+            if (maxPermitIdleMs <= 0 || held.isEmpty()) {
+                return -1;
+            }
+
+            long now = System.currentTimeMillis();
+            long next = -1;
+            for (Permit permit : new ArrayList<Permit>(held)) {
+                long idle = now - permit.lastUsed;
+                if (idle < maxPermitIdleMs) {
+                    long remaining = maxPermitIdleMs - idle;
+                    next = next < 0 ? remaining : Math.min(next, remaining);
+                } else if (permit.released.compareAndSet(false, true)) {
+                    log.warn(String.format("Reclaiming a permit for '%1$s' that has been idle for %2$dms", host, idle));
+                    held.remove(permit);
+                    active--;
+                }
+            }
+            return next;
+        }
+
+        /**
+         * Returns true if w is the first waiter (in priority order) that could start given the current concurrency.
+         * Must hold lock.
+         */
+        private boolean isNext(Waiter w) {
+            for (Waiter candidate : queue) {
+                if (active < limits.getMaxConcurrent(candidate.priority)) {
+                    return candidate == w;
+                }
+            }
+            return false;
+        }
+
+        public Permit acquire(String host, RequestPriority priority, long deadline) throws HostQueueTimeoutException, InterruptedException {
+            lock.lock();
+            try {
+                Waiter me = new Waiter(priority, nextSequence++);
+                queue.add(me);
+                try {
+                    while (true) {
+                        refill();
+                        long untilReclaim = reclaimIdlePermits(host);
+                        boolean next = isNext(me);
+                        if (next && (limits.getRequestsPerSecond() <= 0 || tokens >= 1.0)) {
+                            if (limits.getRequestsPerSecond() > 0) {
+                                tokens -= 1.0;
+                            }
+                            active++;
+                            Permit permit = new Permit(this);
+                            held.add(permit);
+                            return permit;
+                        }
+
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            throw new HostQueueTimeoutException(String.format("Timed out waiting to make a %1$s request to '%2$s'", priority, host));
+                        }
+
+                        long wait = remaining;
+                        if (next) {
+                            wait = Math.min(wait, Math.max(1, millisUntilToken()));
+                        } else if (untilReclaim >= 0) {
+                            wait = Math.min(wait, Math.max(1, untilReclaim));
+                        }
+                        changed.await(wait, TimeUnit.MILLISECONDS);
+                    }
+                } finally {
+                    queue.remove(me);
+                    changed.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void release(Permit permit) {
+            lock.lock();
+            try {
+                held.remove(permit);
+                active--;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public int getQueueLength() {
+            lock.lock();
+            try {
+                return queue.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public int getActiveCount() {
+            lock.lock();
+            try {
+                return active;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
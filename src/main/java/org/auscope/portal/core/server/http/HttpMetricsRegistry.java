@@ -0,0 +1,349 @@
+package org.auscope.portal.core.server.http;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.URLEncodedUtils;
+
+/**
+ * A registry of HttpOperationMetrics keyed by upstream host and OGC operation.
+ *
+ * The registry can be exposed as a JMX MBean by calling registerMBean (eg as a spring init-method) and can be
+ * converted into JSON for the purposes of an admin endpoint.
+ */
+public class HttpMetricsRegistry implements HttpMetricsRegistryMBean {
+    /** The default name that this registry will be registered under*/
+    public static final String DEFAULT_OBJECT_NAME = "org.auscope.portal.core:type=HttpMetrics";
+
+    /** The operation name that metrics for any operation not in knownOperations are recorded against*/
+    public static final String OTHER_OPERATION = "other";
+    /** The name of the HttpParams parameter used to cache the operation a request was determined to be making*/
+    public static final String PARAM_OPERATION = "org.auscope.portal.core.metrics.operation";
+    /** The operations that get their own metrics by default (everything else is grouped under OTHER_OPERATION)*/
+    public static final String[] DEFAULT_KNOWN_OPERATIONS = new String[] {
+        "GetCapabilities", "GetMap", "GetFeatureInfo", "GetLegendGraphic", "GetStyles",
+        "GetFeature", "DescribeFeatureType", "GetPropertyValue", "GetGmlObject", "Transaction", "LockFeature",
+        "DescribeCoverage", "GetCoverage", "GetRecords", "GetRecordById", "DescribeRecord", "GetDomain",
+        "GetObservation", "DescribeSensor", "DescribeProcess", "Execute", "GetTile"};
+
+    /** Only this many characters at the start of a POST body will be read when looking for an operation name*/
+    private static final int SNIFF_LENGTH = 1024;
+    /** Matches the first element name in an XML document (ignoring any prolog/comments and namespace prefix)*/
+    private static final Pattern ROOT_ELEMENT_PATTERN = Pattern.compile("<(?:[\\w.-]+:)?([\\w.-]+)[\\s/>]");
+
+    private final Log log = LogFactory.getLog(getClass());
+    private ConcurrentHashMap<String, HttpOperationMetrics> metrics;
+    private String objectName = DEFAULT_OBJECT_NAME;
+    /** Lower cased operation names mapped to their canonical form*/
+    private volatile Map<String, String> knownOperations;
+
+    /**
+     * Creates a new empty registry
+     */
+    public HttpMetricsRegistry() {
+        this.metrics = new ConcurrentHashMap<String, HttpOperationMetrics>();
+        setKnownOperations(Arrays.asList(DEFAULT_KNOWN_OPERATIONS));
+    }
+
+    /**
+     * The operations that will have their own metrics recorded. Requests for any other operation (eg a misspelt or
+     * made up request parameter) are recorded against OTHER_OPERATION so that the number of metrics stays bounded.
+     * @return
+     */
+    public Collection<String> getKnownOperations() {
+        return Collections.unmodifiableCollection(knownOperations.values());
+    }
+
+    /**
+     * The operations that will have their own metrics recorded. Requests for any other operation (eg a misspelt or
+     * made up request parameter) are recorded against OTHER_OPERATION so that the number of metrics stays bounded.
+     * @param knownOperations
+     */
+    public void setKnownOperations(Collection<String> knownOperations) {
+        Map<String, String> operations = new HashMap<String, String>();
+        for (String operation : knownOperations) {
+            operations.put(operation.toLowerCase(), operation);
+        }
+        this.knownOperations = operations;
+    }
+
+    /**
+     * The JMX object name this registry will be registered under
+     * @return
+     */
+    public String getObjectName() {
+        return objectName;
+    }
+
+    /**
+     * The JMX object name this registry will be registered under
+     * @param objectName
+     */
+    public void setObjectName(String objectName) {
+        this.objectName = objectName;
+    }
+
+    /**
+     * Registers this registry with the platform MBean server under objectName
+     * @throws JMException
+     */
+    public void registerMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(objectName);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(this, name);
+    }
+
+    /**
+     * Removes this registry from the platform MBean server (if registered)
+     * @throws JMException
+     */
+    public void unregisterMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(objectName);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+    }
+
+    /**
+     * Extracts the host (and port if non default) that method is directed at
+     * @param method
+     * @return
+     */
+    public static String getHost(HttpRequestBase method) {
+        URI uri = method.getURI();
+        if (uri == null || uri.getHost() == null) {
+            return "";
+        }
+        return uri.getPort() < 0 ? uri.getHost() : uri.getHost() + ":" + uri.getPort();
+    }
+
+    /**
+     * Attempts to determine the OGC operation (eg GetFeature) that method is requesting. For GET requests this
+     * is the value of the 'request' parameter, for POST requests it's the root element of the XML body.
+     *
+     * Only the start of a POST body is read and the result is cached against method (see PARAM_OPERATION) so
+     * subsequent calls for the same request (eg retries) won't read the body again.
+     *
+     * @param method
+     * @return The operation or the HTTP method name if it cannot be determined
+     */
+    public static String getOperation(HttpRequestBase method) {
+        Object cached = method.getParams().getParameter(PARAM_OPERATION);
+        if (cached instanceof String) {
+            return (String) cached;
+        }
+
+        String operation = parseOperation(method);
+        method.getParams().setParameter(PARAM_OPERATION, operation);
+        return operation;
+    }
+
+    private static String parseOperation(HttpRequestBase method) {
+        URI uri = method.getURI();
+        if (uri != null && uri.getRawQuery() != null) {
+            for (NameValuePair pair : URLEncodedUtils.parse(uri, "UTF-8")) {
+                if ("request".equalsIgnoreCase(pair.getName()) && pair.getValue() != null && !pair.getValue().isEmpty()) {
+                    return pair.getValue();
+                }
+            }
+        }
+
+        if (method instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) method).getEntity();
+            if (entity != null && entity.isRepeatable()) {
+                InputStream content = null;
+                try {
+                    content = entity.getContent();
+                    Reader reader = new InputStreamReader(content, "UTF-8");
+                    char[] buf = new char[SNIFF_LENGTH];
+                    int length = 0;
+                    int read;
+                    while (length < buf.length && (read = reader.read(buf, length, buf.length - length)) >= 0) {
+                        length += read;
+                    }
+                    Matcher m = ROOT_ELEMENT_PATTERN.matcher(new String(buf, 0, length));
+                    if (m.find()) {
+                        return m.group(1);
+                    }
+                } catch (Exception ex) {
+                    //It's only for metrics - we can safely ignore this
+                } finally {
+                    IOUtils.closeQuietly(content);
+                }
+            }
+        }
+
+        return method.getMethod();
+    }
+
+    /**
+     * Maps operation onto its canonical name if it's a known operation, otherwise OTHER_OPERATION. Operations
+     * that are HTTP method names (ie the operation couldn't be determined) are returned as is.
+     * @param operation
+     * @param method
+     * @return
+     */
+    private String bucketOperation(String operation, HttpRequestBase method) {
+        if (operation.equals(method.getMethod())) {
+            return operation;
+        }
+        String known = knownOperations.get(operation.toLowerCase());
+        return known == null ? OTHER_OPERATION : known;
+    }
+
+    /**
+     * Gets (creating if it DNE) the metrics for the specified host and operation
+     * @param host
+     * @param operation
+     * @return
+     */
+    public HttpOperationMetrics getMetrics(String host, String operation) {
+        String key = host + " " + operation;
+        HttpOperationMetrics m = metrics.get(key);
+        if (m == null) {
+            HttpOperationMetrics newMetrics = new HttpOperationMetrics(host, operation);
+            m = metrics.putIfAbsent(key, newMetrics);
+            if (m == null) {
+                m = newMetrics;
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Gets (creating if it DNE) the metrics for the host and operation of method. Operations that aren't in
+     * knownOperations are recorded against OTHER_OPERATION.
+     * @param method
+     * @return
+     */
+    public HttpOperationMetrics getMetrics(HttpRequestBase method) {
+        return getMetrics(getHost(method), bucketOperation(getOperation(method), method));
+    }
+
+    /**
+     * Gets every set of metrics recorded in this registry (sorted by host then operation)
+     * @return
+     */
+    public List<HttpOperationMetrics> getAllMetrics() {
+        List<String> keys = new ArrayList<String>(metrics.keySet());
+        Collections.sort(keys);
+        List<HttpOperationMetrics> result = new ArrayList<HttpOperationMetrics>(keys.size());
+        for (String key : keys) {
+            result.add(metrics.get(key));
+        }
+        return result;
+    }
+
+    /**
+     * Converts every metric in this registry into a JSON object of the form
+     * {totalRequests: 123, ..., operations: [{host: 'example.org', operation: 'GetFeature', ...}]}
+     * @return
+     */
+    public JSONObject toJSON() {
+        JSONArray operations = new JSONArray();
+        for (HttpOperationMetrics m : getAllMetrics()) {
+            operations.add(m.toJSON());
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("totalRequests", getTotalRequests());
+        json.put("totalErrors", getTotalErrors());
+        json.put("totalInFlight", getTotalInFlight());
+        json.put("totalOpenResponses", getTotalOpenResponses());
+        json.put("operations", operations);
+        return json;
+    }
+
+    @Override
+    public String[] getHostOperations() {
+        List<String> keys = new ArrayList<String>(metrics.keySet());
+        Collections.sort(keys);
+        return keys.toArray(new String[keys.size()]);
+    }
+
+    @Override
+    public long getTotalRequests() {
+        long total = 0;
+        for (HttpOperationMetrics m : metrics.values()) {
+            total += m.getRequestCount();
+        }
+        return total;
+    }
+
+    @Override
+    public long getTotalErrors() {
+        long total = 0;
+        for (HttpOperationMetrics m : metrics.values()) {
+            total += m.getErrorCount();
+        }
+        return total;
+    }
+
+    @Override
+    public int getTotalInFlight() {
+        int total = 0;
+        for (HttpOperationMetrics m : metrics.values()) {
+            total += m.getInFlight();
+        }
+        return total;
+    }
+
+    @Override
+    public int getTotalOpenResponses() {
+        int total = 0;
+        for (HttpOperationMetrics m : metrics.values()) {
+            total += m.getOpenResponses();
+        }
+        return total;
+    }
+
+    @Override
+    public String getSnapshotJSON() {
+        return toJSON().toString();
+    }
+
+    @Override
+    public String getMetricsJSON(String host, String operation) {
+        HttpOperationMetrics m = metrics.get(host + " " + operation);
+        return m == null ? null : m.toJSON().toString();
+    }
+
+    @Override
+    public void reset() {
+        log.info("Resetting HTTP metrics");
+        for (HttpOperationMetrics m : metrics.values()) {
+            m.reset();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.auscope.portal.core.server.http;
+
+/**
+ * JMX management interface for HttpMetricsRegistry
+ */
+public interface HttpMetricsRegistryMBean {
+    /**
+     * Gets every "host operation" combination that has been recorded
+     * @return
+     */
+    public String[] getHostOperations();
+
+    /**
+     * Gets the total number of upstream requests made
+     * @return
+     */
+    public long getTotalRequests();
+
+    /**
+     * Gets the total number of upstream requests that failed (connection or HTTP error)
+     * @return
+     */
+    public long getTotalErrors();
+
+    /**
+     * Gets the total number of requests currently awaiting a response
+     * @return
+     */
+    public int getTotalInFlight();
+
+    /**
+     * Gets the total number of responses (ie connections) that are yet to be fully read
+     * @return
+     */
+    public int getTotalOpenResponses();
+
+    /**
+     * Gets a JSON encoded snapshot of every recorded metric
+     * @return
+     */
+    public String getSnapshotJSON();
+
+    /**
+     * Gets a JSON encoded snapshot of the metrics for a single host/operation
+     * @param host
+     * @param operation
+     * @return
+     */
+    public String getMetricsJSON(String host, String operation);
+
+    /**
+     * Clears all recorded counts and histograms
+     */
+    public void reset();
+}
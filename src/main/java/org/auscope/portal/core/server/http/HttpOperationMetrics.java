@@ -0,0 +1,273 @@
+package org.auscope.portal.core.server.http;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.json.JSONObject;
+
+/**
+ * Metrics recorded for every upstream request made to a single host for a single OGC operation (eg GetFeature).
+ *
+ * All recording methods are thread safe.
+ */
+public class HttpOperationMetrics {
+    private String host;
+    private String operation;
+
+    private AtomicLong requestCount;
+    private AtomicLong errorCount;
+    private AtomicLong retryCount;
+    private AtomicLong bytesSent;
+    private AtomicLong bytesReceived;
+    private AtomicInteger inFlight;
+    private AtomicInteger openResponses;
+    private ConcurrentMap<Integer, AtomicLong> statusCodes;
+    private LatencyHistogram timeToFirstByte;
+    private LatencyHistogram latency;
+
+    /**
+     * Creates a new empty set of metrics
+     * @param host The host (and port if non default) that requests are made against
+     * @param operation The OGC operation (or HTTP method if the operation is unknown)
+     */
+    public HttpOperationMetrics(String host, String operation) {
+        this.host = host;
+        this.operation = operation;
+        this.requestCount = new AtomicLong();
+        this.errorCount = new AtomicLong();
+        this.retryCount = new AtomicLong();
+        this.bytesSent = new AtomicLong();
+        this.bytesReceived = new AtomicLong();
+        this.inFlight = new AtomicInteger();
+        this.openResponses = new AtomicInteger();
+        this.statusCodes = new ConcurrentHashMap<Integer, AtomicLong>();
+        this.timeToFirstByte = new LatencyHistogram();
+        this.latency = new LatencyHistogram();
+    }
+
+    /**
+     * Records the start of a new request
+     * @param requestBytes The size of the request body (or 0 if there is none/it's unknown)
+     */
+    public void requestStarted(long requestBytes) {
+        requestCount.incrementAndGet();
+        inFlight.incrementAndGet();
+        if (requestBytes > 0) {
+            bytesSent.addAndGet(requestBytes);
+        }
+    }
+
+    /**
+     * Records that a request failed before a response was received (eg connection refused)
+     * @param elapsedMs The time since the request started
+     */
+    public void requestFailed(long elapsedMs) {
+        inFlight.decrementAndGet();
+        errorCount.incrementAndGet();
+        latency.recordValue(elapsedMs);
+    }
+
+    /**
+     * Records that response headers were received for a request
+     * @param statusCode The HTTP status code of the response
+     * @param elapsedMs The time since the request started (time to first byte)
+     */
+    public void responseReceived(int statusCode, long elapsedMs) {
+        inFlight.decrementAndGet();
+        openResponses.incrementAndGet();
+        timeToFirstByte.recordValue(elapsedMs);
+
+        AtomicLong count = statusCodes.get(statusCode);
+        if (count == null) {
+            AtomicLong newCount = new AtomicLong();
+            count = statusCodes.putIfAbsent(statusCode, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.incrementAndGet();
+
+        if (statusCode >= 400) {
+            errorCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records that a response body has been completely read (or closed)
+     * @param responseBytes The number of bytes read from the response body
+     * @param elapsedMs The time since the request started
+     */
+    public void responseCompleted(long responseBytes, long elapsedMs) {
+        openResponses.decrementAndGet();
+        bytesReceived.addAndGet(responseBytes);
+        latency.recordValue(elapsedMs);
+    }
+
+    /**
+     * Records that a request is being retried
+     */
+    public void requestRetried() {
+        retryCount.incrementAndGet();
+    }
+
+    /**
+     * The host (and port if non default) that requests are made against
+     * @return
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * The OGC operation (or HTTP method if the operation is unknown)
+     * @return
+     */
+    public String getOperation() {
+        return operation;
+    }
+
+    /**
+     * The total number of requests started
+     * @return
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * The number of requests that failed to connect or returned a HTTP error status
+     * @return
+     */
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    /**
+     * The number of requests that were retried
+     * @return
+     */
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * The total number of request body bytes sent
+     * @return
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * The total number of response body bytes received
+     * @return
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * The number of requests currently waiting on a response
+     * @return
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * The number of responses whose body is yet to be fully read or closed. Each of these
+     * will be holding a connection.
+     * @return
+     */
+    public int getOpenResponses() {
+        return openResponses.get();
+    }
+
+    /**
+     * Gets a copy of the count of responses by HTTP status code
+     * @return
+     */
+    public Map<Integer, Long> getStatusCodes() {
+        Map<Integer, Long> copy = new TreeMap<Integer, Long>();
+        for (Map.Entry<Integer, AtomicLong> entry : statusCodes.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue().get());
+        }
+        return copy;
+    }
+
+    /**
+     * The time (in milli seconds) between a request being sent and the response headers being received
+     * @return
+     */
+    public LatencyHistogram getTimeToFirstByte() {
+        return timeToFirstByte;
+    }
+
+    /**
+     * The time (in milli seconds) between a request being sent and the response body being completely read
+     * @return
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Clears all recorded counts and histograms (gauges such as in flight requests are retained)
+     */
+    public void reset() {
+        requestCount.set(0);
+        errorCount.set(0);
+        retryCount.set(0);
+        bytesSent.set(0);
+        bytesReceived.set(0);
+        statusCodes.clear();
+        timeToFirstByte.reset();
+        latency.reset();
+    }
+
+    /**
+     * Summarises a histogram as a JSON object
+     * @param histogram
+     * @return
+     */
+    private static JSONObject histogramToJSON(LatencyHistogram histogram) {
+        JSONObject json = new JSONObject();
+        json.put("count", histogram.getCount());
+        json.put("mean", histogram.getMean());
+        json.put("p50", histogram.getValueAtPercentile(50));
+        json.put("p90", histogram.getValueAtPercentile(90));
+        json.put("p99", histogram.getValueAtPercentile(99));
+        json.put("max", histogram.getMax());
+        return json;
+    }
+
+    /**
+     * Converts these metrics into a JSON object
+     * @return
+     */
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("host", host);
+        json.put("operation", operation);
+        json.put("requestCount", getRequestCount());
+        json.put("errorCount", getErrorCount());
+        json.put("retryCount", getRetryCount());
+        json.put("bytesSent", getBytesSent());
+        json.put("bytesReceived", getBytesReceived());
+        json.put("inFlight", getInFlight());
+        json.put("openResponses", getOpenResponses());
+
+        JSONObject codes = new JSONObject();
+        for (Map.Entry<Integer, Long> entry : getStatusCodes().entrySet()) {
+            codes.put(entry.getKey().toString(), entry.getValue());
+        }
+        json.put("statusCodes", codes);
+        json.put("timeToFirstByteMs", histogramToJSON(timeToFirstByte));
+        json.put("latencyMs", histogramToJSON(latency));
+        return json;
+    }
+}
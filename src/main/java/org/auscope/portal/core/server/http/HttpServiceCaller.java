@@ -8,19 +8,28 @@ import java.io.InputStreamReader;
 import java.net.ConnectException;
 import java.net.UnknownHostException;
 import java.util.Arrays;
+import java.util.Date;
 
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.params.ClientPNames;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.DnsResolver;
 import org.apache.http.conn.ConnectTimeoutException;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 
@@ -32,9 +41,134 @@ import org.apache.http.params.HttpParams;
 public class HttpServiceCaller {
     private final Log log = LogFactory.getLog(getClass());
     int connectionTimeOut;
+    private HedgedRequestExecutor hedgedRequestExecutor;
+    private HttpMetricsRegistry metricsRegistry;
+    private RetryPolicy retryPolicy;
+    private HostRateLimiter rateLimiter;
+    private ClientConnectionManager connectionManager;
+    private DnsResolver dnsResolver;
 
     public HttpServiceCaller(int connectionTimeOut) {
       this.connectionTimeOut=connectionTimeOut;
+      this.hedgedRequestExecutor = new HedgedRequestExecutor(new HedgingPolicy());
+      this.metricsRegistry = new HttpMetricsRegistry();
+      this.retryPolicy = new RetryPolicy();
+      this.rateLimiter = new HostRateLimiter();
+    }
+
+    /**
+     * Gets the connection manager shared by every request made by this class (can be null)
+     * @return
+     */
+    public ClientConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    /**
+     * Sets a connection manager to be shared by every request made by this class (that doesn't specify its own HttpClient).
+     *
+     * If unset (the default) every request will create (and discard) its own connection pool. Setting a
+     * PoolingClientConnectionManager allows keep-alive connections to be reused between requests (and pre warmed).
+     * @param connectionManager
+     */
+    public void setConnectionManager(ClientConnectionManager connectionManager) {
+        this.connectionManager = connectionManager;
+    }
+
+    /**
+     * Gets the resolver used by the connection pools created by this class (can be null)
+     * @return
+     */
+    public DnsResolver getDnsResolver() {
+        return dnsResolver;
+    }
+
+    /**
+     * Sets the resolver (eg a CachingDnsResolver) used by the connection pools created by this class. If null
+     * (the default) the system resolver is used.
+     *
+     * This does NOT affect a connection manager set via setConnectionManager - that manager must be
+     * created with the resolver.
+     * @param dnsResolver
+     */
+    public void setDnsResolver(DnsResolver dnsResolver) {
+        this.dnsResolver = dnsResolver;
+    }
+
+    /**
+     * Creates a new connection pool that uses dnsResolver (if set)
+     * @return
+     */
+    private ClientConnectionManager createConnectionManager() {
+        if (dnsResolver == null) {
+            return new PoolingClientConnectionManager();
+        }
+        return new PoolingClientConnectionManager(SchemeRegistryFactory.createDefault(), dnsResolver);
+    }
+
+    /**
+     * Gets the rate limiter/concurrency governor that every request made by this class must pass through
+     * @return
+     */
+    public HostRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Sets the rate limiter/concurrency governor that every request made by this class must pass through
+     * @param rateLimiter
+     */
+    public void setRateLimiter(HostRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Gets the policy controlling how requests (that have opted in via RetryPolicy.enableRetries) are retried
+     * @return
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Sets the policy controlling how requests (that have opted in via RetryPolicy.enableRetries) are retried. Set
+     * to null to disable retries altogether.
+     * @param retryPolicy
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Gets the registry that receives metrics for every upstream request made by this class
+     * @return
+     */
+    public HttpMetricsRegistry getMetricsRegistry() {
+        return metricsRegistry;
+    }
+
+    /**
+     * Sets the registry that receives metrics for every upstream request made by this class
+     * @param metricsRegistry
+     */
+    public void setMetricsRegistry(HttpMetricsRegistry metricsRegistry) {
+        this.metricsRegistry = metricsRegistry;
+    }
+
+    /**
+     * Sets the policy controlling how requests with mirrors are hedged
+     * @param hedgingPolicy
+     */
+    public void setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+        this.hedgedRequestExecutor.setPolicy(hedgingPolicy);
+    }
+
+    /**
+     * Gets the executor responsible for hedging requests with mirrors (useful for accessing hedge rate/win rate statistics)
+     * @return
+     */
+    public HedgedRequestExecutor getHedgedRequestExecutor() {
+        return hedgedRequestExecutor;
     }
 
     public String getMethodResponseAsString(HttpRequestBase method) throws ConnectException, UnknownHostException, ConnectTimeoutException, Exception{
@@ -133,19 +267,63 @@ public class HttpServiceCaller {
         return this.invokeTheMethod(method,null);
     }
 
+    /**
+     * Invokes method, hedging the request with the first of mirrorMethods if method is slow to respond. The first
+     * successful response will be returned and the slower request aborted.
+     *
+     * If mirrorMethods is null or empty this is identical to getMethodResponseAsHttpResponse(method)
+     *
+     * @param method The method to be executed
+     * @param mirrorMethods Requests equivalent to method that are directed at mirrored endpoints (can be null)
+     * @return
+     */
+    public HttpResponse getMethodResponseAsHttpResponse(HttpRequestBase method, HttpRequestBase[] mirrorMethods) throws Exception {
+        return hedgedRequestExecutor.execute(this, method, mirrorMethods);
+    }
+
     /**
      * Invokes a httpmethod and takes care of some error handling.
      * @param method
      * @param httpClient
      */
     private HttpResponse invokeTheMethod(HttpRequestBase method,HttpClient client) throws Exception {
+        if (retryPolicy == null || !retryPolicy.isRetryable(method)) {
+            return invokeTheMethodOnce(method, client);
+        }
+
+        String host = HttpMetricsRegistry.getHost(method);
+        retryPolicy.recordRequest(host);
+        long startTime = System.currentTimeMillis();
+        for (int retryNumber = 0; ; retryNumber++) {
+            try {
+                return invokeTheMethodOnce(method, client);
+            } catch (Exception ex) {
+                long delay = retryPolicy.getRetryDelay(method, ex, retryNumber, System.currentTimeMillis() - startTime);
+                if (delay < 0) {
+                    throw ex;
+                }
+
+                log.warn(String.format("Request to '%1$s' failed (%2$s). Retrying in %3$dms", method.getURI(), ex, delay));
+                metricsRegistry.getMetrics(method).requestRetried();
+                method.releaseConnection();
+                Thread.sleep(delay);
+            }
+        }
+    }
+
+    /**
+     * Invokes a httpmethod exactly once and takes care of some error handling.
+     * @param method
+     * @param httpClient
+     */
+    private HttpResponse invokeTheMethodOnce(HttpRequestBase method,HttpClient client) throws Exception {
         log.debug("method=" + method.getURI());
         HttpClient httpClient=null;
         //create the connection manager and add it to the client
         // VT: Change from SimpleHttpConnectionManager (not thread safe) to
         // MultiThreadedHttpConnectionManager (thread safe)
         if(client==null){
-            ClientConnectionManager man = new PoolingClientConnectionManager();
+            ClientConnectionManager man = connectionManager == null ? createConnectionManager() : connectionManager;
             httpClient=new DefaultHttpClient(man);
         }else{
             httpClient=client;
@@ -155,24 +333,52 @@ public class HttpServiceCaller {
         final HttpParams httpParams = httpClient.getParams();
         HttpConnectionParams.setConnectionTimeout(httpParams, this.connectionTimeOut );
         HttpConnectionParams.setSoTimeout( httpParams, this.connectionTimeOut );
+        //Don't wait forever on a shared connection pool that has been exhausted. This is set on the method
+        //(which overrides the client) so that a client passed in by the caller isn't modified.
+        if (method.getParams().getParameter(ClientPNames.CONN_MANAGER_TIMEOUT) == null) {
+            method.getParams().setLongParameter(ClientPNames.CONN_MANAGER_TIMEOUT, this.connectionTimeOut);
+        }
 
 
         log.trace("Outgoing request headers: "
                 + Arrays.toString(method.getAllHeaders()));
 
+        HttpOperationMetrics metrics = metricsRegistry.getMetrics(method);
+        long startTime = System.currentTimeMillis();
+        long requestBytes = 0;
+        if (method instanceof HttpEntityEnclosingRequest && ((HttpEntityEnclosingRequest) method).getEntity() != null) {
+            requestBytes = ((HttpEntityEnclosingRequest) method).getEntity().getContentLength();
+        }
+        HostRateLimiter.Permit permit = rateLimiter.acquire(method);
+        metrics.requestStarted(requestBytes);
+
         // make the call
-        HttpResponse response = httpClient.execute(method);
+        HttpResponse response = null;
+        try {
+            response = httpClient.execute(method);
+        } catch (Exception ex) {
+            permit.release();
+            metrics.requestFailed(System.currentTimeMillis() - startTime);
+            throw ex;
+        }
 
         int statusCode=response.getStatusLine().getStatusCode();
+        metrics.responseReceived(statusCode, System.currentTimeMillis() - startTime);
+        MeteredHttpEntity meteredEntity = meterResponse(method, response, metrics, permit, startTime);
 
         if (statusCode != HttpStatus.SC_OK &&
             statusCode != HttpStatus.SC_CREATED &&
-            statusCode != HttpStatus.SC_ACCEPTED) {
+            statusCode != HttpStatus.SC_ACCEPTED &&
+            statusCode != HttpStatus.SC_PARTIAL_CONTENT && //Only ever returned if a Range was requested
+            statusCode != HttpStatus.SC_NOT_MODIFIED) { //Only ever returned for conditional (If-None-Match/If-Modified-Since) requests
             log.error(response.getStatusLine());
 
             // if it's unavailable then throw connection exception
             if (statusCode == HttpStatus.SC_SERVICE_UNAVAILABLE) {
-                throw new ConnectException();
+                if (meteredEntity != null) {
+                    meteredEntity.complete();
+                }
+                throw new ServiceUnavailableException(parseRetryAfter(response.getFirstHeader("Retry-After")));
             }
 
             String responseBody = responseToString(response.getEntity().getContent());
@@ -185,6 +391,60 @@ public class HttpServiceCaller {
         }
     }
 
+    /**
+     * Parses the value of a Retry-After header (either delta seconds or a HTTP date) into a delay
+     * @param header Can be null
+     * @return The delay in milli seconds or -1 if header is missing/unparseable
+     */
+    static long parseRetryAfter(Header header) {
+        if (header == null || header.getValue() == null) {
+            return -1;
+        }
+
+        String value = header.getValue().trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000L);
+        } catch (NumberFormatException ex) {
+            try {
+                Date date = DateUtils.parseDate(value);
+                return Math.max(0, date.getTime() - System.currentTimeMillis());
+            } catch (DateParseException dateEx) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Wraps the entity of response so that the response body size and total latency are recorded against metrics
+     * once the body is read. If response has no entity (or it can't be wrapped) the response will be immediately
+     * recorded as complete.
+     *
+     * The rate limiter permit will be released when the response is complete. The wrapping entity is installed as
+     * method's release trigger so that aborting method (or releasing its connection) also completes the response.
+     * @return The wrapping entity or null if response couldn't be wrapped
+     */
+    private MeteredHttpEntity meterResponse(HttpRequestBase method, HttpResponse response, HttpOperationMetrics metrics, HostRateLimiter.Permit permit, long startTime) {
+        HttpEntity entity = response.getEntity();
+        if (entity != null) {
+            MeteredHttpEntity meteredEntity = new MeteredHttpEntity(entity, metrics, permit, startTime);
+            response.setEntity(meteredEntity);
+            if (response.getEntity() == meteredEntity) {
+                try {
+                    //The wrapped entity will pass the abort/release on to the connection it manages
+                    method.setReleaseTrigger(meteredEntity);
+                } catch (IOException ex) {
+                    //method was aborted whilst we were reading the response headers (so its connection is already gone)
+                    meteredEntity.complete();
+                }
+                return meteredEntity;
+            }
+        }
+
+        permit.release();
+        metrics.responseCompleted(entity == null ? 0 : Math.max(0, entity.getContentLength()), System.currentTimeMillis() - startTime);
+        return null;
+    }
+
     /**
      * Convert a Buffered stream into a String.
      * @param stream
@@ -0,0 +1,166 @@
+package org.auscope.portal.core.server.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread safe, fixed memory histogram for recording latencies (or any other non negative long values).
+ *
+ * Values are grouped into log-linear buckets (each power of 2 range is split into 16 linear sub buckets) in the same
+ * manner as a HDR histogram. This means any value reported by this class (eg a percentile) is accurate to within
+ * roughly 6% of the true value regardless of magnitude.
+ *
+ * Recording a value is lock free and will never allocate memory.
+ */
+public class LatencyHistogram {
+    /** Number of bits of precision used for each power of 2 range */
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    /** Enough buckets to cover the entire positive range of a long*/
+    private static final int BUCKET_COUNT = 64 - SUB_BUCKET_BITS + 1;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong totalCount;
+    private final AtomicLong totalSum;
+    private final AtomicLong maxValue;
+
+    /**
+     * Creates a new empty histogram
+     */
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray(BUCKET_COUNT * SUB_BUCKET_COUNT);
+        this.totalCount = new AtomicLong();
+        this.totalSum = new AtomicLong();
+        this.maxValue = new AtomicLong();
+    }
+
+    /**
+     * Gets the index in counts that value will be recorded against
+     * @param value A non negative value
+     * @return
+     */
+    static int indexFor(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) ((value >>> shift) & (SUB_BUCKET_COUNT - 1));
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    /**
+     * Gets the smallest value that will be recorded against the specified index
+     * @param index
+     * @return
+     */
+    static long lowestValueAt(int index) {
+        int bucket = index / SUB_BUCKET_COUNT;
+        int subBucket = index % SUB_BUCKET_COUNT;
+        if (bucket == 0) {
+            return subBucket;
+        }
+
+        return ((long) (SUB_BUCKET_COUNT | subBucket)) << (bucket - 1);
+    }
+
+    /**
+     * Gets the largest value that will be recorded against the specified index
+     * @param index
+     * @return
+     */
+    static long highestValueAt(int index) {
+        if (index + 1 >= BUCKET_COUNT * SUB_BUCKET_COUNT) {
+            return Long.MAX_VALUE;
+        }
+        return lowestValueAt(index + 1) - 1;
+    }
+
+    /**
+     * Records a single value in this histogram. Negative values will be recorded as 0.
+     * @param value
+     */
+    public void recordValue(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+
+        counts.incrementAndGet(indexFor(value));
+        totalCount.incrementAndGet();
+        totalSum.addAndGet(value);
+
+        long currentMax = maxValue.get();
+        while (value > currentMax && !maxValue.compareAndSet(currentMax, value)) {
+            currentMax = maxValue.get();
+        }
+    }
+
+    /**
+     * Gets the total number of values recorded
+     * @return
+     */
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    /**
+     * Gets the largest value recorded (or 0 if nothing has been recorded)
+     * @return
+     */
+    public long getMax() {
+        return maxValue.get();
+    }
+
+    /**
+     * Gets the mean of all recorded values (or 0 if nothing has been recorded)
+     * @return
+     */
+    public double getMean() {
+        long count = totalCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        return (double) totalSum.get() / (double) count;
+    }
+
+    /**
+     * Gets the value at the specified percentile. The returned value will be the highest value that is
+     * equivalent (within this histogram's precision) to the value at that percentile.
+     *
+     * @param percentile A value in the range [0, 100]
+     * @return The value at percentile or 0 if nothing has been recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = totalCount.get();
+        if (count == 0) {
+            return 0;
+        }
+
+        percentile = Math.min(Math.max(percentile, 0.0), 100.0);
+        long target = Math.max(1, (long) Math.ceil((percentile / 100.0) * count));
+        long cumulative = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            cumulative += counts.get(i);
+            if (cumulative >= target) {
+                return Math.min(highestValueAt(i), getMax());
+            }
+        }
+
+        return getMax();
+    }
+
+    /**
+     * Removes all recorded values from this histogram.
+     *
+     * Values recorded concurrently with this call may or may not be retained.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        totalCount.set(0);
+        totalSum.set(0);
+        maxValue.set(0);
+    }
+}
@@ -0,0 +1,152 @@
+package org.auscope.portal.core.server.http;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Wraps a response entity so that the number of bytes read (and the total time taken to read them) is
+ * recorded against a HttpOperationMetrics once the content has been fully read or closed. The request's
+ * HostRateLimiter permit is also released at this point. Every read touches the permit so that a response that
+ * is still being read is never reclaimed as idle by the HostRateLimiter.
+ *
+ * This entity is also a ConnectionReleaseTrigger so that it can be installed as the request's release trigger -
+ * that way a request that is aborted (or has its connection released) before its content is read still
+ * completes (and releases its permit).
+ */
+class MeteredHttpEntity extends HttpEntityWrapper implements ConnectionReleaseTrigger {
+    private HttpOperationMetrics metrics;
+    private HostRateLimiter.Permit permit;
+    private long startTime;
+    private AtomicLong bytesRead;
+    private AtomicBoolean completed;
+
+    /**
+     * @param wrapped The entity to wrap
+     * @param metrics Will receive the byte count/latency on completion
+     * @param permit Will be released on completion
+     * @param startTime When the request was first started (in milli seconds)
+     */
+    public MeteredHttpEntity(HttpEntity wrapped, HttpOperationMetrics metrics, HostRateLimiter.Permit permit, long startTime) {
+        super(wrapped);
+        this.metrics = metrics;
+        this.permit = permit;
+        this.startTime = startTime;
+        this.bytesRead = new AtomicLong();
+        this.completed = new AtomicBoolean(false);
+    }
+
+    /**
+     * Records this response as complete. Only the first call will have any effect.
+     */
+    public void complete() {
+        if (completed.compareAndSet(false, true)) {
+            permit.release();
+            metrics.responseCompleted(bytesRead.get(), System.currentTimeMillis() - startTime);
+        }
+    }
+
+    /**
+     * Releases the underlying connection (if the wrapped entity manages one) and completes this response
+     */
+    @Override
+    public void releaseConnection() throws IOException {
+        try {
+            if (wrappedEntity instanceof ConnectionReleaseTrigger) {
+                ((ConnectionReleaseTrigger) wrappedEntity).releaseConnection();
+            }
+        } finally {
+            complete();
+        }
+    }
+
+    /**
+     * Aborts the underlying connection (if the wrapped entity manages one) and completes this response
+     */
+    @Override
+    public void abortConnection() throws IOException {
+        try {
+            if (wrappedEntity instanceof ConnectionReleaseTrigger) {
+                ((ConnectionReleaseTrigger) wrappedEntity).abortConnection();
+            }
+        } finally {
+            complete();
+        }
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        return new MeteredInputStream(super.getContent());
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+        InputStream is = getContent();
+        try {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                outstream.write(buffer, 0, read);
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Counts bytes as they are read (touching the permit), completing the parent entity on EOF or close
+     */
+    private class MeteredInputStream extends FilterInputStream {
+        public MeteredInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            permit.touch();
+            if (b < 0) {
+                complete();
+            } else {
+                bytesRead.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            permit.touch();
+            if (read < 0) {
+                complete();
+            } else {
+                bytesRead.addAndGet(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            permit.touch();
+            bytesRead.addAndGet(skipped);
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                complete();
+            }
+        }
+    }
+}
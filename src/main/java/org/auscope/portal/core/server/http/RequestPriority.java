@@ -0,0 +1,42 @@
+package org.auscope.portal.core.server.http;
+
+import org.apache.http.client.methods.HttpRequestBase;
+
+/**
+ * The priority classes that HostRateLimiter uses to order requests queued against the same host.
+ *
+ * Declared in order of decreasing priority.
+ */
+public enum RequestPriority {
+    /** A user is actively waiting on the response (eg a map tile or feature info popup)*/
+    INTERACTIVE,
+    /** A user requested bulk download*/
+    DOWNLOAD,
+    /** Background work that no user is waiting on (eg a CSW cache harvest)*/
+    BACKGROUND;
+
+    /** The name of the HttpParams parameter used to store a request's priority*/
+    public static final String PARAM_PRIORITY = "org.auscope.portal.core.priority";
+
+    /**
+     * Sets the priority of method. Requests without a priority are treated as INTERACTIVE
+     * @param method
+     * @param priority
+     */
+    public static void setPriority(HttpRequestBase method, RequestPriority priority) {
+        method.getParams().setParameter(PARAM_PRIORITY, priority);
+    }
+
+    /**
+     * Gets the priority of method (defaulting to INTERACTIVE if unset)
+     * @param method
+     * @return
+     */
+    public static RequestPriority getPriority(HttpRequestBase method) {
+        Object priority = method.getParams().getParameter(PARAM_PRIORITY);
+        if (priority instanceof RequestPriority) {
+            return (RequestPriority) priority;
+        }
+        return INTERACTIVE;
+    }
+}
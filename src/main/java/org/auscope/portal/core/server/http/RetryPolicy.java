@@ -0,0 +1,382 @@
+package org.auscope.portal.core.server.http;
+
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ConnectTimeoutException;
+
+/**
+ * Configuration for how HttpServiceCaller will retry requests that fail due to a transient error
+ * (eg a HTTP 503, a connection reset or a socket timeout).
+ *
+ * Requests are only ever retried if they have been explicitly opted in (see enableRetries) AND they are
+ * safe to repeat - that is a GET or a POST for one of the safePostOperations (eg GetRecords) with a repeatable body.
+ *
+ * Retries are delayed using exponential backoff with 'full' jitter (a random delay between 0 and the backoff), or
+ * by the server's Retry-After header if specified. The number of retries is limited per request (both a count and
+ * a total time budget) and per host (retries can only be made while the host's retry budget has tokens available,
+ * tokens are slowly accumulated with each request made to the host).
+ *
+ * This class is normally configured as a spring bean.
+ */
+public class RetryPolicy {
+    /** The name of the HttpParams parameter used to flag a request as eligible for retries*/
+    public static final String PARAM_RETRY_ENABLED = "org.auscope.portal.core.retry.enabled";
+
+    /** The maximum number of retries made for a single request*/
+    private int maxRetries = 3;
+    /** The delay (in milli seconds) before the first retry (before jitter is applied)*/
+    private long initialBackoffMs = 250L;
+    /** The maximum delay (in milli seconds) between any two retries (before jitter is applied)*/
+    private long maxBackoffMs = 10000L;
+    /** How much the backoff grows with each retry*/
+    private double backoffMultiplier = 2.0;
+    /** Retry-After values longer than this (in milli seconds) will cause the request to fail instead of retry*/
+    private long maxRetryAfterMs = 30000L;
+    /** The total time (in milli seconds) a single request may spend across all attempts and delays before retries stop*/
+    private long requestBudgetMs = 60000L;
+    /** The number of retry tokens each host's budget can hold (and starts with)*/
+    private double hostBudgetCapacity = 10.0;
+    /** The number of retry tokens deposited into a host's budget with each new request*/
+    private double hostBudgetRatio = 0.1;
+    /** The OGC operations that are safe to retry when made as a POST*/
+    private Set<String> safePostOperations = new HashSet<String>(Arrays.asList(
+            "GetRecords", "GetRecordById", "GetFeature", "DescribeFeatureType",
+            "GetCapabilities", "DescribeCoverage", "GetMap", "GetFeatureInfo"));
+
+    private ConcurrentHashMap<String, RetryBudget> hostBudgets = new ConcurrentHashMap<String, RetryBudget>();
+
+    /**
+     * Creates a new policy with default values
+     */
+    public RetryPolicy() {
+
+    }
+
+    /**
+     * Flags method as being eligible for retries (assuming it is safe to repeat)
+     * @param method
+     */
+    public static void enableRetries(HttpRequestBase method) {
+        method.getParams().setBooleanParameter(PARAM_RETRY_ENABLED, true);
+    }
+
+    /**
+     * Returns true if method has been flagged as eligible for retries via enableRetries
+     * @param method
+     * @return
+     */
+    public static boolean isRetryEnabled(HttpRequestBase method) {
+        return method.getParams().getBooleanParameter(PARAM_RETRY_ENABLED, false);
+    }
+
+    /**
+     * Returns true if method has opted into retries and can be safely repeated
+     * @param method
+     * @return
+     */
+    public boolean isRetryable(HttpRequestBase method) {
+        if (maxRetries <= 0 || !isRetryEnabled(method)) {
+            return false;
+        }
+
+        if (method instanceof HttpGet) {
+            return true;
+        }
+
+        if (method instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) method).getEntity();
+            if (entity != null && !entity.isRepeatable()) {
+                return false;
+            }
+            return safePostOperations.contains(HttpMetricsRegistry.getOperation(method));
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns true if ex represents a transient failure that may succeed if retried
+     * @param ex
+     * @return
+     */
+    public boolean isTransientFailure(Exception ex) {
+        if (ex instanceof HostQueueTimeoutException) {
+            return false; //We've already waited as long as we're allowed
+        }
+
+        return ex instanceof ConnectException ||          //Includes HTTP 503
+               ex instanceof ConnectTimeoutException ||
+               ex instanceof SocketTimeoutException ||
+               ex instanceof NoHttpResponseException ||
+               ex instanceof SocketException;             //eg connection reset
+    }
+
+    /**
+     * Gets (creating if it DNE) the retry budget for the specified host
+     * @param host
+     * @return
+     */
+    private RetryBudget getHostBudget(String host) {
+        RetryBudget budget = hostBudgets.get(host);
+        if (budget == null) {
+            RetryBudget newBudget = new RetryBudget(hostBudgetCapacity);
+            budget = hostBudgets.putIfAbsent(host, newBudget);
+            if (budget == null) {
+                budget = newBudget;
+            }
+        }
+        return budget;
+    }
+
+    /**
+     * Records that a new (non retry) request is being made to host. This slowly replenishes
+     * the host's retry budget.
+     * @param host
+     */
+    public void recordRequest(String host) {
+        getHostBudget(host).deposit(hostBudgetRatio, hostBudgetCapacity);
+    }
+
+    /**
+     * Gets the number of retry tokens currently available for host
+     * @param host
+     * @return
+     */
+    public double getAvailableRetries(String host) {
+        return getHostBudget(host).getBalance();
+    }
+
+    /**
+     * Calculates the exponential backoff delay (with full jitter) for the specified retry
+     * @param retryNumber The retry about to be made (0 based)
+     * @return
+     */
+    public long calculateBackoff(int retryNumber) {
+        double backoff = initialBackoffMs * Math.pow(backoffMultiplier, retryNumber);
+        long cappedBackoff = (long) Math.min(backoff, (double) maxBackoffMs);
+        if (cappedBackoff <= 0) {
+            return 0;
+        }
+        return ThreadLocalRandom.current().nextLong(cappedBackoff + 1);
+    }
+
+    /**
+     * Decides whether a failed request should be retried and if so, how long to wait before retrying.
+     *
+     * If a retry is allowed, a token will be withdrawn from the host's retry budget.
+     *
+     * @param method The request that failed
+     * @param ex The reason the request failed
+     * @param retryNumber The number of retries already made for this request
+     * @param elapsedMs The time already spent on this request (including previous attempts/delays)
+     * @return The delay in milli seconds before retrying or -1 if the request should NOT be retried
+     */
+    public long getRetryDelay(HttpRequestBase method, Exception ex, int retryNumber, long elapsedMs) {
+        if (retryNumber >= maxRetries || method.isAborted() || !isTransientFailure(ex)) {
+            return -1;
+        }
+
+        long delay = calculateBackoff(retryNumber);
+        if (ex instanceof ServiceUnavailableException) {
+            long retryAfter = ((ServiceUnavailableException) ex).getRetryAfterMs();
+            if (retryAfter > maxRetryAfterMs) {
+                return -1;
+            } else if (retryAfter >= 0) {
+                delay = retryAfter;
+            }
+        }
+
+        if (elapsedMs + delay > requestBudgetMs) {
+            return -1;
+        }
+
+        if (!getHostBudget(HttpMetricsRegistry.getHost(method)).withdraw()) {
+            return -1;
+        }
+
+        return delay;
+    }
+
+    /**
+     * The maximum number of retries made for a single request
+     * @return
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * The maximum number of retries made for a single request
+     * @param maxRetries
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * The delay (in milli seconds) before the first retry (before jitter is applied)
+     * @return
+     */
+    public long getInitialBackoffMs() {
+        return initialBackoffMs;
+    }
+
+    /**
+     * The delay (in milli seconds) before the first retry (before jitter is applied)
+     * @param initialBackoffMs
+     */
+    public void setInitialBackoffMs(long initialBackoffMs) {
+        this.initialBackoffMs = initialBackoffMs;
+    }
+
+    /**
+     * The maximum delay (in milli seconds) between any two retries (before jitter is applied)
+     * @return
+     */
+    public long getMaxBackoffMs() {
+        return maxBackoffMs;
+    }
+
+    /**
+     * The maximum delay (in milli seconds) between any two retries (before jitter is applied)
+     * @param maxBackoffMs
+     */
+    public void setMaxBackoffMs(long maxBackoffMs) {
+        this.maxBackoffMs = maxBackoffMs;
+    }
+
+    /**
+     * How much the backoff grows with each retry
+     * @return
+     */
+    public double getBackoffMultiplier() {
+        return backoffMultiplier;
+    }
+
+    /**
+     * How much the backoff grows with each retry
+     * @param backoffMultiplier
+     */
+    public void setBackoffMultiplier(double backoffMultiplier) {
+        this.backoffMultiplier = backoffMultiplier;
+    }
+
+    /**
+     * Retry-After values longer than this (in milli seconds) will cause the request to fail instead of retry
+     * @return
+     */
+    public long getMaxRetryAfterMs() {
+        return maxRetryAfterMs;
+    }
+
+    /**
+     * Retry-After values longer than this (in milli seconds) will cause the request to fail instead of retry
+     * @param maxRetryAfterMs
+     */
+    public void setMaxRetryAfterMs(long maxRetryAfterMs) {
+        this.maxRetryAfterMs = maxRetryAfterMs;
+    }
+
+    /**
+     * The total time (in milli seconds) a single request may spend across all attempts and delays before retries stop
+     * @return
+     */
+    public long getRequestBudgetMs() {
+        return requestBudgetMs;
+    }
+
+    /**
+     * The total time (in milli seconds) a single request may spend across all attempts and delays before retries stop
+     * @param requestBudgetMs
+     */
+    public void setRequestBudgetMs(long requestBudgetMs) {
+        this.requestBudgetMs = requestBudgetMs;
+    }
+
+    /**
+     * The number of retry tokens each host's budget can hold (and starts with)
+     * @return
+     */
+    public double getHostBudgetCapacity() {
+        return hostBudgetCapacity;
+    }
+
+    /**
+     * The number of retry tokens each host's budget can hold (and starts with)
+     * @param hostBudgetCapacity
+     */
+    public void setHostBudgetCapacity(double hostBudgetCapacity) {
+        this.hostBudgetCapacity = hostBudgetCapacity;
+    }
+
+    /**
+     * The number of retry tokens deposited into a host's budget with each new request
+     * @return
+     */
+    public double getHostBudgetRatio() {
+        return hostBudgetRatio;
+    }
+
+    /**
+     * The number of retry tokens deposited into a host's budget with each new request
+     * @param hostBudgetRatio
+     */
+    public void setHostBudgetRatio(double hostBudgetRatio) {
+        this.hostBudgetRatio = hostBudgetRatio;
+    }
+
+    /**
+     * The OGC operations that are safe to retry when made as a POST
+     * @return
+     */
+    public Set<String> getSafePostOperations() {
+        return safePostOperations;
+    }
+
+    /**
+     * The OGC operations that are safe to retry when made as a POST
+     * @param safePostOperations
+     */
+    public void setSafePostOperations(Set<String> safePostOperations) {
+        this.safePostOperations = safePostOperations;
+    }
+
+    /**
+     * A simple thread safe token bucket limiting the number of retries made against a single host
+     */
+    private static class RetryBudget {
+        private double balance;
+
+        public RetryBudget(double initialBalance) {
+            this.balance = initialBalance;
+        }
+
+        public synchronized void deposit(double amount, double capacity) {
+            balance = Math.min(capacity, balance + amount);
+        }
+
+        public synchronized boolean withdraw() {
+            if (balance < 1.0) {
+                return false;
+            }
+            balance -= 1.0;
+            return true;
+        }
+
+        public synchronized double getBalance() {
+            return balance;
+        }
+    }
+}
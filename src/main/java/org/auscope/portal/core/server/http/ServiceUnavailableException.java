@@ -0,0 +1,37 @@
+package org.auscope.portal.core.server.http;
+
+import java.net.ConnectException;
+
+/**
+ * Thrown when a remote service responds with HTTP 503 (Service Unavailable). Carries the
+ * value of any Retry-After header so that the request can be retried at an appropriate time.
+ */
+public class ServiceUnavailableException extends ConnectException {
+    private static final long serialVersionUID = 1L;
+
+    private long retryAfterMs;
+
+    /**
+     * Creates a new exception with no Retry-After information
+     */
+    public ServiceUnavailableException() {
+        this(-1);
+    }
+
+    /**
+     * Creates a new exception
+     * @param retryAfterMs The number of milli seconds the service asked us to wait before retrying (or -1 if unspecified)
+     */
+    public ServiceUnavailableException(long retryAfterMs) {
+        super("Service Unavailable");
+        this.retryAfterMs = retryAfterMs;
+    }
+
+    /**
+     * The number of milli seconds the service asked us to wait before retrying (or -1 if unspecified)
+     * @return
+     */
+    public long getRetryAfterMs() {
+        return retryAfterMs;
+    }
+}
@@ -0,0 +1,490 @@
+package org.auscope.portal.core.server.http.download;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.json.JSONObject;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.auscope.portal.core.services.responses.ows.OWSException;
+import org.auscope.portal.core.services.responses.ows.OWSExceptionParser;
+import org.auscope.portal.core.util.FileIOUtil;
+
+/**
+ * An on disk cache of completed service downloads keyed by a fingerprint of the request (see fingerprint).
+ *
+ * Each cached body is stored in a file named after the SHA-256 of its fingerprint (alongside a small file
+ * recording its content type). Bodies are only ever added to the cache once they have been read in full - a
+ * download that fails or is abandoned part way through is never cached. Nor are OWS/OGC exception reports.
+ *
+ * Entries expire after ttlMs. Whenever the total size of the cache exceeds maxSizeBytes the least recently
+ * used entries are removed.
+ */
+public class DownloadCache {
+    private static final String BODY_SUFFIX = ".body";
+    private static final String TYPE_SUFFIX = ".type";
+    private static final String PARTIAL_SUFFIX = ".partial";
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private File directory;
+    private long ttlMs = 60 * 60 * 1000L;
+    private long maxSizeBytes = 512L * 1024L * 1024L;
+
+    private AtomicLong hitCount = new AtomicLong();
+    private AtomicLong missCount = new AtomicLong();
+    private AtomicLong storeCount = new AtomicLong();
+    private AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * Creates a new cache storing its entries in directory (which will be created if it doesn't exist)
+     * @param directory
+     */
+    public DownloadCache(File directory) {
+        this.directory = directory;
+        if (!directory.exists() && !directory.mkdirs()) {
+            log.warn(String.format("Unable to create download cache directory '%1$s'", directory));
+        }
+    }
+
+    /**
+     * How long (in milli seconds) a cached download will be served for
+     * @return
+     */
+    public long getTtlMs() {
+        return ttlMs;
+    }
+
+    /**
+     * How long (in milli seconds) a cached download will be served for
+     * @param ttlMs
+     */
+    public void setTtlMs(long ttlMs) {
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * The maximum combined size (in bytes) of every cached download. 0 means unlimited
+     * @return
+     */
+    public long getMaxSizeBytes() {
+        return maxSizeBytes;
+    }
+
+    /**
+     * The maximum combined size (in bytes) of every cached download. 0 means unlimited
+     * @param maxSizeBytes
+     */
+    public void setMaxSizeBytes(long maxSizeBytes) {
+        this.maxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * Generates a canonical fingerprint for a request. The URL is normalised so that equivalent requests
+     * (differing only in scheme/host case, default ports, query parameter order or percent encoding) share
+     * a fingerprint.
+     *
+     * Query parameter names and values are decoded separately and then re-encoded (so an encoded '&' or '='
+     * can't be confused with a separator). Parameters are ordered by name only - repeated parameters keep
+     * their original relative order as it may be significant.
+     *
+     * @param url The request URL
+     * @param postBody The request body (or null for a GET request)
+     * @return
+     */
+    public static String fingerprint(String url, String postBody) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            URI uri = new URI(url.trim());
+            String scheme = uri.getScheme() == null ? "http" : uri.getScheme().toLowerCase();
+            int port = uri.getPort();
+            if (("http".equals(scheme) && port == 80) || ("https".equals(scheme) && port == 443)) {
+                port = -1;
+            }
+            sb.append(scheme).append("://");
+            if (uri.getHost() != null) {
+                sb.append(uri.getHost().toLowerCase());
+            }
+            if (port >= 0) {
+                sb.append(':').append(port);
+            }
+            sb.append(uri.getPath() == null || uri.getPath().isEmpty() ? "/" : uri.getPath());
+
+            if (uri.getRawQuery() != null) {
+                List<String[]> params = new ArrayList<String[]>();
+                for (String param : uri.getRawQuery().split("&")) {
+                    if (param.isEmpty()) {
+                        continue;
+                    }
+                    int separator = param.indexOf('=');
+                    String name = separator < 0 ? param : param.substring(0, separator);
+                    String value = separator < 0 ? null : param.substring(separator + 1);
+                    params.add(new String[] {
+                            URLEncoder.encode(URLDecoder.decode(name, "UTF-8"), "UTF-8"),
+                            value == null ? null : URLEncoder.encode(URLDecoder.decode(value, "UTF-8"), "UTF-8")});
+                }
+                //Collections.sort is stable so repeated names keep their order
+                Collections.sort(params, new Comparator<String[]>() {
+                    @Override
+                    public int compare(String[] a, String[] b) {
+                        return a[0].compareTo(b[0]);
+                    }
+                });
+                for (int i = 0; i < params.size(); i++) {
+                    sb.append(i == 0 ? '?' : '&').append(params.get(i)[0]);
+                    if (params.get(i)[1] != null) {
+                        sb.append('=').append(params.get(i)[1]);
+                    }
+                }
+            }
+        } catch (Exception ex) {
+            //We can't normalise it - the raw URL is still a valid (if less effective) fingerprint
+            sb.setLength(0);
+            sb.append(url);
+        }
+
+        if (postBody != null) {
+            sb.append('\n').append(postBody);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Gets the name (without suffix) of the files that store fingerprint
+     */
+    private static String getKey(String fingerprint) {
+        return FileIOUtil.sha256Hex(fingerprint);
+    }
+
+    /**
+     * If fingerprint is cached, sets response's stream (and content type) to the cached download
+     * @param fingerprint The fingerprint of the request (see fingerprint)
+     * @param response Will receive the cached download on a hit
+     * @return true on a cache hit, false otherwise
+     */
+    public boolean serve(String fingerprint, DownloadResponse response) {
+        String key = getKey(fingerprint);
+        File body = new File(directory, key + BODY_SUFFIX);
+        File type = new File(directory, key + TYPE_SUFFIX);
+
+        if (!body.exists() || System.currentTimeMillis() - body.lastModified() > ttlMs) {
+            missCount.incrementAndGet();
+            return false;
+        }
+
+        try {
+            String contentType = type.exists() ? FileIOUtil.convertStreamtoString(new FileInputStream(type)).trim() : "";
+            InputStream in = new FileInputStream(body);
+            type.setLastModified(System.currentTimeMillis()); //Body mtime is the expiry clock, type mtime is the LRU clock
+            response.setResponseStream(in, body.length());
+            response.setContentType(contentType);
+            hitCount.incrementAndGet();
+            return true;
+        } catch (IOException ex) {
+            //It was probably evicted between the check and the open
+            log.debug(String.format("Unable to read cached download '%1$s'", key), ex);
+            missCount.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Wraps body so that, once it has been read in full, its bytes will be stored in this cache against fingerprint.
+     * If body is closed before it has been completely read nothing will be cached.
+     *
+     * @param fingerprint The fingerprint of the request (see fingerprint)
+     * @param contentType The content type of body
+     * @param body The upstream response body
+     * @return A stream that should be read instead of body
+     */
+    public InputStream store(String fingerprint, String contentType, InputStream body) {
+        String key = getKey(fingerprint);
+        try {
+            File partial = File.createTempFile(key, PARTIAL_SUFFIX, directory);
+            return new CachingInputStream(body, key, contentType, partial);
+        } catch (IOException ex) {
+            log.warn(String.format("Unable to cache download '%1$s': %2$s", key, ex));
+            return body;
+        }
+    }
+
+    /**
+     * Returns true if partial is an OWS/OGC exception report (which should never be cached)
+     */
+    private boolean isExceptionReport(File partial) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(partial));
+        try {
+            //Only XML responses can be exception reports (eg JSON responses don't need parsing)
+            in.mark(1);
+            int c = in.read();
+            while (c != -1 && Character.isWhitespace(c)) {
+                in.mark(1);
+                c = in.read();
+            }
+            if (c != '<') {
+                return false;
+            }
+            in.reset();
+
+            OWSExceptionParser.checkForExceptionResponse(in);
+            return false;
+        } catch (OWSException ex) {
+            //A cause means the XML couldn't be parsed (eg an unbound prefix) rather than it being an exception report
+            return ex.getCause() == null;
+        } finally {
+            FileIOUtil.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Moves a completely read download into place (unless it's an exception report)
+     */
+    private void commit(String key, String contentType, File partial) {
+        File body = new File(directory, key + BODY_SUFFIX);
+        File type = new File(directory, key + TYPE_SUFFIX);
+        try {
+            if (isExceptionReport(partial)) {
+                log.debug(String.format("Not caching download '%1$s' as it's an exception report", key));
+                partial.delete();
+                return;
+            }
+
+            OutputStream out = new FileOutputStream(type);
+            try {
+                out.write((contentType == null ? "" : contentType).getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+
+            FileIOUtil.atomicMove(partial, body);
+            storeCount.incrementAndGet();
+        } catch (IOException ex) {
+            log.warn(String.format("Unable to cache download '%1$s': %2$s", key, ex));
+            partial.delete();
+            return;
+        }
+
+        enforceLimits();
+    }
+
+    /**
+     * Removes expired entries and then the least recently used entries until the cache is under maxSizeBytes
+     */
+    public synchronized void enforceLimits() {
+        File[] bodies = directory.listFiles();
+        if (bodies == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long totalSize = 0;
+        List<File> live = new ArrayList<File>();
+        for (File body : bodies) {
+            if (!body.getName().endsWith(BODY_SUFFIX)) {
+                continue;
+            }
+            if (now - body.lastModified() > ttlMs) {
+                remove(body);
+            } else {
+                totalSize += body.length();
+                live.add(body);
+            }
+        }
+
+        if (maxSizeBytes <= 0 || totalSize <= maxSizeBytes) {
+            return;
+        }
+
+        final long[] lastUsed = new long[live.size()];
+        for (int i = 0; i < live.size(); i++) {
+            lastUsed[i] = Math.max(live.get(i).lastModified(), getTypeFile(live.get(i)).lastModified());
+        }
+        Integer[] order = new Integer[live.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(lastUsed[a], lastUsed[b]);
+            }
+        });
+
+        for (int i = 0; i < order.length && totalSize > maxSizeBytes; i++) {
+            File body = live.get(order[i]);
+            totalSize -= body.length();
+            remove(body);
+        }
+    }
+
+    private File getTypeFile(File body) {
+        String name = body.getName();
+        return new File(directory, name.substring(0, name.length() - BODY_SUFFIX.length()) + TYPE_SUFFIX);
+    }
+
+    private void remove(File body) {
+        getTypeFile(body).delete();
+        if (body.delete()) {
+            evictionCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * The number of requests that were served from this cache
+     * @return
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * The number of requests that weren't found in this cache
+     * @return
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * The fraction (0 to 1) of requests that were served from this cache
+     * @return
+     */
+    public double getHitRate() {
+        long hits = hitCount.get();
+        long total = hits + missCount.get();
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    /**
+     * Gets the total size (in bytes) of every cached download
+     * @return
+     */
+    public long getSizeBytes() {
+        long size = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.getName().endsWith(BODY_SUFFIX)) {
+                    size += f.length();
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Converts this cache's metrics into a JSON object suitable for an admin endpoint
+     * @return
+     */
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("hits", getHitCount());
+        json.put("misses", getMissCount());
+        json.put("hitRate", getHitRate());
+        json.put("stores", storeCount.get());
+        json.put("evictions", evictionCount.get());
+        json.put("sizeBytes", getSizeBytes());
+        json.put("maxSizeBytes", maxSizeBytes);
+        json.put("ttlMs", ttlMs);
+        return json;
+    }
+
+    /**
+     * Copies every byte read through it into a partial cache file. The file is committed to the cache
+     * when the end of the stream is reached or discarded if the stream is closed before then.
+     */
+    private class CachingInputStream extends FilterInputStream {
+        private String key;
+        private String contentType;
+        private File partial;
+        private OutputStream copy;
+        private boolean finished = false;
+
+        public CachingInputStream(InputStream in, String key, String contentType, File partial) throws IOException {
+            super(in);
+            this.key = key;
+            this.contentType = contentType;
+            this.partial = partial;
+            this.copy = new FileOutputStream(partial);
+        }
+
+        private void abandon() {
+            if (!finished) {
+                finished = true;
+                FileIOUtil.closeQuietly(copy);
+                partial.delete();
+            }
+        }
+
+        private void copy(byte[] b, int off, int read) {
+            if (finished) {
+                return;
+            }
+            try {
+                if (read < 0) {
+                    finished = true;
+                    copy.close();
+                    commit(key, contentType, partial);
+                } else if (read > 0) {
+                    copy.write(b, off, read);
+                }
+            } catch (IOException ex) {
+                log.warn(String.format("Unable to cache download '%1$s': %2$s", key, ex));
+                abandon();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int read = read(b, 0, 1);
+            return read <= 0 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read;
+            try {
+                read = in.read(b, off, len);
+            } catch (IOException ex) {
+                abandon();
+                throw ex;
+            }
+            copy(b, off, read);
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            abandon(); //Skipped bytes can't be cached
+            return in.skip(n);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            abandon();
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,569 @@
+package org.auscope.portal.core.server.http.download;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.auscope.portal.core.configuration.ServiceConfiguration;
+import org.auscope.portal.core.server.http.HttpServiceCaller;
+import org.auscope.portal.core.util.FileIOUtil;
+
+/**
+ * A journal of bulk download jobs kept on local disk so that they survive a restart/redeploy.
+ *
+ * Each job (one per email, just like DownloadTracker) is a directory containing a job.json describing the
+ * requested URLs and the state of each service, plus the body of every service that has finished downloading.
+ * Every file is written to a temporary file and then renamed into place so a crash can never leave a
+ * half written service body or job.json behind - a service is only marked COMPLETED once its body has been
+ * committed.
+ *
+ * On startup (see start/resumeJobs) every unfinished job is handed back to a DownloadTracker and only the
+ * services that had not COMPLETED are requested again. Jobs are removed once their tracker has finished or
+ * after ttlMs without any progress (see expire).
+ */
+public class DownloadJournal {
+    private static final String JOB_FILE = "job.json";
+    private static final String BODY_SUFFIX = ".body";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** The state of a single service within a job*/
+    public enum ServiceState {
+        PENDING,
+        COMPLETED,
+        FAILED
+    }
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private File directory;
+    private long ttlMs = DownloadTracker.timeAllowForCache;
+    private HttpServiceCaller serviceCaller;
+    private ExecutorService executor;
+    private ServiceConfiguration serviceConfiguration;
+    /** The ids of every job being downloaded by this process*/
+    private Set<String> activeJobs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Creates a new journal storing its jobs in directory (which will be created if it doesn't exist)
+     * @param directory
+     */
+    public DownloadJournal(File directory) {
+        this.directory = directory;
+        if (!directory.exists() && !directory.mkdirs()) {
+            log.warn(String.format("Unable to create download journal directory '%1$s'", directory));
+        }
+    }
+
+    /**
+     * The directory holding every job
+     * @return
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * How long (in milli seconds) a job can go without any progress before it is discarded
+     * @return
+     */
+    public long getTtlMs() {
+        return ttlMs;
+    }
+
+    /**
+     * How long (in milli seconds) a job can go without any progress before it is discarded
+     * @param ttlMs
+     */
+    public void setTtlMs(long ttlMs) {
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * Used for making the requests of resumed jobs
+     * @return
+     */
+    public HttpServiceCaller getServiceCaller() {
+        return serviceCaller;
+    }
+
+    /**
+     * Used for making the requests of resumed jobs
+     * @param serviceCaller
+     */
+    public void setServiceCaller(HttpServiceCaller serviceCaller) {
+        this.serviceCaller = serviceCaller;
+    }
+
+    /**
+     * The executor that resumed jobs will be downloaded with
+     * @return
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * The executor that resumed jobs will be downloaded with
+     * @param executor
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * The (optional) service configuration applied to resumed jobs
+     * @return
+     */
+    public ServiceConfiguration getServiceConfiguration() {
+        return serviceConfiguration;
+    }
+
+    /**
+     * The (optional) service configuration applied to resumed jobs
+     * @param serviceConfiguration
+     */
+    public void setServiceConfiguration(ServiceConfiguration serviceConfiguration) {
+        this.serviceConfiguration = serviceConfiguration;
+    }
+
+    /**
+     * Discards expired jobs and then resumes every remaining job. Normally configured as a spring init-method
+     * @return The number of jobs that were resumed
+     */
+    public int start() {
+        expire();
+        return resumeJobs();
+    }
+
+    private static String getJobId(String email) {
+        return FileIOUtil.sha256Hex(email);
+    }
+
+    /**
+     * Journals a new job for email, replacing any existing job for that email
+     * @param email The email (token) of the DownloadTracker that will run the job
+     * @param urls The URLs to download
+     * @return
+     * @throws IOException If the job cannot be written to disk
+     */
+    public Job createJob(String email, String[] urls) throws IOException {
+        Job job = new Job(getJobId(email), email, urls);
+        deleteDirectory(job.getDirectory());
+        if (!job.getDirectory().mkdirs()) {
+            throw new IOException(String.format("Unable to create job directory '%1$s'", job.getDirectory()));
+        }
+        writeJob(job);
+        activeJobs.add(job.getId());
+        return job;
+    }
+
+    /**
+     * Loads every job currently journaled on disk. Jobs that cannot be read are skipped.
+     * @return
+     */
+    public List<Job> getJobs() {
+        List<Job> jobs = new ArrayList<Job>();
+        File[] dirs = directory.listFiles();
+        if (dirs == null) {
+            return jobs;
+        }
+
+        for (File dir : dirs) {
+            File jobFile = new File(dir, JOB_FILE);
+            if (!dir.isDirectory() || !jobFile.exists()) {
+                continue;
+            }
+            try {
+                jobs.add(readJob(dir));
+            } catch (Exception ex) {
+                log.warn(String.format("Unable to read download job '%1$s'", jobFile), ex);
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Reads the entirety of in into the job as the body of service index and marks the service as COMPLETED.
+     * If in cannot be read (or the body cannot be written) the service is marked as FAILED instead and
+     * nothing is committed. in will be closed.
+     *
+     * @param job
+     * @param index The index of the service (URL) within job
+     * @param contentType The content type of in (can be null)
+     * @param in The service's body
+     * @throws IOException If in cannot be read or the body cannot be written
+     */
+    public void saveServiceOutput(Job job, int index, String contentType, InputStream in) throws IOException {
+        File body = job.getBodyFile(index);
+        File temp = new File(body.getPath() + TEMP_SUFFIX);
+        try {
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                byte[] buffer = new byte[32 * 1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+            FileIOUtil.atomicMove(temp, body);
+        } catch (IOException ex) {
+            try {
+                markServiceFailed(job, index, ex.toString());
+            } catch (IOException markEx) {
+                log.warn(String.format("Unable to record the failure of service %1$s for '%2$s'", index, job.getEmail()), markEx);
+            }
+            throw ex;
+        } finally {
+            FileIOUtil.closeQuietly(in);
+            if (temp.exists()) {
+                temp.delete();
+            }
+        }
+
+        synchronized (job) {
+            job.states[index] = ServiceState.COMPLETED;
+            job.contentTypes[index] = contentType;
+            job.errors[index] = null;
+            writeJob(job);
+        }
+    }
+
+    /**
+     * Records that service index of job failed. Failed services will be tried again if the job is resumed.
+     * @param job
+     * @param index The index of the service (URL) within job
+     * @param error A description of the failure
+     * @throws IOException
+     */
+    public void markServiceFailed(Job job, int index, String error) throws IOException {
+        synchronized (job) {
+            job.states[index] = ServiceState.FAILED;
+            job.errors[index] = error;
+            writeJob(job);
+        }
+    }
+
+    /**
+     * If service index of job has COMPLETED, sets response's stream (and content type) to the journaled body
+     * @param job
+     * @param index The index of the service (URL) within job
+     * @param response Will receive the body
+     * @return true if response was populated, false if the service still needs to be downloaded
+     */
+    public boolean restoreServiceOutput(Job job, int index, DownloadResponse response) {
+        if (job.getState(index) != ServiceState.COMPLETED) {
+            return false;
+        }
+
+        File body = job.getBodyFile(index);
+        try {
+            response.setResponseStream(new FileInputStream(body), body.length());
+            response.setContentType(job.getContentType(index));
+            return true;
+        } catch (IOException ex) {
+            log.warn(String.format("Journaled body '%1$s' is missing - it will be downloaded again", body), ex);
+            return false;
+        }
+    }
+
+    /**
+     * Opens the journaled body of service index of job
+     * @param job
+     * @param index The index of the service (URL) within job
+     * @return
+     * @throws IOException If the service hasn't COMPLETED
+     */
+    public InputStream openServiceOutput(Job job, int index) throws IOException {
+        if (job.getState(index) != ServiceState.COMPLETED) {
+            throw new IOException(String.format("Service %1$s of the job for '%2$s' has not completed", index, job.getEmail()));
+        }
+        return new FileInputStream(job.getBodyFile(index));
+    }
+
+    /**
+     * Deletes job (and every journaled body) from disk
+     * @param job
+     */
+    public void removeJob(Job job) {
+        activeJobs.remove(job.getId());
+        deleteDirectory(job.getDirectory());
+    }
+
+    /**
+     * Deletes every job (that isn't being downloaded by this process) that hasn't made progress in ttlMs
+     * @return The number of jobs removed
+     */
+    public int expire() {
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        for (Job job : getJobs()) {
+            if (!activeJobs.contains(job.getId()) && now - job.getUpdatedTime() > ttlMs) {
+                log.info(String.format("Discarding expired download job for '%1$s'", job.getEmail()));
+                removeJob(job);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Restarts every journaled job (that isn't already being downloaded by this process) in the DownloadTracker
+     * for its email. Only services that have not COMPLETED will be requested again.
+     *
+     * @return The number of jobs that were resumed
+     */
+    public int resumeJobs() {
+        int resumed = 0;
+        for (Job job : getJobs()) {
+            if (!activeJobs.add(job.getId())) {
+                continue;
+            }
+
+            try {
+                ServiceDownloadManager sdm = new ServiceDownloadManager(job.getUrls(), serviceCaller, executor, serviceConfiguration);
+                DownloadTracker.getTracker(job.getEmail()).resumeTrack(sdm, this, job);
+                log.info(String.format("Resumed download job for '%1$s' (%2$s of %3$s services already complete)",
+                        job.getEmail(), job.getCompletedCount(), job.getUrls().length));
+                resumed++;
+            } catch (InCompleteDownloadException ex) {
+                activeJobs.remove(job.getId());
+                log.warn(String.format("Not resuming job for '%1$s' - another download is already in progress", job.getEmail()));
+            } catch (URISyntaxException ex) {
+                log.warn(String.format("Discarding download job for '%1$s' - it contains an invalid URL", job.getEmail()), ex);
+                removeJob(job);
+            }
+        }
+        return resumed;
+    }
+
+    /**
+     * Converts the current set of journaled jobs into a JSON object suitable for an admin endpoint
+     * @return
+     */
+    public JSONObject toJSON() {
+        JSONArray jobs = new JSONArray();
+        for (Job job : getJobs()) {
+            JSONObject jobJson = new JSONObject();
+            jobJson.put("email", job.getEmail());
+            jobJson.put("active", activeJobs.contains(job.getId()));
+            jobJson.put("services", job.getUrls().length);
+            jobJson.put("completed", job.getCompletedCount());
+            jobJson.put("createdTime", job.getCreatedTime());
+            jobJson.put("updatedTime", job.getUpdatedTime());
+            jobs.add(jobJson);
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("jobs", jobs);
+        json.put("directory", directory.getAbsolutePath());
+        json.put("ttlMs", ttlMs);
+        return json;
+    }
+
+    private void writeJob(Job job) throws IOException {
+        job.updatedTime = System.currentTimeMillis();
+
+        JSONArray services = new JSONArray();
+        for (int i = 0; i < job.urls.length; i++) {
+            JSONObject service = new JSONObject();
+            service.put("url", job.urls[i]);
+            service.put("state", job.states[i].toString());
+            service.put("contentType", job.contentTypes[i] == null ? "" : job.contentTypes[i]);
+            service.put("error", job.errors[i] == null ? "" : job.errors[i]);
+            services.add(service);
+        }
+        JSONObject json = new JSONObject();
+        json.put("email", job.email);
+        json.put("createdTime", job.createdTime);
+        json.put("updatedTime", job.updatedTime);
+        json.put("services", services);
+
+        File jobFile = new File(job.getDirectory(), JOB_FILE);
+        File temp = new File(job.getDirectory(), JOB_FILE + TEMP_SUFFIX);
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(json.toString().getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        FileIOUtil.atomicMove(temp, jobFile);
+    }
+
+    private Job readJob(File dir) throws IOException {
+        JSONObject json;
+        FileInputStream in = new FileInputStream(new File(dir, JOB_FILE));
+        try {
+            json = JSONObject.fromObject(FileIOUtil.convertStreamtoString(in));
+        } finally {
+            FileIOUtil.closeQuietly(in);
+        }
+
+        JSONArray services = json.getJSONArray("services");
+        String[] urls = new String[services.size()];
+        for (int i = 0; i < urls.length; i++) {
+            urls[i] = services.getJSONObject(i).getString("url");
+        }
+
+        Job job = new Job(dir.getName(), json.getString("email"), urls);
+        job.createdTime = json.getLong("createdTime");
+        job.updatedTime = json.getLong("updatedTime");
+        for (int i = 0; i < urls.length; i++) {
+            JSONObject service = services.getJSONObject(i);
+            String contentType = service.optString("contentType", "");
+            String error = service.optString("error", "");
+            job.contentTypes[i] = contentType.isEmpty() ? null : contentType;
+            job.errors[i] = error.isEmpty() ? null : error;
+            job.states[i] = ServiceState.valueOf(service.getString("state"));
+
+            //A body that was never committed can't be trusted
+            if (job.states[i] == ServiceState.COMPLETED && !job.getBodyFile(i).exists()) {
+                job.states[i] = ServiceState.PENDING;
+            }
+        }
+        return job;
+    }
+
+    private void deleteDirectory(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        if (dir.exists() && !dir.delete()) {
+            log.warn(String.format("Unable to delete download job '%1$s'", dir));
+        }
+    }
+
+    /**
+     * A single journaled download job
+     */
+    public class Job {
+        private String id;
+        private String email;
+        private String[] urls;
+        private ServiceState[] states;
+        private String[] contentTypes;
+        private String[] errors;
+        private long createdTime = System.currentTimeMillis();
+        private volatile long updatedTime = createdTime;
+
+        private Job(String id, String email, String[] urls) {
+            this.id = id;
+            this.email = email;
+            this.urls = urls;
+            this.states = new ServiceState[urls.length];
+            this.contentTypes = new String[urls.length];
+            this.errors = new String[urls.length];
+            for (int i = 0; i < urls.length; i++) {
+                states[i] = ServiceState.PENDING;
+            }
+        }
+
+        /**
+         * Uniquely identifies this job (derived from email)
+         * @return
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * The email (token) of the DownloadTracker running this job
+         * @return
+         */
+        public String getEmail() {
+            return email;
+        }
+
+        /**
+         * The URLs being downloaded
+         * @return
+         */
+        public String[] getUrls() {
+            return urls;
+        }
+
+        /**
+         * The state of service index
+         * @param index
+         * @return
+         */
+        public synchronized ServiceState getState(int index) {
+            return states[index];
+        }
+
+        /**
+         * The content type of service index (or null if it's unknown or the service hasn't completed)
+         * @param index
+         * @return
+         */
+        public synchronized String getContentType(int index) {
+            return contentTypes[index];
+        }
+
+        /**
+         * The reason service index failed (or null if it hasn't failed)
+         * @param index
+         * @return
+         */
+        public synchronized String getError(int index) {
+            return errors[index];
+        }
+
+        /**
+         * The number of services that have COMPLETED
+         * @return
+         */
+        public synchronized int getCompletedCount() {
+            int count = 0;
+            for (ServiceState state : states) {
+                if (state == ServiceState.COMPLETED) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * When this job was first journaled
+         * @return
+         */
+        public long getCreatedTime() {
+            return createdTime;
+        }
+
+        /**
+         * When this job was last written to disk
+         * @return
+         */
+        public long getUpdatedTime() {
+            return updatedTime;
+        }
+
+        private File getDirectory() {
+            return new File(directory, id);
+        }
+
+        private File getBodyFile(int index) {
+            return new File(getDirectory(), index + BODY_SUFFIX);
+        }
+    }
+}
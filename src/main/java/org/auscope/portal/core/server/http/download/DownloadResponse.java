@@ -1,16 +1,36 @@
 package org.auscope.portal.core.server.http.download;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.json.JSONObject;
 
 import org.auscope.portal.core.util.FileIOUtil;
 
+/**
+ * The response from a single service download along with the progress of that download.
+ *
+ * Progress is recorded without locking - the bytes received are counted by the stream wrappers
+ * returned from countProgress/setResponseStream(InputStream, long) as they are read.
+ */
 public class DownloadResponse {
     private InputStream responseStream;
     private Exception exception;
     private String requestURL;
     private String contentType;
 
+    private volatile Progression status = Progression.NOT_STARTED;
+    private volatile long startTime = 0;
+    private volatile long endTime = 0;
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private volatile long expectedBytes = -1;
+    private volatile int expectedFeatures = -1;
+    private final AtomicInteger pagesCompleted = new AtomicInteger();
+    private volatile int expectedPages = -1;
+
     public DownloadResponse(String url){
         requestURL = url;
         exception = null;
@@ -28,6 +48,9 @@ public class DownloadResponse {
 
     public void setException(Exception exception) {
         this.exception = exception;
+        if (exception != null) {
+            setProgressComplete();
+        }
     }
     public Exception getException() {
         return exception;
@@ -37,6 +60,27 @@ public class DownloadResponse {
         this.responseStream = responseStream;
     }
 
+    /**
+     * Sets the response stream, counting its bytes (as they are read) towards this response's progress. The
+     * download will be marked as complete once responseStream has been read to its end.
+     * @param responseStream The upstream body
+     * @param expectedBytes The expected length of responseStream (or -1 if unknown)
+     */
+    public void setResponseStream(InputStream responseStream, long expectedBytes) {
+        this.expectedBytes = expectedBytes;
+        this.responseStream = new ProgressInputStream(responseStream, true);
+    }
+
+    /**
+     * Wraps in so that any bytes read from it will count towards this response's progress (eg for a
+     * single page of a paged download)
+     * @param in
+     * @return
+     */
+    public InputStream countProgress(InputStream in) {
+        return new ProgressInputStream(in, false);
+    }
+
     public InputStream getResponseAsStream() {
         return responseStream;
     }
@@ -66,4 +110,196 @@ public class DownloadResponse {
         this.contentType = contentType;
     }
 
+    /**
+     * Marks the download as started
+     */
+    public void setProgressStarted() {
+        this.startTime = System.currentTimeMillis();
+        this.status = Progression.INPROGRESS;
+    }
+
+    /**
+     * Marks the download as finished (successfully or otherwise)
+     */
+    public void setProgressComplete() {
+        if (this.status != Progression.COMPLETED) {
+            this.endTime = System.currentTimeMillis();
+            this.status = Progression.COMPLETED;
+        }
+    }
+
+    /**
+     * The state of this download. A completed download may have failed (see hasException)
+     * @return
+     */
+    public Progression getStatus() {
+        return status;
+    }
+
+    /**
+     * The number of bytes received from the upstream service so far
+     * @return
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * The expected number of bytes (eg from Content-Length) or -1 if unknown
+     * @return
+     */
+    public long getExpectedBytes() {
+        return expectedBytes;
+    }
+
+    /**
+     * The total number of features being downloaded (eg from a WFS hits request) or -1 if unknown
+     * @return
+     */
+    public int getExpectedFeatures() {
+        return expectedFeatures;
+    }
+
+    /**
+     * The total number of features being downloaded (eg from a WFS hits request) or -1 if unknown
+     * @param expectedFeatures
+     */
+    public void setExpectedFeatures(int expectedFeatures) {
+        this.expectedFeatures = expectedFeatures;
+    }
+
+    /**
+     * The number of pages of a paged download that have been received
+     * @return
+     */
+    public int getPagesCompleted() {
+        return pagesCompleted.get();
+    }
+
+    /**
+     * Records that another page of a paged download has been received
+     */
+    public void incrementPagesCompleted() {
+        pagesCompleted.incrementAndGet();
+    }
+
+    /**
+     * The total number of pages in a paged download or -1 if unknown
+     * @return
+     */
+    public int getExpectedPages() {
+        return expectedPages;
+    }
+
+    /**
+     * The total number of pages in a paged download or -1 if unknown
+     * @param expectedPages
+     */
+    public void setExpectedPages(int expectedPages) {
+        this.expectedPages = expectedPages;
+    }
+
+    /**
+     * The time (in milli seconds) this download has been running for (or ran for if it's complete)
+     * @return
+     */
+    public long getElapsedTime() {
+        if (startTime == 0) {
+            return 0;
+        }
+        return (status == Progression.COMPLETED ? endTime : System.currentTimeMillis()) - startTime;
+    }
+
+    /**
+     * Estimates the number of bytes still to be received. Paged downloads are estimated using the
+     * average size of the pages received so far.
+     * @return The estimate or -1 if there's not enough information to make one
+     */
+    public long getEstimatedRemainingBytes() {
+        if (status == Progression.COMPLETED) {
+            return 0;
+        }
+        long received = bytesReceived.get();
+        if (expectedBytes >= 0) {
+            return Math.max(0, expectedBytes - received);
+        }
+        int pages = pagesCompleted.get();
+        if (expectedPages > 0 && pages > 0) {
+            return (received / pages) * Math.max(0, expectedPages - pages);
+        }
+        return -1;
+    }
+
+    /**
+     * Converts the progress of this download into a JSON object of the form
+     * {url, status, bytesReceived, expectedBytes, expectedFeatures, pagesCompleted, expectedPages, elapsedMs, error}
+     * @return
+     */
+    public JSONObject getProgressJSON() {
+        JSONObject json = new JSONObject();
+        json.put("url", requestURL);
+        json.put("status", hasException() ? "FAILED" : status.toString());
+        json.put("bytesReceived", getBytesReceived());
+        json.put("expectedBytes", expectedBytes);
+        json.put("expectedFeatures", expectedFeatures);
+        json.put("pagesCompleted", getPagesCompleted());
+        json.put("expectedPages", expectedPages);
+        json.put("elapsedMs", getElapsedTime());
+        if (hasException()) {
+            json.put("error", String.valueOf(exception.getMessage()));
+        }
+        return json;
+    }
+
+    /**
+     * Counts the bytes read through it towards bytesReceived
+     */
+    private class ProgressInputStream extends FilterInputStream {
+        private boolean completeOnEof;
+
+        public ProgressInputStream(InputStream in, boolean completeOnEof) {
+            super(in);
+            this.completeOnEof = completeOnEof;
+        }
+
+        private int count(int read) {
+            if (read > 0) {
+                bytesReceived.addAndGet(read);
+            } else if (read < 0 && completeOnEof) {
+                setProgressComplete();
+            }
+            return read;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                count(-1);
+            } else {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return count(in.read(b, off, len));
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            if (skipped > 0) {
+                bytesReceived.addAndGet(skipped);
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false; //A reset would cause bytes to be counted twice
+        }
+    }
+
 }
@@ -0,0 +1,472 @@
+package org.auscope.portal.core.server.http.download;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.auscope.portal.core.server.http.LatencyHistogram;
+
+/**
+ * A shared scheduler for service downloads that enforces per host and per session concurrency limits.
+ *
+ * Downloads are queued per session (eg a single user or ServiceDownloadManager) and are dispatched onto the
+ * executor they were submitted with as soon as both their host and their session have a free slot. Dispatching
+ * only ever happens when a download is submitted or completes - no threads are spent waiting on locks.
+ *
+ * Sessions are served in weighted round-robin order (a session of weight N may start up to N downloads for each
+ * turn), so a single large request cannot monopolise a host while other sessions are waiting on it.
+ *
+ * A download that pages through a service can submit helpers with an allowance (see submit) so that its pages
+ * run in parallel even though the download itself is already using the host's (and session's) slot. Without
+ * this, a maxPerHost of 1 would serialise every page.
+ *
+ * This class is normally configured as a spring bean. Callers that aren't configured with a scheduler
+ * will share the default instance (see getDefault).
+ */
+public class DownloadScheduler {
+    private static final DownloadScheduler DEFAULT_INSTANCE = new DownloadScheduler();
+
+    /**
+     * A download that needs to be told when it will never run because its executor rejected it
+     * (eg the executor was saturated or shutdown). Plain Runnables that are rejected are simply dropped.
+     */
+    public interface RejectableDownload extends Runnable {
+        /**
+         * Called (instead of run) when the executor rejects this download. Implementors should
+         * signal failure to anything waiting on this download.
+         * @param ex The reason for the rejection
+         */
+        void rejected(RejectedExecutionException ex);
+    }
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    /** The maximum number of downloads that can run against a single host at once*/
+    private int maxPerHost = 1;
+    /** The maximum number of downloads that a single session can run at once*/
+    private int maxPerSession = 2;
+    /** Overrides maxPerHost for specific hosts*/
+    private Map<String, Integer> hostLimits = new HashMap<String, Integer>();
+
+    private final Object lock = new Object();
+    private Map<String, Integer> activePerHost = new HashMap<String, Integer>();
+    private Map<String, Integer> queuedPerHost = new HashMap<String, Integer>();
+    private Map<String, Session> sessions = new HashMap<String, Session>();
+    private List<Session> roundRobin = new ArrayList<Session>();
+    private int cursor = 0;
+    private int queued = 0;
+    private int active = 0;
+
+    private AtomicLong completedCount = new AtomicLong();
+    private LatencyHistogram waitTime = new LatencyHistogram();
+
+    /**
+     * Creates a new scheduler allowing 1 download per host and 2 per session
+     */
+    public DownloadScheduler() {
+
+    }
+
+    /**
+     * Gets the scheduler shared by every ServiceDownloadManager that isn't explicitly given one
+     * @return
+     */
+    public static DownloadScheduler getDefault() {
+        return DEFAULT_INSTANCE;
+    }
+
+    /**
+     * The maximum number of downloads that can run against a single host at once
+     * @return
+     */
+    public int getMaxPerHost() {
+        return maxPerHost;
+    }
+
+    /**
+     * The maximum number of downloads that can run against a single host at once
+     * @param maxPerHost
+     */
+    public void setMaxPerHost(int maxPerHost) {
+        this.maxPerHost = maxPerHost;
+    }
+
+    /**
+     * The maximum number of downloads that a single session can run at once
+     * @return
+     */
+    public int getMaxPerSession() {
+        return maxPerSession;
+    }
+
+    /**
+     * The maximum number of downloads that a single session can run at once
+     * @param maxPerSession
+     */
+    public void setMaxPerSession(int maxPerSession) {
+        this.maxPerSession = maxPerSession;
+    }
+
+    /**
+     * Overrides maxPerHost for specific hosts (keyed by the host string passed to submit)
+     * @return
+     */
+    public Map<String, Integer> getHostLimits() {
+        return hostLimits;
+    }
+
+    /**
+     * Overrides maxPerHost for specific hosts (keyed by the host string passed to submit)
+     * @param hostLimits
+     */
+    public void setHostLimits(Map<String, Integer> hostLimits) {
+        this.hostLimits = hostLimits;
+    }
+
+    /**
+     * Gets the concurrency limit for host
+     * @param host
+     * @return
+     */
+    public int getMaxForHost(String host) {
+        Integer limit = hostLimits == null ? null : hostLimits.get(host);
+        return limit == null ? maxPerHost : limit;
+    }
+
+    /**
+     * Queues download to run against host on behalf of sessionId. download will be run using executor once
+     * both host and session have a free slot.
+     *
+     * @param sessionId Identifies the session (eg user) making the download
+     * @param weight The relative share of dispatches this session will receive (only used if the session is new)
+     * @param host The host that download will be made against
+     * @param download The download to run
+     * @param executor Will be used to run download (it will never be shutdown by this scheduler)
+     */
+    public void submit(String sessionId, int weight, String host, Runnable download, Executor executor) {
+        submit(sessionId, weight, host, download, executor, 0);
+    }
+
+    /**
+     * Queues download (as per submit) but allows it to start whilst host and session are up to allowance
+     * downloads over their limits. This is intended for helpers of a download that is already running against
+     * host (eg the parallel pages of a paged WFS download) which would otherwise wait on their own parent.
+     *
+     * @param sessionId Identifies the session (eg user) making the download
+     * @param weight The relative share of dispatches this session will receive (only used if the session is new)
+     * @param host The host that download will be made against
+     * @param download The download to run
+     * @param executor Will be used to run download (it will never be shutdown by this scheduler)
+     * @param allowance How many downloads over the host/session limits download may start at (0 for none)
+     */
+    public void submit(String sessionId, int weight, String host, Runnable download, Executor executor, int allowance) {
+        Job job = new Job(host, download, executor);
+        job.allowance = Math.max(0, allowance);
+        synchronized (lock) {
+            Session session = sessions.get(sessionId);
+            if (session == null) {
+                session = new Session(sessionId, Math.max(1, weight));
+                sessions.put(sessionId, session);
+                roundRobin.add(session);
+            }
+            session.pending.add(job);
+            job.session = session;
+            queued++;
+            increment(queuedPerHost, host, 1);
+        }
+
+        dispatch();
+    }
+
+    private static void increment(Map<String, Integer> map, String key, int amount) {
+        Integer value = map.get(key);
+        int newValue = (value == null ? 0 : value) + amount;
+        if (newValue <= 0) {
+            map.remove(key);
+        } else {
+            map.put(key, newValue);
+        }
+    }
+
+    private static int get(Map<String, Integer> map, String key) {
+        Integer value = map.get(key);
+        return value == null ? 0 : value;
+    }
+
+    /**
+     * Removes the next job from session that can start given the current host concurrency. Must hold lock.
+     * @return
+     */
+    private Job takeStartable(Session session) {
+        for (Iterator<Job> i = session.pending.iterator(); i.hasNext();) {
+            Job job = i.next();
+            if (session.active < maxPerSession + job.allowance &&
+                get(activePerHost, job.host) < getMaxForHost(job.host) + job.allowance) {
+                i.remove();
+                return job;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes session from the round-robin if it has nothing queued or running. Must hold lock.
+     */
+    private void removeIfIdle(Session session) {
+        if (session.active > 0 || !session.pending.isEmpty()) {
+            return;
+        }
+        int index = roundRobin.indexOf(session);
+        roundRobin.remove(index);
+        sessions.remove(session.id);
+        if (index < cursor) {
+            cursor--;
+        }
+        if (cursor >= roundRobin.size()) {
+            cursor = 0;
+        }
+    }
+
+    /**
+     * Starts as many queued jobs as the current limits allow
+     */
+    private void dispatch() {
+        List<Job> toStart = new ArrayList<Job>();
+        synchronized (lock) {
+            boolean progress = true;
+            while (progress && queued > 0) {
+                progress = false;
+                int n = roundRobin.size();
+                for (int i = 0; i < n; i++) {
+                    int index = (cursor + i) % n;
+                    Session session = roundRobin.get(index);
+                    Job job = takeStartable(session);
+                    if (job == null) {
+                        continue;
+                    }
+
+                    //Sessions keep the cursor until they've used their weight worth of dispatches
+                    session.credits--;
+                    if (session.credits <= 0) {
+                        session.credits = session.weight;
+                        cursor = (index + 1) % n;
+                    } else {
+                        cursor = index;
+                    }
+
+                    session.active++;
+                    active++;
+                    queued--;
+                    increment(activePerHost, job.host, 1);
+                    increment(queuedPerHost, job.host, -1);
+                    toStart.add(job);
+                    progress = true;
+                    break;
+                }
+            }
+        }
+
+        //Never hand work to an executor while holding the lock (it might run the job inline)
+        for (Job job : toStart) {
+            waitTime.recordValue(System.currentTimeMillis() - job.submitTime);
+            try {
+                job.executor.execute(job);
+            } catch (RejectedExecutionException ex) {
+                log.error(String.format("Download against '%1$s' was rejected by its executor", job.host), ex);
+                try {
+                    job.reject(ex);
+                } finally {
+                    complete(job);
+                }
+            }
+        }
+    }
+
+    /**
+     * Releases job's slots and starts anything that was waiting on them
+     */
+    private void complete(Job job) {
+        synchronized (lock) {
+            job.session.active--;
+            active--;
+            increment(activePerHost, job.host, -1);
+            removeIfIdle(job.session);
+        }
+        completedCount.incrementAndGet();
+        dispatch();
+    }
+
+    /**
+     * Gets the total number of downloads waiting to start
+     * @return
+     */
+    public int getQueueDepth() {
+        synchronized (lock) {
+            return queued;
+        }
+    }
+
+    /**
+     * Gets the number of downloads waiting to start against host
+     * @param host
+     * @return
+     */
+    public int getQueueDepth(String host) {
+        synchronized (lock) {
+            return get(queuedPerHost, host);
+        }
+    }
+
+    /**
+     * Gets the total number of downloads currently running
+     * @return
+     */
+    public int getActiveCount() {
+        synchronized (lock) {
+            return active;
+        }
+    }
+
+    /**
+     * Gets the number of downloads currently running against host
+     * @param host
+     * @return
+     */
+    public int getActiveCount(String host) {
+        synchronized (lock) {
+            return get(activePerHost, host);
+        }
+    }
+
+    /**
+     * Gets the number of sessions with downloads queued or running
+     * @return
+     */
+    public int getSessionCount() {
+        synchronized (lock) {
+            return roundRobin.size();
+        }
+    }
+
+    /**
+     * Gets the total number of downloads that have finished running
+     * @return
+     */
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    /**
+     * The distribution of times (in milli seconds) that downloads spent queued before starting
+     * @return
+     */
+    public LatencyHistogram getWaitTime() {
+        return waitTime;
+    }
+
+    /**
+     * Converts the current state of this scheduler into a JSON object suitable for an admin endpoint
+     * @return
+     */
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        JSONArray hosts = new JSONArray();
+        synchronized (lock) {
+            json.put("queueDepth", queued);
+            json.put("active", active);
+            json.put("sessions", roundRobin.size());
+
+            List<String> hostNames = new ArrayList<String>(activePerHost.keySet());
+            for (String host : queuedPerHost.keySet()) {
+                if (!activePerHost.containsKey(host)) {
+                    hostNames.add(host);
+                }
+            }
+            for (String host : hostNames) {
+                JSONObject hostJson = new JSONObject();
+                hostJson.put("host", host);
+                hostJson.put("queued", get(queuedPerHost, host));
+                hostJson.put("active", get(activePerHost, host));
+                hostJson.put("maxConcurrent", getMaxForHost(host));
+                hosts.add(hostJson);
+            }
+        }
+        json.put("completed", getCompletedCount());
+        json.put("hosts", hosts);
+
+        JSONObject wait = new JSONObject();
+        wait.put("count", waitTime.getCount());
+        wait.put("mean", waitTime.getMean());
+        wait.put("p50", waitTime.getValueAtPercentile(50));
+        wait.put("p90", waitTime.getValueAtPercentile(90));
+        wait.put("p99", waitTime.getValueAtPercentile(99));
+        wait.put("max", waitTime.getMax());
+        json.put("waitTimeMs", wait);
+        return json;
+    }
+
+    /**
+     * The downloads queued/running on behalf of a single session
+     */
+    private static class Session {
+        private String id;
+        private int weight;
+        private int credits;
+        private int active = 0;
+        private LinkedList<Job> pending = new LinkedList<Job>();
+
+        public Session(String id, int weight) {
+            this.id = id;
+            this.weight = weight;
+            this.credits = weight;
+        }
+    }
+
+    /**
+     * A single download. Releases its slots as soon as it finishes running.
+     */
+    private class Job implements Runnable {
+        private String host;
+        private Runnable download;
+        private Executor executor;
+        private Session session;
+        /** How many downloads over the host/session limits this job may start at*/
+        private int allowance = 0;
+        private long submitTime = System.currentTimeMillis();
+
+        public Job(String host, Runnable download, Executor executor) {
+            this.host = host;
+            this.download = download;
+            this.executor = executor;
+        }
+
+        @Override
+        public void run() {
+            try {
+                download.run();
+            } finally {
+                complete(this);
+            }
+        }
+
+        /**
+         * Runs download's failure handling (if it has any) after the executor refused to run this job
+         */
+        public void reject(RejectedExecutionException ex) {
+            if (download instanceof RejectableDownload) {
+                ((RejectableDownload) download).rejected(ex);
+            }
+        }
+    }
+}
@@ -5,17 +5,26 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.FilterOutputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.Set;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.zip.ZipOutputStream;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import net.sf.json.JSONObject;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.auscope.portal.core.util.FileIOUtil;
+import org.auscope.portal.core.util.ParallelZipOutputStream;
+import org.auscope.portal.core.util.ZipCompressionPolicy;
 
 /**
  * DownloadTracker provides a way for downloads to be made in the background via
@@ -23,6 +32,16 @@ import org.auscope.portal.core.util.FileIOUtil;
  * getTracker(email), startTrack(), then getFile or getFileHandle. Refer to each
  * of the method Java doc for more info
  *
+ * The zip holds one entry per service, written in the order the downloads complete and named
+ * n_yyyyMMdd_HHmmss.ext (where n is the service's 1 based position in the request). A service that fails
+ * (raw or JSON response) is written as n_yyyyMMdd_HHmmss.error containing the request URL and the error. The last
+ * entry is always manifest.json - an array with (in request order) the url, entry name, success flag and error
+ * (if any) of every service. Older archives summarised failed JSON responses in downloadInfo.txt instead.
+ *
+ * Trackers (and their zip files) are cleaned up in the background by a DownloadTrackerReaper. If no reaper has
+ * been started (eg as a spring bean), the first call to getTracker starts a default reaper that expires finished
+ * downloads after timeAllowForCache. The default reaper is stopped as soon as any other reaper starts.
+ *
  *
  * @author tey006
  *
@@ -33,8 +52,19 @@ public class DownloadTracker {
     private static ConcurrentHashMap<String, DownloadTracker> downloadTracker;
     private Progression downloadProgress;
     private File file;
+    private volatile ServiceDownloadManager manager;
     private long lastCompletedTime=System.currentTimeMillis();
+    private volatile long lastAccessTime=System.currentTimeMillis();
+    private boolean evicted = false;
     public static final long timeAllowForCache=6 * 60 * 60 * 1000; //VT we give the user 6 hours to download before we clear up memory
+    /** The maximum size (in bytes) of this tracker's zip file. 0 means unlimited*/
+    private volatile long perUserQuotaBytes = 0;
+    /** Decides how each entry of a user's zip file is compressed*/
+    private static volatile ZipCompressionPolicy zipCompressionPolicy = new ZipCompressionPolicy();
+    /** The number of DownloadTrackerReaper instances currently running*/
+    private static int runningReapers = 0;
+    /** The reaper started by getTracker when no other reaper is running (null if there isn't one)*/
+    private static DownloadTrackerReaper defaultReaper;
 
     static {
         downloadTracker = new ConcurrentHashMap<String, DownloadTracker>();
@@ -59,41 +89,197 @@ public class DownloadTracker {
      * @return a reference to a DownloadTracker instance
      */
     public static DownloadTracker getTracker(String email) {
+        //VT: something has to clean up after us in case of memory leak
+        startDefaultReaper();
+
+        while (true) {
+            DownloadTracker tracker = downloadTracker.get(email);
+            if (tracker == null) {
+                tracker = new DownloadTracker(email);
+                DownloadTracker existing = downloadTracker.putIfAbsent(email, tracker);
+                if (existing == null) {
+                    return tracker;
+                }
+                tracker.deleteFile();
+                tracker = existing;
+            }
 
-        //VT: always perform some clean up in case of memory leak.
-        DownloadTracker.cleanUp(timeAllowForCache);
+            //The tracker may have been evicted since we looked it up - in which case try again
+            if (tracker.touch()) {
+                return tracker;
+            }
+        }
+    }
+
+    /**
+     * Updates lastAccessTime unless this tracker has been evicted
+     * @return false if this tracker has been evicted
+     */
+    private synchronized boolean touch() {
+        if (evicted) {
+            return false;
+        }
+        this.lastAccessTime = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * Starts a default DownloadTrackerReaper unless one (of any kind) is already running
+     */
+    private static synchronized void startDefaultReaper() {
+        if (runningReapers == 0) {
+            defaultReaper = new DownloadTrackerReaper();
+            defaultReaper.start();
+        }
+    }
 
-        if (downloadTracker.containsKey(email)) {
-            return downloadTracker.get(email);
-        } else {
-            DownloadTracker tracker = new DownloadTracker(email);
+    /**
+     * Records that reaper has started (or stopped if running is false). The default reaper (if any) is stopped
+     * as soon as another reaper starts.
+     * @param reaper
+     * @param running
+     */
+    static synchronized void setReaperRunning(DownloadTrackerReaper reaper, boolean running) {
+        if (!running) {
+            runningReapers--;
+            return;
+        }
 
-            downloadTracker.put(email, tracker);
-            return tracker;
+        runningReapers++;
+        if (defaultReaper != null && defaultReaper != reaper) {
+            DownloadTrackerReaper replaced = defaultReaper;
+            defaultReaper = null;
+            replaced.shutdown();
         }
     }
 
     /**
-     * This method cleans up the downloadTracker map object and frees up memory
+     * Gets a snapshot of every tracker currently held in memory
+     * @return
+     */
+    public static List<DownloadTracker> getTrackers() {
+        return new ArrayList<DownloadTracker>(downloadTracker.values());
+    }
+
+    /**
+     * This method cleans up the downloadTracker map object and frees up memory. Downloads that are
+     * still in progress (or were recently accessed) will never be cleaned up.
      * @param timeAllowance : how much time do we allow the object to sit in memory.
      */
-    public synchronized static void cleanUp(long timeAllowance){
-        //Everytime someone attempts to get a Tracker we do some cleaning up
-        Set<String> keys =downloadTracker.keySet();
+    public static void cleanUp(long timeAllowance){
         long currentTime=System.currentTimeMillis();
+        for (DownloadTracker tracker : getTrackers()) {
+            tracker.evictIfUnusedSince(currentTime - timeAllowance);
+        }
+    }
 
-        for(String key:keys){
-            long lastComplete=downloadTracker.get(key).getLastCompletedTime();
-            if(currentTime - lastComplete > timeAllowance){
-                try {
-                    File f=downloadTracker.get(key).getFileHandle();
-                    f.delete();
-                } catch (Exception e) {
-                    LogFactory.getLog(DownloadTracker.class).warn(e);
-                }
-                downloadTracker.remove(key);
-            }
+    /**
+     * The maximum size (in bytes) that this tracker's zip file can grow to. Downloads that exceed this
+     * will be aborted and replaced with an error. 0 means unlimited.
+     * @return
+     */
+    public long getPerUserQuotaBytes() {
+        return perUserQuotaBytes;
+    }
+
+    /**
+     * The maximum size (in bytes) that this tracker's zip file can grow to. Downloads that exceed this
+     * will be aborted and replaced with an error. 0 means unlimited. Changes apply to a download in progress.
+     * A running DownloadTrackerReaper will replace this with its own per user quota.
+     * @param perUserQuotaBytes
+     */
+    public void setPerUserQuotaBytes(long perUserQuotaBytes) {
+        this.perUserQuotaBytes = perUserQuotaBytes;
+    }
+
+    /**
+     * Decides how each entry of a user's zip file is compressed (eg already compressed content is stored)
+     * @return
+     */
+    public static ZipCompressionPolicy getZipCompressionPolicy() {
+        return zipCompressionPolicy;
+    }
+
+    /**
+     * Decides how each entry of a user's zip file is compressed (eg already compressed content is stored)
+     * @param zipCompressionPolicy if null, every entry is deflated at the default level
+     */
+    public static void setZipCompressionPolicy(ZipCompressionPolicy zipCompressionPolicy) {
+        DownloadTracker.zipCompressionPolicy = zipCompressionPolicy;
+    }
+
+    /**
+     * Deletes this tracker's file and removes this tracker from memory. In progress downloads cannot be evicted.
+     * @return true if this tracker was evicted, false if its download is still in progress
+     */
+    public synchronized boolean evict() {
+        if (getProgress() == Progression.INPROGRESS) {
+            return false;
+        }
+        evicted = true;
+        deleteFile();
+        downloadTracker.remove(email, this);
+        return true;
+    }
+
+    /**
+     * Evicts this tracker (see evict) only if it hasn't been used (see getLastUsedTime) after time. This is checked
+     * atomically so a tracker that is requested whilst it's being considered for eviction will be kept.
+     * @param time The time (in milli seconds since the epoch) to compare against
+     * @return true if this tracker was evicted
+     */
+    public synchronized boolean evictIfUnusedSince(long time) {
+        if (getLastUsedTime() > time) {
+            return false;
         }
+        return evict();
+    }
+
+    private void deleteFile() {
+        if (this.file != null && this.file.exists() && !this.file.delete()) {
+            logger.warn(String.format("Unable to delete '%1$s'", this.file));
+        }
+    }
+
+    /**
+     * The email (token) identifying this tracker
+     * @return
+     */
+    public String getEmail() {
+        return email;
+    }
+
+    /**
+     * The size (in bytes) of this tracker's file on disk (it will still be growing if the download is in progress)
+     * @return
+     */
+    public long getFileSize() {
+        File f = this.file;
+        return f == null ? 0 : f.length();
+    }
+
+    /**
+     * The time the user last requested this tracker or its file
+     * @return
+     */
+    public long getLastAccessTime() {
+        return lastAccessTime;
+    }
+
+    /**
+     * Overrides the time the user last requested this tracker or its file
+     * @param lastAccessTime milli seconds since the epoch
+     */
+    synchronized void setLastAccessTime(long lastAccessTime) {
+        this.lastAccessTime = lastAccessTime;
+    }
+
+    /**
+     * The most recent of getLastCompletedTime and getLastAccessTime
+     * @return
+     */
+    public long getLastUsedTime() {
+        return Math.max(lastCompletedTime, lastAccessTime);
     }
 
     /**
@@ -102,6 +288,47 @@ public class DownloadTracker {
      * @throws InCompleteDownloadException {@link InCompleteDownloadException}
      */
     public synchronized void startTrack(ServiceDownloadManager sdm) throws InCompleteDownloadException {
+        startTrack(sdm, null, null);
+    }
+
+    /**
+     * Creates a background thread to commence the download. The download is journaled in journal so
+     * that it can be resumed (see DownloadJournal.resumeJobs) if this process is restarted before it completes.
+     * If the job cannot be journaled the download will still proceed (it just won't be resumable).
+     *
+     * @param sdm - ServiceDownloadManager {@link ServiceDownloadManager}
+     * @param journal Where the download will be journaled (if null this is the same as startTrack(sdm))
+     * @throws InCompleteDownloadException {@link InCompleteDownloadException}
+     */
+    public synchronized void startTrack(ServiceDownloadManager sdm, DownloadJournal journal) throws InCompleteDownloadException {
+        if (journal == null || this.downloadProgress == Progression.INPROGRESS) {
+            startTrack(sdm, null, null);
+            return;
+        }
+
+        DownloadJournal.Job job = null;
+        try {
+            job = journal.createJob(email, sdm.getUrls());
+        } catch (IOException e) {
+            logger.warn(String.format("Unable to journal download for '%1$s' - it will not be resumable", email), e);
+        }
+        startTrack(sdm, job == null ? null : journal, job);
+    }
+
+    /**
+     * Creates a background thread to continue a journaled download. Services that have already completed in
+     * job will not be downloaded again.
+     *
+     * @param sdm Must have been created for job's URLs
+     * @param journal Where job is journaled
+     * @param job The job to resume
+     * @throws InCompleteDownloadException If this tracker already has a download in progress
+     */
+    public synchronized void resumeTrack(ServiceDownloadManager sdm, DownloadJournal journal, DownloadJournal.Job job) throws InCompleteDownloadException {
+        startTrack(sdm, journal, job);
+    }
+
+    private synchronized void startTrack(ServiceDownloadManager sdm, DownloadJournal journal, DownloadJournal.Job job) throws InCompleteDownloadException {
 
         if(this.downloadProgress==Progression.INPROGRESS){
             throw new InCompleteDownloadException("We do not allow the start of a new download when the old request has not complete");
@@ -110,7 +337,12 @@ public class DownloadTracker {
                 this.downloadProgress=Progression.INPROGRESS;
             }
         }
+        this.manager = sdm;
+        //Every download made for this user shares the scheduler's per session limit
+        sdm.setSessionId(email);
         Process p = new Process(sdm);
+        p.journal = journal;
+        p.job = job;
         ExecutorService pool = Executors.newSingleThreadExecutor();
         pool.execute(p);
         pool.shutdown();
@@ -125,6 +357,7 @@ public class DownloadTracker {
      */
     public synchronized InputStream getFile() throws InCompleteDownloadException, FileNotFoundException{
         if(getProgress()==Progression.COMPLETED){
+            this.lastAccessTime=System.currentTimeMillis();
             return new FileInputStream(this.file);
         }else{
             throw new InCompleteDownloadException("that that download has complete using getDownloadComplete() before requesting file");
@@ -139,12 +372,37 @@ public class DownloadTracker {
      */
     public synchronized File getFileHandle() throws InCompleteDownloadException, FileNotFoundException{
         if(getProgress()==Progression.COMPLETED){
+            this.lastAccessTime=System.currentTimeMillis();
             return this.file;
         }else{
             throw new InCompleteDownloadException("that that download has complete using getDownloadComplete() before requesting file");
         }
     }
 
+    /**
+     * Gets a strong ETag identifying the completed download's content
+     * @return
+     * @throws InCompleteDownloadException
+     * @throws FileNotFoundException
+     */
+    public synchronized String getETag() throws InCompleteDownloadException, FileNotFoundException {
+        return RangeResponseWriter.createETag(getFileHandle());
+    }
+
+    /**
+     * Writes the completed download to response. Range/If-Range requests are honoured so that clients
+     * can resume an interrupted transfer without the download being regenerated.
+     *
+     * @param request The client's request
+     * @param response Will receive the zip (or the requested part of it)
+     * @param fileName The file name the client will save the zip as
+     * @throws InCompleteDownloadException
+     * @throws IOException
+     */
+    public void writeFileToResponse(HttpServletRequest request, HttpServletResponse response, String fileName) throws InCompleteDownloadException, IOException {
+        RangeResponseWriter.writeFile(request, response, getFileHandle(), "application/zip", fileName);
+    }
+
     /**
      * return the time of last completion
      * @return time of last completion
@@ -169,6 +427,23 @@ public class DownloadTracker {
         return this.downloadProgress;
     }
 
+    /**
+     * Gets a detailed report of this tracker's progress. As well as the overall progress, the bytes received,
+     * expected bytes, pages completed and any error for each service (see ServiceDownloadManager.getProgressJSON)
+     * are included along with an estimated time until completion (etaMs, -1 if unknown).
+     * @return
+     */
+    public JSONObject getProgressJSON() {
+        ServiceDownloadManager sdm = this.manager;
+        JSONObject json = sdm == null ? new JSONObject() : sdm.getProgressJSON();
+        json.put("progress", getProgress().toString());
+        json.put("sizeBytes", getFileSize());
+        if (getProgress() == Progression.COMPLETED) {
+            json.put("etaMs", 0);
+        }
+        return json;
+    }
+
     /**
      * A runnable thread to executed in the background to perform download
      * @author tey006
@@ -176,6 +451,8 @@ public class DownloadTracker {
      */
     public class Process implements Runnable {
         ServiceDownloadManager sdm;
+        private DownloadJournal journal;
+        private DownloadJournal.Job job;
        // File file;
 
         public Process(ServiceDownloadManager sdm) {
@@ -188,6 +465,10 @@ public class DownloadTracker {
 
             FileOutputStream fos;
             ZipOutputStream zout;
+            //Entries are deflated on every core whilst the next download is being written. With a single core
+            //there is nothing to gain from spooling entries so they're deflated directly
+            int cores = Runtime.getRuntime().availableProcessors();
+            ExecutorService compressor = cores > 1 ? Executors.newFixedThreadPool(cores) : null;
 
             try {
                 // in the event that a user makes another request we want to
@@ -199,13 +480,20 @@ public class DownloadTracker {
                     file.deleteOnExit();
                 }
                 fos = new FileOutputStream(file);
-                zout = new ZipOutputStream(fos);
-                ArrayList<DownloadResponse> gmlDownloads = sdm.downloadAll();
-                FileIOUtil.writeResponseToZip(gmlDownloads, zout);
-                zout.finish();
-                zout.flush();
-                zout.close();
-                fos.flush();
+                OutputStream quotaStream = new QuotaOutputStream(fos);
+                zout = compressor == null ? new ZipOutputStream(quotaStream) : new ParallelZipOutputStream(quotaStream, compressor);
+                try {
+                    //Each download is written to the zip as soon as it completes (rather than waiting for them all)
+                    sdm.downloadAllToZip(zout, zipCompressionPolicy, journal, job);
+                    zout.finish();
+                    zout.flush();
+                    zout.close();
+                } catch (QuotaExceededException e) {
+                    logger.warn(String.format("Download for '%1$s' aborted: %2$s", email, e.getMessage()));
+                    FileIOUtil.closeQuietly(zout); //discards any entries that are still compressing
+                    FileIOUtil.closeQuietly(fos);
+                    writeQuotaError(e);
+                }
                 fos.close();
 
             } catch (FileNotFoundException e) {
@@ -215,6 +503,13 @@ public class DownloadTracker {
                 logger.error("Error with the serviceDownloadManager", e);
                 e.printStackTrace();
             } finally {
+                if (compressor != null) {
+                    compressor.shutdownNow();
+                }
+                // The zip now holds everything the job produced so it no longer needs resuming
+                if (journal != null) {
+                    journal.removeJob(job);
+                }
                 // VT : No matter what happens we have to give it a completion.
                 DownloadTracker.this.setDownloadComplete();
             }
@@ -223,4 +518,59 @@ public class DownloadTracker {
 
     }
 
+    /**
+     * Replaces the (partial) contents of file with a zip describing why the download was aborted
+     */
+    private void writeQuotaError(QuotaExceededException e) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            ZipOutputStream zout = new ZipOutputStream(fos);
+            FileIOUtil.writeErrorToZip(zout, "", e, "error.txt");
+            zout.close();
+        } finally {
+            FileIOUtil.closeQuietly(fos);
+        }
+    }
+
+    /**
+     * Thrown when a download grows beyond the per user quota
+     */
+    private static class QuotaExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public QuotaExceededException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Counts the bytes written to an underlying stream and fails once this tracker's quota has been exceeded
+     */
+    private class QuotaOutputStream extends FilterOutputStream {
+        private long written = 0;
+
+        public QuotaOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        private void count(int len) throws QuotaExceededException {
+            written += len;
+            long quota = perUserQuotaBytes;
+            if (quota > 0 && written > quota) {
+                throw new QuotaExceededException(String.format("The download exceeded the limit of %1$s bytes", quota));
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            count(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            count(len);
+            out.write(b, off, len);
+        }
+    }
 }
@@ -0,0 +1,321 @@
+package org.auscope.portal.core.server.http.download;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Periodically cleans up DownloadTracker instances (and their zip files) in the background.
+ *
+ * Each pass (see reap) will:
+ *
+ * 1) Expire every tracker whose download finished (and was last accessed) more than ttlMs ago
+ * 2) Evict the least recently used finished downloads until the combined size of every zip is under globalQuotaBytes
+ * 3) Evict the least recently used finished downloads until there are no more than maxTrackers in memory
+ * 4) Discard any expired jobs from journal (if set)
+ *
+ * Downloads that are still in progress are never removed. This class is normally configured as a spring
+ * bean with start/shutdown as its init/destroy methods. If no reaper is configured, DownloadTracker.getTracker
+ * will start a default one (which is replaced as soon as a configured reaper starts).
+ */
+public class DownloadTrackerReaper {
+    private final Log log = LogFactory.getLog(getClass());
+
+    /** How long (in milli seconds) a finished download is kept for*/
+    private long ttlMs = DownloadTracker.timeAllowForCache;
+    /** The maximum combined size (in bytes) of every tracker's zip file. 0 means unlimited*/
+    private long globalQuotaBytes = 0;
+    /** The maximum size (in bytes) of a single user's zip file. 0 means unlimited*/
+    private long perUserQuotaBytes = 0;
+    /** The maximum number of trackers held in memory. 0 means unlimited*/
+    private int maxTrackers = 0;
+    /** How often (in milli seconds) reap is run*/
+    private long intervalMs = 60 * 1000L;
+    /** If set, expired jobs are also discarded from this journal*/
+    private DownloadJournal journal;
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * Creates a new reaper that expires finished downloads after DownloadTracker.timeAllowForCache
+     */
+    public DownloadTrackerReaper() {
+
+    }
+
+    /**
+     * How long (in milli seconds) a finished download is kept for
+     * @return
+     */
+    public long getTtlMs() {
+        return ttlMs;
+    }
+
+    /**
+     * How long (in milli seconds) a finished download is kept for
+     * @param ttlMs
+     */
+    public void setTtlMs(long ttlMs) {
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * The maximum combined size (in bytes) of every tracker's zip file. 0 means unlimited
+     * @return
+     */
+    public long getGlobalQuotaBytes() {
+        return globalQuotaBytes;
+    }
+
+    /**
+     * The maximum combined size (in bytes) of every tracker's zip file. 0 means unlimited
+     * @param globalQuotaBytes
+     */
+    public void setGlobalQuotaBytes(long globalQuotaBytes) {
+        this.globalQuotaBytes = globalQuotaBytes;
+    }
+
+    /**
+     * The maximum size (in bytes) of a single user's zip file. 0 means unlimited. This is applied to every
+     * tracker returned by getTracker and to every tracker seen by reap.
+     * @return
+     */
+    public long getPerUserQuotaBytes() {
+        return perUserQuotaBytes;
+    }
+
+    /**
+     * The maximum size (in bytes) of a single user's zip file. 0 means unlimited. This is applied to every
+     * tracker returned by getTracker and to every tracker seen by reap.
+     * @param perUserQuotaBytes
+     */
+    public void setPerUserQuotaBytes(long perUserQuotaBytes) {
+        this.perUserQuotaBytes = perUserQuotaBytes;
+    }
+
+    /**
+     * The maximum number of trackers held in memory. 0 means unlimited
+     * @return
+     */
+    public int getMaxTrackers() {
+        return maxTrackers;
+    }
+
+    /**
+     * The maximum number of trackers held in memory. 0 means unlimited
+     * @param maxTrackers
+     */
+    public void setMaxTrackers(int maxTrackers) {
+        this.maxTrackers = maxTrackers;
+    }
+
+    /**
+     * How often (in milli seconds) reap is run
+     * @return
+     */
+    public long getIntervalMs() {
+        return intervalMs;
+    }
+
+    /**
+     * How often (in milli seconds) reap is run
+     * @param intervalMs
+     */
+    public void setIntervalMs(long intervalMs) {
+        this.intervalMs = intervalMs;
+    }
+
+    /**
+     * If set, expired jobs (see DownloadJournal.expire) are discarded from this journal on each pass
+     * @return
+     */
+    public DownloadJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * If set, expired jobs (see DownloadJournal.expire) are discarded from this journal on each pass
+     * @param journal
+     */
+    public void setJournal(DownloadJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Starts running reap every intervalMs on a background daemon thread
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "DownloadTrackerReaper");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        DownloadTracker.setReaperRunning(this, true);
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reap();
+                } catch (Exception ex) {
+                    log.error("Error cleaning up download trackers", ex);
+                }
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the background thread started by start
+     */
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+            DownloadTracker.setReaperRunning(this, false);
+        }
+    }
+
+    /**
+     * Gets the trackers that will be considered by reap and toJSON
+     * @return
+     */
+    protected List<DownloadTracker> getTrackers() {
+        return DownloadTracker.getTrackers();
+    }
+
+    /**
+     * The current time (in milli seconds since the epoch) that trackers are expired against
+     * @return
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Gets the tracker for email (see DownloadTracker.getTracker) with this reaper's per user quota applied
+     * @param email unique token to identify the tracker and its user
+     * @return
+     */
+    public DownloadTracker getTracker(String email) {
+        DownloadTracker tracker = DownloadTracker.getTracker(email);
+        tracker.setPerUserQuotaBytes(perUserQuotaBytes);
+        return tracker;
+    }
+
+    /**
+     * Performs a single clean up pass over every DownloadTracker (applying this reaper's per user quota to
+     * any that remain)
+     * @return The number of trackers that were removed
+     */
+    public int reap() {
+        long now = currentTimeMillis();
+        int removed = 0;
+
+        //Finished downloads (and when they were last used) ordered from least to most recently used
+        final Map<DownloadTracker, Long> finished = new IdentityHashMap<DownloadTracker, Long>();
+        long totalBytes = 0;
+        int trackerCount = 0;
+        for (DownloadTracker tracker : getTrackers()) {
+            if (tracker.getProgress() != Progression.INPROGRESS &&
+                tracker.evictIfUnusedSince(now - ttlMs)) {
+                removed++;
+                continue;
+            }
+
+            tracker.setPerUserQuotaBytes(perUserQuotaBytes);
+            trackerCount++;
+            totalBytes += tracker.getFileSize();
+            if (tracker.getProgress() != Progression.INPROGRESS) {
+                finished.put(tracker, tracker.getLastUsedTime());
+            }
+        }
+        List<DownloadTracker> lru = new ArrayList<DownloadTracker>(finished.keySet());
+        Collections.sort(lru, new Comparator<DownloadTracker>() {
+            @Override
+            public int compare(DownloadTracker a, DownloadTracker b) {
+                return Long.compare(finished.get(a), finished.get(b));
+            }
+        });
+
+        for (DownloadTracker tracker : lru) {
+            boolean overQuota = globalQuotaBytes > 0 && totalBytes > globalQuotaBytes;
+            boolean overCount = maxTrackers > 0 && trackerCount > maxTrackers;
+            if (!overQuota && !overCount) {
+                break;
+            }
+
+            //Trackers used since we ordered them are no longer the least recently used
+            long size = tracker.getFileSize();
+            if (tracker.evictIfUnusedSince(finished.get(tracker))) {
+                removed++;
+                trackerCount--;
+                totalBytes -= size;
+            }
+        }
+
+        if (journal != null) {
+            journal.expire();
+        }
+
+        if (removed > 0) {
+            log.debug(String.format("Removed %1$s download tracker(s). %2$s remain using %3$s bytes", removed, trackerCount, totalBytes));
+        }
+        if (globalQuotaBytes > 0 && totalBytes > globalQuotaBytes) {
+            log.warn(String.format("Downloads in progress are using %1$s bytes which exceeds the quota of %2$s bytes", totalBytes, globalQuotaBytes));
+        }
+        return removed;
+    }
+
+    /**
+     * Converts the current set of downloads into a JSON object suitable for an admin endpoint
+     * @return
+     */
+    public JSONObject toJSON() {
+        JSONArray active = new JSONArray();
+        JSONArray finished = new JSONArray();
+        long totalBytes = 0;
+        for (DownloadTracker tracker : getTrackers()) {
+            JSONObject trackerJson = new JSONObject();
+            trackerJson.put("email", tracker.getEmail());
+            trackerJson.put("progress", tracker.getProgress().toString());
+            trackerJson.put("sizeBytes", tracker.getFileSize());
+            trackerJson.put("lastCompletedTime", tracker.getLastCompletedTime());
+            trackerJson.put("lastAccessTime", tracker.getLastAccessTime());
+            totalBytes += tracker.getFileSize();
+
+            if (tracker.getProgress() == Progression.INPROGRESS) {
+                active.add(trackerJson);
+            } else {
+                finished.add(trackerJson);
+            }
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("active", active);
+        json.put("finished", finished);
+        json.put("totalBytes", totalBytes);
+        json.put("globalQuotaBytes", globalQuotaBytes);
+        json.put("perUserQuotaBytes", getPerUserQuotaBytes());
+        json.put("maxTrackers", maxTrackers);
+        json.put("ttlMs", ttlMs);
+        return json;
+    }
+}
@@ -0,0 +1,181 @@
+package org.auscope.portal.core.server.http.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Utility for serving a (completed) file to a client with support for resuming interrupted transfers
+ * via HTTP Range/If-Range requests.
+ *
+ * Every response includes a strong ETag, Last-Modified and "Accept-Ranges: bytes". A single byte range will be
+ * served as a 206 response, requests for multiple ranges (or ranges whose If-Range no longer matches) are served
+ * the entire file.
+ */
+public class RangeResponseWriter {
+
+    /** The size (in bytes) of the buffer used to copy the file*/
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Creates a strong ETag for file. The ETag will change whenever file's content is replaced.
+     * @param file
+     * @return
+     */
+    public static String createETag(File file) {
+        return String.format("\"%1$x-%2$x-%3$x\"", file.length(), file.lastModified(), file.getAbsolutePath().hashCode());
+    }
+
+    /**
+     * Returns true if header (an If-None-Match style list of entity tags) contains etag
+     */
+    private static boolean matchesETag(String header, String etag) {
+        for (String candidate : header.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if a Range header on request should be honoured (ie there's no If-Range or it still matches)
+     */
+    private static boolean isIfRangeSatisfied(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(etag); //Strong comparison - weak tags never match
+        }
+
+        try {
+            long ifRangeDate = request.getDateHeader("If-Range");
+            return ifRangeDate >= 0 && ifRangeDate / 1000L == lastModified / 1000L;
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Parses a Range header into an inclusive [start, end] pair
+     * @param rangeHeader The value of the Range header
+     * @param length The length of the file being served
+     * @return The range, an empty array if the range is unsatisfiable or null if the header should be ignored
+     */
+    static long[] parseRange(String rangeHeader, long length) {
+        String header = rangeHeader.trim();
+        if (!header.toLowerCase().startsWith("bytes=")) {
+            return null;
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        if (spec.contains(",")) {
+            return null; //We only serve a single range
+        }
+
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+
+        try {
+            String startString = spec.substring(0, dash).trim();
+            String endString = spec.substring(dash + 1).trim();
+            if (startString.isEmpty()) {
+                //Suffix range - the last N bytes
+                long suffix = Long.parseLong(endString);
+                if (suffix <= 0 || length == 0) {
+                    return new long[0];
+                }
+                return new long[] {Math.max(0, length - suffix), length - 1};
+            }
+
+            long start = Long.parseLong(startString);
+            long end = endString.isEmpty() ? length - 1 : Long.parseLong(endString);
+            if (start >= length) {
+                return new long[0];
+            }
+            if (end < start) {
+                return null;
+            }
+            return new long[] {start, Math.min(end, length - 1)};
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes file (or the range of it requested by request) to response
+     * @param request The request for file (its Range, If-Range and If-None-Match headers will be honoured)
+     * @param response Will receive file
+     * @param file The file to serve
+     * @param contentType The content type of file
+     * @param fileName If not null, file will be served as an attachment with this name
+     * @throws IOException
+     */
+    public static void writeFile(HttpServletRequest request, HttpServletResponse response, File file, String contentType, String fileName) throws IOException {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        String etag = createETag(file);
+
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", lastModified);
+
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null && matchesETag(ifNoneMatch, etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        long start = 0;
+        long end = length - 1;
+        String rangeHeader = request.getHeader("Range");
+        if (rangeHeader != null && isIfRangeSatisfied(request, etag, lastModified)) {
+            long[] range = parseRange(rangeHeader, length);
+            if (range != null && range.length == 0) {
+                response.setHeader("Content-Range", "bytes */" + length);
+                response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            } else if (range != null) {
+                start = range[0];
+                end = range[1];
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", String.format("bytes %1$d-%2$d/%3$d", start, end, length));
+            }
+        }
+
+        response.setContentType(contentType);
+        if (fileName != null) {
+            response.setHeader("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
+        }
+        response.setHeader("Content-Length", Long.toString(end - start + 1));
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(start);
+            OutputStream out = response.getOutputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = end - start + 1;
+            while (remaining > 0) {
+                int read = raf.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    break;
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+            out.flush();
+        } finally {
+            raf.close();
+        }
+    }
+}
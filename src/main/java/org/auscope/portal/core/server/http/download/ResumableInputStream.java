@@ -0,0 +1,166 @@
+package org.auscope.portal.core.server.http.download;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.auscope.portal.core.server.http.HttpServiceCaller;
+import org.auscope.portal.core.server.http.RequestPriority;
+import org.auscope.portal.core.util.FileIOUtil;
+
+/**
+ * An InputStream over an upstream HTTP response body that will transparently resume (using a HTTP Range request)
+ * if the connection is dropped before the body has been completely read.
+ *
+ * Resuming is only attempted if the upstream advertised "Accept-Ranges: bytes" and a validator (a strong ETag
+ * or a Last-Modified date) that can be sent as If-Range - this guarantees that the resumed bytes belong to the
+ * same representation as the bytes already read. If the upstream cannot resume, the original failure is raised.
+ */
+public class ResumableInputStream extends InputStream {
+    private final Log log = LogFactory.getLog(getClass());
+
+    private HttpServiceCaller serviceCaller;
+    private String url;
+    private String validator;
+    private InputStream current;
+    private long position = 0;
+    private long expectedLength;
+    private int maxResumes;
+    private int resumeCount = 0;
+
+    /**
+     * Creates a new instance
+     * @param serviceCaller Used for making resume requests
+     * @param url The URL that initialResponse was received from
+     * @param initialResponse The response whose body will be read (must satisfy supportsResume)
+     * @param maxResumes The maximum number of times the body will be resumed
+     * @throws IOException
+     */
+    public ResumableInputStream(HttpServiceCaller serviceCaller, String url, HttpResponse initialResponse, int maxResumes) throws IOException {
+        this.serviceCaller = serviceCaller;
+        this.url = url;
+        this.maxResumes = maxResumes;
+        this.validator = getValidator(initialResponse);
+        this.expectedLength = initialResponse.getEntity().getContentLength();
+        this.current = initialResponse.getEntity().getContent();
+    }
+
+    /**
+     * Gets the value that can be sent as If-Range to resume response (or null if there is none)
+     * @param response
+     * @return
+     */
+    private static String getValidator(HttpResponse response) {
+        Header etag = response.getFirstHeader("ETag");
+        if (etag != null && etag.getValue() != null && !etag.getValue().startsWith("W/")) {
+            return etag.getValue(); //Weak ETags can't be used with If-Range
+        }
+
+        Header lastModified = response.getFirstHeader("Last-Modified");
+        return lastModified == null ? null : lastModified.getValue();
+    }
+
+    /**
+     * Returns true if response's upstream has advertised that it can resume response's body
+     * @param response
+     * @return
+     */
+    public static boolean supportsResume(HttpResponse response) {
+        Header acceptRanges = response.getFirstHeader("Accept-Ranges");
+        return acceptRanges != null &&
+               "bytes".equalsIgnoreCase(acceptRanges.getValue()) &&
+               getValidator(response) != null;
+    }
+
+    /**
+     * Gets the number of times the body has been resumed so far
+     * @return
+     */
+    public int getResumeCount() {
+        return resumeCount;
+    }
+
+    /**
+     * Reopens the body at position using a range request. Throws cause if this isn't possible.
+     * @param cause
+     * @throws IOException
+     */
+    private void resume(IOException cause) throws IOException {
+        if (resumeCount >= maxResumes) {
+            throw cause;
+        }
+        resumeCount++;
+        FileIOUtil.closeQuietly(current);
+        log.warn(String.format("Download of '%1$s' interrupted after %2$s bytes (%3$s). Resuming (attempt %4$s)", url, position, cause, resumeCount));
+
+        HttpGet method = new HttpGet(url);
+        method.setHeader("Range", "bytes=" + position + "-");
+        method.setHeader("If-Range", validator);
+        RequestPriority.setPriority(method, RequestPriority.DOWNLOAD);
+
+        HttpResponse response;
+        try {
+            response = serviceCaller.getMethodResponseAsHttpResponse(method);
+        } catch (Exception ex) {
+            log.debug("Resume request failed", ex);
+            throw cause;
+        }
+
+        //Anything other than a partial response from our position means the upstream has changed or can't resume
+        Header contentRange = response.getFirstHeader("Content-Range");
+        if (response.getStatusLine().getStatusCode() != HttpStatus.SC_PARTIAL_CONTENT ||
+            contentRange == null ||
+            !contentRange.getValue().trim().startsWith("bytes " + position + "-")) {
+            FileIOUtil.closeQuietly(response.getEntity().getContent());
+            throw new IOException(String.format("Unable to resume download of '%1$s' (%2$s)", url, response.getStatusLine()), cause);
+        }
+
+        current = response.getEntity().getContent();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int read = read(b, 0, 1);
+        return read <= 0 ? -1 : (b[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        while (true) {
+            int read;
+            try {
+                read = current.read(b, off, len);
+            } catch (IOException ex) {
+                resume(ex);
+                continue;
+            }
+
+            if (read < 0 && expectedLength >= 0 && position < expectedLength) {
+                //The connection closed before Content-Length bytes arrived
+                resume(new IOException(String.format("Premature end of body (%1$s of %2$s bytes)", position, expectedLength)));
+                continue;
+            }
+
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        return current.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        current.close();
+    }
+}
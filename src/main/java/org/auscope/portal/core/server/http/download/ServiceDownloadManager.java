@@ -1,6 +1,7 @@
 package org.auscope.portal.core.server.http.download;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
@@ -12,55 +13,71 @@ import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.file.Files;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
-import javax.xml.namespace.NamespaceContext;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.auscope.portal.core.configuration.ServiceConfiguration;
 import org.auscope.portal.core.configuration.ServiceConfigurationItem;
 import org.auscope.portal.core.server.http.HttpServiceCaller;
+import org.auscope.portal.core.server.http.RequestPriority;
+import org.auscope.portal.core.server.http.RetryPolicy;
 import org.auscope.portal.core.services.namespaces.IterableNamespace;
 import org.auscope.portal.core.util.DOMResponseUtil;
 import org.auscope.portal.core.util.FileIOUtil;
 import org.auscope.portal.core.util.MimeUtil;
+import org.auscope.portal.core.util.ZipCompressionPolicy;
 
 
 /**
  * A manager class that to control number of requests to a endpoint and also multithread a request
- * to provide more efficiency
+ * to provide more efficiency. The limits on concurrent requests are enforced by a (shared) DownloadScheduler
  * @author Victor Tey
  *
  */
 public class ServiceDownloadManager {
     protected final Log logger = LogFactory.getLog(getClass());
-    private final int maxThreadPerEndpoint = 1;
-    private final int maxThreadPerSession = 2;
     // VT: the individual download controllers should decided on the length of time we allow each download
     // as they should be handled on a case by case basic rather then 1 length of time to set all.
     // 120 minutes is a huge time as a final catch all safety net.
     public static final int MAX_WAIT_TIME_MINUTE = 360;
-    private static ConcurrentHashMap<String, Semaphore> endpointSemaphores;
-    private static int globalId;
+    /** The maximum number of times an interrupted download will be resumed (if the upstream supports it)*/
+    public static final int MAX_RESUME_ATTEMPTS = 3;
+    private static AtomicInteger globalId = new AtomicInteger();
     private int callerId;
     private ExecutorService pool;
-
-    static{
-        endpointSemaphores = new ConcurrentHashMap<String, Semaphore>();
-    }
+    private DownloadScheduler scheduler = DownloadScheduler.getDefault();
+    private String sessionId;
+    private int sessionWeight = 1;
+    private DownloadCache downloadCache;
+    private volatile List<DownloadResponse> responses = Collections.emptyList();
 
     // VT do not directly access entryCount due to multi threading. Access it
     // via getCount()
@@ -83,33 +100,201 @@ public class ServiceDownloadManager {
         this.urls = urls;
         this.serviceCaller = serviceCaller;
         this.pool = executer;
-        callerId = globalId++;
-        for (int i = 0; i < urls.length; i++) {
-            String host = this.getHost(urls[i]);
-            if (!endpointSemaphores.containsKey(host)) {
-                endpointSemaphores.put(host, new Semaphore(
-                        maxThreadPerEndpoint, true));
+        callerId = globalId.getAndIncrement();
+        sessionId = "ServiceDownloadManager-" + callerId;
+    }
+
+    /**
+     * The scheduler that enforces per host/per session limits on these downloads (defaults to DownloadScheduler.getDefault())
+     * @return
+     */
+    public DownloadScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * The scheduler that enforces per host/per session limits on these downloads (defaults to DownloadScheduler.getDefault())
+     * @param scheduler
+     */
+    public void setScheduler(DownloadScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Identifies who these downloads are being made for. Managers sharing a session id will share the
+     * scheduler's per session limit. Defaults to a value unique to this manager (DownloadTracker replaces this
+     * with its email so that a single user's downloads are limited as a whole).
+     * @return
+     */
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * Identifies who these downloads are being made for. Managers sharing a session id will share the
+     * scheduler's per session limit. Defaults to a value unique to this manager.
+     * @param sessionId
+     */
+    public void setSessionId(String sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    /**
+     * The relative share of the scheduler's dispatches that this session will receive (defaults to 1)
+     * @return
+     */
+    public int getSessionWeight() {
+        return sessionWeight;
+    }
+
+    /**
+     * The relative share of the scheduler's dispatches that this session will receive (defaults to 1)
+     * @param sessionWeight
+     */
+    public void setSessionWeight(int sessionWeight) {
+        this.sessionWeight = sessionWeight;
+    }
+
+    /**
+     * If set, completed downloads will be stored in (and served from) this cache. Services can opt out
+     * via ServiceConfigurationItem.setDownloadCacheable. Defaults to null (no caching)
+     * @return
+     */
+    public DownloadCache getDownloadCache() {
+        return downloadCache;
+    }
+
+    /**
+     * If set, completed downloads will be stored in (and served from) this cache. Services can opt out
+     * via ServiceConfigurationItem.setDownloadCacheable. Defaults to null (no caching)
+     * @param downloadCache
+     */
+    public void setDownloadCache(DownloadCache downloadCache) {
+        this.downloadCache = downloadCache;
+    }
+
+    /**
+     * Converts the progress of the current (or most recent) call to downloadAll/downloadAllToZip into a JSON
+     * object of the form {services: [DownloadResponse.getProgressJSON()], completed, failed, total,
+     * bytesReceived, expectedBytes, etaMs}. etaMs will be -1 if it cannot be estimated yet.
+     *
+     * This can be safely called while the download is running.
+     * @return
+     */
+    public JSONObject getProgressJSON() {
+        List<DownloadResponse> current = responses;
+        JSONArray services = new JSONArray();
+        int completed = 0;
+        int failed = 0;
+        long bytesReceived = 0;
+        long remainingBytes = 0;
+        long expectedBytes = 0;
+        long startTime = Long.MAX_VALUE;
+        for (DownloadResponse response : current) {
+            services.add(response.getProgressJSON());
+            if (response.getStatus() == Progression.COMPLETED) {
+                completed++;
             }
+            if (response.hasException()) {
+                failed++;
+            }
+
+            bytesReceived += response.getBytesReceived();
+            long remaining = response.getEstimatedRemainingBytes();
+            if (remaining < 0 || remainingBytes < 0) {
+                remainingBytes = -1;
+            } else {
+                remainingBytes += remaining;
+            }
+            if (response.getExpectedBytes() < 0 || expectedBytes < 0) {
+                expectedBytes = -1;
+            } else {
+                expectedBytes += response.getExpectedBytes();
+            }
+            if (response.getElapsedTime() > 0) {
+                startTime = Math.min(startTime, System.currentTimeMillis() - response.getElapsedTime());
+            }
+        }
+
+        //Estimate using the aggregate transfer rate so far
+        long etaMs = -1;
+        if (remainingBytes == 0 && completed == current.size()) {
+            etaMs = 0;
+        } else if (remainingBytes > 0 && bytesReceived > 0 && startTime != Long.MAX_VALUE) {
+            long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+            etaMs = (long) (remainingBytes * ((double) elapsed / bytesReceived));
         }
+
+        JSONObject json = new JSONObject();
+        json.put("services", services);
+        json.put("total", current.size());
+        json.put("completed", completed);
+        json.put("failed", failed);
+        json.put("bytesReceived", bytesReceived);
+        json.put("expectedBytes", expectedBytes);
+        json.put("etaMs", etaMs);
+        return json;
     }
 
+    /**
+     * Downloads every URL (subject to the limits of scheduler) using the executor this manager was created with.
+     * The executor is NOT shutdown by this method.
+     *
+     * @return A response for each URL (in the same order as the URLs)
+     * @throws URISyntaxException
+     * @throws InterruptedException
+     * @throws InCompleteDownloadException If any download doesn't complete within MAX_WAIT_TIME_MINUTE
+     */
     public synchronized ArrayList<DownloadResponse> downloadAll()
             throws URISyntaxException, InterruptedException,
             InCompleteDownloadException {
+        return downloadAll(null, null);
+    }
 
-        Semaphore processSemaphore = new Semaphore(this.maxThreadPerSession,
-                true);
+    /**
+     * Downloads every URL (subject to the limits of scheduler) that hasn't already COMPLETED in job. Each body is
+     * committed to journal as soon as its service has been downloaded so that, if this process dies, resuming job
+     * will not repeat any service that finished. Services that already COMPLETED are served from journal.
+     *
+     * The executor is NOT shutdown by this method.
+     *
+     * @param journal Where job is stored (if null, nothing is journaled)
+     * @param job Must have been created for the same URLs as this manager
+     * @return A response for each URL (in the same order as the URLs)
+     * @throws URISyntaxException
+     * @throws InterruptedException
+     * @throws InCompleteDownloadException If any download doesn't complete within MAX_WAIT_TIME_MINUTE
+     */
+    public synchronized ArrayList<DownloadResponse> downloadAll(DownloadJournal journal, DownloadJournal.Job job)
+            throws URISyntaxException, InterruptedException,
+            InCompleteDownloadException {
+        if (journal != null && job.getUrls().length != urls.length) {
+            throw new IllegalArgumentException("job was not created for this manager's URLs");
+        }
+
+        CountDownLatch latch = new CountDownLatch(urls.length);
         ArrayList<GMLDownload> gmlDownloads = new ArrayList<GMLDownload>();
+        List<DownloadResponse> progress = new ArrayList<DownloadResponse>();
 
         for (int i = 0; i < urls.length; i++) {
-            Semaphore sem = endpointSemaphores.get(this.getHost(urls[i]));
-            GMLDownload gmlDownload = new GMLDownload(urls[i], sem, i,
-                    processSemaphore);
+            GMLDownload gmlDownload = new GMLDownload(urls[i], i, latch);
+            if (journal != null) {
+                gmlDownload.journal = journal;
+                gmlDownload.job = job;
+            }
             gmlDownloads.add(gmlDownload);
-            pool.execute(gmlDownload);
+            progress.add(gmlDownload.response);
         }
-        pool.shutdown();
-        pool.awaitTermination(ServiceDownloadManager.MAX_WAIT_TIME_MINUTE,
+        responses = progress;
+        for (int i = 0; i < urls.length; i++) {
+            GMLDownload gmlDownload = gmlDownloads.get(i);
+            if (journal != null && gmlDownload.restore()) {
+                logger.info(callerId + "->Restored journaled download: " + i + " " + urls[i]);
+                continue;
+            }
+            scheduler.submit(sessionId, sessionWeight, this.getHost(urls[i]), gmlDownload, pool);
+        }
+        latch.await(ServiceDownloadManager.MAX_WAIT_TIME_MINUTE,
                 TimeUnit.MINUTES);
 
         ArrayList<DownloadResponse> responses = new ArrayList<DownloadResponse>();
@@ -120,6 +305,137 @@ public class ServiceDownloadManager {
         return responses;
     }
 
+    /**
+     * Downloads every URL (subject to the limits of scheduler) and writes each response into zout as soon as it
+     * completes (in completion order) so that the client can begin receiving data before every download has finished.
+     * Nothing is buffered to disk. A manifest entry (manifest.json) describing every download is written last.
+     *
+     * zout is flushed after every entry but is NOT finished/closed by this method. The executor is NOT shutdown.
+     *
+     * @param zout Will receive an entry for each download
+     * @return The number of downloads that were successfully written
+     * @throws URISyntaxException
+     * @throws InterruptedException
+     * @throws IOException If zout cannot be written to (eg the client has disconnected)
+     */
+    public synchronized int downloadAllToZip(ZipOutputStream zout)
+            throws URISyntaxException, InterruptedException, IOException {
+        return downloadAllToZip(zout, null, null, null);
+    }
+
+    /**
+     * Downloads every URL and streams each response into zout as it completes (as per downloadAllToZip). Each entry
+     * is compressed according to policy. If journal is set, every body is also committed to journal (see
+     * downloadAll(DownloadJournal, Job)) and services that already COMPLETED in job are served from journal.
+     *
+     * @param zout Will receive an entry for each download
+     * @param policy Decides the compression of each entry (if null zout's level is used for every entry)
+     * @param journal Where job is stored (if null, nothing is journaled)
+     * @param job Must have been created for the same URLs as this manager
+     * @return The number of downloads that were successfully written
+     * @throws URISyntaxException
+     * @throws InterruptedException
+     * @throws IOException If zout cannot be written to (eg the client has disconnected)
+     */
+    public synchronized int downloadAllToZip(ZipOutputStream zout, ZipCompressionPolicy policy, DownloadJournal journal, DownloadJournal.Job job)
+            throws URISyntaxException, InterruptedException, IOException {
+        if (journal != null && job.getUrls().length != urls.length) {
+            throw new IllegalArgumentException("job was not created for this manager's URLs");
+        }
+
+        CountDownLatch latch = new CountDownLatch(urls.length);
+        LinkedBlockingQueue<GMLDownload> completed = new LinkedBlockingQueue<GMLDownload>();
+        ArrayList<GMLDownload> gmlDownloads = new ArrayList<GMLDownload>();
+        List<DownloadResponse> progress = new ArrayList<DownloadResponse>();
+        for (int i = 0; i < urls.length; i++) {
+            GMLDownload gmlDownload = new GMLDownload(urls[i], i, latch);
+            gmlDownload.completionQueue = completed;
+            if (journal != null) {
+                gmlDownload.journal = journal;
+                gmlDownload.job = job;
+            }
+            gmlDownloads.add(gmlDownload);
+            progress.add(gmlDownload.response);
+        }
+        responses = progress;
+        for (int i = 0; i < urls.length; i++) {
+            GMLDownload gmlDownload = gmlDownloads.get(i);
+            if (journal != null && gmlDownload.restore()) {
+                logger.info(callerId + "->Restored journaled download: " + i + " " + urls[i]);
+                continue;
+            }
+            scheduler.submit(sessionId, sessionWeight, this.getHost(urls[i]), gmlDownload, pool);
+        }
+
+        String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+        long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(ServiceDownloadManager.MAX_WAIT_TIME_MINUTE);
+        JSONObject[] manifestEntries = new JSONObject[urls.length];
+        int successCount = 0;
+        try {
+            for (int written = 0; written < urls.length; written++) {
+                GMLDownload gmlDownload = completed.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (gmlDownload == null) {
+                    logger.warn(callerId + "->Timed out waiting for downloads to complete");
+                    break;
+                }
+
+                JSONObject entry;
+                try {
+                    entry = FileIOUtil.writeDownloadToZip(gmlDownload.response, (gmlDownload.id + 1) + "_" + timestamp, zout, true, policy);
+                } catch (RuntimeException ex) {
+                    //eg malformed JSON - this shouldn't stop the rest of the downloads
+                    logger.warn(callerId + "->Unable to write download " + gmlDownload.id + " " + gmlDownload.url, ex);
+                    entry = new JSONObject();
+                    entry.put("success", false);
+                    entry.put("error", String.valueOf(ex.getMessage()));
+                }
+                zout.flush();
+
+                if (entry.getBoolean("success")) {
+                    successCount++;
+                }
+                manifestEntries[gmlDownload.id] = entry;
+            }
+        } finally {
+            //Anything that was never written to zout (including downloads that are still running and will
+            //only set their stream later) needs its stream closing so its connection is released
+            for (GMLDownload gmlDownload : gmlDownloads) {
+                if (manifestEntries[gmlDownload.id] == null) {
+                    gmlDownload.cancel();
+                }
+            }
+        }
+
+        JSONArray manifest = new JSONArray();
+        for (int i = 0; i < urls.length; i++) {
+            JSONObject entry = manifestEntries[i];
+            if (entry == null) {
+                entry = new JSONObject();
+                entry.put("success", false);
+                entry.put("error", "Download did not complete in time");
+            }
+            entry.put("url", urls[i]);
+            manifest.add(entry);
+        }
+        if (policy != null) {
+            zout.setLevel(policy.getLevel());
+        }
+        zout.putNextEntry(new ZipEntry("manifest.json"));
+        zout.write(manifest.toString(2).getBytes("UTF-8"));
+        zout.closeEntry();
+        zout.flush();
+
+        return successCount;
+    }
+
+    /**
+     * The URLs this manager downloads
+     * @return
+     */
+    public String[] getUrls() {
+        return urls;
+    }
+
     public String getHost(String url) throws URISyntaxException {
         URI uri = new URI(url);
         String query = uri.getQuery();
@@ -144,19 +460,22 @@ public class ServiceDownloadManager {
         return serviceUrl;
     }
 
-    public class GMLDownload implements Runnable {
+    public class GMLDownload implements DownloadScheduler.RejectableDownload {
         private String url;
         DownloadResponse response;
-        private boolean downloadComplete = false;
-        private Semaphore endPointSem, processSem;
+        private volatile boolean downloadComplete = false;
         private int id;
-
-        public GMLDownload(String url, Semaphore sem, int id,
-                Semaphore processSem) throws URISyntaxException {
-            this.endPointSem = sem;
+        private CountDownLatch latch;
+        private BlockingQueue<GMLDownload> completionQueue;
+        /** Set once the consumer of completionQueue has gone (so nothing will ever read response)*/
+        private boolean cancelled = false;
+        private DownloadJournal journal;
+        private DownloadJournal.Job job;
+
+        public GMLDownload(String url, int id, CountDownLatch latch) throws URISyntaxException {
             this.url = url;
             this.id = id;
-            this.processSem = processSem;
+            this.latch = latch;
             response=new DownloadResponse(getHost(url));
         }
 
@@ -164,52 +483,99 @@ public class ServiceDownloadManager {
         public void run() {
 
             try {
-
-                boolean secondLockAquired = false;
-                boolean firstLockAquired = false;
-                // the while loop checks and waits until we acquire both
-                // locks process and endpoints to ensure we don't generate
-                // a) too much process thread which will create server load
-                // b) too much endpoint request thread which will create
-                // endpoint service load
-                // I have given it 10 minutes to acquire lock for the process
-                // and within 5 seconds if a endpoint lock is not acquired,
-                // release the process lock so that other threads can attempt to
-                // run and later we try again.
-                // if the first lock never gets acquired, houston we have a
-                // problem.
-                while (true) {
-                    firstLockAquired = processSem.tryAcquire(
-                            ServiceDownloadManager.MAX_WAIT_TIME_MINUTE,
-                            TimeUnit.MINUTES);
-
-                    if (firstLockAquired) {
-                        secondLockAquired = endPointSem.tryAcquire(5,
-                                TimeUnit.SECONDS);
-                    }
-                    if (!secondLockAquired) {
-                        processSem.release();
-                        secondLockAquired = false;
-                        firstLockAquired = false;
-                        logger.warn(callerId + " Attempt to acquire both lock failed. Trying again");
-                    } else {
-                        break;
-                    }
-                }
+                response.setProgressStarted();
                 logger.info((callerId + "->Calling service: " + id +" " + url));
                 this.download(response,url);
+                if (journal != null) {
+                    this.journal();
+                }
                 this.downloadComplete = true;
                 logger.info(callerId + "->Download Complete: " + id + " " + url);
-            } catch (InterruptedException e) {
-                logger.error("No reason for this thread to be interrupted", e);
             } catch(Exception e){
-                e.printStackTrace();
+                logger.error(callerId + "->Download failed: " + id + " " + url, e);
+                response.setException(e);
             }finally {
-                endPointSem.release();
-                processSem.release();
-                logger.debug(callerId + "->semaphore release: " + id);
+                completed();
+            }
+
+        }
+
+        /**
+         * Hands this download to the consumer of completionQueue. If the consumer has already gone (see cancel)
+         * the response stream is closed instead as nothing will ever read it.
+         */
+        private void completed() {
+            synchronized (this) {
+                if (cancelled) {
+                    closeResponse();
+                } else if (completionQueue != null) {
+                    completionQueue.add(this);
+                }
             }
+            latch.countDown();
+        }
 
+        /**
+         * Called when the consumer of completionQueue will no longer read this download's response. Any response
+         * stream (either already set or set when this download later completes) will be closed.
+         */
+        synchronized void cancel() {
+            cancelled = true;
+            closeResponse();
+        }
+
+        private void closeResponse() {
+            InputStream in = response.getResponseAsStream();
+            if (in != null) {
+                FileIOUtil.closeQuietly(in);
+            }
+        }
+
+        /**
+         * The scheduler couldn't start this download - report it as failed (rather than leaving callers
+         * waiting for MAX_WAIT_TIME_MINUTE on a download that will never run)
+         */
+        @Override
+        public void rejected(RejectedExecutionException ex) {
+            logger.error(callerId + "->Download rejected: " + id + " " + url, ex);
+            response.setException(ex);
+            this.downloadComplete = true;
+            completed();
+        }
+
+        /**
+         * Populates response from the journal if this download has already completed
+         * @return true if response was restored (and no download is required)
+         */
+        private boolean restore() {
+            if (!journal.restoreServiceOutput(job, id, response)) {
+                return false;
+            }
+            this.downloadComplete = true;
+            completed();
+            return true;
+        }
+
+        /**
+         * Commits the downloaded body to the journal (and replaces response's stream with the journaled copy)
+         */
+        private void journal() throws IOException {
+            if (response.hasException()) {
+                journal.markServiceFailed(job, id, response.getExceptionAsString());
+                return;
+            }
+
+            InputStream in = response.getResponseAsStream();
+            try {
+                journal.saveServiceOutput(job, id, response.getContentType(), in == null ? new ByteArrayInputStream(new byte[0]) : in);
+            } catch (IOException ex) {
+                //The journal has marked this service as failed and the body has been (partially) consumed
+                logger.warn(callerId + "->Unable to journal download: " + id + " " + url, ex);
+                response.setException(ex);
+                return;
+            }
+            //The bytes have already been counted towards response's progress
+            response.setResponseStream(journal.openServiceOutput(job, id));
         }
 
         public DownloadResponse getGMLDownload() throws InCompleteDownloadException {
@@ -226,27 +592,87 @@ public class ServiceDownloadManager {
         }
 
         public void download(DownloadResponse response, String url) {
+            ServiceConfigurationItem serviceConfigurationItem = null;
             if(ServiceDownloadManager.this.serviceConfiguration != null){
-                ServiceConfigurationItem serviceConfigurationItem = ServiceDownloadManager.this.serviceConfiguration.getServiceConfigurationItem(url);
+                serviceConfigurationItem = ServiceDownloadManager.this.serviceConfiguration.getServiceConfigurationItem(url);
+            }
 
-                if(serviceConfigurationItem != null && serviceConfigurationItem.doesPaging()){
-                    this.downloadPaging(response, url);
-                }else{
-                    this.downloadNormal(response, url);
-                }
+            DownloadCache cache = ServiceDownloadManager.this.downloadCache;
+            if (cache == null || (serviceConfigurationItem != null && !serviceConfigurationItem.isDownloadCacheable())) {
+                this.download(response, url, serviceConfigurationItem);
+                return;
+            }
+
+            String fingerprint = DownloadCache.fingerprint(url, null);
+            if (cache.serve(fingerprint, response)) {
+                logger.info(callerId + "->Serving cached download: " + id + " " + url);
+                return;
+            }
+            this.download(response, url, serviceConfigurationItem);
+            if (!response.hasException() && response.getResponseAsStream() != null) {
+                //The body will be cached once the consumer has read it in full
+                response.setResponseStream(cache.store(fingerprint, response.getContentType(), response.getResponseAsStream()));
+            }
+        }
+
+        private void download(DownloadResponse response, String url, ServiceConfigurationItem serviceConfigurationItem) {
+            if(serviceConfigurationItem != null && serviceConfigurationItem.doesPaging()){
+                this.downloadPaging(response, url, serviceConfigurationItem.getMaxConcurrentPages());
+            }else if (serviceConfigurationItem != null){
+                this.downloadNormal(response, url, serviceConfigurationItem.getMirrorRequestUrls(url));
             }else{
                 this.downloadNormal(response, url);
             }
-
         }
 
         public void downloadNormal(DownloadResponse response, String url) {
+            this.downloadNormal(response, url, null);
+        }
+
+        /**
+         * Downloads url into response, hedging the request against mirrorUrls if url is slow to respond
+         * @param response Will receive the response
+         * @param url The URL to download
+         * @param mirrorUrls Equivalent URLs to url (can be null)
+         */
+        public void downloadNormal(DownloadResponse response, String url, String[] mirrorUrls) {
             HttpGet  method = new HttpGet(url);
+            RetryPolicy.enableRetries(method);
+            RequestPriority.setPriority(method, RequestPriority.DOWNLOAD);
             try {
                 // Our request may fail (due to timeout or otherwise)
-                HttpResponse httpResponse=serviceCaller.getMethodResponseAsHttpResponse(method);
+                HttpResponse httpResponse = null;
+                String responseUrl = url;
+                if (mirrorUrls != null && mirrorUrls.length > 0) {
+                    HttpRequestBase[] mirrorMethods = new HttpRequestBase[mirrorUrls.length];
+                    for (int i = 0; i < mirrorUrls.length; i++) {
+                        mirrorMethods[i] = new HttpGet(mirrorUrls[i]);
+                        RetryPolicy.enableRetries(mirrorMethods[i]);
+                        RequestPriority.setPriority(mirrorMethods[i], RequestPriority.DOWNLOAD);
+                    }
+                    httpResponse = serviceCaller.getMethodResponseAsHttpResponse(method, mirrorMethods);
+
+                    //Every request except the one that responded will have been aborted
+                    if (method.isAborted()) {
+                        for (int i = 0; i < mirrorMethods.length; i++) {
+                            if (!mirrorMethods[i].isAborted()) {
+                                responseUrl = mirrorUrls[i];
+                                break;
+                            }
+                        }
+                    }
+                } else {
+                    httpResponse = serviceCaller.getMethodResponseAsHttpResponse(method);
+                }
 
-                response.setResponseStream(httpResponse.getEntity().getContent());
+                long contentLength = httpResponse.getEntity().getContentLength();
+                if (ResumableInputStream.supportsResume(httpResponse)) {
+                    //If the connection drops whilst the body is being read we can pick up where we left off (against
+                    //the same endpoint - a mirror's copy of the body may differ byte for byte from the primary's)
+                    response.setResponseStream(new ResumableInputStream(serviceCaller, responseUrl, httpResponse, MAX_RESUME_ATTEMPTS), contentLength);
+                } else {
+                    response.setResponseStream(httpResponse.getEntity().getContent(), contentLength);
+                }
                 Header header=httpResponse.getEntity().getContentType();
                 if(header != null && header.getValue().length() > 0){
                     response.setContentType(httpResponse.getEntity().getContentType().getValue());
@@ -260,6 +686,25 @@ public class ServiceDownloadManager {
         }
 
         public void downloadPaging(DownloadResponse response, String url) {
+            this.downloadPaging(response, url, ServiceConfigurationItem.DEFAULT_MAX_CONCURRENT_PAGES);
+        }
+
+        /**
+         * Downloads every page of the WFS response at url into a single zip (one entry per page).
+         *
+         * A resultType=hits request is made up front - if the server reports the total number of features then the
+         * remaining pages (sized by the first page) are requested in parallel. Otherwise pages are requested
+         * sequentially until an empty page is returned.
+         *
+         * Servers that ignore startIndex return the first page again - if that happens the pages are discarded and
+         * url is requested once without paging.
+         *
+         * @param response Will receive the zip
+         * @param url The request URL (startIndex will be appended)
+         * @param maxConcurrentPages The maximum number of pages that will be requested at once (the extra pages may
+         *                           exceed the scheduler's per host limit)
+         */
+        public void downloadPaging(DownloadResponse response, String url, int maxConcurrentPages) {
             //A typical request:http://localhost:8080/AuScope-Portal/doMineFilterDownload.do?&mineName=&serviceFilter=
             //http%3A%2F%2Fauscope-services-test.arrc.csiro.au%3A80%2Fgsq-earthresource%2Fwfs&bbox=%7B%22westBoundLongitude%22%3A%22144%22%2C%22
             //southBoundLatitude%22%3A%22-27%22%2C%22eastBoundLongitude%22%3A%22148%22%2C%22northBoundLatitude%22%3A%22-25%22%2C%22crs%22%3A%22EPSG%3A4326%22%7D&
@@ -270,34 +715,41 @@ public class ServiceDownloadManager {
                 tempDir = Files.createTempDirectory("APT_PAGING").toFile();
                 tempDir.deleteOnExit();
 
-                int index = 0;
-
-                while(true){
-                    HttpGet  method = new HttpGet(url+"&startIndex=" + index);
-                    HttpResponse httpResponse=serviceCaller.getMethodResponseAsHttpResponse(method);
-
-                    Header header=httpResponse.getEntity().getContentType();
-                    String fileExtension=".xml";//VT: Default to xml as we will mostly be dealing with xml files
-                    if(header != null && header.getValue().length() > 0){
-                        fileExtension = "." + MimeUtil.mimeToFileExtension(httpResponse.getEntity().getContentType().getValue());
-
+                int totalFeatures = this.requestHits(url);
+                response.setExpectedFeatures(totalFeatures);
+                DOMResponseUtil.FeatureCount firstPage = this.downloadPage(response, url, 0, tempDir);
+                int pageSize = firstPage.getNumberReturned();
+                if (pageSize > 0 && (totalFeatures > pageSize || totalFeatures < 0)) {
+                    if (totalFeatures > pageSize) {
+                        response.setExpectedPages((totalFeatures + pageSize - 1) / pageSize);
                     }
-                    File f=new File(tempDir,"ResultIndexed-" + index + fileExtension);
-                    f.deleteOnExit();
-                    FileIOUtil.writeStreamToFile(httpResponse.getEntity().getContent(), f, true);
-                    int numberOfFeatures= this.getNumberOfFeature(f);
-                    if(numberOfFeatures != 0){
-                        index += numberOfFeatures;
-                    }else{
-                        //VT: Delete file since it has 0 number of features;break out of this while loop
-                        f.delete();
-                        break;
+
+                    //The second page is always requested on its own so we can check that startIndex is honoured
+                    DOMResponseUtil.FeatureCount page = this.downloadPage(response, url, pageSize, tempDir);
+                    if (isRepeatedPage(firstPage, 0, page, pageSize, tempDir)) {
+                        logger.warn(callerId + "->Server ignored startIndex, falling back to a single request: " + url);
+                        this.downloadUnpaged(response, url, tempDir);
+                    } else if (totalFeatures > pageSize) {
+                        this.downloadPagesInParallel(response, url, pageSize, 2 * pageSize, totalFeatures, tempDir, maxConcurrentPages);
+                    } else {
+                        //VT: The server can't tell us how many features there are - keep paging until we run out
+                        int index = pageSize;
+                        while (page.getNumberReturned() != 0) {
+                            index += page.getNumberReturned();
+                            page = this.downloadPage(response, url, index, tempDir);
+                            if (isRepeatedPage(firstPage, 0, page, index, tempDir)) {
+                                logger.warn(callerId + "->Server ignored startIndex, falling back to a single request: " + url);
+                                this.downloadUnpaged(response, url, tempDir);
+                                break;
+                            }
+                        }
                     }
                 }
                 zipStream = new FileInputStream(this.zipDirectory(tempDir));
                 //VT: Zip up tempDir and we are good to go.
                 response.setResponseStream(zipStream);
                 response.setContentType("application/zip");
+                response.setProgressComplete();
 
 
             }catch(Exception e){
@@ -312,10 +764,194 @@ public class ServiceDownloadManager {
 
         }
 
-        private int getNumberOfFeature(File f) throws Exception{
+        /**
+         * Asks the server for the total number of features at url (using resultType=hits)
+         * @return The number of features or -1 if the server doesn't support hits
+         */
+        private int requestHits(String url) {
+            HttpGet method = new HttpGet(url + "&resultType=hits");
+            RetryPolicy.enableRetries(method);
+            RequestPriority.setPriority(method, RequestPriority.DOWNLOAD);
+            try {
+                HttpResponse httpResponse = serviceCaller.getMethodResponseAsHttpResponse(method);
+                //Count members too - a server that ignores resultType will return a page of features instead
+                return DOMResponseUtil.countFeatures(httpResponse.getEntity().getContent(), true).getNumberMatched();
+            } catch (Exception ex) {
+                logger.debug(callerId + "->resultType=hits unsupported, falling back to sequential paging: " + url, ex);
+                return -1;
+            }
+        }
+
+        /**
+         * Downloads a single page (starting at index) into tempDir
+         * @return The counts of the page (the page will be deleted if it's empty)
+         */
+        private DOMResponseUtil.FeatureCount downloadPage(DownloadResponse response, String url, int index, File tempDir) throws Exception {
+            return this.downloadPageFile(response, url + "&startIndex=" + index, index, tempDir);
+        }
+
+        /**
+         * Replaces every page in tempDir with the (unpaged) response of url
+         */
+        private void downloadUnpaged(DownloadResponse response, String url, File tempDir) throws Exception {
+            File[] pages = tempDir.listFiles();
+            if (pages != null) {
+                for (File page : pages) {
+                    page.delete();
+                }
+            }
+            response.setExpectedPages(1);
+            this.downloadPageFile(response, url, 0, tempDir);
+        }
+
+        /**
+         * Returns true if page (requested at index) is the same as firstPage (requested at firstIndex) - ie the server
+         * ignored startIndex. Pages are compared by the id of their first feature or (if the features have no ids)
+         * by their size and content.
+         */
+        private boolean isRepeatedPage(DOMResponseUtil.FeatureCount firstPage, int firstIndex, DOMResponseUtil.FeatureCount page, int index, File tempDir) throws IOException {
+            if (page.getNumberReturned() == 0) {
+                return false;
+            }
+            if (firstPage.getFirstFeatureId() != null || page.getFirstFeatureId() != null) {
+                return firstPage.getFirstFeatureId() != null && firstPage.getFirstFeatureId().equals(page.getFirstFeatureId());
+            }
+            if (firstPage.getNumberReturned() != page.getNumberReturned()) {
+                return false;
+            }
+            File first = getPageFile(tempDir, firstIndex);
+            File other = getPageFile(tempDir, index);
+            return first != null && other != null && FileUtils.contentEquals(first, other);
+        }
+
+        /**
+         * Gets the file that the page requested at index was written to (or null if there is no such file)
+         */
+        private File getPageFile(File tempDir, int index) {
+            File[] pages = tempDir.listFiles();
+            if (pages != null) {
+                for (File page : pages) {
+                    if (getPageIndex(page.getName()) == index) {
+                        return page;
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Downloads requestUrl into tempDir as the page starting at index
+         * @return The counts of the page (the page will be deleted if it's empty)
+         */
+        private DOMResponseUtil.FeatureCount downloadPageFile(DownloadResponse response, String requestUrl, int index, File tempDir) throws Exception {
+            HttpGet  method = new HttpGet(requestUrl);
+            RetryPolicy.enableRetries(method);
+            RequestPriority.setPriority(method, RequestPriority.DOWNLOAD);
+            HttpResponse httpResponse=serviceCaller.getMethodResponseAsHttpResponse(method);
+
+            Header header=httpResponse.getEntity().getContentType();
+            String fileExtension=".xml";//VT: Default to xml as we will mostly be dealing with xml files
+            if(header != null && header.getValue().length() > 0){
+                fileExtension = "." + MimeUtil.mimeToFileExtension(httpResponse.getEntity().getContentType().getValue());
+
+            }
+            File f=new File(tempDir,"ResultIndexed-" + index + fileExtension);
+            f.deleteOnExit();
+            FileIOUtil.writeStreamToFile(response.countProgress(httpResponse.getEntity().getContent()), f, true);
+            response.incrementPagesCompleted();
+            DOMResponseUtil.FeatureCount count = this.getNumberOfFeature(f);
+            if (count.getNumberReturned() == 0) {
+                //VT: Delete file since it has 0 number of features
+                f.delete();
+            }
+            return count;
+        }
+
+        /**
+         * Downloads every page from startIndex up to totalFeatures using up to maxConcurrentPages threads (including
+         * the calling thread). Helpers are submitted to the scheduler (so they count towards the host and session
+         * limits) and run on pool but the calling thread will never wait on a helper that hasn't started, so a
+         * saturated pool or host can't deadlock the download.
+         *
+         * The calling thread already holds a host and session slot, so helpers are allowed to run up to
+         * maxConcurrentPages - 1 downloads over the scheduler's limits (see DownloadScheduler.submit). Otherwise
+         * the default limit of 1 download per host would serialise every page.
+         */
+        private void downloadPagesInParallel(final DownloadResponse response, final String url, final int pageSize, int startIndex, final int totalFeatures, final File tempDir, int maxConcurrentPages) throws Exception {
+            final AtomicInteger nextIndex = new AtomicInteger(startIndex);
+            final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+            final Object helperLock = new Object();
+            final int[] runningHelpers = {0};
+            final boolean[] closed = {false};
+
+            final Runnable worker = new Runnable() {
+                @Override
+                public void run() {
+                    int index;
+                    while (failure.get() == null && (index = nextIndex.getAndAdd(pageSize)) < totalFeatures) {
+                        try {
+                            downloadPage(response, url, index, tempDir);
+                        } catch (Exception ex) {
+                            failure.compareAndSet(null, ex);
+                        }
+                    }
+                }
+            };
+
+            int pagesRemaining = (totalFeatures - startIndex + pageSize - 1) / pageSize;
+            int helpers = Math.min(maxConcurrentPages, pagesRemaining) - 1;
+            String host = getHost(url);
+            for (int i = 0; i < helpers; i++) {
+                scheduler.submit(sessionId, sessionWeight, host, new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (helperLock) {
+                            if (closed[0]) {
+                                return;
+                            }
+                            runningHelpers[0]++;
+                        }
+                        try {
+                            worker.run();
+                        } finally {
+                            synchronized (helperLock) {
+                                runningHelpers[0]--;
+                                helperLock.notifyAll();
+                            }
+                        }
+                    }
+                }, pool, helpers); //If pool rejects a helper the calling thread will pick up the slack
+            }
+
+            worker.run();
+            synchronized (helperLock) {
+                closed[0] = true;
+                while (runningHelpers[0] > 0) {
+                    helperLock.wait();
+                }
+            }
+
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+        }
+
+        private DOMResponseUtil.FeatureCount getNumberOfFeature(File f) throws Exception{
             InputStream br= new BufferedInputStream(new FileInputStream(f));
-            NamespaceContext ns = new NumberOfFeatureNamespace();
-            return DOMResponseUtil.getNumberOfFeatures(br, ns);
+            return DOMResponseUtil.countFeatures(br, false);
+        }
+
+        /**
+         * Gets the startIndex that a page file (named ResultIndexed-INDEX.ext) was requested with
+         */
+        private int getPageIndex(String fileName) {
+            String index = fileName.substring("ResultIndexed-".length());
+            int dot = index.indexOf('.');
+            try {
+                return Integer.parseInt(dot < 0 ? index : index.substring(0, dot));
+            } catch (NumberFormatException ex) {
+                return Integer.MAX_VALUE;
+            }
         }
 
         private File zipDirectory(File zipDir) throws Exception{
@@ -325,8 +961,16 @@ public class ServiceDownloadManager {
 
             try{
 
-                // get a listing of the directory content
+                // get a listing of the directory content (in page order)
                 String[] dirList = zipDir.list();
+                Arrays.sort(dirList, new Comparator<String>() {
+                    @Override
+                    public int compare(String a, String b) {
+                        int indexA = getPageIndex(a);
+                        int indexB = getPageIndex(b);
+                        return indexA < indexB ? -1 : (indexA == indexB ? 0 : 1);
+                    }
+                });
 
                 // loop through dirList, and zip the files
                 for (int i = 0; i < dirList.length; i++) {
@@ -6,23 +6,28 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.auscope.portal.core.server.http.HttpServiceCaller;
+import org.auscope.portal.core.server.http.RequestPriority;
 import org.auscope.portal.core.services.csw.CSWServiceItem;
 import org.auscope.portal.core.services.responses.csw.AbstractCSWOnlineResource;
 import org.auscope.portal.core.services.responses.csw.AbstractCSWOnlineResource.OnlineResourceType;
 import org.auscope.portal.core.services.responses.csw.CSWGetRecordResponse;
 import org.auscope.portal.core.services.responses.csw.CSWOnlineResourceImpl;
 import org.auscope.portal.core.services.responses.csw.CSWRecord;
+import org.auscope.portal.core.services.responses.csw.CSWRecordInternPool;
 import org.auscope.portal.core.services.responses.csw.CSWRecordTransformerFactory;
 
 /**
@@ -59,6 +64,16 @@ public class CSWCacheService {
      */
     public static final long CACHE_UPDATE_FREQUENCY_MS = 1000L * 60L * 5L; //Set to 5 minutes
 
+    /**
+     * The maximum number of threads that will be used for post processing harvested records
+     */
+    public static final int MAX_POST_PROCESSING_THREADS = 4;
+
+    /**
+     * Ranges of records larger than this will be split into separate post processing tasks
+     */
+    private static final int POST_PROCESSING_BATCH_SIZE = 256;
+
     private final Log log = LogFactory.getLog(getClass());
 
 
@@ -70,6 +85,8 @@ public class CSWCacheService {
     protected Executor executor;
     protected CSWServiceItem[] cswServiceList;
     protected CSWRecordTransformerFactory transformerFactory;
+    /** Used for post processing (normalising, linking and indexing) harvested records. If null a pool will be created (and shutdown) for each update*/
+    protected ForkJoinPool postProcessingPool;
     
     
     // An array of CSWServiceItems that have noCache==true. These ones will only be loaded when explicitly requested.
@@ -138,6 +155,24 @@ public class CSWCacheService {
         this.forceGetMethods = forceGetMethods;
     }
 
+    /**
+     * Gets the pool used for post processing harvested records. If null (the default) a pool will be created
+     * for each update and shutdown once it finishes.
+     * @return
+     */
+    public ForkJoinPool getPostProcessingPool() {
+        return postProcessingPool;
+    }
+
+    /**
+     * Sets the pool used for post processing harvested records. If null (the default) a pool will be created
+     * for each update and shutdown once it finishes. A pool set here will NOT be shutdown by this class.
+     * @param postProcessingPool
+     */
+    public void setPostProcessingPool(ForkJoinPool postProcessingPool) {
+        this.postProcessingPool = postProcessingPool;
+    }
+
     /**
      * Gets whether the currently running thread is OK to start a cache update
      *
@@ -219,18 +254,17 @@ public class CSWCacheService {
             return false;
         }
 
-        //This will be our new cache
-        Map<String, Set<CSWRecord>> newKeywordCache = new HashMap<String, Set<CSWRecord>>();
-        List<CSWRecord> newRecordCache = new ArrayList<CSWRecord>();
+        //Each worker thread deposits the records from its endpoint into its own slot
+        EndpointHarvest[] harvests = new EndpointHarvest[cswServiceList.length];
 
         //Create our worker threads (ensure they are all aware of each other)
         CSWCacheUpdateThread[] updateThreads = new CSWCacheUpdateThread[cswServiceList.length];
         for (int i = 0; i < updateThreads.length; i++) {
-            updateThreads[i] = new CSWCacheUpdateThread(this, updateThreads, cswServiceList[i], newKeywordCache, newRecordCache, serviceCaller);
+            updateThreads[i] = new CSWCacheUpdateThread(this, updateThreads, cswServiceList[i], harvests, i, serviceCaller);
         }
 
-        //Fire off our worker threads, the last one to finish will update the
-        //internal cache and call 'updateFinished'
+        //Fire off our worker threads, the last one to finish will post process every
+        //harvest and call 'updateFinished'
         for (CSWCacheUpdateThread thread : updateThreads) {
             this.executor.execute(thread);
         }
@@ -238,6 +272,145 @@ public class CSWCacheService {
         return true;
     }
 
+    /**
+     * Runs the records harvested from every endpoint through the post processing pipeline
+     * (normalise -> link -> merge -> index) and publishes the result with a single call to updateFinished.
+     *
+     * The normalise/link and index stages run on postProcessingPool (or a pool that only lives for the duration
+     * of this update if postProcessingPool is null). Merging is order dependent so it runs on
+     * the calling thread, visiting endpoints in the order they were configured and records in the order they
+     * were returned. The published caches are therefore the same regardless of the order in which endpoints
+     * (or pool tasks) complete.
+     *
+     * @param harvests The records from each endpoint (null elements for endpoints that failed)
+     */
+    private void postProcessHarvests(EndpointHarvest[] harvests) {
+        Map<String, Set<CSWRecord>> newKeywordCache = null;
+        List<CSWRecord> newRecordCache = null;
+        ForkJoinPool pool = postProcessingPool;
+        boolean ownsPool = pool == null;
+        try {
+            if (ownsPool) {
+                pool = new ForkJoinPool(Math.min(Runtime.getRuntime().availableProcessors(), MAX_POST_PROCESSING_THREADS));
+            }
+
+            //Shared by every record in the new cache (and discarded with the update)
+            CSWRecordInternPool internPool = new CSWRecordInternPool();
+            pool.invoke(new PrepareHarvestsTask(harvests, internPool));
+
+            List<CSWRecord> mergedRecords = mergeHarvests(harvests);
+
+            newKeywordCache = pool.invoke(new IndexTask(mergedRecords, 0, mergedRecords.size()));
+            newRecordCache = mergedRecords;
+        } catch (Exception ex) {
+            log.warn(String.format("Error post processing harvested records: %1$s", ex));
+            log.debug("Exception: ", ex);
+        } finally {
+            updateFinished(newKeywordCache, newRecordCache);
+            if (ownsPool && pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * The merge stage. Records containing a keyword prefixed with KEYWORD_MERGE_PREFIX will be merged into the first
+     * record (in endpoint order) containing the same keyword.
+     * @param harvests The (linked) records from each endpoint
+     * @return Every record that wasn't merged into another record
+     */
+    private static List<CSWRecord> mergeHarvests(EndpointHarvest[] harvests) {
+        List<CSWRecord> records = new ArrayList<CSWRecord>();
+        Map<String, CSWRecord> associations = new HashMap<String, CSWRecord>();
+        for (EndpointHarvest harvest : harvests) {
+            if (harvest == null) {
+                continue;
+            }
+
+            //Placeholder records for non cached endpoints are never merged (or indexed)
+            if (harvest.noCache) {
+                records.addAll(harvest.records);
+                continue;
+            }
+
+            for (CSWRecord record : harvest.records) {
+                boolean recordMerged = false;
+
+                //Firstly we may possibly merge this
+                //record into an existing record IF particular keywords
+                //are present. In this case, record will be discarded (its contents
+                //already found their way into an existing record)
+                for (String keyword : record.getDescriptiveKeywords()) {
+                    if (keyword == null || !keyword.startsWith(KEYWORD_MERGE_PREFIX)) {
+                        continue;
+                    }
+
+                    CSWRecord existing = associations.get(keyword);
+                    if (existing != null) {
+                        mergeRecords(existing, record);
+                        addAssociations(associations, record, existing);
+                        recordMerged = true;
+                    }
+                }
+
+                //If the record was NOT merged into an existing record it will be cached
+                if (!recordMerged) {
+                    addAssociations(associations, record, record);
+                    records.add(record);
+                }
+            }
+        }
+
+        return records;
+    }
+
+    /**
+     * Records destination as the merge target of every association keyword in source (that doesn't already have a target)
+     */
+    private static void addAssociations(Map<String, CSWRecord> associations, CSWRecord source, CSWRecord destination) {
+        for (String keyword : source.getDescriptiveKeywords()) {
+            if (keyword != null && keyword.startsWith(KEYWORD_MERGE_PREFIX) && !associations.containsKey(keyword)) {
+                associations.put(keyword, destination);
+            }
+        }
+    }
+
+    /**
+     * Merges the contents of source into destination
+     * @param destination Will received source's contents
+     * @param source Will have it's contents merged into destination
+     */
+    private static void mergeRecords(CSWRecord destination, CSWRecord source) {
+        //Merge onlineresources
+        AbstractCSWOnlineResource[] merged = (AbstractCSWOnlineResource[]) ArrayUtils.addAll(destination.getOnlineResources(), source.getOnlineResources());
+        destination.setOnlineResources(merged);
+
+        //Merge keywords (get rid of duplicates)
+        Set<String> keywordSet = new LinkedHashSet<String>();
+        keywordSet.addAll(Arrays.asList(destination.getDescriptiveKeywords()));
+        keywordSet.addAll(Arrays.asList(source.getDescriptiveKeywords()));
+        destination.setDescriptiveKeywords(keywordSet.toArray(new String[keywordSet.size()]));
+    }
+
+    /**
+     * adds record to keyword cache if it DNE
+     * @param keyword
+     * @param record
+     */
+    private static void addToKeywordCache(String keyword, CSWRecord record, Map<String, Set<CSWRecord>> keywordCache) {
+        if (keyword == null || keyword.isEmpty()) {
+            return;
+        }
+
+        Set<CSWRecord> existingRecsWithKeyword = keywordCache.get(keyword);
+        if (existingRecsWithKeyword == null) {
+            existingRecsWithKeyword = new LinkedHashSet<CSWRecord>();
+            keywordCache.put(keyword, existingRecsWithKeyword);
+        }
+
+        existingRecsWithKeyword.add(record);
+    }
+
     /**
      * Returns on WMS data records
      * @return
@@ -288,7 +461,167 @@ public class CSWCacheService {
     }
 
     /**
-     * Our worker class for updating our CSW cache
+     * The records harvested from a single endpoint. Only ever accessed by one thread at a time.
+     */
+    private static class EndpointHarvest {
+        private final List<CSWRecord> records;
+        private final boolean noCache;
+
+        public EndpointHarvest(List<CSWRecord> records, boolean noCache) {
+            this.records = records;
+            this.noCache = noCache;
+        }
+    }
+
+    /**
+     * The normalise and link stages. Each endpoint's records are interned and then have their
+     * parent/children relationships resolved in a separate task.
+     */
+    private static class PrepareHarvestsTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final EndpointHarvest[] harvests;
+        private final CSWRecordInternPool internPool;
+
+        public PrepareHarvestsTask(EndpointHarvest[] harvests, CSWRecordInternPool internPool) {
+            this.harvests = harvests;
+            this.internPool = internPool;
+        }
+
+        @Override
+        protected void compute() {
+            List<LinkTask> tasks = new ArrayList<LinkTask>();
+            for (EndpointHarvest harvest : harvests) {
+                if (harvest != null && !harvest.noCache) {
+                    tasks.add(new LinkTask(harvest, internPool));
+                }
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    /**
+     * Normalises (interns) the records from a single endpoint before resolving their parent/children relationships.
+     * Children will NOT be removed from the harvest.
+     */
+    private static class LinkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Log log = LogFactory.getLog(getClass());
+        private final EndpointHarvest harvest;
+        private final CSWRecordInternPool internPool;
+
+        public LinkTask(EndpointHarvest harvest, CSWRecordInternPool internPool) {
+            this.harvest = harvest;
+            this.internPool = internPool;
+        }
+
+        @Override
+        protected void compute() {
+            new NormaliseTask(harvest.records, 0, harvest.records.size(), internPool).invoke();
+
+            Map<String, CSWRecord> recordsById = new HashMap<String, CSWRecord>();
+            for (CSWRecord record : harvest.records) {
+                recordsById.put(record.getFileIdentifier(), record);
+            }
+
+            for (CSWRecord record : harvest.records) {
+                String parentId = record.getParentIdentifier();
+                if (parentId != null && !parentId.isEmpty()) {
+                    CSWRecord parent = recordsById.get(parentId);
+                    if (parent == null) {
+                        log.debug(String.format("Record '%1$s' is an orphan referencing non existent parent '%2$s'", record.getFileIdentifier(), parentId));
+                    } else {
+                        parent.addChildRecord(record);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Interns records[from, to) (splitting large ranges into separate tasks)
+     */
+    private static class NormaliseTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<CSWRecord> records;
+        private final int from;
+        private final int to;
+        private final CSWRecordInternPool internPool;
+
+        public NormaliseTask(List<CSWRecord> records, int from, int to, CSWRecordInternPool internPool) {
+            this.records = records;
+            this.from = from;
+            this.to = to;
+            this.internPool = internPool;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= POST_PROCESSING_BATCH_SIZE) {
+                for (int i = from; i < to; i++) {
+                    internPool.intern(records.get(i));
+                }
+                return;
+            }
+
+            int mid = (from + to) >>> 1;
+            invokeAll(new NormaliseTask(records, from, mid, internPool), new NormaliseTask(records, mid, to, internPool));
+        }
+    }
+
+    /**
+     * The index stage. Builds a keyword cache for records[from, to) by splitting large ranges into separate tasks
+     * and combining their results in record order.
+     */
+    private static class IndexTask extends RecursiveTask<Map<String, Set<CSWRecord>>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<CSWRecord> records;
+        private final int from;
+        private final int to;
+
+        public IndexTask(List<CSWRecord> records, int from, int to) {
+            this.records = records;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Map<String, Set<CSWRecord>> compute() {
+            if (to - from <= POST_PROCESSING_BATCH_SIZE) {
+                Map<String, Set<CSWRecord>> keywordCache = new LinkedHashMap<String, Set<CSWRecord>>();
+                for (int i = from; i < to; i++) {
+                    CSWRecord record = records.get(i);
+                    if (record.getNoCache()) {
+                        continue;
+                    }
+                    for (String keyword : record.getDescriptiveKeywords()) {
+                        addToKeywordCache(keyword, record, keywordCache);
+                    }
+                }
+                return keywordCache;
+            }
+
+            int mid = (from + to) >>> 1;
+            IndexTask right = new IndexTask(records, mid, to);
+            right.fork();
+            Map<String, Set<CSWRecord>> keywordCache = new IndexTask(records, from, mid).compute();
+            for (Map.Entry<String, Set<CSWRecord>> entry : right.join().entrySet()) {
+                Set<CSWRecord> existing = keywordCache.get(entry.getKey());
+                if (existing == null) {
+                    keywordCache.put(entry.getKey(), entry.getValue());
+                } else {
+                    existing.addAll(entry.getValue());
+                }
+            }
+            return keywordCache;
+        }
+    }
+
+    /**
+     * Our worker class for harvesting the records from a single CSW endpoint
      */
     private class CSWCacheUpdateThread extends Thread {
         private final Log log = LogFactory.getLog(getClass());
@@ -296,23 +629,24 @@ public class CSWCacheService {
         private CSWCacheService parent;
         private CSWCacheUpdateThread[] siblings; //this is also used as a shared locking object
         private CSWServiceItem endpoint;
-        private Map<String, Set<CSWRecord>> newKeywordCache;
-        private List<CSWRecord> newRecordCache;
+        private EndpointHarvest[] harvests;
+        private int harvestIndex;
         private boolean finishedExecution;
         private CSWService cswService;
 
         public CSWCacheUpdateThread(CSWCacheService parent,
                 CSWCacheUpdateThread[] siblings, CSWServiceItem endpoint,
-                Map<String, Set<CSWRecord>> newKeywordCache, List<CSWRecord> newRecordCache, HttpServiceCaller serviceCaller) {
+                EndpointHarvest[] harvests, int harvestIndex, HttpServiceCaller serviceCaller) {
             super();
             this.parent = parent;
             this.siblings = siblings;
             this.endpoint = endpoint;
-            this.newKeywordCache = newKeywordCache;
-            this.newRecordCache = newRecordCache;
+            this.harvests = harvests;
+            this.harvestIndex = harvestIndex;
             this.finishedExecution = false;
 
             this.cswService = new CSWService(this.endpoint, serviceCaller, this.parent.forceGetMethods, this.parent.transformerFactory);
+            this.cswService.setRequestPriority(RequestPriority.BACKGROUND);
         }
 
         /**
@@ -336,111 +670,73 @@ public class CSWCacheService {
         }
 
         /**
-         * When our threads finish they check whether sibling threads have finished yet
-         * The last thread to finish has to update the parent
+         * When our threads finish they store their harvest and check whether sibling threads have finished yet
+         * The last thread to finish has to post process every harvest and update the parent
          * To avoid race conditions we ensure that checking the termination condition
          * is a synchronized operation
          *
          * This function is synchronized on the siblings object
+         * @param harvest The records harvested by this thread (or null if the harvest failed)
          */
-        private void attemptCleanup() {
+        private void attemptCleanup(EndpointHarvest harvest) {
+            boolean cleanupRequired = true;
             synchronized(siblings) {
+                harvests[harvestIndex] = harvest;
                 this.setFinishedExecution(true);
 
                 //This is all synchronized so nothing can finish execution until we release
                 //the lock on siblings
-                boolean cleanupRequired = true;
                 for (CSWCacheUpdateThread sibling : siblings) {
                     if (!sibling.isFinishedExecution()) {
                         cleanupRequired = false;
                         break;
                     }
                 }
-
-                //Last thread to finish tells our parent we've terminated
-                if (cleanupRequired) {
-                    parent.updateFinished(newKeywordCache, newRecordCache);
-                }
             }
-        }
-
-        /**
-         * adds record to keyword cache if it DNE
-         * @param keyword
-         * @param record
-         */
-        private void addToKeywordCache(String keyword, CSWRecord record, Map<String, Set<CSWRecord>> keywordCache) {
-            if (keyword == null || keyword.isEmpty()) {
-                return;
-            }
-
-            Set<CSWRecord> existingRecsWithKeyword = keywordCache.get(keyword);
-            if (existingRecsWithKeyword == null) {
-                existingRecsWithKeyword = new HashSet<CSWRecord>();
-                keywordCache.put(keyword, existingRecsWithKeyword);
-            }
-
-            existingRecsWithKeyword.add(record);
-        }
 
-        /**
-         * Merges the contents of source into destination
-         * @param destination Will received source's contents
-         * @param source Will have it's contents merged into destination
-         * @param keywordCache will be updated with destination referenced by source's keywords
-         */
-        private void mergeRecords(CSWRecord destination, CSWRecord source, Map<String, Set<CSWRecord>> keywordCache) {
-            //Merge onlineresources
-            AbstractCSWOnlineResource[] merged = (AbstractCSWOnlineResource[]) ArrayUtils.addAll(destination.getOnlineResources(), source.getOnlineResources());
-            destination.setOnlineResources(merged);
-
-            //Merge keywords (get rid of duplicates)
-            Set<String> keywordSet = new HashSet<String>();
-            keywordSet.addAll(Arrays.asList(destination.getDescriptiveKeywords()));
-            keywordSet.addAll(Arrays.asList(source.getDescriptiveKeywords()));
-            destination.setDescriptiveKeywords(keywordSet.toArray(new String[keywordSet.size()]));
-
-            for (String sourceKeyword : source.getDescriptiveKeywords()) {
-                addToKeywordCache(sourceKeyword, destination, keywordCache);
+            //Last thread to finish tells our parent we've terminated. Every sibling has
+            //stored its harvest so nothing else will be touching harvests
+            if (cleanupRequired) {
+                parent.postProcessHarvests(harvests);
             }
         }
 
         @Override
         public void run() {
+            EndpointHarvest harvest = null;
             try {
                 String cswServiceUrl = this.endpoint.getServiceUrl();
 
                 if (this.endpoint.getNoCache()) {
                     // Create the dummy CSWResource - to avoid confusion: this is a CSW End point, NOT a CSW record.
                     // If we're not caching the responses we need to add this endpoint as a fake CSW record so that we can query it later:
-                    synchronized(newRecordCache) {
-                        CSWRecord record = new CSWRecord(this.endpoint.getId());
-                        record.setNoCache(true);
-                        record.setServiceName(this.endpoint.getTitle());
+                    CSWRecord record = new CSWRecord(this.endpoint.getId());
+                    record.setNoCache(true);
+                    record.setServiceName(this.endpoint.getTitle());
 
-                        record.setRecordInfoUrl(this.endpoint.getRecordInformationUrl());
+                    record.setRecordInfoUrl(this.endpoint.getRecordInformationUrl());
 
-                        CSWOnlineResourceImpl cswResource = new CSWOnlineResourceImpl(
-                              new URL(cswServiceUrl),
-                              OnlineResourceType.CSWService.toString(), // Set the protocol to CSWService.
-                              this.endpoint.getTitle(),
-                                "A link to a CSW end point.");
+                    CSWOnlineResourceImpl cswResource = new CSWOnlineResourceImpl(
+                          new URL(cswServiceUrl),
+                          OnlineResourceType.CSWService.toString(), // Set the protocol to CSWService.
+                          this.endpoint.getTitle(),
+                            "A link to a CSW end point.");
 
-                        record.setConstraints(this.endpoint.getDefaultConstraints());
+                    record.setConstraints(this.endpoint.getDefaultConstraints());
 
-                        // Add the DefaultAnyTextFilter to the record so that we can use it in conjunction
-                        // with whatever the user enters in the filter form.
-                        record.setDescriptiveKeywords(new String[] { this.endpoint.getDefaultAnyTextFilter() });
+                    // Add the DefaultAnyTextFilter to the record so that we can use it in conjunction
+                    // with whatever the user enters in the filter form.
+                    record.setDescriptiveKeywords(new String[] { this.endpoint.getDefaultAnyTextFilter() });
 
-                        record.setOnlineResources(new AbstractCSWOnlineResource[] { cswResource });
-                        newRecordCache.add(record);
-                    }
+                    record.setOnlineResources(new AbstractCSWOnlineResource[] { cswResource });
+                    harvest = new EndpointHarvest(Arrays.asList(record), true);
                 }
                 else {
                     int startPosition = 1;
 
                     // Request page after page of CSWRecords until we've iterated the entire store
-                    HashMap<String, CSWRecord> cswRecordMap = new HashMap<String, CSWRecord>();
+                    // (keeping them in the order they were returned)
+                    Map<String, CSWRecord> cswRecordMap = new LinkedHashMap<String, CSWRecord>();
                     do {
                         CSWGetRecordResponse response = this.cswService.queryCSWEndpoint(startPosition, MAX_QUERY_LENGTH);
                         for (CSWRecord rec : response.getRecords()) {
@@ -457,71 +753,14 @@ public class CSWCacheService {
                             startPosition = response.getNextRecord();
                         }
                     } while (startPosition > 0);
-                    
-                    
-                    //Iterate the cswRecordMap resolving parent/children relationships
-                    //children will NOT be removed from the map
-                    for (Iterator<String> i = cswRecordMap.keySet().iterator(); i.hasNext();) {
-                        CSWRecord next = cswRecordMap.get(i.next());
-                        
-                        String parentId = next.getParentIdentifier();
-                        if (parentId != null && !parentId.isEmpty()) {
-                            CSWRecord parent = cswRecordMap.get(parentId);
-                            if (parent == null) {
-                                log.debug(String.format("Record '%1$s' is an orphan referencing non existent parent '%2$s'", next.getFileIdentifier(), parentId));
-                            } else {
-                                parent.addChildRecord(next);
-                            }
-                        }
-                    }
-                    
-                    //After parent/children have been linked, begin the keyword merging and extraction
-                    synchronized(newKeywordCache) {
-                        synchronized(newRecordCache) {
-                            for (CSWRecord record : cswRecordMap.values()) {
-                                boolean recordMerged = false;
-
-                                //Firstly we may possibly merge this
-                                //record into an existing record IF particular keywords
-                                //are present. In this case, record will be discarded (its contents
-                                //already found their way into an existing record)
-                                //Hence we need to perform this step first
-                                for (String keyword : record.getDescriptiveKeywords()) {
-                                    if (keyword == null || keyword.isEmpty()) {
-                                        continue;
-                                    }
-
-                                    //If we have an 'association keyword', look for existing records
-                                    //to merge this record's contents in to.
-                                    if (keyword.startsWith(KEYWORD_MERGE_PREFIX)) {
-                                        Set<CSWRecord> existingRecs = newKeywordCache.get(keyword);
-                                        if (existingRecs != null && !existingRecs.isEmpty()) {
-                                            mergeRecords(existingRecs.iterator().next(), record, newKeywordCache);
-                                            recordMerged = true;
-                                        }
-                                    }
-                                }
-
-                                //If the record was NOT merged into an existing record we then update the record cache
-                                if (!recordMerged) {
-                                    //Update the keyword cache
-                                    for (String keyword : record.getDescriptiveKeywords()) {
-                                        addToKeywordCache(keyword, record, newKeywordCache);
-                                    }
-
-                                    //Add record to record list
-                                    newRecordCache.add(record);
-                                }
-                            }
-                        }
-                    }
-                    
+
+                    harvest = new EndpointHarvest(new ArrayList<CSWRecord>(cswRecordMap.values()), false);
                 }
             } catch (Exception ex) {
                 log.warn(String.format("Error updating keyword cache for '%1$s': %2$s",this.endpoint.getServiceUrl(), ex));
                 log.warn("Exception: ", ex);
             } finally {
-                attemptCleanup();
+                attemptCleanup(harvest);
             }
         }
     }
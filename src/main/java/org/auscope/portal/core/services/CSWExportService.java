@@ -0,0 +1,474 @@
+package org.auscope.portal.core.services;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.auscope.portal.core.services.namespaces.CSWNamespaceContext;
+import org.auscope.portal.core.services.responses.csw.AbstractCSWOnlineResource;
+import org.auscope.portal.core.services.responses.csw.CSWGeographicBoundingBox;
+import org.auscope.portal.core.services.responses.csw.CSWGeographicElement;
+import org.auscope.portal.core.services.responses.csw.CSWRecord;
+import org.auscope.portal.core.services.responses.csw.StreamingCSWRecordWriter;
+
+/**
+ * A service for exporting the entire contents (or a filtered subset) of a CSWCacheService as a single gzip
+ * compressed stream.
+ *
+ * Records are written one at a time straight to the output so memory use does not grow with the size of the cache.
+ * Every export iterates a single snapshot of the record cache (the list published by the last completed harvest) so
+ * a harvest finishing part way through an export will not affect it.
+ */
+public class CSWExportService {
+
+    /**
+     * The formats that the record cache can be exported in
+     */
+    public enum ExportFormat {
+        /** A csw:GetRecordsResponse containing a gmd:MD_Metadata element for every record*/
+        ISO19139("application/xml", "xml"),
+        /** A JSON object (on its own line) for every record*/
+        NDJSON("application/x-ndjson", "ndjson"),
+        /** A header row followed by the core fields of every record*/
+        CSV("text/csv", "csv");
+
+        private String contentType;
+        private String extension;
+
+        private ExportFormat(String contentType, String extension) {
+            this.contentType = contentType;
+            this.extension = extension;
+        }
+
+        /**
+         * The content type of the (uncompressed) export
+         * @return
+         */
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * The file extension of the (uncompressed) export
+         * @return
+         */
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    /** The columns written by a CSV export*/
+    public static final String[] CSV_COLUMNS = new String[] {"fileIdentifier", "parentIdentifier", "title", "abstract",
+        "resourceProvider", "date", "keywords", "westBoundLongitude", "eastBoundLongitude", "southBoundLatitude",
+        "northBoundLatitude", "onlineResources", "recordInfoUrl"};
+
+    private static final XMLOutputFactory XML_OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+    private static final String DATEFORMATSTRING = "yyyy-MM-dd'T'HH:mm:ss";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private CSWCacheService cswCacheService;
+    private StreamingCSWRecordWriter recordWriter = new StreamingCSWRecordWriter();
+
+    /**
+     * Creates a new instance
+     * @param cswCacheService The cache whose records will be exported
+     */
+    public CSWExportService(CSWCacheService cswCacheService) {
+        this.cswCacheService = cswCacheService;
+    }
+
+    /**
+     * Gets a file name suitable for the (gzip compressed) output of an export in format
+     * @param format
+     * @return
+     */
+    public String getFileName(ExportFormat format) {
+        return String.format("cswRecords.%1$s.gz", format.getExtension());
+    }
+
+    /**
+     * Returns true if record should be included in an export filtered by keywords and bbox
+     * @param record The record to test
+     * @param keywords [Optional] record must contain every one of these keywords
+     * @param bbox [Optional] one of record's geographic elements must intersect this bounding box
+     * @return
+     */
+    protected boolean matches(CSWRecord record, String[] keywords, CSWGeographicBoundingBox bbox) {
+        //Records for non cached endpoints are placeholders rather than harvested records
+        if (record.getNoCache()) {
+            return false;
+        }
+
+        if (keywords != null) {
+            for (String keyword : keywords) {
+                if (keyword != null && !keyword.isEmpty() && !record.containsKeyword(keyword)) {
+                    return false;
+                }
+            }
+        }
+
+        if (bbox != null) {
+            CSWGeographicElement[] elements = record.getCSWGeographicElements();
+            if (elements == null) {
+                return false;
+            }
+            for (CSWGeographicElement element : elements) {
+                if (bbox.intersects(element.getWestBoundLongitude(), element.getEastBoundLongitude(),
+                        element.getSouthBoundLatitude(), element.getNorthBoundLatitude())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Writes every record in the cache that matches keywords and bbox to out as a gzip compressed stream of format.
+     *
+     * @param format The format to write
+     * @param keywords [Optional] Only records containing every one of these keywords will be exported
+     * @param bbox [Optional] Only records with a geographic element intersecting this bounding box will be exported
+     * @param out Receives the gzip compressed export. It will be finished but NOT closed.
+     * @return The number of records written
+     * @throws PortalServiceException If the export can't be written to out
+     */
+    public int export(ExportFormat format, String[] keywords, CSWGeographicBoundingBox bbox, OutputStream out) throws PortalServiceException {
+        List<CSWRecord> snapshot = cswCacheService.getRecordCache();
+
+        try {
+            GZIPOutputStream gzip = new GZIPOutputStream(out, BUFFER_SIZE);
+            int count;
+            switch (format) {
+            case ISO19139:
+                count = writeIso19139(snapshot, keywords, bbox, gzip);
+                break;
+            case NDJSON:
+                count = writeNdjson(snapshot, keywords, bbox, gzip);
+                break;
+            default:
+                count = writeCsv(snapshot, keywords, bbox, gzip);
+                break;
+            }
+            gzip.finish();
+            out.flush();
+
+            log.debug(String.format("Exported %1$d of %2$d records as %3$s", count, snapshot.size(), format));
+            return count;
+        } catch (IOException ex) {
+            throw new PortalServiceException("Unable to write the CSW record export", ex);
+        } catch (XMLStreamException ex) {
+            throw new PortalServiceException("Unable to write the CSW record export", ex);
+        }
+    }
+
+    private static Writer createWriter(OutputStream out) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), BUFFER_SIZE);
+    }
+
+    /**
+     * Writes a csw:GetRecordsResponse (which can be read by CSWGetRecordResponse) wrapping every matching record
+     */
+    private int writeIso19139(List<CSWRecord> records, String[] keywords, CSWGeographicBoundingBox bbox, OutputStream out) throws XMLStreamException {
+        CSWNamespaceContext nc = new CSWNamespaceContext();
+        XMLStreamWriter writer = XML_OUTPUT_FACTORY.createXMLStreamWriter(out, "UTF-8");
+        int count = 0;
+        try {
+            writer.writeStartDocument("UTF-8", "1.0");
+            writer.writeStartElement("csw", "GetRecordsResponse", nc.getNamespaceURI("csw"));
+            writer.writeNamespace("csw", nc.getNamespaceURI("csw"));
+            writer.writeStartElement("csw", "SearchResults", nc.getNamespaceURI("csw"));
+            for (CSWRecord record : records) {
+                if (matches(record, keywords, bbox)) {
+                    recordWriter.write(record, writer);
+                    count++;
+                }
+            }
+            writer.writeEndElement();
+            writer.writeEndElement();
+            writer.writeEndDocument();
+        } finally {
+            writer.close();
+        }
+        return count;
+    }
+
+    /**
+     * Appends value to sb as a JSON string literal.
+     *
+     * json-lib is deliberately avoided here as it interprets some strings (eg "null", "[1,2]" or "function(...")
+     * as something other than a string.
+     */
+    private static void appendJSONString(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '"':
+                sb.append("\\\"");
+                break;
+            case '\\':
+                sb.append("\\\\");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\r':
+                sb.append("\\r");
+                break;
+            case '\t':
+                sb.append("\\t");
+                break;
+            default:
+                //Other control characters (and the JS line separators) are written as unicode escapes
+                if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                    sb.append(String.format("\\u%04x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     * Appends the key of a new member to a JSON object (or the separator for a new array element if key is null)
+     */
+    private static void appendKey(StringBuilder sb, String key) {
+        char last = sb.charAt(sb.length() - 1);
+        if (last != '{' && last != '[') {
+            sb.append(',');
+        }
+        if (key != null) {
+            appendJSONString(sb, key);
+            sb.append(':');
+        }
+    }
+
+    private static void appendIfNotNull(StringBuilder sb, String key, String value) {
+        if (value != null) {
+            appendKey(sb, key);
+            appendJSONString(sb, value);
+        }
+    }
+
+    private static void appendNumber(StringBuilder sb, String key, double value) {
+        appendKey(sb, key);
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            sb.append("null");
+        } else {
+            sb.append(value);
+        }
+    }
+
+    private static void appendStringArray(StringBuilder sb, String key, String[] values) {
+        appendKey(sb, key);
+        sb.append('[');
+        if (values != null) {
+            for (String value : values) {
+                if (value != null) {
+                    appendKey(sb, null);
+                    appendJSONString(sb, value);
+                }
+            }
+        }
+        sb.append(']');
+    }
+
+    /**
+     * Converts record into the JSON object written on each line of an NDJSON export
+     * @param record
+     * @param dateFormat
+     * @return
+     */
+    protected String toJSON(CSWRecord record, SimpleDateFormat dateFormat) {
+        StringBuilder sb = new StringBuilder("{");
+        appendIfNotNull(sb, "fileIdentifier", record.getFileIdentifier());
+        appendIfNotNull(sb, "parentIdentifier", record.getParentIdentifier());
+        appendIfNotNull(sb, "title", record.getServiceName());
+        appendIfNotNull(sb, "abstract", record.getDataIdentificationAbstract());
+        appendIfNotNull(sb, "resourceProvider", record.getResourceProvider());
+        appendIfNotNull(sb, "recordInfoUrl", record.getRecordInfoUrl());
+        if (record.getDate() != null) {
+            appendIfNotNull(sb, "date", dateFormat.format(record.getDate()));
+        }
+
+        appendStringArray(sb, "keywords", record.getDescriptiveKeywords());
+        appendStringArray(sb, "constraints", record.getConstraints());
+
+        appendKey(sb, "geographicElements");
+        sb.append('[');
+        if (record.getCSWGeographicElements() != null) {
+            for (CSWGeographicElement element : record.getCSWGeographicElements()) {
+                appendKey(sb, null);
+                sb.append('{');
+                appendNumber(sb, "westBoundLongitude", element.getWestBoundLongitude());
+                appendNumber(sb, "eastBoundLongitude", element.getEastBoundLongitude());
+                appendNumber(sb, "southBoundLatitude", element.getSouthBoundLatitude());
+                appendNumber(sb, "northBoundLatitude", element.getNorthBoundLatitude());
+                sb.append('}');
+            }
+        }
+        sb.append(']');
+
+        appendKey(sb, "onlineResources");
+        sb.append('[');
+        if (record.getOnlineResources() != null) {
+            for (AbstractCSWOnlineResource resource : record.getOnlineResources()) {
+                appendKey(sb, null);
+                sb.append('{');
+                appendIfNotNull(sb, "url", resource.getLinkage() == null ? null : resource.getLinkage().toString());
+                appendIfNotNull(sb, "protocol", resource.getProtocol());
+                appendIfNotNull(sb, "name", resource.getName());
+                appendIfNotNull(sb, "description", resource.getDescription());
+                sb.append('}');
+            }
+        }
+        sb.append(']');
+
+        sb.append('}');
+        return sb.toString();
+    }
+
+    /**
+     * Writes a JSON object (followed by a newline) for every matching record
+     */
+    private int writeNdjson(List<CSWRecord> records, String[] keywords, CSWGeographicBoundingBox bbox, OutputStream out) throws IOException {
+        SimpleDateFormat dateFormat = new SimpleDateFormat(DATEFORMATSTRING);
+        Writer writer = createWriter(out);
+        int count = 0;
+        for (CSWRecord record : records) {
+            if (matches(record, keywords, bbox)) {
+                writer.write(toJSON(record, dateFormat));
+                writer.write('\n');
+                count++;
+            }
+        }
+        writer.flush();
+        return count;
+    }
+
+    /**
+     * Quotes value as a CSV (RFC 4180) field
+     */
+    private static void writeCsvField(Writer writer, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        if (value.indexOf('"') < 0 && value.indexOf(',') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+
+    /**
+     * Joins values with ';'. Any '\' or ';' within a value is escaped with a '\' so the values can be recovered.
+     */
+    private static String join(String[] values) {
+        StringBuilder sb = new StringBuilder();
+        if (values != null) {
+            for (String value : values) {
+                if (value == null || value.isEmpty()) {
+                    continue;
+                }
+                if (sb.length() > 0) {
+                    sb.append(';');
+                }
+                sb.append(value.replace("\\", "\\\\").replace(";", "\\;"));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void writeCsvRow(Writer writer, String[] values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writeCsvField(writer, values[i]);
+        }
+        writer.write("\r\n");
+    }
+
+    /**
+     * Converts record into a row of CSV_COLUMNS. Multiple values are separated by ';' (with any ';' or '\' in a
+     * value escaped by a preceding '\') and the extent is the union of all of record's geographic elements.
+     * @param record
+     * @param dateFormat
+     * @return
+     */
+    protected String[] toCsvRow(CSWRecord record, SimpleDateFormat dateFormat) {
+        String[] extent = new String[4];
+        CSWGeographicElement[] elements = record.getCSWGeographicElements();
+        if (elements != null && elements.length > 0) {
+            double west = elements[0].getWestBoundLongitude();
+            double east = elements[0].getEastBoundLongitude();
+            double south = elements[0].getSouthBoundLatitude();
+            double north = elements[0].getNorthBoundLatitude();
+            for (int i = 1; i < elements.length; i++) {
+                west = Math.min(west, elements[i].getWestBoundLongitude());
+                east = Math.max(east, elements[i].getEastBoundLongitude());
+                south = Math.min(south, elements[i].getSouthBoundLatitude());
+                north = Math.max(north, elements[i].getNorthBoundLatitude());
+            }
+            extent = new String[] {Double.toString(west), Double.toString(east), Double.toString(south), Double.toString(north)};
+        }
+
+        AbstractCSWOnlineResource[] resources = record.getOnlineResources();
+        String[] urls = new String[resources == null ? 0 : resources.length];
+        for (int i = 0; i < urls.length; i++) {
+            urls[i] = resources[i].getLinkage() == null ? null : resources[i].getLinkage().toString();
+        }
+
+        return new String[] {
+            record.getFileIdentifier(),
+            record.getParentIdentifier(),
+            record.getServiceName(),
+            record.getDataIdentificationAbstract(),
+            record.getResourceProvider(),
+            record.getDate() == null ? null : dateFormat.format(record.getDate()),
+            join(record.getDescriptiveKeywords()),
+            extent[0],
+            extent[1],
+            extent[2],
+            extent[3],
+            join(urls),
+            record.getRecordInfoUrl()
+        };
+    }
+
+    /**
+     * Writes a header row followed by a row of CSV_COLUMNS for every matching record
+     */
+    private int writeCsv(List<CSWRecord> records, String[] keywords, CSWGeographicBoundingBox bbox, OutputStream out) throws IOException {
+        SimpleDateFormat dateFormat = new SimpleDateFormat(DATEFORMATSTRING);
+        Writer writer = createWriter(out);
+        writeCsvRow(writer, CSV_COLUMNS);
+        int count = 0;
+        for (CSWRecord record : records) {
+            if (matches(record, keywords, bbox)) {
+                writeCsvRow(writer, toCsvRow(record, dateFormat));
+                count++;
+            }
+        }
+        writer.flush();
+        return count;
+    }
+}
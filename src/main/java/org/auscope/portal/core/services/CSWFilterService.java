@@ -1,5 +1,6 @@
 package org.auscope.portal.core.services;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
@@ -94,7 +95,12 @@ public class CSWFilterService {
 
         try {
             method = methodMaker.makeMethod(serviceItem.getServiceUrl(), filter, resultType, maxRecords, startIndex,null);
-            InputStream responseStream = serviceCaller.getMethodResponseAsStream(method);
+            InputStream responseStream = null;
+            if (serviceItem.getMirrorUrls() != null && serviceItem.getMirrorUrls().length > 0) {
+                responseStream = serviceCaller.getMethodResponseAsHttpResponse(method, CSWService.makeMirrorMethods(method, serviceItem.getServiceUrl(), serviceItem.getMirrorUrls())).getEntity().getContent();
+            } else {
+                responseStream = serviceCaller.getMethodResponseAsStream(method);
+            }
             Document responseDoc = DOMUtil.buildDomFromStream(responseStream);
 
             return new CSWGetRecordResponse(serviceItem, responseDoc, transformerFactory);
@@ -117,6 +123,7 @@ public class CSWFilterService {
      */
     private DistributedHTTPServiceCaller callAllServices(CSWGetDataRecordsFilter filter, int maxRecords, int startIndex, ResultType resultType) throws DistributedHTTPServiceCallerException {
         List<HttpRequestBase> requestMethods = new ArrayList<HttpRequestBase>();
+        List<HttpRequestBase[]> mirrorMethods = new ArrayList<HttpRequestBase[]>();
         List<Object> additionalInfo = new ArrayList<Object>();
 
         //Create various HTTP Methods for making each and every CSW request
@@ -124,14 +131,24 @@ public class CSWFilterService {
             try {
                 log.trace(String.format("serviceItem='%1$s' maxRecords=%2$s resultType='%3$s' filter='%4$s'", serviceItem, maxRecords, resultType, filter));
                 CSWMethodMakerGetDataRecords methodMaker = new CSWMethodMakerGetDataRecords();
-                requestMethods.add(methodMaker.makeMethod(serviceItem.getServiceUrl(), filter, resultType, maxRecords, startIndex,null));
+                HttpRequestBase method = methodMaker.makeMethod(serviceItem.getServiceUrl(), filter, resultType, maxRecords, startIndex,null);
+                requestMethods.add(method);
+                HttpRequestBase[] mirrors = null;
+                if (serviceItem.getMirrorUrls() != null && serviceItem.getMirrorUrls().length > 0) {
+                    try {
+                        mirrors = CSWService.makeMirrorMethods(method, serviceItem.getServiceUrl(), serviceItem.getMirrorUrls());
+                    } catch (IOException ex) {
+                        log.warn(String.format("Unable to copy the request for the mirrors of serviceItem '%1$s' - only the primary will be used", serviceItem), ex);
+                    }
+                }
+                mirrorMethods.add(mirrors);
                 additionalInfo.add(serviceItem);
             } catch (UnsupportedEncodingException ex) {
                 log.warn(String.format("Error generating HTTP method for serviceItem '%1$s'",serviceItem), ex);
             }
         }
 
-        DistributedHTTPServiceCaller dsc = new DistributedHTTPServiceCaller(requestMethods, additionalInfo, serviceCaller);
+        DistributedHTTPServiceCaller dsc = new DistributedHTTPServiceCaller(requestMethods, mirrorMethods, additionalInfo, serviceCaller);
         dsc.beginCallingServices(executor);
 
         return dsc;
@@ -1,10 +1,14 @@
 package org.auscope.portal.core.services;
 
+import java.io.IOException;
 import java.io.InputStream;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.auscope.portal.core.server.http.HedgedRequestExecutor;
 import org.auscope.portal.core.server.http.HttpServiceCaller;
+import org.auscope.portal.core.server.http.RequestPriority;
+import org.auscope.portal.core.server.http.RetryPolicy;
 import org.auscope.portal.core.services.csw.CSWServiceItem;
 import org.auscope.portal.core.services.methodmakers.CSWMethodMakerGetDataRecords;
 import org.auscope.portal.core.services.methodmakers.CSWMethodMakerGetDataRecords.ResultType;
@@ -30,6 +34,7 @@ public class CSWService {
     private HttpServiceCaller serviceCaller;
     private boolean forceGetMethods;
     private CSWRecordTransformerFactory transformerFactory;
+    private RequestPriority requestPriority = RequestPriority.INTERACTIVE;
     
     /**
      * Creates a new instance with a new CSWRecordTransformerFactory instance
@@ -56,6 +61,22 @@ public class CSWService {
         this.transformerFactory = transformerFactory;
     }
 
+    /**
+     * The priority that requests made by this service will be given when queued against a busy host
+     * @return
+     */
+    public RequestPriority getRequestPriority() {
+        return requestPriority;
+    }
+
+    /**
+     * The priority that requests made by this service will be given when queued against a busy host
+     * @param requestPriority
+     */
+    public void setRequestPriority(RequestPriority requestPriority) {
+        this.requestPriority = requestPriority;
+    }
+
     public CSWGetRecordResponse queryCSWEndpoint(int startPosition, int maxQueryLength) throws Exception {
         return this.queryCSWEndpoint(startPosition, maxQueryLength, null);
     }
@@ -75,13 +96,41 @@ public class CSWService {
             method = this.methodMaker.makeMethod(cswServiceUrl, filter, ResultType.Results, maxQueryLength, startPosition, this.endpoint.getCqlText());
         }
 
-        InputStream responseStream = this.serviceCaller.getMethodResponseAsStream(method);
+        //CSW queries are safe to repeat if they fail due to a transient error
+        RetryPolicy.enableRetries(method);
+        RequestPriority.setPriority(method, requestPriority);
+
+        InputStream responseStream = null;
+        String[] mirrorUrls = this.endpoint.getMirrorUrls();
+        if (mirrorUrls != null && mirrorUrls.length > 0) {
+            responseStream = this.serviceCaller.getMethodResponseAsHttpResponse(method, makeMirrorMethods(method, cswServiceUrl, mirrorUrls)).getEntity().getContent();
+        } else {
+            responseStream = this.serviceCaller.getMethodResponseAsStream(method);
+        }
 
         log.trace(String.format("%1$s - Response received", this.endpoint.getServiceUrl()));
 
+        // Exception reports are detected from the root element before anything is parsed
+        responseStream = OWSExceptionParser.checkForExceptionResponse(responseStream);
+
         // Parse the response into newCache (remember that maps are NOT thread safe)
         Document responseDocument = DOMUtil.buildDomFromStream(responseStream);
-        OWSExceptionParser.checkForExceptionResponse(responseDocument);
         return new CSWGetRecordResponse(this.endpoint, responseDocument, transformerFactory);
     }
-}
\ No newline at end of file
+
+    /**
+     * Generates copies of method directed at each of the specified mirrors of serviceUrl
+     * @param method The request to copy
+     * @param serviceUrl The service URL used to generate method
+     * @param mirrorUrls The mirrors of serviceUrl
+     * @return
+     * @throws IOException If method's request body cannot be copied
+     */
+    static HttpRequestBase[] makeMirrorMethods(HttpRequestBase method, String serviceUrl, String[] mirrorUrls) throws IOException {
+        HttpRequestBase[] mirrorMethods = new HttpRequestBase[mirrorUrls.length];
+        for (int i = 0; i < mirrorUrls.length; i++) {
+            mirrorMethods[i] = HedgedRequestExecutor.makeMirrorMethod(method, serviceUrl, mirrorUrls[i]);
+        }
+        return mirrorMethods;
+    }
+}
@@ -0,0 +1,331 @@
+package org.auscope.portal.core.services;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.auscope.portal.core.server.http.CachingDnsResolver;
+import org.auscope.portal.core.server.http.HttpServiceCaller;
+import org.auscope.portal.core.services.admin.AdminDiagnosticResponse;
+import org.auscope.portal.core.services.csw.CSWServiceItem;
+import org.auscope.portal.core.view.knownlayer.KnownLayer;
+import org.auscope.portal.core.view.knownlayer.KnownLayerSelector;
+import org.auscope.portal.core.view.knownlayer.WFSSelector;
+
+/**
+ * Optional service for removing cold start latency after a (re)deploy. When warmUp is called (eg as a
+ * spring init-method) every configured endpoint host will:
+ *
+ * 1) Be prefetched by the CachingDnsResolver (if one is configured here or via HttpServiceCaller.setDnsResolver)
+ * 2) Have connectionsPerHost keep-alive connections opened in the HttpServiceCaller's shared connection pool
+ *    (if one is configured via HttpServiceCaller.setConnectionManager)
+ *
+ * Hosts are warmed in parallel using executor, waiting no longer than maxWaitMs in total. The outcome is
+ * available via isReady and getReport.
+ */
+public class ConnectionWarmupService {
+    private final Log log = LogFactory.getLog(getClass());
+
+    private Executor executor;
+    private HttpServiceCaller serviceCaller;
+    private CachingDnsResolver dnsResolver;
+    private List<String> endpoints;
+    private int connectionsPerHost = 2;
+    private int timeoutMs = 10000;
+    private long keepAliveMs = 60000L;
+    private long maxWaitMs = 60000L;
+
+    private volatile boolean ready = false;
+    private volatile AdminDiagnosticResponse report = new AdminDiagnosticResponse();
+
+    /**
+     * Creates a new instance. This constructor is normally autowired by the spring framework.
+     *
+     * @param executor Used to warm hosts in parallel
+     * @param serviceCaller Its connection manager will receive the pre warmed connections
+     * @param cswServiceList Must be an untyped array of CSWServiceItem objects (for bean autowiring) representing CSW URL endpoints
+     * @param knownLayers Must be an untyped array of KnownLayer objects (for bean autowiring). Any known WFS endpoints will be warmed
+     */
+    public ConnectionWarmupService(Executor executor, HttpServiceCaller serviceCaller, ArrayList cswServiceList, ArrayList knownLayers) {
+        this.executor = executor;
+        this.serviceCaller = serviceCaller;
+        this.endpoints = new ArrayList<String>();
+
+        if (cswServiceList != null) {
+            for (Object obj : cswServiceList) {
+                CSWServiceItem item = (CSWServiceItem) obj;
+                endpoints.add(item.getServiceUrl());
+                if (item.getMirrorUrls() != null) {
+                    for (String mirror : item.getMirrorUrls()) {
+                        endpoints.add(mirror);
+                    }
+                }
+            }
+        }
+
+        if (knownLayers != null) {
+            for (Object obj : knownLayers) {
+                KnownLayerSelector selector = ((KnownLayer) obj).getKnownLayerSelector();
+                if (selector instanceof WFSSelector && ((WFSSelector) selector).getServiceEndpoints() != null) {
+                    for (String endpoint : ((WFSSelector) selector).getServiceEndpoints()) {
+                        endpoints.add(endpoint);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The resolver that will have every endpoint host prefetched into it. Defaults to the HttpServiceCaller's
+     * resolver if it is a CachingDnsResolver (can be null)
+     * @return
+     */
+    public CachingDnsResolver getDnsResolver() {
+        if (dnsResolver == null && serviceCaller.getDnsResolver() instanceof CachingDnsResolver) {
+            return (CachingDnsResolver) serviceCaller.getDnsResolver();
+        }
+        return dnsResolver;
+    }
+
+    /**
+     * The resolver that will have every endpoint host prefetched into it. Defaults to the HttpServiceCaller's
+     * resolver if it is a CachingDnsResolver (can be null)
+     * @param dnsResolver
+     */
+    public void setDnsResolver(CachingDnsResolver dnsResolver) {
+        this.dnsResolver = dnsResolver;
+    }
+
+    /**
+     * Any additional endpoints (eg WMS servers) to warm up
+     * @param additionalEndpoints
+     */
+    public void setAdditionalEndpoints(List<String> additionalEndpoints) {
+        this.endpoints.addAll(additionalEndpoints);
+    }
+
+    /**
+     * The number of keep-alive connections that will be opened to each host
+     * @return
+     */
+    public int getConnectionsPerHost() {
+        return connectionsPerHost;
+    }
+
+    /**
+     * The number of keep-alive connections that will be opened to each host
+     * @param connectionsPerHost
+     */
+    public void setConnectionsPerHost(int connectionsPerHost) {
+        this.connectionsPerHost = connectionsPerHost;
+    }
+
+    /**
+     * The connect timeout (in milli seconds) for each warmed connection
+     * @return
+     */
+    public int getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    /**
+     * The connect timeout (in milli seconds) for each warmed connection
+     * @param timeoutMs
+     */
+    public void setTimeoutMs(int timeoutMs) {
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * How long (in milli seconds) a warmed connection will be kept alive in the pool
+     * @return
+     */
+    public long getKeepAliveMs() {
+        return keepAliveMs;
+    }
+
+    /**
+     * How long (in milli seconds) a warmed connection will be kept alive in the pool
+     * @param keepAliveMs
+     */
+    public void setKeepAliveMs(long keepAliveMs) {
+        this.keepAliveMs = keepAliveMs;
+    }
+
+    /**
+     * The maximum time (in milli seconds) warmUp will wait for every host to be warmed
+     * @return
+     */
+    public long getMaxWaitMs() {
+        return maxWaitMs;
+    }
+
+    /**
+     * The maximum time (in milli seconds) warmUp will wait for every host to be warmed
+     * @param maxWaitMs
+     */
+    public void setMaxWaitMs(long maxWaitMs) {
+        this.maxWaitMs = maxWaitMs;
+    }
+
+    /**
+     * Returns true once warmUp has finished (regardless of whether every host warmed successfully)
+     * @return
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Gets the outcome of the most recent warmUp (will be empty if warmUp hasn't finished)
+     * @return
+     */
+    public AdminDiagnosticResponse getReport() {
+        return report;
+    }
+
+    /**
+     * Gets the unique hosts (keyed by scheme://host:port) of every configured endpoint
+     * @return
+     */
+    private Map<String, HttpHost> getUniqueHosts(AdminDiagnosticResponse response) {
+        Map<String, HttpHost> hosts = new LinkedHashMap<String, HttpHost>();
+        for (String endpoint : endpoints) {
+            try {
+                URI uri = new URI(endpoint);
+                if (uri.getHost() == null) {
+                    response.addWarning(String.format("Endpoint '%1$s' has no host and will be skipped", endpoint));
+                    continue;
+                }
+                String scheme = uri.getScheme() == null ? "http" : uri.getScheme().toLowerCase();
+                int port = uri.getPort() >= 0 ? uri.getPort() : ("https".equals(scheme) ? 443 : 80);
+                HttpHost host = new HttpHost(uri.getHost(), port, scheme);
+                hosts.put(host.toURI(), host);
+            } catch (Exception ex) {
+                response.addWarning(String.format("Endpoint '%1$s' is not a valid URI and will be skipped: %2$s", endpoint, ex));
+            }
+        }
+        return hosts;
+    }
+
+    /**
+     * Opens connectionsPerHost connections to host in manager (they will be released back into the pool)
+     * @return The number of connections opened
+     */
+    private int openConnections(ClientConnectionManager manager, HttpHost host) throws Exception {
+        HttpRoute route = new HttpRoute(host, null, "https".equals(host.getSchemeName()));
+        HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(params, timeoutMs);
+        HttpConnectionParams.setSoTimeout(params, timeoutMs);
+
+        //Hold every connection until they're all open - otherwise the pool will hand back the same connection
+        List<ManagedClientConnection> connections = new ArrayList<ManagedClientConnection>();
+        int opened = 0;
+        try {
+            for (int i = 0; i < connectionsPerHost; i++) {
+                ClientConnectionRequest request = manager.requestConnection(route, null);
+                ManagedClientConnection connection = request.getConnection(timeoutMs, TimeUnit.MILLISECONDS);
+                connections.add(connection);
+                if (!connection.isOpen()) {
+                    connection.open(route, new BasicHttpContext(), params);
+                    opened++;
+                }
+                connection.markReusable();
+            }
+        } finally {
+            for (ManagedClientConnection connection : connections) {
+                manager.releaseConnection(connection, keepAliveMs, TimeUnit.MILLISECONDS);
+            }
+        }
+        return opened;
+    }
+
+    /**
+     * Warms a single host, recording the outcome in response
+     */
+    private void warmHost(HttpHost host, AdminDiagnosticResponse response) {
+        CachingDnsResolver dnsResolver = getDnsResolver();
+        if (dnsResolver != null && !dnsResolver.prefetch(host.getHostName())) {
+            synchronized (response) {
+                response.addError(String.format("Unable to resolve '%1$s'", host.getHostName()));
+            }
+            return;
+        }
+
+        ClientConnectionManager manager = serviceCaller.getConnectionManager();
+        if (manager == null || connectionsPerHost <= 0) {
+            synchronized (response) {
+                response.addDetail(String.format("Resolved '%1$s'", host.getHostName()));
+            }
+            return;
+        }
+
+        try {
+            int opened = openConnections(manager, host);
+            synchronized (response) {
+                response.addDetail(String.format("Opened %1$s connection(s) to '%2$s'", opened, host.toURI()));
+            }
+        } catch (Exception ex) {
+            log.debug(String.format("Unable to warm '%1$s'", host.toURI()), ex);
+            synchronized (response) {
+                response.addWarning(String.format("Unable to open connections to '%1$s': %2$s", host.toURI(), ex));
+            }
+        }
+    }
+
+    /**
+     * Resolves and opens connections to every configured endpoint host. Blocks until every host has been warmed
+     * (or maxWaitMs has elapsed - any hosts still warming will be reported as a warning).
+     * @return The outcome of the warm up
+     * @throws InterruptedException
+     */
+    public AdminDiagnosticResponse warmUp() throws InterruptedException {
+        ready = false;
+        long start = System.currentTimeMillis();
+        final AdminDiagnosticResponse response = new AdminDiagnosticResponse();
+        Map<String, HttpHost> hosts = getUniqueHosts(response);
+
+        final CountDownLatch latch = new CountDownLatch(hosts.size());
+        for (final HttpHost host : hosts.values()) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        warmHost(host, response);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        if (!latch.await(maxWaitMs, TimeUnit.MILLISECONDS)) {
+            synchronized (response) {
+                response.addWarning(String.format("Timed out after %1$sms waiting for %2$s host(s) to warm", maxWaitMs, latch.getCount()));
+            }
+        }
+
+        synchronized (response) {
+            response.addDetail(String.format("Warmed %1$s host(s) in %2$sms", hosts.size(), System.currentTimeMillis() - start));
+        }
+        log.info(String.format("Connection warm up finished for %1$s host(s) in %2$sms", hosts.size(), System.currentTimeMillis() - start));
+        this.report = response;
+        this.ready = true;
+        return response;
+    }
+}
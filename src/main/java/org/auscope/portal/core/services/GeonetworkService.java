@@ -1,5 +1,6 @@
 package org.auscope.portal.core.services;
 
+import javax.xml.stream.XMLStreamException;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpression;
 
@@ -14,6 +15,7 @@ import org.auscope.portal.core.services.methodmakers.GeonetworkMethodMaker;
 import org.auscope.portal.core.services.namespaces.CSWNamespaceContext;
 import org.auscope.portal.core.services.responses.csw.CSWRecord;
 import org.auscope.portal.core.services.responses.csw.CSWRecordTransformer;
+import org.auscope.portal.core.services.responses.csw.StreamingCSWRecordWriter;
 import org.auscope.portal.core.util.DOMUtil;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
@@ -33,6 +35,7 @@ public class GeonetworkService {
     private String userName;
     private String password;
     private String endpoint;
+    private StreamingCSWRecordWriter recordWriter = new StreamingCSWRecordWriter();
 
 
     /**
@@ -55,11 +58,21 @@ public class GeonetworkService {
     /**
      * Helper method for transforming an arbitrary CSWRecord into a
      * <gmd:MD_Metadata> representation
+     *
+     * The record is written with a StreamingCSWRecordWriter, falling back to building a DOM
+     * with CSWRecordTransformer if the record can't be streamed.
      * @param record
      * @return
      * @throws Exception
      */
     private String cswRecordToMDMetadataXml(CSWRecord record) throws Exception {
+        try {
+            return recordWriter.writeToString(record);
+        } catch (XMLStreamException ex) {
+            logger.warn(String.format("Unable to stream record '%1$s', building a DOM instead: %2$s", record.getFileIdentifier(), ex));
+            logger.debug("Exception: ", ex);
+        }
+
         CSWRecordTransformer transformer = new CSWRecordTransformer(); //more than meets the eye
         Node mdMetadataNode = transformer.transformToNode(record);
         return DOMUtil.buildStringFromDom(mdMetadataNode, true);
@@ -1,42 +1,65 @@
 package org.auscope.portal.core.services;
 
 import java.io.InputStream;
-import java.io.StringReader;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
-
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.auscope.portal.core.server.http.HttpServiceCaller;
 import org.auscope.portal.core.services.methodmakers.sissvoc.SISSVoc3MethodMaker;
 import org.auscope.portal.core.services.methodmakers.sissvoc.SISSVoc3MethodMaker.Format;
-import org.auscope.portal.core.services.namespaces.VocabNamespaceContext;
-import org.auscope.portal.core.services.responses.vocab.Concept;
-import org.auscope.portal.core.services.responses.vocab.ConceptFactory;
-import org.auscope.portal.core.services.responses.vocab.Description;
-import org.auscope.portal.core.services.responses.vocab.DescriptionFactory;
-import org.auscope.portal.core.util.DOMUtil;
 import org.auscope.portal.core.util.FileIOUtil;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.RDFList;
+import com.hp.hpl.jena.rdf.model.RDFNode;
 import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.ResIterator;
+import com.hp.hpl.jena.rdf.model.ResourceFactory;
+import com.hp.hpl.jena.rdf.model.Statement;
+import com.hp.hpl.jena.rdf.model.StmtIterator;
+import com.hp.hpl.jena.vocabulary.RDF;
 
 
 /**
  * A service class for interacting with a SISSVoc version 3 deployment.
  *
+ * Each page of concepts is read straight from the response stream into its own JENA model. If the first
+ * page reports os:totalResults, the remaining pages are requested concurrently (at most maxConcurrentRequests
+ * at a time), otherwise pages are requested one at a time until a page has no xhv:next.
+ *
+ * getAllConceptsIfModified makes the request for the first page conditional (If-None-Match/If-Modified-Since)
+ * so that callers holding a previous harvest can skip harvesting a repository that hasn't changed.
+ *
  * @author Josh Vote
  *
  */
 public class SISSVoc3Service {
+    private static final String API_NAMESPACE = "http://purl.org/linked-data/api/vocab#";
+    private static final Resource API_PAGE = ResourceFactory.createResource(API_NAMESPACE + "Page");
+    private static final Property API_ITEMS = ResourceFactory.createProperty(API_NAMESPACE, "items");
+    private static final Property XHV_NEXT = ResourceFactory.createProperty("http://www.w3.org/1999/xhtml/vocab#", "next");
+    private static final Property OS_TOTAL_RESULTS = ResourceFactory.createProperty("http://a9.com/-/spec/opensearch/1.1/", "totalResults");
+
+    private final Log log = LogFactory.getLog(getClass());
+
     /** The class for making HTTP requests*/
     protected HttpServiceCaller httpServiceCaller;
 
@@ -60,6 +83,16 @@ public class SISSVoc3Service {
      */
     private int pageSize = 1000;
 
+    /**
+     * The maximum number of pages that will be requested at the same time. Defaults to 4
+     */
+    private int maxConcurrentRequests = 4;
+
+    /**
+     * Used for requesting pages concurrently. If null, a pool will be created for each harvest
+     */
+    private ExecutorService executor;
+
     public SISSVoc3Service(HttpServiceCaller httpServiceCaller,
             SISSVoc3MethodMaker sissVocMethodMaker, String baseUrl, String repository) {
         super();
@@ -85,6 +118,38 @@ public class SISSVoc3Service {
         this.pageSize = pageSize;
     }
 
+    /**
+     * The maximum number of pages that will be requested at the same time. Defaults to 4
+     * @return
+     */
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    /**
+     * The maximum number of pages that will be requested at the same time. Defaults to 4
+     * @param maxConcurrentRequests
+     */
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    /**
+     * Used for requesting pages concurrently. If null, a pool will be created for each harvest
+     * @return
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Used for requesting pages concurrently. If null, a pool will be created for each harvest
+     * @param executor
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
     /**
      * The service URL in the form - http://host.name/path/to/service
      *
@@ -104,15 +169,123 @@ public class SISSVoc3Service {
     }
 
     /**
-     * Gets all descriptions for a given page (as described by a HttpMethod), appends the parsed values to the specified JENA model.
+     * The concepts (and paging information) parsed from a single page of a SISSVoc response
+     */
+    protected static class ConceptPage {
+        private Model concepts;
+        private boolean moreData;
+        private Long totalResults;
+
+        public ConceptPage(Model concepts, boolean moreData, Long totalResults) {
+            this.concepts = concepts;
+            this.moreData = moreData;
+            this.totalResults = totalResults;
+        }
+
+        /**
+         * The items on this page
+         * @return
+         */
+        public Model getConcepts() {
+            return concepts;
+        }
+
+        /**
+         * True if the page has a xhv:next link
+         * @return
+         */
+        public boolean hasMoreData() {
+            return moreData;
+        }
+
+        /**
+         * The value of os:totalResults (or null if the page doesn't report it)
+         * @return
+         */
+        public Long getTotalResults() {
+            return totalResults;
+        }
+    }
+
+    /**
+     * The result of a conditional harvest (see getAllConceptsIfModified)
+     */
+    public static class ConceptHarvest {
+        private Model concepts;
+        private String eTag;
+        private String lastModified;
+
+        public ConceptHarvest(Model concepts, String eTag, String lastModified) {
+            this.concepts = concepts;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Every concept in the repository or null if the repository hasn't been modified
+         * @return
+         */
+        public Model getConcepts() {
+            return concepts;
+        }
+
+        /**
+         * True if the repository was modified (and harvested)
+         * @return
+         */
+        public boolean isModified() {
+            return concepts != null;
+        }
+
+        /**
+         * The ETag of the first page of concepts (or null if the service didn't send one)
+         * @return
+         */
+        public String getETag() {
+            return eTag;
+        }
+
+        /**
+         * The Last-Modified date of the first page of concepts (or null if the service didn't send one)
+         * @return
+         */
+        public String getLastModified() {
+            return lastModified;
+        }
+    }
+
+    /**
+     * Adds resource (and every resource it refers to that is described in source) to target
+     */
+    private void copyDescription(Resource resource, Model target, Set<Resource> visited) {
+        if (!visited.add(resource)) {
+            return;
+        }
+
+        StmtIterator it = resource.listProperties();
+        try {
+            while (it.hasNext()) {
+                Statement statement = it.next();
+                target.add(statement);
+                RDFNode object = statement.getObject();
+                if (object.isResource()) {
+                    copyDescription(object.asResource(), target, visited);
+                }
+            }
+        } finally {
+            it.close();
+        }
+    }
+
+    /**
+     * Makes a request for a single page of descriptions (as described by a HttpMethod). The response is read
+     * directly into a JENA model from which the api:items of the page are extracted.
      *
-     * Returns true if there is more data (pages) to request. false otherwise. Exceptions will be rethrown as PortalServiceException objects
-     * @param repository
-     * @param pageNumber The page number to request
-     * @param pageSize The number of descriptions per request
-     * @param model receives the response Descriptions
+     * Exceptions will be rethrown as PortalServiceException objects
+     * @param method Makes the request for a page
+     * @return
      */
-    protected boolean requestPageOfConcepts(HttpRequestBase method, Model model) throws PortalServiceException {
+    protected ConceptPage requestPage(HttpRequestBase method) throws PortalServiceException {
         //Make our request
         InputStream is;
         try {
@@ -122,51 +295,239 @@ public class SISSVoc3Service {
             throw new PortalServiceException(method, e);
         }
 
-        //Parse the response into an XML document
-        Document doc = null;
-        boolean moreData = false;
+        return readPage(method, is);
+    }
+
+    /**
+     * Parses the response to method (a single page of descriptions), closing is and releasing method when done
+     */
+    private ConceptPage readPage(HttpRequestBase method, InputStream is) throws PortalServiceException {
         try {
-            doc = DOMUtil.buildDomFromStream(is);
+            Model pageModel = ModelFactory.createDefaultModel();
+            pageModel.read(is, null);
 
-            VocabNamespaceContext nc = new VocabNamespaceContext();
-            XPathExpression getDescriptionsExpr = DOMUtil.compileXPathExpr("rdf:RDF/descendant::api:Page/api:items/rdf:Description", nc);
-            XPathExpression nextPageExpr = DOMUtil.compileXPathExpr("rdf:RDF/descendant::api:Page/xhv:next", nc);
+            Model concepts = ModelFactory.createDefaultModel();
+            boolean moreData = false;
+            Long totalResults = null;
 
-            Node nextPageNode = (Node) nextPageExpr.evaluate(doc, XPathConstants.NODE);
-            if (nextPageNode != null) {
-                moreData = true;
-            }
+            ResIterator pages = pageModel.listSubjectsWithProperty(RDF.type, API_PAGE);
+            try {
+                while (pages.hasNext()) {
+                    Resource page = pages.next();
+                    Set<Resource> visited = new HashSet<Resource>();
+                    visited.add(page);
 
-            NodeList allDescriptions = (NodeList) getDescriptionsExpr.evaluate(doc, XPathConstants.NODESET);
-            for (int i = 0; i < allDescriptions.getLength(); i++) {
-                String rdf = DOMUtil.buildStringFromDom(allDescriptions.item(i), true);
-                model.read(new StringReader(rdf), null);
+                    moreData |= page.hasProperty(XHV_NEXT);
+                    Statement total = page.getProperty(OS_TOTAL_RESULTS);
+                    if (total != null && total.getObject().isLiteral()) {
+                        totalResults = total.getLong();
+                    }
+
+                    Resource items = page.getPropertyResourceValue(API_ITEMS);
+                    if (items != null && items.canAs(RDFList.class)) {
+                        for (RDFNode item : items.as(RDFList.class).asJavaList()) {
+                            if (item.isResource()) {
+                                copyDescription(item.asResource(), concepts, visited);
+                            }
+                        }
+                    }
+                }
+            } finally {
+                pages.close();
             }
 
+            pageModel.close();
+            return new ConceptPage(concepts, moreData, totalResults);
         } catch (Exception e) {
             throw new PortalServiceException(method, e);
         } finally {
             method.releaseConnection();
             FileIOUtil.closeQuietly(is);
         }
+    }
+
+    /**
+     * Gets all descriptions for a given page (as described by a HttpMethod), appends the parsed values to the specified JENA model.
+     *
+     * Returns true if there is more data (pages) to request. false otherwise. Exceptions will be rethrown as PortalServiceException objects
+     * @param repository
+     * @param pageNumber The page number to request
+     * @param pageSize The number of descriptions per request
+     * @param model receives the response Descriptions
+     */
+    protected boolean requestPageOfConcepts(HttpRequestBase method, Model model) throws PortalServiceException {
+        ConceptPage page = requestPage(method);
+        model.add(page.getConcepts());
+        return page.hasMoreData();
+    }
+
+    /**
+     * Requests pages [firstPage, lastPage) concurrently, merging each page into model as it arrives.
+     *
+     * @return true if the final page reports that there is more data to request
+     */
+    private boolean requestPagesConcurrently(Model model, int firstPage, int lastPage, int pageSize) throws PortalServiceException, URISyntaxException {
+        List<HttpRequestBase> methods = new ArrayList<HttpRequestBase>();
+        for (int i = firstPage; i < lastPage; i++) {
+            methods.add(sissVocMethodMaker.getAllConcepts(baseUrl, repository, Format.Rdf, pageSize, i));
+        }
+
+        int concurrency = Math.max(1, Math.min(maxConcurrentRequests, methods.size()));
+        ExecutorService pool = executor != null ? executor : Executors.newFixedThreadPool(concurrency);
+        CompletionService<ConceptPage> completionService = new ExecutorCompletionService<ConceptPage>(pool);
+        List<Future<ConceptPage>> futures = new ArrayList<Future<ConceptPage>>();
+        Future<ConceptPage> lastPageFuture = null;
+        boolean moreData = false;
+        try {
+            int submitted = 0;
+            for (int completed = 0; completed < methods.size(); completed++) {
+                //Keep at most concurrency requests in flight
+                while (submitted < methods.size() && submitted - completed < concurrency) {
+                    Future<ConceptPage> future = completionService.submit(new PageRequest(methods.get(submitted++)));
+                    futures.add(future);
+                    if (submitted == methods.size()) {
+                        lastPageFuture = future;
+                    }
+                }
 
+                Future<ConceptPage> future = completionService.take();
+                ConceptPage page = future.get();
+                model.add(page.getConcepts());
+                if (future == lastPageFuture) {
+                    moreData = page.hasMoreData();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PortalServiceException("Interrupted whilst requesting concepts", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof PortalServiceException) {
+                throw (PortalServiceException) e.getCause();
+            }
+            throw new PortalServiceException("Error requesting concepts", e.getCause());
+        } finally {
+            for (Future<ConceptPage> future : futures) {
+                future.cancel(true);
+            }
+            if (pool != executor) {
+                pool.shutdownNow();
+            }
+        }
+
+        log.trace(String.format("Requested pages %1$d to %2$d of %3$s concurrently", firstPage, lastPage - 1, repository));
         return moreData;
     }
 
+    /**
+     * Requests a single page of concepts
+     */
+    private class PageRequest implements Callable<ConceptPage> {
+        private HttpRequestBase method;
+
+        public PageRequest(HttpRequestBase method) {
+            this.method = method;
+        }
+
+        @Override
+        public ConceptPage call() throws Exception {
+            return requestPage(method);
+        }
+    }
+
     /**
      * Gets all RDF concepts at the specified repository as a single JENA Model. The results
      * will be requested page by page until the entire repository has been traversed.
      *
+     * If the first page reports the total number of concepts the remaining pages will be requested concurrently.
+     *
      * @return
      * @throws PortalServiceException
      * @throws URISyntaxException
      */
     public Model getAllConcepts() throws PortalServiceException, URISyntaxException {
-        Model model = ModelFactory.createDefaultModel();
-        int pageNumber = 0;
+        HttpRequestBase firstMethod = sissVocMethodMaker.getAllConcepts(baseUrl, repository, Format.Rdf, pageSize, 0);
+        return getAllConcepts(requestPage(firstMethod), pageSize);
+    }
+
+    /**
+     * Gets all RDF concepts at the specified repository (as per getAllConcepts) unless the repository hasn't been
+     * modified since a previous harvest.
+     *
+     * Only the request for the first page is made conditional (using the validators from the previous harvest).
+     * If the service responds with 304 Not Modified nothing else is requested, otherwise the remaining pages are
+     * requested as normal.
+     *
+     * @param eTag The ETag returned by a previous harvest (can be null)
+     * @param lastModified The Last-Modified date returned by a previous harvest (can be null)
+     * @return
+     * @throws PortalServiceException
+     * @throws URISyntaxException
+     */
+    public ConceptHarvest getAllConceptsIfModified(String eTag, String lastModified) throws PortalServiceException, URISyntaxException {
         int pageSize = this.pageSize;
+        HttpRequestBase firstMethod = sissVocMethodMaker.getAllConcepts(baseUrl, repository, Format.Rdf, pageSize, 0);
+        if (eTag != null) {
+            firstMethod.setHeader("If-None-Match", eTag);
+        }
+        if (lastModified != null) {
+            firstMethod.setHeader("If-Modified-Since", lastModified);
+        }
+
+        HttpResponse response;
+        try {
+            response = httpServiceCaller.getMethodResponseAsHttpResponse(firstMethod);
+        } catch (Exception e) {
+            firstMethod.releaseConnection();
+            throw new PortalServiceException(firstMethod, e);
+        }
+
+        Header eTagHeader = response.getFirstHeader("ETag");
+        Header lastModifiedHeader = response.getFirstHeader("Last-Modified");
+        String newETag = eTagHeader == null ? null : eTagHeader.getValue();
+        String newLastModified = lastModifiedHeader == null ? null : lastModifiedHeader.getValue();
+
+        if (response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+            firstMethod.releaseConnection();
+            log.trace(String.format("%1$s at %2$s has not been modified", repository, baseUrl));
+            return new ConceptHarvest(null, newETag == null ? eTag : newETag, newLastModified == null ? lastModified : newLastModified);
+        }
+
+        InputStream is;
+        try {
+            is = response.getEntity().getContent();
+        } catch (Exception e) {
+            firstMethod.releaseConnection();
+            throw new PortalServiceException(firstMethod, e);
+        }
+
+        Model model = getAllConcepts(readPage(firstMethod, is), pageSize);
+        return new ConceptHarvest(model, newETag, newLastModified);
+    }
+
+    /**
+     * Requests every page after firstPage, returning the concepts of every page in a single model
+     */
+    private Model getAllConcepts(ConceptPage firstPage, int pageSize) throws PortalServiceException, URISyntaxException {
+        Model model = ModelFactory.createDefaultModel();
+        model.add(firstPage.getConcepts());
+        if (!firstPage.hasMoreData()) {
+            return model;
+        }
+
+        int pageNumber = 1;
+        Long totalResults = firstPage.getTotalResults();
+        if (totalResults != null && pageSize > 0) {
+            int pageCount = (int) ((totalResults + pageSize - 1) / pageSize);
+            if (pageCount > 1) {
+                if (!requestPagesConcurrently(model, 1, pageCount, pageSize)) {
+                    return model;
+                }
+                //The total was out of date, carry on from the last page
+                pageNumber = pageCount;
+            }
+        }
 
-        //Request each page in turn - put the results into Model
+        //Request each remaining page in turn - put the results into Model
         do {
             HttpRequestBase method = sissVocMethodMaker.getAllConcepts(baseUrl, repository, Format.Rdf, pageSize, pageNumber);
             if (requestPageOfConcepts(method, model)) {
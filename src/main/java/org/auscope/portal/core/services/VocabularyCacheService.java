@@ -0,0 +1,346 @@
+package org.auscope.portal.core.services;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import net.sf.json.JSONObject;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.auscope.portal.core.services.SISSVoc3Service.ConceptHarvest;
+import org.auscope.portal.core.util.FileIOUtil;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+
+/**
+ * A cache of every concept in a number of SISSVoc 3 repositories that is persisted to local disk so that
+ * vocabularies survive a restart/redeploy.
+ *
+ * Each vocabulary (identified by its repository name) is stored as an N-Triples file alongside a small JSON
+ * file recording when it was last validated and the ETag/Last-Modified of the harvest. Every file is written
+ * to a temporary file and then renamed into place so a crash can never leave a half written vocabulary behind.
+ *
+ * Lookups (see getVocabulary) never block on the remote service - they return whatever is currently cached
+ * (stale or not) and, if the vocabulary is older than revalidateIntervalMs, start revalidating it on the
+ * executor. Revalidation makes a conditional request (see SISSVoc3Service.getAllConceptsIfModified) so an
+ * unchanged repository isn't harvested again. Only the first page of a harvest is conditional, so changes that
+ * don't touch the first page can go unnoticed - to bound this, a vocabulary is always fully harvested once its
+ * last harvest is older than maxHarvestAgeMs.
+ */
+public class VocabularyCacheService {
+    /**
+     * The default time (in milliseconds) a vocabulary will be used before it is revalidated.
+     */
+    public static final long DEFAULT_REVALIDATE_INTERVAL_MS = 1000L * 60L * 60L; //Set to 1 hour
+    /**
+     * The default time (in milliseconds) after which a vocabulary will be fully harvested (regardless of its ETag)
+     */
+    public static final long DEFAULT_MAX_HARVEST_AGE_MS = 1000L * 60L * 60L * 24L; //Set to 1 day
+
+    private static final String MODEL_SUFFIX = ".nt";
+    private static final String METADATA_SUFFIX = ".json";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String MODEL_FORMAT = "N-TRIPLES";
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private Executor executor;
+    private Map<String, SISSVoc3Service> vocabularyServices;
+    private File directory;
+    private long revalidateIntervalMs = DEFAULT_REVALIDATE_INTERVAL_MS;
+    private long maxHarvestAgeMs = DEFAULT_MAX_HARVEST_AGE_MS;
+    private Map<String, CachedVocabulary> cache = new ConcurrentHashMap<String, CachedVocabulary>();
+    /** The ids of every vocabulary currently being revalidated*/
+    private Set<String> revalidating = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Creates a new cache. This constructor is normally autowired by the spring framework.
+     *
+     * @param executor Used for revalidating vocabularies in the background
+     * @param vocabularyServices The repositories to cache (each repository name must be unique)
+     * @param directory Where vocabularies will be persisted (will be created if it doesn't exist). If null, vocabularies will only be held in memory
+     */
+    public VocabularyCacheService(Executor executor, List<SISSVoc3Service> vocabularyServices, File directory) {
+        this.executor = executor;
+        this.directory = directory;
+        this.vocabularyServices = new LinkedHashMap<String, SISSVoc3Service>();
+        for (SISSVoc3Service service : vocabularyServices) {
+            this.vocabularyServices.put(service.getRepository(), service);
+        }
+
+        if (directory != null && !directory.exists() && !directory.mkdirs()) {
+            log.warn(String.format("Unable to create vocabulary cache directory '%1$s'", directory));
+        }
+    }
+
+    /**
+     * The time (in milliseconds) a vocabulary will be used before it is revalidated. Defaults to DEFAULT_REVALIDATE_INTERVAL_MS
+     * @return
+     */
+    public long getRevalidateIntervalMs() {
+        return revalidateIntervalMs;
+    }
+
+    /**
+     * The time (in milliseconds) a vocabulary will be used before it is revalidated. Defaults to DEFAULT_REVALIDATE_INTERVAL_MS
+     * @param revalidateIntervalMs
+     */
+    public void setRevalidateIntervalMs(long revalidateIntervalMs) {
+        this.revalidateIntervalMs = revalidateIntervalMs;
+    }
+
+    /**
+     * The time (in milliseconds) after which a vocabulary will be fully harvested rather than conditionally revalidated.
+     * Defaults to DEFAULT_MAX_HARVEST_AGE_MS
+     * @return
+     */
+    public long getMaxHarvestAgeMs() {
+        return maxHarvestAgeMs;
+    }
+
+    /**
+     * The time (in milliseconds) after which a vocabulary will be fully harvested rather than conditionally revalidated.
+     * Defaults to DEFAULT_MAX_HARVEST_AGE_MS
+     * @param maxHarvestAgeMs
+     */
+    public void setMaxHarvestAgeMs(long maxHarvestAgeMs) {
+        this.maxHarvestAgeMs = maxHarvestAgeMs;
+    }
+
+    /**
+     * Where vocabularies are persisted (or null if they are only held in memory)
+     * @return
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Loads every persisted vocabulary and then starts revalidating every vocabulary in the background.
+     *
+     * Vocabularies that were persisted are available as soon as this method returns.
+     */
+    public void start() {
+        for (String id : vocabularyServices.keySet()) {
+            CachedVocabulary vocabulary = load(vocabularyServices.get(id));
+            if (vocabulary != null) {
+                cache.put(id, vocabulary);
+            }
+        }
+        log.info(String.format("Loaded %1$d of %2$d vocabularies from disk", cache.size(), vocabularyServices.size()));
+
+        for (String id : vocabularyServices.keySet()) {
+            revalidate(id);
+        }
+    }
+
+    /**
+     * Gets the cached concepts of a vocabulary without waiting on the remote service. If the vocabulary is
+     * older than revalidateIntervalMs it will be revalidated in the background.
+     *
+     * The returned model is shared and MUST NOT be modified.
+     *
+     * @param id The repository name of the vocabulary
+     * @return The cached concepts or null if the vocabulary has never been harvested (or is unknown)
+     */
+    public Model getVocabulary(String id) {
+        CachedVocabulary vocabulary = cache.get(id);
+        if (vocabulary == null || System.currentTimeMillis() - vocabulary.validatedTime > revalidateIntervalMs) {
+            revalidate(id);
+        }
+        return vocabulary == null ? null : vocabulary.model;
+    }
+
+    /**
+     * Gets the time that a vocabulary was last confirmed to be up to date
+     * @param id The repository name of the vocabulary
+     * @return The time in milliseconds since the epoch or -1 if the vocabulary has never been harvested
+     */
+    public long getValidatedTime(String id) {
+        CachedVocabulary vocabulary = cache.get(id);
+        return vocabulary == null ? -1 : vocabulary.validatedTime;
+    }
+
+    /**
+     * Starts revalidating a vocabulary on the executor.
+     *
+     * If the vocabulary is already being revalidated (or is unknown) this function will have no effect
+     *
+     * @param id The repository name of the vocabulary
+     * @return true if revalidation has started, false otherwise
+     */
+    public boolean revalidate(final String id) {
+        final SISSVoc3Service service = vocabularyServices.get(id);
+        if (service == null || !revalidating.add(id)) {
+            return false;
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        revalidateNow(service);
+                    } catch (Exception ex) {
+                        log.warn(String.format("Unable to revalidate vocabulary '%1$s' - the cached vocabulary will continue to be used: %2$s", id, ex));
+                        log.debug("Exception: ", ex);
+                    } finally {
+                        revalidating.remove(id);
+                    }
+                }
+            });
+        } catch (RuntimeException ex) {
+            revalidating.remove(id);
+            throw ex;
+        }
+        return true;
+    }
+
+    /**
+     * Revalidates (and if necessary harvests and persists) the vocabulary at service on the calling thread
+     * @param service
+     * @return true if the vocabulary was harvested, false if it hadn't been modified
+     */
+    protected boolean revalidateNow(SISSVoc3Service service) throws Exception {
+        String id = service.getRepository();
+        CachedVocabulary current = cache.get(id);
+        boolean conditional = current != null && System.currentTimeMillis() - current.harvestedTime <= maxHarvestAgeMs;
+        ConceptHarvest harvest = conditional ?
+                service.getAllConceptsIfModified(current.eTag, current.lastModified) :
+                service.getAllConceptsIfModified(null, null);
+
+        CachedVocabulary updated;
+        long now = System.currentTimeMillis();
+        if (harvest.isModified()) {
+            Model model = harvest.getConcepts();
+            updated = new CachedVocabulary(model, harvest.getETag(), harvest.getLastModified(), now, now);
+            log.debug(String.format("Harvested %1$d statements for vocabulary '%2$s'", model.size(), id));
+        } else if (current == null) {
+            //We have nothing to fall back on - caching an empty vocabulary would hide it until the next revalidation
+            throw new PortalServiceException(String.format("Vocabulary '%1$s' responded 'not modified' to an unconditional harvest", id));
+        } else {
+            updated = new CachedVocabulary(current.model, harvest.getETag(), harvest.getLastModified(), now, conditional ? current.harvestedTime : now);
+            log.debug(String.format("Vocabulary '%1$s' has not been modified", id));
+        }
+
+        cache.put(id, updated);
+        if (directory != null) {
+            save(service, updated, harvest.isModified());
+        }
+        return harvest.isModified();
+    }
+
+    /**
+     * Gets the file (ending with suffix) persisting the vocabulary at service
+     */
+    private File getFile(SISSVoc3Service service, String suffix) {
+        String key = service.getBaseUrl() + "\n" + service.getRepository();
+        return new File(directory, FileIOUtil.sha256Hex(key) + suffix);
+    }
+
+    private void save(SISSVoc3Service service, CachedVocabulary vocabulary, boolean modelChanged) throws IOException {
+        File modelFile = getFile(service, MODEL_SUFFIX);
+        if (modelChanged || !modelFile.exists()) {
+            File temp = getFile(service, MODEL_SUFFIX + TEMP_SUFFIX);
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+            try {
+                vocabulary.model.write(out, MODEL_FORMAT);
+            } finally {
+                out.close();
+            }
+            FileIOUtil.atomicMove(temp, modelFile);
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("baseUrl", service.getBaseUrl());
+        json.put("repository", service.getRepository());
+        json.put("eTag", vocabulary.eTag == null ? "" : vocabulary.eTag);
+        json.put("lastModified", vocabulary.lastModified == null ? "" : vocabulary.lastModified);
+        json.put("validatedTime", vocabulary.validatedTime);
+        json.put("harvestedTime", vocabulary.harvestedTime);
+
+        File temp = getFile(service, METADATA_SUFFIX + TEMP_SUFFIX);
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(json.toString().getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        FileIOUtil.atomicMove(temp, getFile(service, METADATA_SUFFIX));
+    }
+
+    /**
+     * Loads the persisted vocabulary for service or returns null if there is no (readable) persisted vocabulary
+     */
+    private CachedVocabulary load(SISSVoc3Service service) {
+        if (directory == null) {
+            return null;
+        }
+
+        File modelFile = getFile(service, MODEL_SUFFIX);
+        File metadataFile = getFile(service, METADATA_SUFFIX);
+        if (!modelFile.exists() || !metadataFile.exists()) {
+            return null;
+        }
+
+        InputStream in = null;
+        try {
+            in = new FileInputStream(metadataFile);
+            JSONObject json = JSONObject.fromObject(FileIOUtil.convertStreamtoString(in));
+            FileIOUtil.closeQuietly(in);
+
+            Model model = ModelFactory.createDefaultModel();
+            in = new BufferedInputStream(new FileInputStream(modelFile));
+            model.read(in, null, MODEL_FORMAT);
+
+            String eTag = json.optString("eTag", "");
+            String lastModified = json.optString("lastModified", "");
+            long validatedTime = json.getLong("validatedTime");
+            return new CachedVocabulary(model,
+                    eTag.isEmpty() ? null : eTag,
+                    lastModified.isEmpty() ? null : lastModified,
+                    validatedTime,
+                    json.optLong("harvestedTime", validatedTime));
+        } catch (Exception ex) {
+            log.warn(String.format("Unable to load persisted vocabulary '%1$s' from '%2$s': %3$s", service.getRepository(), modelFile, ex));
+            log.debug("Exception: ", ex);
+            return null;
+        } finally {
+            FileIOUtil.closeQuietly(in);
+        }
+    }
+
+    /**
+     * A single (immutable) cached vocabulary
+     */
+    private static class CachedVocabulary {
+        private final Model model;
+        private final String eTag;
+        private final String lastModified;
+        private final long validatedTime;
+        /** When model was last fully harvested (as opposed to revalidated)*/
+        private final long harvestedTime;
+
+        public CachedVocabulary(Model model, String eTag, String lastModified, long validatedTime, long harvestedTime) {
+            this.model = model;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.validatedTime = validatedTime;
+            this.harvestedTime = harvestedTime;
+        }
+    }
+}
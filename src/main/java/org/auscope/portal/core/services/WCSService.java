@@ -3,33 +3,92 @@ package org.auscope.portal.core.services;
 import java.awt.Dimension;
 import java.io.InputStream;
 import java.net.URISyntaxException;
+import java.util.LinkedHashMap;
 import java.util.Map;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.auscope.portal.core.server.http.HttpServiceCaller;
 import org.auscope.portal.core.services.methodmakers.WCSMethodMaker;
 import org.auscope.portal.core.services.responses.csw.CSWGeographicBoundingBox;
-import org.auscope.portal.core.services.responses.ows.OWSExceptionParser;
 import org.auscope.portal.core.services.responses.wcs.DescribeCoverageRecord;
 import org.auscope.portal.core.services.responses.wcs.Resolution;
 import org.auscope.portal.core.services.responses.wcs.TimeConstraint;
-import org.auscope.portal.core.util.DOMUtil;
-import org.w3c.dom.Document;
 
 /**
  * Service class for interacting with a Web Coverage Service
+ *
+ * Successful DescribeCoverage responses are cached (keyed by service URL and coverage name) for
+ * describeCoverageTtlMs so that repeatedly opening the same coverage doesn't refetch and reparse it.
  * @author Josh Vote
  */
 public class WCSService {
+    /** The default time (in milli seconds) a DescribeCoverage response will be cached for*/
+    public static final long DEFAULT_DESCRIBE_COVERAGE_TTL_MS = 5L * 60L * 1000L;
+    /** The default maximum number of DescribeCoverage responses that will be cached*/
+    public static final int DEFAULT_DESCRIBE_COVERAGE_CACHE_SIZE = 256;
+
     private final Log logger = LogFactory.getLog(getClass());
 
     private HttpServiceCaller serviceCaller;
     private WCSMethodMaker methodMaker;
+    private long describeCoverageTtlMs = DEFAULT_DESCRIBE_COVERAGE_TTL_MS;
+    private int describeCoverageCacheSize = DEFAULT_DESCRIBE_COVERAGE_CACHE_SIZE;
+    private LinkedHashMap<String, CacheEntry> describeCoverageCache;
 
     public WCSService(HttpServiceCaller serviceCaller, WCSMethodMaker methodMaker) {
         this.serviceCaller = serviceCaller;
         this.methodMaker = methodMaker;
+        this.describeCoverageCache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > describeCoverageCacheSize;
+            }
+        };
+    }
+
+    /**
+     * How long (in milli seconds) a DescribeCoverage response will be cached for. 0 disables caching.
+     * @return
+     */
+    public long getDescribeCoverageTtlMs() {
+        return describeCoverageTtlMs;
+    }
+
+    /**
+     * How long (in milli seconds) a DescribeCoverage response will be cached for. 0 disables caching.
+     * @param describeCoverageTtlMs
+     */
+    public void setDescribeCoverageTtlMs(long describeCoverageTtlMs) {
+        this.describeCoverageTtlMs = describeCoverageTtlMs;
+    }
+
+    /**
+     * The maximum number of DescribeCoverage responses that will be cached (least recently used responses are discarded first)
+     * @return
+     */
+    public int getDescribeCoverageCacheSize() {
+        return describeCoverageCacheSize;
+    }
+
+    /**
+     * The maximum number of DescribeCoverage responses that will be cached (least recently used responses are discarded first)
+     * @param describeCoverageCacheSize
+     */
+    public void setDescribeCoverageCacheSize(int describeCoverageCacheSize) {
+        this.describeCoverageCacheSize = describeCoverageCacheSize;
+    }
+
+    /**
+     * Removes every cached DescribeCoverage response
+     */
+    public void clearDescribeCoverageCache() {
+        synchronized (describeCoverageCache) {
+            describeCoverageCache.clear();
+        }
     }
 
     /**
@@ -69,16 +128,29 @@ public class WCSService {
      * @throws URISyntaxException
      */
     public DescribeCoverageRecord[] describeCoverage(String serviceUrl, String coverageName) throws PortalServiceException {
+        String key = serviceUrl + "\n" + coverageName;
+        long now = System.currentTimeMillis();
+        synchronized (describeCoverageCache) {
+            CacheEntry entry = describeCoverageCache.get(key);
+            if (entry != null && entry.expiry > now) {
+                return entry.records.clone();
+            }
+            describeCoverageCache.remove(key);
+        }
 
         HttpRequestBase method=null;
         try {
             method = methodMaker.describeCoverageMethod(serviceUrl, coverageName);
             InputStream response = serviceCaller.getMethodResponseAsStream(method);
 
-            Document responseDoc = DOMUtil.buildDomFromStream(response);
-            OWSExceptionParser.checkForExceptionResponse(responseDoc);
-
-            return DescribeCoverageRecord.parseRecords(responseDoc);
+            DescribeCoverageRecord[] records = DescribeCoverageRecord.parseRecords(response);
+            if (describeCoverageTtlMs > 0) {
+                synchronized (describeCoverageCache) {
+                    describeCoverageCache.put(key, new CacheEntry(records, now + describeCoverageTtlMs));
+                }
+            }
+            logger.trace(String.format("Parsed %1$d DescribeCoverage records for '%2$s' from %3$s", records.length, coverageName, serviceUrl));
+            return records.clone();
         } catch (Exception ex) {
             throw new PortalServiceException(method, "Error while making GetCoverage request", ex);
         } finally {
@@ -88,4 +160,13 @@ public class WCSService {
         }
     }
 
+    private static class CacheEntry {
+        private DescribeCoverageRecord[] records;
+        private long expiry;
+
+        public CacheEntry(DescribeCoverageRecord[] records, long expiry) {
+            this.records = records;
+            this.expiry = expiry;
+        }
+    }
 }
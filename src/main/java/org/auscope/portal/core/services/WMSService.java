@@ -1,10 +1,14 @@
 package org.auscope.portal.core.services;
 
+import java.io.InputStream;
 import java.util.List;
 import javax.naming.OperationNotSupportedException;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.auscope.portal.core.configuration.ServiceConfiguration;
+import org.auscope.portal.core.configuration.ServiceConfigurationItem;
 import org.auscope.portal.core.server.http.HttpServiceCaller;
 import org.auscope.portal.core.services.methodmakers.WMSMethodMakerInterface;
 import org.auscope.portal.core.services.responses.ows.OWSExceptionParser;
@@ -24,6 +28,7 @@ public class WMSService {
 
     private List<WMSMethodMakerInterface> listOfSupportedWMSMethodMaker;
 
+    private ServiceConfiguration serviceConfiguration;
 
     // ----------------------------------------------------------- Constructors
     public WMSService(HttpServiceCaller serviceCaller, List<WMSMethodMakerInterface> methodMaker) {
@@ -35,6 +40,21 @@ public class WMSService {
 
     // ------------------------------------------- Property Setters and Getters
 
+    /**
+     * The (optional) service configuration used to look up mirrors that GetFeatureInfo requests can be hedged against
+     * @return
+     */
+    public ServiceConfiguration getServiceConfiguration() {
+        return serviceConfiguration;
+    }
+
+    /**
+     * The (optional) service configuration used to look up mirrors that GetFeatureInfo requests can be hedged against
+     * @param serviceConfiguration
+     */
+    public void setServiceConfiguration(ServiceConfiguration serviceConfiguration) {
+        this.serviceConfiguration = serviceConfiguration;
+    }
 
     private WMSMethodMakerInterface getSupportedMethodMaker(String wmsUrl,String version)
             throws OperationNotSupportedException {
@@ -48,6 +68,17 @@ public class WMSService {
     }
 
 
+    /**
+     * Gets the mirrors of wmsUrl from the service configuration (if any)
+     */
+    private String[] getMirrorUrls(String wmsUrl) {
+        if (serviceConfiguration == null) {
+            return new String[0];
+        }
+        ServiceConfigurationItem item = serviceConfiguration.getServiceConfigurationItem(wmsUrl);
+        return item == null ? new String[0] : item.getMirrorRequestUrls(wmsUrl);
+    }
+
     /**
      * Request GetCapabilities document from the given service
      *
@@ -110,7 +141,18 @@ public class WMSService {
             }else{
                 method = methodMaker.getFeatureInfo(wmsUrl, format, layer, srs, westBoundLongitude, southBoundLatitude, eastBoundLongitude, northBoundLatitude, width, height, pointLng, pointLat, pointX, pointY, styles,sldBody);
             }
-            String response =  serviceCaller.getMethodResponseAsString(method);
+            String response = null;
+            String[] mirrorUrls = getMirrorUrls(wmsUrl);
+            if (mirrorUrls.length > 0) {
+                InputStream responseStream = serviceCaller.getMethodResponseAsHttpResponse(method, CSWService.makeMirrorMethods(method, wmsUrl, mirrorUrls)).getEntity().getContent();
+                try {
+                    response = IOUtils.toString(responseStream, "UTF-8");
+                } finally {
+                    IOUtils.closeQuietly(responseStream);
+                }
+            } else {
+                response =  serviceCaller.getMethodResponseAsString(method);
+            }
             //VT: a html response may not be xml valid therefore cannot go through the same validation process.
             //Rely on the service to return meaningful response to the user.
             if(format.toLowerCase().equals("text/html")){
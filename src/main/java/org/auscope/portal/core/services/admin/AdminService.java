@@ -6,9 +6,14 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
 
+import net.sf.json.JSONObject;
+
 import org.apache.http.Header;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.auscope.portal.core.server.http.HedgedRequestExecutor;
 import org.auscope.portal.core.server.http.HttpServiceCaller;
 import org.auscope.portal.core.services.csw.CSWServiceItem;
 import org.auscope.portal.core.services.methodmakers.CSWMethodMakerGetDataRecords;
@@ -302,4 +307,36 @@ public class AdminService {
 
         return diagnosticResponse;
     }
+
+    /**
+     * Gets a snapshot of the metrics recorded for every upstream request made via serviceCaller (including
+     * hedged request and shared connection pool statistics). The result is suitable for returning directly from a JSON admin endpoint.
+     * @return
+     */
+    public JSONObject httpMetrics() {
+        JSONObject json = serviceCaller.getMetricsRegistry().toJSON();
+
+        HedgedRequestExecutor hedgedRequestExecutor = serviceCaller.getHedgedRequestExecutor();
+        if (hedgedRequestExecutor != null) {
+            JSONObject hedging = new JSONObject();
+            hedging.put("requestCount", hedgedRequestExecutor.getRequestCount());
+            hedging.put("hedgedCount", hedgedRequestExecutor.getHedgedCount());
+            hedging.put("hedgeWinCount", hedgedRequestExecutor.getHedgeWinCount());
+            hedging.put("hedgeRate", hedgedRequestExecutor.getHedgeRate());
+            hedging.put("hedgeWinRate", hedgedRequestExecutor.getHedgeWinRate());
+            json.put("hedging", hedging);
+        }
+
+        if (serviceCaller.getConnectionManager() instanceof PoolingClientConnectionManager) {
+            PoolStats stats = ((PoolingClientConnectionManager) serviceCaller.getConnectionManager()).getTotalStats();
+            JSONObject pool = new JSONObject();
+            pool.put("leased", stats.getLeased());
+            pool.put("pending", stats.getPending());
+            pool.put("available", stats.getAvailable());
+            pool.put("max", stats.getMax());
+            json.put("connectionPool", pool);
+        }
+
+        return json;
+    }
 }
@@ -15,6 +15,7 @@ public class CSWServiceItem {
     private String id;
     private String title;
     private String serviceUrl;
+    private String[] mirrorUrls;
     private String[] restrictedRoleList;
     private String recordInformationUrl;
     private String userName;
@@ -82,6 +83,26 @@ public class CSWServiceItem {
         return this.serviceUrl;
     }
 
+    /**
+     * A list of URLs that host an identical copy of the CSW at serviceUrl. Requests to serviceUrl
+     * may be hedged against these mirrors.
+     *
+     * Can be null or empty
+     * @return
+     */
+    public String[] getMirrorUrls() {
+        return this.mirrorUrls;
+    }
+
+    /**
+     * Sets a list of URLs that host an identical copy of the CSW at serviceUrl. Requests to serviceUrl
+     * may be hedged against these mirrors.
+     * @param mirrorUrls Can be null or empty
+     */
+    public void setMirrorUrls(String[] mirrorUrls) {
+        this.mirrorUrls = mirrorUrls;
+    }
+
     /**
      * The list of roles that a user must have at least one of to be authorised to see records from the CSW Service
      *
@@ -139,7 +160,8 @@ public class CSWServiceItem {
     @Override
     public String toString() {
         return "CSWServiceItem [id=" + id + ", title=" + title
-                + ", serviceUrl=" + serviceUrl + ", restrictedRoleList="
+                + ", serviceUrl=" + serviceUrl + ", mirrorUrls="
+                + Arrays.toString(mirrorUrls) + ", restrictedRoleList="
                 + Arrays.toString(restrictedRoleList)
                 + ", recordInformationUrl=" + recordInformationUrl + "]";
     }
@@ -13,7 +13,7 @@ import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.message.BasicNameValuePair;
 import org.auscope.portal.core.server.http.HttpServiceCaller;
 import org.auscope.portal.core.services.responses.wms.GetCapabilitiesRecord;
-import org.auscope.portal.core.services.responses.wms.GetCapabilitiesRecord_1_1_1;
+import org.auscope.portal.core.services.responses.wms.StreamingGetCapabilitiesRecord;
 import org.auscope.portal.core.util.HttpUtil;
 
 
@@ -298,7 +298,7 @@ public class WMSMethodMaker extends AbstractMethodMaker implements WMSMethodMake
 
             InputStream response = serviceCaller.getMethodResponseAsStream(method);
 
-            GetCapabilitiesRecord record= new GetCapabilitiesRecord_1_1_1(response);
+            GetCapabilitiesRecord record= new StreamingGetCapabilitiesRecord(response);
 
             return true;
         }catch(Exception e){
@@ -313,7 +313,7 @@ public class WMSMethodMaker extends AbstractMethodMaker implements WMSMethodMake
             throws Exception {
         InputStream response = serviceCaller.getMethodResponseAsStream(method);
 
-        return new GetCapabilitiesRecord_1_1_1(response);
+        return new StreamingGetCapabilitiesRecord(response);
     }
 
     @Override
@@ -14,7 +14,7 @@ import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.message.BasicNameValuePair;
 import org.auscope.portal.core.server.http.HttpServiceCaller;
 import org.auscope.portal.core.services.responses.wms.GetCapabilitiesRecord;
-import org.auscope.portal.core.services.responses.wms.GetCapabilitiesRecord_1_3_0;
+import org.auscope.portal.core.services.responses.wms.StreamingGetCapabilitiesRecord;
 import org.auscope.portal.core.util.HttpUtil;
 
 
@@ -308,7 +308,7 @@ public class WMS_1_3_0_MethodMaker extends AbstractMethodMaker implements WMSMet
 
             InputStream response = serviceCaller.getMethodResponseAsStream(method);
 
-            GetCapabilitiesRecord record= new GetCapabilitiesRecord_1_3_0(response);
+            GetCapabilitiesRecord record= new StreamingGetCapabilitiesRecord(response);
 
             return true;
 
@@ -323,7 +323,7 @@ public class WMS_1_3_0_MethodMaker extends AbstractMethodMaker implements WMSMet
     public GetCapabilitiesRecord getGetCapabilitiesRecord(HttpRequestBase method) throws Exception {
         InputStream response = serviceCaller.getMethodResponseAsStream(method);
 
-        return new GetCapabilitiesRecord_1_3_0(response);
+        return new StreamingGetCapabilitiesRecord(response);
     }
 
     @Override
@@ -21,6 +21,10 @@ public class CSWRecord {
     /** The Constant logger. */
     private static final Log logger = LogFactory.getLog(CSWRecord.class);
 
+    /** Shared by every record without keywords/constraints*/
+    private static final String[] EMPTY_STRINGS = new String[0];
+    private static final CSWRecord[] EMPTY_RECORDS = new CSWRecord[0];
+
     /** The service name. */
     private String serviceName;
 
@@ -66,8 +70,8 @@ public class CSWRecord {
     /** The data quality statement. */
     private String dataQualityStatement;
 
-    /** The csw child records */
-    private List<CSWRecord> childRecords = new ArrayList<CSWRecord>();
+    /** The csw child records (null until the first child is added - most records have no children) */
+    private List<CSWRecord> childRecords;
 
     private boolean noCache;
 
@@ -99,8 +103,8 @@ public class CSWRecord {
         this.onlineResources = onlineResources;
         this.cswGeographicElements = cswGeographicsElements;
         this.supplementalInformation = "";
-        this.descriptiveKeywords = new String[0];
-        this.constraints = new String[0];
+        this.descriptiveKeywords = EMPTY_STRINGS;
+        this.constraints = EMPTY_STRINGS;
         this.noCache=false;
 
         logger.trace(this.toString());
@@ -398,6 +402,9 @@ public class CSWRecord {
      * @param childRecords an array of child records for this csw record
      */
     public void addChildRecord(CSWRecord childRecord) {
+        if (this.childRecords == null) {
+            this.childRecords = new ArrayList<CSWRecord>(2);
+        }
         this.childRecords.add(childRecord);
     }
 
@@ -407,6 +414,9 @@ public class CSWRecord {
      * @return the csw child records
      */
     public CSWRecord[] getChildRecords() {
+        if (childRecords == null) {
+            return EMPTY_RECORDS;
+        }
         return childRecords.toArray(new CSWRecord[childRecords.size()]);
     }
 
@@ -416,7 +426,7 @@ public class CSWRecord {
      * @return true if this record has any child metadata records
      */
     public boolean hasChildRecords() {
-        return childRecords.size() > 0;
+        return childRecords != null && childRecords.size() > 0;
     }
 
     /* (non-Javadoc)
@@ -437,7 +447,7 @@ public class CSWRecord {
                 + ", language=" + language + ", constraints="
                 + Arrays.toString(constraints) + ", contact=" + contact
                 + ", date=" + date + ", childRecords="
-                + childRecords  + "]";
+                + (childRecords == null ? "[]" : childRecords)  + "]";
     }
 
     /**
@@ -0,0 +1,265 @@
+package org.auscope.portal.core.services.responses.csw;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A pool for sharing the (heavily repeated) values of CSWRecords parsed from the same harvest.
+ *
+ * Every record parsed from a CSW has its own String instances (as created by the DOM) even though keywords,
+ * constraints, organisations, protocols and most online resources/contacts are identical across thousands
+ * of records. Interning a record replaces its repeated values with a single canonical instance held by this pool.
+ *
+ * Values that are (almost always) unique to a record such as the file identifier, title and abstract are not pooled.
+ * Canonical CSWContact, CSWResponsibleParty and online resource instances are shared between records so they MUST NOT
+ * be modified after a record has been interned.
+ *
+ * This class is thread safe. A pool is intended to live for a single harvest so that values that are no longer
+ * referenced by any record can be garbage collected with the pool.
+ */
+public class CSWRecordInternPool {
+
+    private ConcurrentMap<String, String> strings = new ConcurrentHashMap<String, String>();
+    private ConcurrentMap<OnlineResourceKey, AbstractCSWOnlineResource> onlineResources = new ConcurrentHashMap<OnlineResourceKey, AbstractCSWOnlineResource>();
+    private ConcurrentMap<ContactKey, CSWContact> contacts = new ConcurrentHashMap<ContactKey, CSWContact>();
+    private ConcurrentMap<ResponsiblePartyKey, CSWResponsibleParty> parties = new ConcurrentHashMap<ResponsiblePartyKey, CSWResponsibleParty>();
+
+    /**
+     * Gets the canonical instance of s
+     * @param s Can be null
+     * @return
+     */
+    public String intern(String s) {
+        if (s == null) {
+            return null;
+        }
+        String existing = strings.putIfAbsent(s, s);
+        return existing == null ? s : existing;
+    }
+
+    /**
+     * Replaces every element of values with its canonical instance
+     * @param values Can be null
+     * @return values
+     */
+    public String[] intern(String[] values) {
+        if (values != null) {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = intern(values[i]);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Gets the canonical instance of resource. Only CSWOnlineResourceImpl instances are pooled, other implementations
+     * are returned as is.
+     * @param resource Can be null
+     * @return
+     */
+    public AbstractCSWOnlineResource intern(AbstractCSWOnlineResource resource) {
+        if (resource == null || resource.getClass() != CSWOnlineResourceImpl.class) {
+            return resource;
+        }
+
+        OnlineResourceKey key = new OnlineResourceKey(resource);
+        AbstractCSWOnlineResource existing = onlineResources.get(key);
+        if (existing != null) {
+            return existing;
+        }
+
+        AbstractCSWOnlineResource canonical = new CSWOnlineResourceImpl(resource.getLinkage(),
+                intern(resource.getProtocol()), intern(resource.getName()),
+                intern(resource.getDescription()), intern(resource.getApplicationProfile()));
+        existing = onlineResources.putIfAbsent(new OnlineResourceKey(canonical), canonical);
+        return existing == null ? canonical : existing;
+    }
+
+    /**
+     * Gets the canonical instance of contact. contact will have its values interned if it becomes the canonical instance.
+     * @param contact Can be null
+     * @return
+     */
+    public CSWContact intern(CSWContact contact) {
+        if (contact == null) {
+            return null;
+        }
+
+        contact.setTelephone(intern(contact.getTelephone()));
+        contact.setFacsimile(intern(contact.getFacsimile()));
+        contact.setAddressDeliveryPoint(intern(contact.getAddressDeliveryPoint()));
+        contact.setAddressCity(intern(contact.getAddressCity()));
+        contact.setAddressAdministrativeArea(intern(contact.getAddressAdministrativeArea()));
+        contact.setAddressPostalCode(intern(contact.getAddressPostalCode()));
+        contact.setAddressCountry(intern(contact.getAddressCountry()));
+        contact.setAddressEmail(intern(contact.getAddressEmail()));
+        contact.setOnlineResource(intern(contact.getOnlineResource()));
+
+        CSWContact existing = contacts.putIfAbsent(new ContactKey(contact), contact);
+        return existing == null ? contact : existing;
+    }
+
+    /**
+     * Gets the canonical instance of party. party will have its values interned if it becomes the canonical instance.
+     * @param party Can be null
+     * @return
+     */
+    public CSWResponsibleParty intern(CSWResponsibleParty party) {
+        if (party == null) {
+            return null;
+        }
+
+        party.setIndividualName(intern(party.getIndividualName()));
+        party.setOrganisationName(intern(party.getOrganisationName()));
+        party.setPositionName(intern(party.getPositionName()));
+        party.setContactInfo(intern(party.getContactInfo()));
+
+        CSWResponsibleParty existing = parties.putIfAbsent(new ResponsiblePartyKey(party), party);
+        return existing == null ? party : existing;
+    }
+
+    /**
+     * Replaces the repeated values of record (keywords, constraints, contact, online resources, resource provider etc)
+     * with their canonical instances.
+     * @param record
+     * @return record
+     */
+    public CSWRecord intern(CSWRecord record) {
+        record.setResourceProvider(intern(record.getResourceProvider()));
+        record.setParentIdentifier(intern(record.getParentIdentifier()));
+        record.setLanguage(intern(record.getLanguage()));
+        record.setSupplementalInformation(intern(record.getSupplementalInformation()));
+        record.setDataQualityStatement(intern(record.getDataQualityStatement()));
+        record.setDescriptiveKeywords(intern(record.getDescriptiveKeywords()));
+        record.setConstraints(intern(record.getConstraints()));
+        record.setContact(intern(record.getContact()));
+
+        AbstractCSWOnlineResource[] resources = record.getOnlineResources();
+        if (resources != null) {
+            for (int i = 0; i < resources.length; i++) {
+                resources[i] = intern(resources[i]);
+            }
+        }
+
+        return record;
+    }
+
+    /**
+     * Gets the number of distinct strings held by this pool
+     * @return
+     */
+    public int getStringCount() {
+        return strings.size();
+    }
+
+    private static boolean eq(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Compares online resources by value (linkages are compared by their string form to avoid URL.equals resolving hosts)
+     */
+    private static class OnlineResourceKey {
+        private final AbstractCSWOnlineResource resource;
+        private final String linkage;
+        private final int hash;
+
+        public OnlineResourceKey(AbstractCSWOnlineResource resource) {
+            this.resource = resource;
+            this.linkage = resource.getLinkage() == null ? null : resource.getLinkage().toExternalForm();
+            this.hash = Arrays.hashCode(new Object[] {linkage, resource.getProtocol(), resource.getName(),
+                    resource.getDescription(), resource.getApplicationProfile()});
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof OnlineResourceKey)) {
+                return false;
+            }
+            OnlineResourceKey other = (OnlineResourceKey) o;
+            return hash == other.hash &&
+                    eq(linkage, other.linkage) &&
+                    eq(resource.getProtocol(), other.resource.getProtocol()) &&
+                    eq(resource.getName(), other.resource.getName()) &&
+                    eq(resource.getDescription(), other.resource.getDescription()) &&
+                    eq(resource.getApplicationProfile(), other.resource.getApplicationProfile());
+        }
+    }
+
+    /**
+     * Compares contacts by value (the online resource must already be interned)
+     */
+    private static class ContactKey {
+        private final CSWContact contact;
+        private final int hash;
+
+        public ContactKey(CSWContact contact) {
+            this.contact = contact;
+            this.hash = Arrays.hashCode(new Object[] {contact.getTelephone(), contact.getFacsimile(),
+                    contact.getAddressDeliveryPoint(), contact.getAddressCity(), contact.getAddressAdministrativeArea(),
+                    contact.getAddressPostalCode(), contact.getAddressCountry(), contact.getAddressEmail(),
+                    System.identityHashCode(contact.getOnlineResource())});
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ContactKey)) {
+                return false;
+            }
+            CSWContact other = ((ContactKey) o).contact;
+            return hash == o.hashCode() &&
+                    eq(contact.getTelephone(), other.getTelephone()) &&
+                    eq(contact.getFacsimile(), other.getFacsimile()) &&
+                    eq(contact.getAddressDeliveryPoint(), other.getAddressDeliveryPoint()) &&
+                    eq(contact.getAddressCity(), other.getAddressCity()) &&
+                    eq(contact.getAddressAdministrativeArea(), other.getAddressAdministrativeArea()) &&
+                    eq(contact.getAddressPostalCode(), other.getAddressPostalCode()) &&
+                    eq(contact.getAddressCountry(), other.getAddressCountry()) &&
+                    eq(contact.getAddressEmail(), other.getAddressEmail()) &&
+                    contact.getOnlineResource() == other.getOnlineResource();
+        }
+    }
+
+    /**
+     * Compares responsible parties by value (the contact must already be interned)
+     */
+    private static class ResponsiblePartyKey {
+        private final CSWResponsibleParty party;
+        private final int hash;
+
+        public ResponsiblePartyKey(CSWResponsibleParty party) {
+            this.party = party;
+            this.hash = Arrays.hashCode(new Object[] {party.getIndividualName(), party.getOrganisationName(),
+                    party.getPositionName(), System.identityHashCode(party.getContactInfo())});
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ResponsiblePartyKey)) {
+                return false;
+            }
+            CSWResponsibleParty other = ((ResponsiblePartyKey) o).party;
+            return hash == o.hashCode() &&
+                    eq(party.getIndividualName(), other.getIndividualName()) &&
+                    eq(party.getOrganisationName(), other.getOrganisationName()) &&
+                    eq(party.getPositionName(), other.getPositionName()) &&
+                    party.getContactInfo() == other.getContactInfo();
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package org.auscope.portal.core.services.responses.csw;
+
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.auscope.portal.core.services.namespaces.CSWNamespaceContext;
+
+/**
+ * Writes CSWRecords as ISO 19139 gmd:MD_Metadata elements directly to a stream using an XMLStreamWriter.
+ *
+ * The written elements are the same as those built by CSWRecordTransformer.transformToNode (and can be parsed
+ * back with CSWRecordTransformer.transformToCSWRecord) without building a DOM or creating a Transformer for
+ * every record. Elements are written with the gmd/gco prefixes and every CSWNamespaceContext prefix is declared
+ * on the MD_Metadata element.
+ *
+ * Instances are stateless and thread safe.
+ */
+public class StreamingCSWRecordWriter {
+
+    private static final XMLOutputFactory XML_OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+    private static final CSWNamespaceContext NC = new CSWNamespaceContext();
+    private static final String GMD = NC.getNamespaceURI("gmd");
+    private static final String GCO = NC.getNamespaceURI("gco");
+    private static final String DATEFORMATSTRING = "yyyy-MM-dd'T'HH:mm:ss";
+    private static final String CODELIST = "http://www.isotc211.org/2005/resources/codelist/codeList.xml#";
+
+    /**
+     * Writes record as a single gmd:MD_Metadata element (without an XML declaration) encoded as UTF-8
+     * @param record The record to write
+     * @param out Receives the XML (will NOT be closed)
+     * @throws XMLStreamException
+     */
+    public void write(CSWRecord record, OutputStream out) throws XMLStreamException {
+        XMLStreamWriter writer = XML_OUTPUT_FACTORY.createXMLStreamWriter(out, "UTF-8");
+        try {
+            write(record, writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writes record as a single gmd:MD_Metadata element (without an XML declaration)
+     * @param record The record to write
+     * @return
+     * @throws XMLStreamException
+     */
+    public String writeToString(CSWRecord record) throws XMLStreamException {
+        StringWriter out = new StringWriter();
+        XMLStreamWriter writer = XML_OUTPUT_FACTORY.createXMLStreamWriter(out);
+        try {
+            write(record, writer);
+        } finally {
+            writer.close();
+        }
+        return out.toString();
+    }
+
+    /**
+     * Writes record as a gmd:MD_Metadata element at the current position of writer. Writing a series of records
+     * to the same writer is allowed (the document will NOT be started or ended).
+     * @param record The record to write
+     * @param writer Receives the record (will be flushed but NOT closed)
+     * @throws XMLStreamException
+     */
+    public void write(CSWRecord record, XMLStreamWriter writer) throws XMLStreamException {
+        writer.writeStartElement("gmd", "MD_Metadata", GMD);
+        Iterator<String> prefixIterator = NC.getPrefixIterator();
+        while (prefixIterator.hasNext()) {
+            String prefix = prefixIterator.next();
+            writer.writeNamespace(prefix, NC.getNamespaceURI(prefix));
+        }
+
+        writeCharacterString(writer, "fileIdentifier", record.getFileIdentifier());
+        writeCharacterString(writer, "language", record.getLanguage());
+
+        //Hardcode our character set code
+        startGmd(writer, "characterSet");
+        writeCode(writer, "MD_CharacterSetCode", "utf8", false);
+        writer.writeEndElement();
+
+        CSWResponsibleParty responsibleParty = record.getContact();
+        if (responsibleParty != null) {
+            writeResponsibleParty(writer, "contact", responsibleParty);
+        }
+
+        writeDate(writer, "dateStamp", record.getDate());
+        writeCharacterString(writer, "metadataStandardName", "ISO 19115:2003/19139");
+        writeCharacterString(writer, "metadataStandardVersion", "1.0");
+
+        startGmd(writer, "identificationInfo");
+        startGmd(writer, "MD_DataIdentification");
+
+        //DataIdentification -> citation
+        startGmd(writer, "citation");
+        startGmd(writer, "CI_Citation");
+        writeCharacterString(writer, "title", record.getServiceName());
+        startGmd(writer, "date");
+        startGmd(writer, "CI_Date");
+        writeDate(writer, "date", record.getDate());
+        startGmd(writer, "dateType");
+        writeCode(writer, "CI_DateTypeCode", "creation", false);
+        writer.writeEndElement(); //dateType
+        writer.writeEndElement(); //CI_Date
+        writer.writeEndElement(); //date
+        writer.writeEndElement(); //CI_Citation
+        writer.writeEndElement(); //citation
+
+        //DataIdentification -> abstract
+        writeCharacterString(writer, "abstract", record.getDataIdentificationAbstract());
+
+        //DataIdentification -> status
+        startGmd(writer, "status");
+        writeCode(writer, "MD_ProgressCode", "completed", false);
+        writer.writeEndElement();
+
+        //DataIdentification -> resourceConstraints
+        startGmd(writer, "resourceConstraints");
+        startGmd(writer, "MD_LegalConstraints");
+        String[] legalConstraints = record.getConstraints();
+        if (legalConstraints != null) {
+            for (String constraint : legalConstraints) {
+                writeCharacterString(writer, "otherConstraints", constraint);
+            }
+        }
+        writer.writeEndElement(); //MD_LegalConstraints
+        writer.writeEndElement(); //resourceConstraints
+
+        //DataIdentification -> pointOfContact
+        if (responsibleParty != null) {
+            writeResponsibleParty(writer, "pointOfContact", responsibleParty);
+        }
+
+        //DataIdentification -> descriptiveKeywords
+        startGmd(writer, "descriptiveKeywords");
+        startGmd(writer, "MD_Keywords");
+        String[] keywords = record.getDescriptiveKeywords();
+        if (keywords != null) {
+            for (String keyword : keywords) {
+                writeCharacterString(writer, "keyword", keyword);
+            }
+        }
+        startGmd(writer, "type");
+        writeCode(writer, "MD_KeywordTypeCode", "theme", false);
+        writer.writeEndElement(); //type
+        writer.writeEndElement(); //MD_Keywords
+        writer.writeEndElement(); //descriptiveKeywords
+
+        //DataIdentification -> language
+        writeCharacterString(writer, "language", record.getLanguage());
+
+        //DataIdentification -> extent
+        CSWGeographicElement[] geoEls = record.getCSWGeographicElements();
+        if (geoEls != null) {
+            for (CSWGeographicElement geoEl : geoEls) {
+                if (geoEl instanceof CSWGeographicBoundingBox) {
+                    writeExtent(writer, (CSWGeographicBoundingBox) geoEl);
+                }
+            }
+        }
+
+        //DataIdentification -> supplementalInformation
+        writeCharacterString(writer, "supplementalInformation", record.getSupplementalInformation());
+
+        writer.writeEndElement(); //MD_DataIdentification
+        writer.writeEndElement(); //identificationInfo
+
+        //Online resources
+        AbstractCSWOnlineResource[] onlineResources = record.getOnlineResources();
+        if (onlineResources != null && onlineResources.length > 0) {
+            startGmd(writer, "distributionInfo");
+            startGmd(writer, "MD_Distribution");
+            startGmd(writer, "transferOptions");
+            startGmd(writer, "MD_DigitalTransferOptions");
+            for (AbstractCSWOnlineResource onlineResource : onlineResources) {
+                writeOnlineResource(writer, "onLine", onlineResource);
+            }
+            writer.writeEndElement(); //MD_DigitalTransferOptions
+            writer.writeEndElement(); //transferOptions
+            writer.writeEndElement(); //MD_Distribution
+            writer.writeEndElement(); //distributionInfo
+        }
+
+        //Data Quality (partially hardcoded)
+        startGmd(writer, "dataQualityInfo");
+        startGmd(writer, "DQ_DataQuality");
+        startGmd(writer, "scope");
+        startGmd(writer, "DQ_Scope");
+        startGmd(writer, "level");
+        writeCode(writer, "MD_ScopeCode", "dataset", false);
+        writer.writeEndElement(); //level
+        writer.writeEndElement(); //DQ_Scope
+        writer.writeEndElement(); //scope
+        if (record.getDataQualityStatement() != null && !record.getDataQualityStatement().isEmpty()) {
+            startGmd(writer, "lineage");
+            startGmd(writer, "LI_Lineage");
+            writeCharacterString(writer, "statement", record.getDataQualityStatement());
+            writer.writeEndElement(); //LI_Lineage
+            writer.writeEndElement(); //lineage
+        }
+        writer.writeEndElement(); //DQ_DataQuality
+        writer.writeEndElement(); //dataQualityInfo
+
+        writer.writeEndElement(); //MD_Metadata
+        writer.flush();
+    }
+
+    private static void startGmd(XMLStreamWriter writer, String name) throws XMLStreamException {
+        writer.writeStartElement("gmd", name, GMD);
+    }
+
+    /**
+     * Writes an empty gmd code list element (codeListFirst controls the order of the attributes)
+     */
+    private static void writeCode(XMLStreamWriter writer, String name, String value, boolean codeListFirst) throws XMLStreamException {
+        writer.writeEmptyElement("gmd", name, GMD);
+        if (codeListFirst) {
+            writer.writeAttribute("codeList", CODELIST + name);
+            writer.writeAttribute("codeListValue", value);
+        } else {
+            writer.writeAttribute("codeListValue", value);
+            writer.writeAttribute("codeList", CODELIST + name);
+        }
+    }
+
+    /**
+     * Writes a gmd element containing a single gco:CharacterString (marked as missing if value is null/empty)
+     */
+    private static void writeCharacterString(XMLStreamWriter writer, String name, String value) throws XMLStreamException {
+        startGmd(writer, name);
+        if (value == null || value.isEmpty()) {
+            writer.writeAttribute("gco", GCO, "nilReason", "missing");
+            writer.writeEmptyElement("gco", "CharacterString", GCO);
+        } else {
+            writer.writeStartElement("gco", "CharacterString", GCO);
+            writer.writeCharacters(value);
+            writer.writeEndElement();
+        }
+        writer.writeEndElement();
+    }
+
+    /**
+     * Writes a gmd element containing a single gco:DateTime (marked as missing if value is null)
+     */
+    private static void writeDate(XMLStreamWriter writer, String name, Date value) throws XMLStreamException {
+        startGmd(writer, name);
+        if (value == null) {
+            writer.writeAttribute("gco", GCO, "nilReason", "missing");
+            writer.writeEmptyElement("gco", "DateTime", GCO);
+        } else {
+            writer.writeStartElement("gco", "DateTime", GCO);
+            writer.writeCharacters(new SimpleDateFormat(DATEFORMATSTRING).format(value));
+            writer.writeEndElement();
+        }
+        writer.writeEndElement();
+    }
+
+    private static void writeDecimal(XMLStreamWriter writer, String name, double value) throws XMLStreamException {
+        startGmd(writer, name);
+        writer.writeStartElement("gco", "Decimal", GCO);
+        writer.writeCharacters(Double.toString(value));
+        writer.writeEndElement();
+        writer.writeEndElement();
+    }
+
+    private static void writeExtent(XMLStreamWriter writer, CSWGeographicBoundingBox bbox) throws XMLStreamException {
+        startGmd(writer, "extent");
+        startGmd(writer, "EX_Extent");
+        startGmd(writer, "geographicElement");
+        startGmd(writer, "EX_GeographicBoundingBox");
+        writeDecimal(writer, "westBoundLongitude", bbox.getWestBoundLongitude());
+        writeDecimal(writer, "eastBoundLongitude", bbox.getEastBoundLongitude());
+        writeDecimal(writer, "southBoundLatitude", bbox.getSouthBoundLatitude());
+        writeDecimal(writer, "northBoundLatitude", bbox.getNorthBoundLatitude());
+        writer.writeEndElement(); //EX_GeographicBoundingBox
+        writer.writeEndElement(); //geographicElement
+        writer.writeEndElement(); //EX_Extent
+        writer.writeEndElement(); //extent
+    }
+
+    private static void writeOnlineResource(XMLStreamWriter writer, String name, AbstractCSWOnlineResource onlineResource) throws XMLStreamException {
+        startGmd(writer, name);
+        startGmd(writer, "CI_OnlineResource");
+
+        startGmd(writer, "linkage");
+        startGmd(writer, "URL");
+        writer.writeCharacters(onlineResource.getLinkage() == null ? "" : onlineResource.getLinkage().toString());
+        writer.writeEndElement(); //URL
+        writer.writeEndElement(); //linkage
+
+        writeCharacterString(writer, "protocol", onlineResource.getProtocol());
+        writeCharacterString(writer, "applicationProfile", onlineResource.getApplicationProfile());
+        writeCharacterString(writer, "name", onlineResource.getName());
+        writeCharacterString(writer, "description", onlineResource.getDescription());
+
+        writer.writeEndElement(); //CI_OnlineResource
+        writer.writeEndElement(); //name
+    }
+
+    private static void writeContact(XMLStreamWriter writer, String name, CSWContact contact) throws XMLStreamException {
+        startGmd(writer, name);
+        startGmd(writer, "CI_Contact");
+
+        startGmd(writer, "phone");
+        startGmd(writer, "CI_Telephone");
+        writeCharacterString(writer, "voice", contact.getTelephone());
+        writeCharacterString(writer, "facsimile", contact.getFacsimile());
+        writer.writeEndElement(); //CI_Telephone
+        writer.writeEndElement(); //phone
+
+        startGmd(writer, "address");
+        startGmd(writer, "CI_Address");
+        writeCharacterString(writer, "deliveryPoint", contact.getAddressDeliveryPoint());
+        writeCharacterString(writer, "city", contact.getAddressCity());
+        writeCharacterString(writer, "administrativeArea", contact.getAddressAdministrativeArea());
+        writeCharacterString(writer, "postalCode", contact.getAddressPostalCode());
+        writeCharacterString(writer, "country", contact.getAddressCountry());
+        writeCharacterString(writer, "electronicMailAddress", contact.getAddressEmail());
+        writer.writeEndElement(); //CI_Address
+        writer.writeEndElement(); //address
+
+        if (contact.getOnlineResource() != null) {
+            writeOnlineResource(writer, "onlineResource", contact.getOnlineResource());
+        }
+
+        writer.writeEndElement(); //CI_Contact
+        writer.writeEndElement(); //name
+    }
+
+    private static void writeResponsibleParty(XMLStreamWriter writer, String name, CSWResponsibleParty rp) throws XMLStreamException {
+        startGmd(writer, name);
+        startGmd(writer, "CI_ResponsibleParty");
+
+        writeCharacterString(writer, "individualName", rp.getIndividualName());
+        writeCharacterString(writer, "organisationName", rp.getOrganisationName());
+        writeCharacterString(writer, "positionName", rp.getPositionName());
+
+        if (rp.getContactInfo() != null) {
+            writeContact(writer, "contactInfo", rp.getContactInfo());
+        }
+
+        startGmd(writer, "role");
+        writeCode(writer, "CI_RoleCode", "pointOfContact", true);
+        writer.writeEndElement(); //role
+
+        writer.writeEndElement(); //CI_ResponsibleParty
+        writer.writeEndElement(); //name
+    }
+}
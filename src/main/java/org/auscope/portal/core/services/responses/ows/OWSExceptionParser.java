@@ -1,24 +1,28 @@
 package org.auscope.portal.core.services.responses.ows;
 
-import java.util.Iterator;
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
 
-import javax.xml.namespace.NamespaceContext;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.auscope.portal.core.util.DOMUtil;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 // TODO: Auto-generated Javadoc
 /**
  * A utility class that provides convenience methods for detecting an ows:Exception response in an
  * arbitrary ows response.
+ *
+ * Responses are identified by their root element alone so successful responses are never fully parsed.
  * @author vot002
  *
  */
@@ -27,56 +31,228 @@ public class OWSExceptionParser {
     /** The Constant log. */
     private static final Log log = LogFactory.getLog(OWSExceptionParser.class);
 
-    /**
-     * Returns an XPath object that is configured to read the ows:Namespace.
-     *
-     * @return the XPath object
-     */
-    private static XPath createNamespaceAwareXPath() {
-        XPath xPath = XPathFactory.newInstance().newXPath();
+    /** The maximum number of bytes that will be read from a stream whilst looking for the root element*/
+    public static final int MAX_LOOKAHEAD = 64 * 1024;
 
-        //use our own bodgy namespace context that just recognizes xmlns:ows
-        xPath.setNamespaceContext(new NamespaceContext() {
+    private static final String OWS_NAMESPACE = "http://www.opengis.net/ows";
+    private static final String EXCEPTION_REPORT = "ExceptionReport";
+    private static final String EXCEPTION = "Exception";
+    private static final String EXCEPTION_TEXT = "ExceptionText";
+    private static final String SERVICE_EXCEPTION_REPORT = "ServiceExceptionReport";
+    private static final String SERVICE_EXCEPTION = "ServiceException";
 
-            public Iterator getPrefixes(String namespaceURI) {
-                return null; //not used
-            }
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
 
-            public String getPrefix(String namespaceURI) {
-                return null; //not used
-            }
-
-            public String getNamespaceURI(String prefix) {
-                if (prefix.equals("ows")) {
-                    return "http://www.opengis.net/ows";
-                } else {
-                    return null;
-                }
-            }
-        });
+    static {
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+    }
 
-        return xPath;
+    /**
+     * Returns true if an element called localName in namespaceUri could be the root of an exception report
+     */
+    private static boolean isExceptionRoot(String namespaceUri, String localName) {
+        if (SERVICE_EXCEPTION_REPORT.equals(localName)) {
+            return true;
+        }
+        return EXCEPTION_REPORT.equals(localName) && (namespaceUri == null || namespaceUri.isEmpty() || namespaceUri.startsWith(OWS_NAMESPACE));
     }
 
     /**
      * Will attempt to parse an <ows:Exception> element where ows will be http://www.opengis.net/ows.
      *
-     * Will throw an OWSException if document does contain an <ows:ExceptionReport>, otherwise it will do nothing
+     * Will throw an OWSException if document does contain an <ows:ExceptionReport> (or an OGC ServiceExceptionReport),
+     * otherwise it will do nothing. Only the prolog and root element of xmlString are read unless xmlString
+     * is an exception report.
      *
-     * @param doc a string containing valid XML, this will be parsed into a W3C DOM document
+     * @param doc a string containing valid XML
      * @throws OWSException the oWS exception
      */
     public static void checkForExceptionResponse(String xmlString) throws OWSException {
-        Document doc = null;
+        XMLStreamReader reader = null;
         try {
-            doc = DOMUtil.buildDomFromString(xmlString);
-        } catch (Exception ex) {
-            //This should *hopefully* never occur
+            reader = XML_INPUT_FACTORY.createXMLStreamReader(new StringReader(xmlString));
+            if (isExceptionRoot(reader)) {
+                parseExceptionReport(reader);
+            }
+        } catch (XMLStreamException ex) {
             log.error("Error whilst attempting to parse xmlString for errors", ex);
             throw new OWSException("Unable to parse xmlString", ex);
+        } finally {
+            closeQuietly(reader);
         }
+    }
 
-        checkForExceptionResponse(doc);
+    /**
+     * Will attempt to parse an <ows:Exception> element where ows will be http://www.opengis.net/ows.
+     *
+     * Will throw an OWSException if the stream contains an <ows:ExceptionReport> (or an OGC ServiceExceptionReport).
+     * Otherwise a stream is returned that will read the response from its beginning. At most MAX_LOOKAHEAD
+     * bytes are read to find the root element. If no root element is found within them, the response is
+     * assumed not to be an exception report.
+     *
+     * @param in A stream containing an XML response
+     * @return A stream that must be used in place of in (it will read the entirety of in from its original position)
+     * @throws OWSException If in contains an exception report or the start of in isn't well formed XML
+     * @throws IOException If in cannot be read
+     */
+    public static InputStream checkForExceptionResponse(InputStream in) throws OWSException, IOException {
+        InputStream buffered = in.markSupported() ? in : new BufferedInputStream(in, 8 * 1024);
+        buffered.mark(MAX_LOOKAHEAD + 1);
+
+        boolean isException = false;
+        XMLStreamReader reader = null;
+        try {
+            reader = XML_INPUT_FACTORY.createXMLStreamReader(new LookaheadInputStream(buffered, MAX_LOOKAHEAD));
+            isException = isExceptionRoot(reader);
+        } catch (XMLStreamException ex) {
+            if (!isLookaheadExceeded(ex)) {
+                log.error("Error whilst attempting to parse stream for errors", ex);
+                throw new OWSException("Unable to parse stream", ex);
+            }
+            log.debug("No root element found in the first " + MAX_LOOKAHEAD + " bytes - assuming the response isn't an exception");
+        } finally {
+            closeQuietly(reader);
+        }
+        buffered.reset();
+
+        if (isException) {
+            //Exception reports are small so there's no need to bound the full parse
+            try {
+                reader = XML_INPUT_FACTORY.createXMLStreamReader(buffered);
+                isExceptionRoot(reader);
+                parseExceptionReport(reader);
+            } catch (XMLStreamException ex) {
+                throw new OWSException("Unable to parse exception report", ex);
+            } finally {
+                closeQuietly(reader);
+            }
+        }
+        return buffered;
+    }
+
+    /**
+     * Reads until the root element, returning true if it's the root of an exception report
+     */
+    private static boolean isExceptionRoot(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.hasNext()) {
+            if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                return isExceptionRoot(reader.getNamespaceURI(), reader.getLocalName());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the remainder of an exception report (whose root element has been read), throwing an OWSException
+     * for the first exception it contains
+     */
+    private static void parseExceptionReport(XMLStreamReader reader) throws XMLStreamException, OWSException {
+        String exceptionCode = null;
+        String exceptionText = null;
+        int depth = 1;
+        while (reader.hasNext() && depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+                if (depth == 1 && exceptionCode != null) {
+                    break; //Only the first exception is reported
+                }
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+                String local = reader.getLocalName();
+                if (depth == 2 && EXCEPTION.equals(local)) {
+                    String code = reader.getAttributeValue(null, "exceptionCode");
+                    exceptionCode = code == null ? "" : code;
+                } else if (depth == 2 && SERVICE_EXCEPTION.equals(local)) {
+                    String code = reader.getAttributeValue(null, "code");
+                    exceptionCode = code == null ? "" : code;
+                    exceptionText = reader.getElementText().trim();
+                    break;
+                } else if (depth == 3 && exceptionCode != null && exceptionText == null && EXCEPTION_TEXT.equals(local)) {
+                    exceptionText = reader.getElementText();
+                    depth--;
+                }
+            }
+        }
+
+        if (exceptionCode != null) {
+            throw new OWSException(String.format("Code='%1$s' Message='%2$s'", exceptionCode,
+                    exceptionText == null ? "[Cannot extract error message]" : exceptionText));
+        }
+    }
+
+    private static boolean isLookaheadExceeded(XMLStreamException ex) {
+        for (Throwable t = ex; t != null; t = t.getCause() == t ? null : t.getCause()) {
+            if (t instanceof LookaheadExceededException ||
+                (t instanceof XMLStreamException && ((XMLStreamException) t).getNestedException() instanceof LookaheadExceededException)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void closeQuietly(XMLStreamReader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (XMLStreamException ex) {
+                log.debug("Unable to close reader", ex);
+            }
+        }
+    }
+
+    /**
+     * Signals that the lookahead limit was reached before the root element
+     */
+    private static class LookaheadExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public LookaheadExceededException() {
+            super("Lookahead limit exceeded");
+        }
+    }
+
+    /**
+     * Prevents the parser from reading more than limit bytes (so that the underlying stream can be reset)
+     */
+    private static class LookaheadInputStream extends FilterInputStream {
+        private int remaining;
+
+        public LookaheadInputStream(InputStream in, int limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                throw new LookaheadExceededException();
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                throw new LookaheadExceededException();
+            }
+            int read = in.read(b, off, Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() {
+            //The underlying stream is still needed
+        }
     }
 
     /**
@@ -88,23 +264,35 @@ public class OWSExceptionParser {
      * @throws OWSException the oWS exception
      */
     public static void checkForExceptionResponse(Document doc) throws OWSException {
-        XPath xPath = createNamespaceAwareXPath();
+        Element root = doc.getDocumentElement();
+        if (root == null || !isExceptionRoot(root.getNamespaceURI(), getLocalName(root))) {
+            return;
+        }
 
-        try {
-            //Check for an exception response
-            NodeList exceptionNodes = (NodeList) xPath.evaluate("/ows:ExceptionReport/ows:Exception", doc, XPathConstants.NODESET);
-            if (exceptionNodes.getLength() > 0) {
-                Node exceptionNode = exceptionNodes.item(0);
+        boolean serviceException = SERVICE_EXCEPTION_REPORT.equals(getLocalName(root));
+        Element exception = getFirstChild(root, serviceException ? SERVICE_EXCEPTION : EXCEPTION);
+        if (exception == null) {
+            return;
+        }
 
-                Node exceptionTextNode = (Node) xPath.evaluate("ows:ExceptionText", exceptionNode, XPathConstants.NODE);
-                String exceptionText = (exceptionTextNode == null) ? "[Cannot extract error message]" : exceptionTextNode.getTextContent();
-                String exceptionCode = (String) xPath.evaluate("@exceptionCode", exceptionNode, XPathConstants.STRING);
+        if (serviceException) {
+            throw new OWSException(String.format("Code='%1$s' Message='%2$s'", exception.getAttribute("code"), exception.getTextContent().trim()));
+        }
+        Element exceptionTextNode = getFirstChild(exception, EXCEPTION_TEXT);
+        String exceptionText = (exceptionTextNode == null) ? "[Cannot extract error message]" : exceptionTextNode.getTextContent();
+        throw new OWSException(String.format("Code='%1$s' Message='%2$s'", exception.getAttribute("exceptionCode"), exceptionText));
+    }
+
+    private static String getLocalName(Node node) {
+        return node.getLocalName() == null ? node.getNodeName() : node.getLocalName();
+    }
 
-                throw new OWSException(String.format("Code='%1$s' Message='%2$s'", exceptionCode, exceptionText));
+    private static Element getFirstChild(Element parent, String localName) {
+        for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE && localName.equals(getLocalName(child))) {
+                return (Element) child;
             }
-        } catch (XPathExpressionException ex) {
-            //This should *hopefully* never occur
-            log.error("Error whilst attempting to check for errors", ex);
         }
+        return null;
     }
 }
@@ -1,9 +1,13 @@
 package org.auscope.portal.core.services.responses.vocab;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpression;
@@ -18,6 +22,10 @@ import org.w3c.dom.NodeList;
 
 /**
  * A factory class for creating instances of skos:Concept and child classes
+ *
+ * Every Concept produced by a single call to parseFromRDF is unique by URN - broader, narrower and related
+ * relations that refer to the same URN (from any branch of the hierarchy) will reference the same Concept instance.
+ *
  * @author Josh Vote
  *
  */
@@ -26,6 +34,39 @@ public class ConceptFactory {
     private final Log log = LogFactory.getLog(getClass());
     private static final VocabNamespaceContext nc = new VocabNamespaceContext();
 
+    /**
+     * The XPath expressions used by this factory. XPathExpression isn't thread safe so each thread
+     * compiles its own set (once).
+     */
+    private static class Expressions {
+        private XPathExpression about;
+        private XPathExpression label;
+        private XPathExpression prefLabel;
+        private XPathExpression definition;
+        private XPathExpression concepts;
+        private XPathExpression namedIndividuals;
+
+        public Expressions() throws XPathExpressionException {
+            about = DOMUtil.compileXPathExpr("@rdf:about", nc);
+            label = DOMUtil.compileXPathExpr("rdfs:label", nc);
+            prefLabel = DOMUtil.compileXPathExpr("skos:prefLabel", nc);
+            definition = DOMUtil.compileXPathExpr("skos:definition", nc);
+            concepts = DOMUtil.compileXPathExpr("./descendant::skos:Concept", nc);
+            namedIndividuals = DOMUtil.compileXPathExpr("./descendant::owl:NamedIndividual", nc);
+        }
+    }
+
+    private static final ThreadLocal<Expressions> EXPRESSIONS = new ThreadLocal<Expressions>();
+
+    private static Expressions getExpressions() throws XPathExpressionException {
+        Expressions expressions = EXPRESSIONS.get();
+        if (expressions == null) {
+            expressions = new Expressions();
+            EXPRESSIONS.set(expressions);
+        }
+        return expressions;
+    }
+
     /**
      * Parses a owl:NamedIndividual element (ignoring any relations)
      *
@@ -35,15 +76,16 @@ public class ConceptFactory {
      * @throws XPathExpressionException
      */
     protected NamedIndividual attemptParseNamedIndividual(Node node) throws XPathExpressionException {
-        String urn = (String) DOMUtil.compileXPathExpr("@rdf:about", nc).evaluate(node, XPathConstants.STRING);
+        Expressions expressions = getExpressions();
+        String urn = (String) expressions.about.evaluate(node, XPathConstants.STRING);
         if (urn == null || urn.isEmpty()) {
             return null;
         }
 
         NamedIndividual namedIndividual = new NamedIndividual(urn);
-        namedIndividual.setLabel((String) DOMUtil.compileXPathExpr("rdfs:label", nc).evaluate(node, XPathConstants.STRING));
-        namedIndividual.setPreferredLabel((String) DOMUtil.compileXPathExpr("skos:prefLabel", nc).evaluate(node, XPathConstants.STRING));
-        namedIndividual.setDefinition((String) DOMUtil.compileXPathExpr("skos:definition", nc).evaluate(node, XPathConstants.STRING));
+        namedIndividual.setLabel((String) expressions.label.evaluate(node, XPathConstants.STRING));
+        namedIndividual.setPreferredLabel((String) expressions.prefLabel.evaluate(node, XPathConstants.STRING));
+        namedIndividual.setDefinition((String) expressions.definition.evaluate(node, XPathConstants.STRING));
 
         return namedIndividual;
     }
@@ -58,58 +100,71 @@ public class ConceptFactory {
      * @throws XPathExpressionException
      */
     protected Concept attemptParseConcept(Node node) throws XPathExpressionException {
-        String urn = (String) DOMUtil.compileXPathExpr("@rdf:about", nc).evaluate(node, XPathConstants.STRING);
+        Expressions expressions = getExpressions();
+        String urn = (String) expressions.about.evaluate(node, XPathConstants.STRING);
         if (urn == null || urn.isEmpty()) {
             return null;
         }
 
         //Build our concept/named individual
         Concept concept = new Concept(urn);
-        concept.setLabel((String) DOMUtil.compileXPathExpr("rdfs:label", nc).evaluate(node, XPathConstants.STRING));
-        concept.setPreferredLabel((String) DOMUtil.compileXPathExpr("skos:prefLabel", nc).evaluate(node, XPathConstants.STRING));
-        concept.setDefinition((String) DOMUtil.compileXPathExpr("skos:definition", nc).evaluate(node, XPathConstants.STRING));
+        concept.setLabel((String) expressions.label.evaluate(node, XPathConstants.STRING));
+        concept.setPreferredLabel((String) expressions.prefLabel.evaluate(node, XPathConstants.STRING));
+        concept.setDefinition((String) expressions.definition.evaluate(node, XPathConstants.STRING));
 
         return concept;
     }
 
-    private Concept[] relateConceptByDescription(Description[] descs, Map<String, Concept> parsedConceptMap, List<String> traversedUrns) {
-        List<Concept> concepts = new ArrayList<Concept>();
+    /**
+     * Maps descs to concepts from parsedConceptMap. URNs that haven't been parsed are registered as 'href' concepts
+     * so that later references share the same instance. Any inline descriptions that haven't been traversed are
+     * added to pending.
+     */
+    private Concept[] relateConceptByDescription(Description[] descs, Map<String, Concept> parsedConceptMap, Set<String> traversedUrns, Deque<Description> pending) {
+        Concept[] concepts = new Concept[descs.length];
 
         for (int i = 0; i < descs.length; i++) {
             String urn = descs[i].getUrn();
             Concept concept = parsedConceptMap.get(urn);
             if (concept == null) {
                 concept = new Concept(urn, true);
+                parsedConceptMap.put(urn, concept);
             }
 
-            if (!descs[i].isHref()) {
-                relateConceptByDescription(concept, descs[i], parsedConceptMap, traversedUrns);
+            if (!descs[i].isHref() && !traversedUrns.contains(urn)) {
+                pending.push(descs[i]);
             }
-            concepts.add(concept);
+            concepts[i] = concept;
         }
 
-        return concepts.toArray(new Concept[concepts.size()]);
+        return concepts;
     }
 
     /**
      * Given a concept described by desc; populate all relations in concept as defined by desc sourcing concepts
-     * from parsedConceptMap
+     * from parsedConceptMap. Inline descriptions will be traversed in turn (each URN is only ever traversed once).
      * @param concept
      * @param desc
-     * @param parsedConceptMap
+     * @param parsedConceptMap Concepts keyed by URN. Will receive any unparsed concepts that are referenced
+     * @param traversedUrns The URNs of every description that has already been related
      */
-    protected void relateConceptByDescription(Concept concept,Description desc, Map<String, Concept> parsedConceptMap, List<String> traversedUrns) {
+    protected void relateConceptByDescription(Concept concept, Description desc, Map<String, Concept> parsedConceptMap, Set<String> traversedUrns) {
+        //An explicit stack (rather than recursion) so deep hierarchies can't overflow the call stack
+        Deque<Description> pending = new ArrayDeque<Description>();
+
+        while (desc != null) {
+            //To deal with cycles in the hierarchy
+            if (traversedUrns.add(desc.getUrn())) {
+                concept.setBroader(relateConceptByDescription(desc.getBroader(), parsedConceptMap, traversedUrns, pending));
+                concept.setNarrower(relateConceptByDescription(desc.getNarrower(), parsedConceptMap, traversedUrns, pending));
+                concept.setRelated(relateConceptByDescription(desc.getRelated(), parsedConceptMap, traversedUrns, pending));
+            }
 
-        //To deal with cycles in the hierarchy
-        if (traversedUrns.contains(desc.getUrn())) {
-            return;
-        } else {
-            traversedUrns.add(desc.getUrn());
+            desc = pending.poll();
+            if (desc != null) {
+                concept = parsedConceptMap.get(desc.getUrn());
+            }
         }
-
-        concept.setBroader(relateConceptByDescription(desc.getBroader(), parsedConceptMap, traversedUrns));
-        concept.setNarrower(relateConceptByDescription(desc.getNarrower(), parsedConceptMap, traversedUrns));
-        concept.setRelated(relateConceptByDescription(desc.getRelated(), parsedConceptMap, traversedUrns));
     }
 
     /**
@@ -126,10 +181,9 @@ public class ConceptFactory {
         //Parse all of our concepts and named individuals (but ignore all relations)
         try {
             //Parse the contents of all our Concepts and NamedIndividuals
-            XPathExpression getConceptsExpr = DOMUtil.compileXPathExpr("./descendant::skos:Concept", nc);
-            XPathExpression getNamedIndividualsExpr = DOMUtil.compileXPathExpr("./descendant::owl:NamedIndividual", nc);
-            NodeList namedIndividualNodes = (NodeList) getNamedIndividualsExpr.evaluate(rdf, XPathConstants.NODESET);
-            NodeList conceptNodes = (NodeList) getConceptsExpr.evaluate(rdf, XPathConstants.NODESET);
+            Expressions expressions = getExpressions();
+            NodeList namedIndividualNodes = (NodeList) expressions.namedIndividuals.evaluate(rdf, XPathConstants.NODESET);
+            NodeList conceptNodes = (NodeList) expressions.concepts.evaluate(rdf, XPathConstants.NODESET);
 
             for (int i = 0; i < conceptNodes.getLength(); i++) {
                 Concept concept = attemptParseConcept(conceptNodes.item(i));
@@ -146,13 +200,15 @@ public class ConceptFactory {
         }
 
         //After getting a map of all parsed concepts we populate the relations
-        //We can do this by reading the rdf:Description elements
+        //We can do this by reading the rdf:Description elements. Each URN only needs to be related once
+        //(regardless of how many branches it appears in)
         List<Concept> topLevelConcepts = new ArrayList<Concept>();
+        Set<String> traversedUrns = new HashSet<String>();
         DescriptionFactory df = new DescriptionFactory();
         for (Description description : df.parseFromRDF(rdf)) {
             Concept concept = parsedConceptMap.get(description.getUrn());
             if (concept != null) {
-                relateConceptByDescription(concept, description, parsedConceptMap, new ArrayList<String>());
+                relateConceptByDescription(concept, description, parsedConceptMap, traversedUrns);
                 topLevelConcepts.add(concept);
             }
         }
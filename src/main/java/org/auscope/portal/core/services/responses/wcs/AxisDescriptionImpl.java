@@ -21,6 +21,20 @@ public class AxisDescriptionImpl implements AxisDescription {
     private ValueEnumType[] values;
 
 
+    /**
+     *
+     * @param description The description (can be null)
+     * @param name The name
+     * @param label The label
+     * @param values The values defining this axis
+     */
+    public AxisDescriptionImpl(String description, String name, String label, ValueEnumType[] values) {
+        this.description = description;
+        this.name = name;
+        this.label = label;
+        this.values = values;
+    }
+
     public AxisDescriptionImpl(Node node, XPath xPath) throws Exception {
         Node tempNode;
 
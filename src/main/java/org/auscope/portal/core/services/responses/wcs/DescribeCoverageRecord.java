@@ -1,5 +1,6 @@
 package org.auscope.portal.core.services.responses.wcs;
 
+import java.io.InputStream;
 import java.io.Serializable;
 
 import javax.xml.xpath.XPath;
@@ -329,4 +330,16 @@ public class DescribeCoverageRecord implements Serializable {
 
         return records;
     }
+
+    /**
+     * Parses the XML response from a DescribeCoverage request into a list of DescribeCoverageRecords
+     * without building a DOM (see StreamingDescribeCoverageParser).
+     *
+     * @param inXml the input xml (will NOT be closed)
+     * @return the describe coverage record[]
+     * @throws Exception the exception
+     */
+    public static DescribeCoverageRecord[] parseRecords(InputStream inXml) throws Exception {
+        return StreamingDescribeCoverageParser.parseRecords(inXml);
+    }
 }
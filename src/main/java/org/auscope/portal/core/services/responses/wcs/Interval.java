@@ -22,6 +22,19 @@ public class Interval implements ValueEnumType {
     private Double max;
     private Double resolution;
 
+    /**
+     * Creates a new interval
+     * @param min The minimum value (can be null)
+     * @param max The maximum value (can be null)
+     * @param resolution The resolution (can be null)
+     */
+    public Interval(Double min, Double max, Double resolution) {
+        this.type = "interval";
+        this.min = min;
+        this.max = max;
+        this.resolution = resolution;
+    }
+
     public Interval(Node node, XPath xPath) throws Exception {
         type = node.getLocalName();
 
@@ -15,6 +15,23 @@ public class RangeSetImpl implements RangeSet {
     private ValueEnumType[] nullValues;
     private AxisDescription[] axisDescriptions;
 
+    /**
+     *
+     * @param description The description (can be null)
+     * @param name The name
+     * @param label The label
+     * @param nullValues The values that represent "no data"
+     * @param axisDescriptions The axes of this range set
+     */
+    public RangeSetImpl(String description, String name, String label,
+            ValueEnumType[] nullValues, AxisDescription[] axisDescriptions) {
+        this.description = description;
+        this.name = name;
+        this.label = label;
+        this.nullValues = nullValues;
+        this.axisDescriptions = axisDescriptions;
+    }
+
     public RangeSetImpl(Node node, XPath xPath) throws Exception {
 
         Node tempNode = (Node) xPath.evaluate("wcs:description", node, XPathConstants.NODE);
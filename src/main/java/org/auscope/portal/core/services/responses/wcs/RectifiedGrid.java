@@ -1,6 +1,8 @@
 package org.auscope.portal.core.services.responses.wcs;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpressionException;
@@ -84,39 +86,62 @@ public class RectifiedGrid implements Serializable {
         WCSNamespaceContext nc = new WCSNamespaceContext();
 
         String srsName = (String) DOMUtil.compileXPathExpr("@srsName", nc).evaluate(node, XPathConstants.STRING);
+        String dimension = (String) DOMUtil.compileXPathExpr("@dimension", nc).evaluate(node, XPathConstants.STRING);
+        String envelopeLowValues = (String) DOMUtil.compileXPathExpr("gml:limits/gml:GridEnvelope/gml:low", nc).evaluate(node, XPathConstants.STRING);
+        String envelopeHighValues = (String) DOMUtil.compileXPathExpr("gml:limits/gml:GridEnvelope/gml:high", nc).evaluate(node, XPathConstants.STRING);
+        String originValues = (String) DOMUtil.compileXPathExpr("gml:origin/gml:pos", nc).evaluate(node, XPathConstants.STRING);
+
+        NodeList offsetVectorNodes = (NodeList) DOMUtil.compileXPathExpr("gml:offsetVector", nc).evaluate(node, XPathConstants.NODESET);
+        List<String> offsetVectors = new ArrayList<String>(offsetVectorNodes.getLength());
+        for (int i = 0; i < offsetVectorNodes.getLength(); i++) {
+            offsetVectors.add(offsetVectorNodes.item(i).getTextContent());
+        }
+
+        NodeList axisNameNodes = (NodeList) DOMUtil.compileXPathExpr("gml:axisName", nc).evaluate(node, XPathConstants.NODESET);
+        List<String> axisNames = new ArrayList<String>(axisNameNodes.getLength());
+        for (int i = 0; i < axisNameNodes.getLength(); i++) {
+            axisNames.add(axisNameNodes.item(i).getTextContent());
+        }
+
+        parse(srsName, dimension, envelopeLowValues, envelopeHighValues, originValues, offsetVectors, axisNames);
+    }
+
+    /**
+     * Creates a rectifiedGrid from the (unparsed) text values of a gml:RectifiedGrid element
+     * @param srsName The srsName attribute
+     * @param dimension The dimension attribute
+     * @param envelopeLowValues The text of gml:limits/gml:GridEnvelope/gml:low
+     * @param envelopeHighValues The text of gml:limits/gml:GridEnvelope/gml:high
+     * @param originValues The text of gml:origin/gml:pos
+     * @param offsetVectors The text of every gml:offsetVector
+     * @param axisNames The text of every gml:axisName
+     */
+    RectifiedGrid(String srsName, String dimension, String envelopeLowValues, String envelopeHighValues,
+            String originValues, List<String> offsetVectors, List<String> axisNames) {
+        parse(srsName, dimension, envelopeLowValues, envelopeHighValues, originValues, offsetVectors, axisNames);
+    }
+
+    private void parse(String srsName, String dimension, String envelopeLowValues, String envelopeHighValues,
+            String originValues, List<String> offsetVectors, List<String> axisNames) {
         this.setSrsName(srsName);
 
-        String dimension = (String) DOMUtil.compileXPathExpr("@dimension", nc).evaluate(node, XPathConstants.STRING);
         try {
             this.setDimension(Integer.parseInt(dimension));
         } catch (NumberFormatException ex) {
             log.debug(String.format("Unable to parse dimension '%1$s' to int: %2$s", dimension, ex ));
         }
 
-        String envelopeLowValues = (String) DOMUtil.compileXPathExpr("gml:limits/gml:GridEnvelope/gml:low", nc).evaluate(node, XPathConstants.STRING);
-        String envelopeHighValues = (String) DOMUtil.compileXPathExpr("gml:limits/gml:GridEnvelope/gml:high", nc).evaluate(node, XPathConstants.STRING);
         this.setEnvelopeLowValues(stringToIntVector(envelopeLowValues));
         this.setEnvelopeHighValues(stringToIntVector(envelopeHighValues));
-
-        String originValues = (String) DOMUtil.compileXPathExpr("gml:origin/gml:pos", nc).evaluate(node, XPathConstants.STRING);
         this.setOrigin(stringToDoubleVector(originValues));
 
-        NodeList offsetVectorNodes = (NodeList) DOMUtil.compileXPathExpr("gml:offsetVector", nc).evaluate(node, XPathConstants.NODESET);
-        double[][] offsetVectors = new double[offsetVectorNodes.getLength()][];
-        for (int i = 0; i < offsetVectorNodes.getLength(); i++) {
-            Node offsetVectorNode = offsetVectorNodes.item(i);
-            String values = offsetVectorNode.getTextContent();
-            offsetVectors[i] = stringToDoubleVector(values);
+        double[][] offsetVectorValues = new double[offsetVectors.size()][];
+        for (int i = 0; i < offsetVectorValues.length; i++) {
+            offsetVectorValues[i] = stringToDoubleVector(offsetVectors.get(i));
         }
-        this.setOffsetVectors(offsetVectors);
+        this.setOffsetVectors(offsetVectorValues);
 
-        NodeList axisNameNodes = (NodeList) DOMUtil.compileXPathExpr("gml:axisName", nc).evaluate(node, XPathConstants.NODESET);
-        String[] axisNames = new String[axisNameNodes.getLength()];
-        for (int i = 0; i < axisNameNodes.getLength(); i++) {
-            Node axisNameNode = axisNameNodes.item(i);
-            axisNames[i] = axisNameNode.getTextContent();
-        }
-        this.setAxisNames(axisNames);
+        this.setAxisNames(axisNames.toArray(new String[axisNames.size()]));
     }
 
     private double[] stringToDoubleVector(String s) {
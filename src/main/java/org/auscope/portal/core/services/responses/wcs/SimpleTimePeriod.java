@@ -24,6 +24,17 @@ public class SimpleTimePeriod implements TemporalDomain {
     private Date endPosition;
     private String type;
 
+    /**
+     * Creates a new wcs:timePeriod
+     * @param beginPosition
+     * @param endPosition
+     */
+    public SimpleTimePeriod(Date beginPosition, Date endPosition) {
+        this.beginPosition = beginPosition;
+        this.endPosition = endPosition;
+        this.type = "timePeriod";
+    }
+
     public SimpleTimePeriod(Node node, XPath xPath) throws Exception {
         DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
         df.setTimeZone(TimeZone.getTimeZone("GMT")); // assumption - Make everything GMT
@@ -37,6 +48,14 @@ public class SimpleTimePeriod implements TemporalDomain {
         type = node.getLocalName();
     }
 
+    public Date getBeginPosition() {
+        return beginPosition;
+    }
+
+    public Date getEndPosition() {
+        return endPosition;
+    }
+
     @Override
     public String getType() {
         return type;
@@ -27,6 +27,15 @@ public class SimpleTimePosition implements TemporalDomain {
         return timePosition;
     }
 
+    /**
+     * Creates a new gml:timePosition
+     * @param timePosition
+     */
+    public SimpleTimePosition(Date timePosition) {
+        this.timePosition = timePosition;
+        this.type = "timePosition";
+    }
+
     public SimpleTimePosition(Node node) throws Exception {
         DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
         df.setTimeZone(TimeZone.getTimeZone("GMT")); // assumption - Make everything GMT
@@ -14,6 +14,15 @@ public class SingleValue implements ValueEnumType {
     private String type;
     private String value;
 
+    /**
+     * Creates a new singleValue
+     * @param value The text content of the singleValue element
+     */
+    public SingleValue(String value) {
+        this.type = "singleValue";
+        this.value = value;
+    }
+
     public SingleValue(Node node) throws Exception {
         type = node.getLocalName();
         value = node.getTextContent();
@@ -0,0 +1,460 @@
+package org.auscope.portal.core.services.responses.wcs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.auscope.portal.core.services.responses.ows.OWSException;
+import org.auscope.portal.core.services.responses.ows.OWSExceptionParser;
+
+/**
+ * Parses a WCS 1.0.0 DescribeCoverage response into DescribeCoverageRecords with a single StAX pass.
+ *
+ * The records produced are identical to those produced by DescribeCoverageRecord.parseRecords(Document) but
+ * no DOM is built and no XPath expressions are evaluated. Each element is visited exactly once by a
+ * recursive descent over the reader where every parse method starts on an element's START_ELEMENT and
+ * finishes on its matching END_ELEMENT.
+ */
+public class StreamingDescribeCoverageParser {
+
+    private static final String WCS_NS = "http://www.opengis.net/wcs";
+    private static final String GML_NS = "http://www.opengis.net/gml";
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+    }
+
+    private XMLStreamReader reader;
+    private DateFormat dateFormat;
+
+    private StreamingDescribeCoverageParser(XMLStreamReader reader) {
+        this.reader = reader;
+        this.dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        this.dateFormat.setTimeZone(TimeZone.getTimeZone("GMT")); // assumption - Make everything GMT
+    }
+
+    /**
+     * Parses a DescribeCoverage response into a list of DescribeCoverageRecords.
+     *
+     * @param inXml The response (will NOT be closed)
+     * @return the describe coverage record[]
+     * @throws OWSException If the response is an OWS exception report
+     * @throws IOException If inXml cannot be read
+     * @throws XMLStreamException If the response isn't well formed XML or an element is missing mandatory content
+     */
+    public static DescribeCoverageRecord[] parseRecords(InputStream inXml) throws OWSException, IOException, XMLStreamException {
+        //This is to make sure we actually receive a valid response
+        InputStream in = OWSExceptionParser.checkForExceptionResponse(inXml);
+
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+        try {
+            return new StreamingDescribeCoverageParser(reader).parseRoot();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private DescribeCoverageRecord[] parseRoot() throws XMLStreamException {
+        List<DescribeCoverageRecord> records = new ArrayList<DescribeCoverageRecord>();
+        while (reader.hasNext() && reader.next() != XMLStreamConstants.START_ELEMENT) {
+            //Skip the prolog
+        }
+
+        if (reader.isStartElement() && is(WCS_NS, "CoverageDescription")) {
+            while (nextChild()) {
+                if (is(WCS_NS, "CoverageOffering")) {
+                    records.add(parseCoverageOffering());
+                } else {
+                    skip();
+                }
+            }
+        }
+
+        return records.toArray(new DescribeCoverageRecord[records.size()]);
+    }
+
+    private DescribeCoverageRecord parseCoverageOffering() throws XMLStreamException {
+        String description = null;
+        String name = null;
+        String label = null;
+        List<String> requestResponseCRSs = new ArrayList<String>();
+        List<String> requestCRSs = new ArrayList<String>();
+        List<String> responseCRSs = new ArrayList<String>();
+        List<String> nativeCRSs = new ArrayList<String>();
+        List<String> formats = new ArrayList<String>();
+        List<String> interpolations = new ArrayList<String>();
+        SpatialDomain spatialDomain = null;
+        TemporalDomain[] temporalDomain = null;
+        RangeSet rangeSet = null;
+
+        while (nextChild()) {
+            if (description == null && is(WCS_NS, "description")) {
+                description = readTextContent();
+            } else if (name == null && is(WCS_NS, "name")) {
+                name = readTextContent();
+            } else if (label == null && is(WCS_NS, "label")) {
+                label = readTextContent();
+            } else if (is(WCS_NS, "supportedCRSs")) {
+                while (nextChild()) {
+                    if (is(WCS_NS, "requestResponseCRSs")) {
+                        requestResponseCRSs.add(readTextContent());
+                    } else if (is(WCS_NS, "requestCRSs")) {
+                        requestCRSs.add(readTextContent());
+                    } else if (is(WCS_NS, "responseCRSs")) {
+                        responseCRSs.add(readTextContent());
+                    } else if (is(WCS_NS, "nativeCRSs")) {
+                        nativeCRSs.add(readTextContent());
+                    } else {
+                        skip();
+                    }
+                }
+            } else if (is(WCS_NS, "supportedFormats")) {
+                readChildTextContent(WCS_NS, "formats", formats);
+            } else if (is(WCS_NS, "supportedInterpolations")) {
+                readChildTextContent(WCS_NS, "interpolationMethod", interpolations);
+            } else if (is(WCS_NS, "domainSet")) {
+                while (nextChild()) {
+                    if (spatialDomain == null && is(WCS_NS, "spatialDomain")) {
+                        spatialDomain = parseSpatialDomain();
+                    } else if (temporalDomain == null && is(WCS_NS, "temporalDomain")) {
+                        temporalDomain = parseTemporalDomain();
+                    } else {
+                        skip();
+                    }
+                }
+            } else if (rangeSet == null && is(WCS_NS, "rangeSet")) {
+                while (nextChild()) {
+                    if (rangeSet == null && is(WCS_NS, "RangeSet")) {
+                        rangeSet = parseRangeSet();
+                    } else {
+                        skip();
+                    }
+                }
+            } else {
+                skip();
+            }
+        }
+
+        //We will get a list of <requestResponseCRSs> OR a list
+        //of <requestCRSs> and <responseCRSs>
+        if (!requestResponseCRSs.isEmpty()) {
+            requestCRSs = requestResponseCRSs;
+            responseCRSs = requestResponseCRSs;
+        }
+
+        return new DescribeCoverageRecord(description == null ? "" : description,
+                name == null ? "" : name,
+                label == null ? "" : label,
+                toArray(requestCRSs), toArray(responseCRSs), toArray(formats),
+                toArray(interpolations), toArray(nativeCRSs),
+                spatialDomain, temporalDomain, rangeSet);
+    }
+
+    private SpatialDomain parseSpatialDomain() throws XMLStreamException {
+        List<SimpleEnvelope> envelopes = new ArrayList<SimpleEnvelope>();
+        RectifiedGrid rectifiedGrid = null;
+
+        while (nextChild()) {
+            if (is(WCS_NS, "Envelope") || is(GML_NS, "Envelope") || is(WCS_NS, "EnvelopeWithTimePeriod")) {
+                envelopes.add(parseEnvelope());
+            } else if (rectifiedGrid == null && is(GML_NS, "RectifiedGrid")) {
+                rectifiedGrid = parseRectifiedGrid();
+            } else {
+                skip();
+            }
+        }
+
+        return new SpatialDomain(envelopes.toArray(new SimpleEnvelope[envelopes.size()]), rectifiedGrid);
+    }
+
+    private SimpleEnvelope parseEnvelope() throws XMLStreamException {
+        String type = reader.getLocalName();
+        String namespace = reader.getNamespaceURI();
+        String srsName = attribute("srsName");
+        List<String> positions = new ArrayList<String>(2);
+        readChildTextContent(GML_NS, "pos", positions);
+
+        if (positions.size() != 2) {
+            throw new XMLStreamException(String.format("%1$s:%2$s does not have 2 gml:pos nodes", namespace, type));
+        }
+        String[] southWestPoints = positions.get(0).split(" ");
+        String[] northEastPoints = positions.get(1).split(" ");
+        if (southWestPoints.length < 2 || northEastPoints.length < 2) {
+            throw new XMLStreamException("wcs:lonLatEnvelope gml:pos elements don't contain enough Lon/Lat pairs");
+        }
+
+        return new SimpleEnvelope(srsName, type,
+                Double.parseDouble(southWestPoints[1]),
+                Double.parseDouble(northEastPoints[1]),
+                Double.parseDouble(northEastPoints[0]),
+                Double.parseDouble(southWestPoints[0]));
+    }
+
+    private RectifiedGrid parseRectifiedGrid() throws XMLStreamException {
+        String srsName = attribute("srsName");
+        String dimension = attribute("dimension");
+        String low = null;
+        String high = null;
+        String origin = null;
+        List<String> offsetVectors = new ArrayList<String>();
+        List<String> axisNames = new ArrayList<String>();
+
+        while (nextChild()) {
+            if (is(GML_NS, "limits")) {
+                while (nextChild()) {
+                    if (is(GML_NS, "GridEnvelope")) {
+                        while (nextChild()) {
+                            if (low == null && is(GML_NS, "low")) {
+                                low = readTextContent();
+                            } else if (high == null && is(GML_NS, "high")) {
+                                high = readTextContent();
+                            } else {
+                                skip();
+                            }
+                        }
+                    } else {
+                        skip();
+                    }
+                }
+            } else if (is(GML_NS, "origin")) {
+                while (nextChild()) {
+                    if (origin == null && is(GML_NS, "pos")) {
+                        origin = readTextContent();
+                    } else {
+                        skip();
+                    }
+                }
+            } else if (is(GML_NS, "offsetVector")) {
+                offsetVectors.add(readTextContent());
+            } else if (is(GML_NS, "axisName")) {
+                axisNames.add(readTextContent());
+            } else {
+                skip();
+            }
+        }
+
+        return new RectifiedGrid(srsName, dimension, low == null ? "" : low, high == null ? "" : high,
+                origin == null ? "" : origin, offsetVectors, axisNames);
+    }
+
+    private TemporalDomain[] parseTemporalDomain() throws XMLStreamException {
+        List<TemporalDomain> domains = new ArrayList<TemporalDomain>();
+        while (nextChild()) {
+            String localName = reader.getLocalName();
+            if (localName.equals("timePosition")) {
+                domains.add(new SimpleTimePosition(parseDate(readTextContent())));
+            } else if (localName.equals("timePeriod")) {
+                String begin = null;
+                String end = null;
+                while (nextChild()) {
+                    if (begin == null && reader.getLocalName().equals("beginPosition")) {
+                        begin = readTextContent();
+                    } else if (end == null && reader.getLocalName().equals("endPosition")) {
+                        end = readTextContent();
+                    } else {
+                        skip();
+                    }
+                }
+                if (begin == null || end == null) {
+                    throw new XMLStreamException("timePeriod is missing a beginPosition or endPosition", reader.getLocation());
+                }
+                domains.add(new SimpleTimePeriod(parseDate(begin), parseDate(end)));
+            } else {
+                throw new IllegalArgumentException("Unable to parse " + localName);
+            }
+        }
+        return domains.toArray(new TemporalDomain[domains.size()]);
+    }
+
+    private RangeSet parseRangeSet() throws XMLStreamException {
+        String description = null;
+        String name = null;
+        String label = null;
+        List<AxisDescription> axisDescriptions = new ArrayList<AxisDescription>();
+        List<ValueEnumType> nullValues = new ArrayList<ValueEnumType>();
+
+        while (nextChild()) {
+            if (description == null && is(WCS_NS, "description")) {
+                description = readTextContent();
+            } else if (name == null && is(WCS_NS, "name")) {
+                name = readTextContent();
+            } else if (label == null && is(WCS_NS, "label")) {
+                label = readTextContent();
+            } else if (is(WCS_NS, "axisDescription")) {
+                while (nextChild()) {
+                    if (is(WCS_NS, "AxisDescription")) {
+                        axisDescriptions.add(parseAxisDescription());
+                    } else {
+                        skip();
+                    }
+                }
+            } else if (is(WCS_NS, "nullValues")) {
+                parseValues(nullValues);
+            } else {
+                skip();
+            }
+        }
+
+        return new RangeSetImpl(description, name, label,
+                nullValues.toArray(new ValueEnumType[nullValues.size()]),
+                axisDescriptions.toArray(new AxisDescription[axisDescriptions.size()]));
+    }
+
+    private AxisDescription parseAxisDescription() throws XMLStreamException {
+        String description = null;
+        String name = null;
+        String label = null;
+        List<ValueEnumType> values = new ArrayList<ValueEnumType>();
+
+        while (nextChild()) {
+            if (description == null && is(WCS_NS, "description")) {
+                description = readTextContent();
+            } else if (name == null && is(WCS_NS, "name")) {
+                name = readTextContent();
+            } else if (label == null && is(WCS_NS, "label")) {
+                label = readTextContent();
+            } else if (is(WCS_NS, "values")) {
+                parseValues(values);
+            } else {
+                skip();
+            }
+        }
+
+        return new AxisDescriptionImpl(description, name, label, values.toArray(new ValueEnumType[values.size()]));
+    }
+
+    /**
+     * Parses every wcs:singleValue and wcs:interval child of the current element into values
+     */
+    private void parseValues(List<ValueEnumType> values) throws XMLStreamException {
+        while (nextChild()) {
+            if (!WCS_NS.equals(reader.getNamespaceURI())) {
+                skip();
+            } else if (reader.getLocalName().equals("singleValue")) {
+                values.add(new SingleValue(readTextContent()));
+            } else if (reader.getLocalName().equals("interval")) {
+                Double min = null;
+                Double max = null;
+                Double resolution = null;
+                while (nextChild()) {
+                    if (min == null && is(WCS_NS, "min")) {
+                        min = new Double(readTextContent());
+                    } else if (max == null && is(WCS_NS, "max")) {
+                        max = new Double(readTextContent());
+                    } else if (resolution == null && is(WCS_NS, "resolution")) {
+                        resolution = new Double(readTextContent());
+                    } else {
+                        skip();
+                    }
+                }
+                values.add(new Interval(min, max, resolution));
+            } else {
+                throw new IllegalArgumentException("Unable to parse " + reader.getLocalName());
+            }
+        }
+    }
+
+    private Date parseDate(String s) throws XMLStreamException {
+        try {
+            return dateFormat.parse(s);
+        } catch (ParseException ex) {
+            throw new XMLStreamException("Unable to parse date '" + s + "'", reader.getLocation(), ex);
+        }
+    }
+
+    /**
+     * Adds the text content of every child of the current element called namespace:localName to values
+     */
+    private void readChildTextContent(String namespace, String localName, List<String> values) throws XMLStreamException {
+        while (nextChild()) {
+            if (is(namespace, localName)) {
+                values.add(readTextContent());
+            } else {
+                skip();
+            }
+        }
+    }
+
+    private boolean is(String namespace, String localName) {
+        return localName.equals(reader.getLocalName()) && namespace.equals(reader.getNamespaceURI());
+    }
+
+    /**
+     * Gets the value of an unqualified attribute of the current element (or an empty string if it's missing)
+     */
+    private String attribute(String localName) {
+        String value = reader.getAttributeValue(null, localName);
+        return value == null ? "" : value;
+    }
+
+    private static String[] toArray(List<String> values) {
+        return values.toArray(new String[values.size()]);
+    }
+
+    /**
+     * Advances to the next child element of the current element.
+     * @return true if the reader is now on a child's START_ELEMENT, false if it's on the current element's END_ELEMENT
+     */
+    private boolean nextChild() throws XMLStreamException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                return true;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Skips the current element (and all of its descendants)
+     */
+    private void skip() throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Reads the text content of the current element and all of its descendants (the equivalent of
+     * Node.getTextContent)
+     */
+    private String readTextContent() throws XMLStreamException {
+        StringBuilder sb = new StringBuilder();
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA ||
+                    event == XMLStreamConstants.SPACE) {
+                sb.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,353 @@
+package org.auscope.portal.core.services.responses.wms;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.auscope.portal.core.services.responses.csw.CSWGeographicBoundingBox;
+
+/**
+ * A GetCapabilitiesRecord for WMS 1.1.1 (WMT_MS_Capabilities) and 1.3.0 (WMS_Capabilities) responses that is
+ * read with a single StAX pass instead of building a DOM and evaluating XPaths for every layer.
+ *
+ * Each layer is indexed as a compact StreamingGetCapabilitiesWMSLayer (name, title, abstract, bounding box,
+ * SRS/CRS, styles and legend URL) that refers to its parent layer for inherited values. The layer list and
+ * the name lookup used by getLayer are only built when first requested.
+ *
+ * The DTD referenced by WMS 1.1.1 responses is never fetched.
+ */
+public class StreamingGetCapabilitiesRecord implements GetCapabilitiesRecord {
+
+    private static final String ROOT_1_1_1 = "WMT_MS_Capabilities";
+    private static final String ROOT_1_3_0 = "WMS_Capabilities";
+    private static final String XLINK_NS = "http://www.w3.org/1999/xlink";
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private String serviceType = "";
+    private String version = "";
+    private String organisation = "";
+    private String getMapUrl = "";
+    private List<String> getMapFormats = new ArrayList<String>();
+    private List<String> layerSRS = new ArrayList<String>();
+    private List<StreamingGetCapabilitiesWMSLayer> index = new ArrayList<StreamingGetCapabilitiesWMSLayer>();
+
+    private ArrayList<GetCapabilitiesWMSLayerRecord> layers;
+    private Map<String, StreamingGetCapabilitiesWMSLayer> layersByName;
+
+    /**
+     * Reads a WMS GetCapabilities response
+     * @param inXml The response (will NOT be closed)
+     * @throws XMLStreamException If the response isn't well formed XML
+     */
+    public StreamingGetCapabilitiesRecord(InputStream inXml) throws XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        XMLStreamReader reader = factory.createXMLStreamReader(inXml);
+        try {
+            parse(reader);
+        } finally {
+            reader.close();
+        }
+        log.debug("Number of layers retrieved from GetCapabilities: " + index.size());
+    }
+
+    /**
+     * Tracks where the reader currently is in the document
+     */
+    private static class Path {
+        private String[] names = new String[32];
+        private int depth = 0;
+
+        void push(String name) {
+            if (depth == names.length) {
+                String[] grown = new String[depth * 2];
+                System.arraycopy(names, 0, grown, 0, depth);
+                names = grown;
+            }
+            names[depth++] = name;
+        }
+
+        void pop() {
+            names[--depth] = null;
+        }
+
+        /** True if the current path (below the root element) is exactly expected*/
+        boolean is(String... expected) {
+            if (depth != expected.length + 1) {
+                return false;
+            }
+            for (int i = 0; i < expected.length; i++) {
+                if (!expected[i].equals(names[i + 1])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** The name of the element n levels above the current element (0 is the current element)*/
+        String ancestor(int n) {
+            return depth - 1 - n < 0 ? null : names[depth - 1 - n];
+        }
+    }
+
+    private void parse(XMLStreamReader reader) throws XMLStreamException {
+        Path path = new Path();
+        List<StreamingGetCapabilitiesWMSLayer> layerStack = new ArrayList<StreamingGetCapabilitiesWMSLayer>();
+        List<Integer> layerDepths = new ArrayList<Integer>();
+        double[] exBbox = null;
+        boolean inStyle = false;
+
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                String local = reader.getLocalName();
+                path.pop();
+                if ("Layer".equals(local) && !layerStack.isEmpty() && layerDepths.get(layerDepths.size() - 1) == path.depth + 1) {
+                    layerStack.remove(layerStack.size() - 1);
+                    layerDepths.remove(layerDepths.size() - 1);
+                } else if ("EX_GeographicBoundingBox".equals(local) && exBbox != null) {
+                    layerStack.get(layerStack.size() - 1).setBoundingBox(toBoundingBox(exBbox));
+                    exBbox = null;
+                } else if ("Style".equals(local)) {
+                    inStyle = false;
+                }
+                continue;
+            } else if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+
+            String local = reader.getLocalName();
+            if (path.depth == 0) {
+                if (ROOT_1_1_1.equals(local) || ROOT_1_3_0.equals(local)) {
+                    serviceType = "wms";
+                    String versionAttr = reader.getAttributeValue(null, "version");
+                    version = versionAttr != null ? versionAttr : (ROOT_1_1_1.equals(local) ? "1.1.1" : "1.3.0");
+                } else {
+                    log.debug("Adding non WMS's are not yet implimented");
+                    return;
+                }
+            }
+            path.push(local);
+
+            StreamingGetCapabilitiesWMSLayer layer = layerStack.isEmpty() ? null : layerStack.get(layerStack.size() - 1);
+            boolean layerChild = layer != null && layerDepths.get(layerDepths.size() - 1) == path.depth - 1;
+
+            if ("Layer".equals(local) && path.depth >= 3 && "Capability".equals(path.names[1])) {
+                StreamingGetCapabilitiesWMSLayer child = new StreamingGetCapabilitiesWMSLayer(layer);
+                index.add(child);
+                layerStack.add(child);
+                layerDepths.add(path.depth);
+            } else if (layerChild && "Name".equals(local)) {
+                layer.setName(readText(reader, path));
+            } else if (layerChild && "Title".equals(local)) {
+                layer.setTitle(readText(reader, path));
+            } else if (layerChild && "Abstract".equals(local)) {
+                layer.setAbstract(readText(reader, path));
+            } else if (layerChild && ("SRS".equals(local) || "CRS".equals(local))) {
+                String srs = readText(reader, path);
+                layer.addSRS(srs);
+                if (layer.getParent() == null) {
+                    layerSRS.add(srs);
+                }
+            } else if (layerChild && "LatLonBoundingBox".equals(local)) {
+                layer.setBoundingBox(toBoundingBox(new double[] {
+                    parseDouble(reader.getAttributeValue(null, "minx")),
+                    parseDouble(reader.getAttributeValue(null, "maxx")),
+                    parseDouble(reader.getAttributeValue(null, "miny")),
+                    parseDouble(reader.getAttributeValue(null, "maxy"))}));
+            } else if (layerChild && "EX_GeographicBoundingBox".equals(local)) {
+                exBbox = new double[] {Double.NaN, Double.NaN, Double.NaN, Double.NaN};
+            } else if (exBbox != null && "EX_GeographicBoundingBox".equals(path.ancestor(1))) {
+                int i = "westBoundLongitude".equals(local) ? 0 : "eastBoundLongitude".equals(local) ? 1 :
+                        "southBoundLatitude".equals(local) ? 2 : "northBoundLatitude".equals(local) ? 3 : -1;
+                if (i >= 0) {
+                    exBbox[i] = parseDouble(readText(reader, path));
+                }
+            } else if (layerChild && "Style".equals(local)) {
+                inStyle = true;
+            } else if (inStyle && "Name".equals(local) && "Style".equals(path.ancestor(1))) {
+                layer.addStyle(readText(reader, path));
+            } else if (inStyle && "OnlineResource".equals(local) && "LegendURL".equals(path.ancestor(1))) {
+                if (layer.getLegendURL() == null) {
+                    layer.setLegendURL(getHref(reader));
+                }
+            } else if (path.is("Service", "ContactInformation", "ContactPersonPrimary", "ContactOrganization")) {
+                organisation = readText(reader, path);
+            } else if (path.is("Capability", "Request", "GetMap", "Format")) {
+                getMapFormats.add(readText(reader, path));
+            } else if (path.is("Capability", "Request", "GetMap", "DCPType", "HTTP", "Get", "OnlineResource")) {
+                getMapUrl = getHref(reader);
+            }
+        }
+    }
+
+    /**
+     * Reads the text content of the current (text only) element, leaving the reader on its end element
+     */
+    private static String readText(XMLStreamReader reader, Path path) throws XMLStreamException {
+        String text = reader.getElementText();
+        path.pop();
+        return text;
+    }
+
+    private static String getHref(XMLStreamReader reader) {
+        String href = reader.getAttributeValue(XLINK_NS, "href");
+        if (href == null) {
+            for (int i = 0; i < reader.getAttributeCount(); i++) {
+                if ("href".equals(reader.getAttributeLocalName(i))) {
+                    return reader.getAttributeValue(i);
+                }
+            }
+        }
+        return href == null ? "" : href;
+    }
+
+    private static double parseDouble(String s) {
+        try {
+            return s == null ? Double.NaN : Double.parseDouble(s.trim());
+        } catch (NumberFormatException ex) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Converts {west, east, south, north} into a bounding box (or null if any value is missing)
+     */
+    private CSWGeographicBoundingBox toBoundingBox(double[] values) {
+        for (double d : values) {
+            if (Double.isNaN(d)) {
+                log.debug("Unable to parse the bounding box.");
+                return null;
+            }
+        }
+        return new CSWGeographicBoundingBox(values[0], values[1], values[2], values[3]);
+    }
+
+    /**
+     * Checks if is wFS.
+     *
+     * @return true, if is wFS
+     */
+    @Override
+    public boolean isWFS() {
+        return this.serviceType.equals("wfs");
+    }
+
+    /**
+     * Checks if is wMS.
+     *
+     * @return true, if is wMS
+     */
+    @Override
+    public boolean isWMS() {
+        return this.serviceType.equals("wms");
+    }
+
+    /**
+     * Gets the service type.
+     *
+     * @return the service type
+     */
+    @Override
+    public String getServiceType() {
+        return serviceType;
+    }
+
+    /**
+     * Gets the organisation.
+     *
+     * @return the organisation
+     */
+    @Override
+    public String getOrganisation() {
+        return organisation;
+    }
+
+    /**
+     * Gets the URL that the GetCapabilities response has defined to be used for GetMap requests.
+     *
+     * @return the map url
+     */
+    @Override
+    public String getMapUrl() {
+        return getMapUrl;
+    }
+
+    /**
+     * Gets every layer (in document order). Returns null if the response wasn't a WMS response.
+     *
+     * @return the layers
+     */
+    @Override
+    public synchronized ArrayList<GetCapabilitiesWMSLayerRecord> getLayers() {
+        if (!isWMS()) {
+            return null;
+        }
+        if (layers == null) {
+            layers = new ArrayList<GetCapabilitiesWMSLayerRecord>(index);
+        }
+        return layers;
+    }
+
+    /**
+     * Gets the number of layers in the response
+     * @return
+     */
+    public int getLayerCount() {
+        return index.size();
+    }
+
+    /**
+     * Looks up a named layer
+     * @param name The layer name
+     * @return The (first) layer called name or null if there is no such layer
+     */
+    public synchronized StreamingGetCapabilitiesWMSLayer getLayer(String name) {
+        if (layersByName == null) {
+            layersByName = new HashMap<String, StreamingGetCapabilitiesWMSLayer>();
+            for (StreamingGetCapabilitiesWMSLayer layer : index) {
+                if (!layer.getName().isEmpty() && !layersByName.containsKey(layer.getName())) {
+                    layersByName.put(layer.getName(), layer);
+                }
+            }
+        }
+        return layersByName.get(name);
+    }
+
+    /**
+     * Gets the layer srs.
+     *
+     * @return the layer srs
+     */
+    @Override
+    public String[] getLayerSRS() {
+        return layerSRS.toArray(new String[layerSRS.size()]);
+    }
+
+    /**
+     * Returns an array of MIME strings representing the valid format
+     * for the GetMap operation
+     * @return
+     */
+    @Override
+    public String[] getGetMapFormats() {
+        return getMapFormats.toArray(new String[getMapFormats.size()]);
+    }
+
+    @Override
+    public String getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,192 @@
+package org.auscope.portal.core.services.responses.wms;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.auscope.portal.core.services.responses.csw.CSWGeographicBoundingBox;
+
+/**
+ * A compact WMS layer entry produced by StreamingGetCapabilitiesRecord.
+ *
+ * Only the values read directly from the layer's element are stored. Values that WMS layers inherit from
+ * their ancestors (SRS/CRS and the geographic bounding box) are resolved on demand by walking up the parent
+ * chain (see getEffectiveSRS and getEffectiveBoundingBox) rather than being copied into every child layer.
+ */
+public class StreamingGetCapabilitiesWMSLayer implements GetCapabilitiesWMSLayerRecord {
+
+    private static final String[] EMPTY = new String[0];
+
+    private StreamingGetCapabilitiesWMSLayer parent;
+    private String name = "";
+    private String title = "";
+    private String description = "";
+    private CSWGeographicBoundingBox bbox;
+    private List<String> srs;
+    private List<String> styles;
+    private String legendURL;
+
+    /**
+     * Creates a new layer
+     * @param parent The layer enclosing this layer (can be null)
+     */
+    StreamingGetCapabilitiesWMSLayer(StreamingGetCapabilitiesWMSLayer parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * The layer enclosing this layer (or null if this is a top level layer)
+     * @return
+     */
+    public StreamingGetCapabilitiesWMSLayer getParent() {
+        return parent;
+    }
+
+    /**
+     * Gets the name.
+     *
+     * @return the name
+     */
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Gets the title.
+     *
+     * @return the title
+     */
+    @Override
+    public String getTitle() {
+        return title;
+    }
+
+    void setTitle(String title) {
+        this.title = title;
+    }
+
+    /**
+     * Gets the abstract.
+     *
+     * @return the abstract
+     */
+    @Override
+    public String getAbstract() {
+        return description;
+    }
+
+    void setAbstract(String description) {
+        this.description = description;
+    }
+
+    /**
+     * Gets the bounding box declared by this layer (or null if this layer doesn't declare one)
+     *
+     * @return the bounding box
+     */
+    @Override
+    public CSWGeographicBoundingBox getBoundingBox() {
+        return bbox;
+    }
+
+    void setBoundingBox(CSWGeographicBoundingBox bbox) {
+        this.bbox = bbox;
+    }
+
+    /**
+     * Gets the bounding box of this layer, inheriting the bounding box of the nearest ancestor if this layer
+     * doesn't declare one.
+     *
+     * @return the bounding box or null if neither this layer nor any ancestor declares one
+     */
+    public CSWGeographicBoundingBox getEffectiveBoundingBox() {
+        for (StreamingGetCapabilitiesWMSLayer layer = this; layer != null; layer = layer.parent) {
+            if (layer.bbox != null) {
+                return layer.bbox;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the SRS (CRS for WMS 1.3.0) declared by this layer
+     *
+     * @return the child layer srs
+     */
+    @Override
+    public String[] getChildLayerSRS() {
+        return srs == null ? EMPTY : srs.toArray(new String[srs.size()]);
+    }
+
+    void addSRS(String value) {
+        if (srs == null) {
+            srs = new ArrayList<String>(2);
+        }
+        srs.add(value);
+    }
+
+    /**
+     * Gets every SRS (CRS for WMS 1.3.0) supported by this layer - its own plus every SRS declared by its ancestors
+     *
+     * @return
+     */
+    public String[] getEffectiveSRS() {
+        Set<String> all = new LinkedHashSet<String>();
+        for (StreamingGetCapabilitiesWMSLayer layer = this; layer != null; layer = layer.parent) {
+            if (layer.srs != null) {
+                all.addAll(layer.srs);
+            }
+        }
+        return all.toArray(new String[all.size()]);
+    }
+
+    /**
+     * Gets the names of the styles declared by this layer
+     * @return
+     */
+    public String[] getStyles() {
+        return styles == null ? EMPTY : styles.toArray(new String[styles.size()]);
+    }
+
+    void addStyle(String style) {
+        if (styles == null) {
+            styles = new ArrayList<String>(1);
+        }
+        styles.add(style);
+    }
+
+    /**
+     * Gets the legend URL of the first style (of this layer) that declares one
+     * @return the legend URL or null
+     */
+    public String getLegendURL() {
+        return legendURL;
+    }
+
+    void setLegendURL(String legendURL) {
+        this.legendURL = legendURL;
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        final String seperator = ",";
+
+        StringBuffer buf = new StringBuffer();
+        buf.append(name);
+        buf.append(seperator);
+        buf.append(title);
+        buf.append(seperator);
+        buf.append(description);
+        buf.append(seperator);
+        return buf.toString();
+    }
+}
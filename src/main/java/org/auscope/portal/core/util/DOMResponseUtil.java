@@ -3,12 +3,17 @@ package org.auscope.portal.core.util;
 import java.io.InputStream;
 
 import javax.xml.namespace.NamespaceContext;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathFactory;
+import org.auscope.portal.core.services.responses.ows.OWSException;
 import org.auscope.portal.core.services.responses.ows.OWSExceptionParser;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
@@ -42,4 +47,167 @@ public class DOMResponseUtil {
 
     }
 
+    /**
+     * The counts that can be sniffed from the start of a WFS FeatureCollection response
+     */
+    public static class FeatureCount {
+        /** The numberReturned (WFS 2.0) or numberOfFeatures (WFS 1.1) attribute or -1 if unspecified*/
+        private int numberReturned = -1;
+        /** The numberMatched (WFS 2.0) attribute or -1 if unspecified/unknown*/
+        private int numberMatched = -1;
+        /** The number of member elements actually in the response or -1 if they weren't counted*/
+        private int memberCount = -1;
+        /** The gml:id (or fid) of the first feature in the response or null if there are no features/ids*/
+        private String firstFeatureId = null;
+
+        /**
+         * The number of features in this response (as reported by the server or counted if unreported)
+         * @return
+         */
+        public int getNumberReturned() {
+            return numberReturned >= 0 ? numberReturned : Math.max(0, memberCount);
+        }
+
+        /**
+         * The total number of features matching the request (or -1 if unknown). For WFS 1.1 hits responses
+         * (which contain no members) this is taken from numberOfFeatures
+         * @return
+         */
+        public int getNumberMatched() {
+            if (numberMatched >= 0) {
+                return numberMatched;
+            }
+            return memberCount == 0 ? numberReturned : -1;
+        }
+
+        /**
+         * The gml:id (or WFS 1.0 fid) of the first feature in the response or null if the response has no
+         * features (or its first feature has no id)
+         * @return
+         */
+        public String getFirstFeatureId() {
+            return firstFeatureId;
+        }
+    }
+
+    /**
+     * Gets the gml:id (or fid) attribute of the element reader is positioned on
+     */
+    private static String getFeatureId(XMLStreamReader reader) {
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            String name = reader.getAttributeLocalName(i);
+            if ("id".equals(name) || "fid".equals(name)) {
+                return reader.getAttributeValue(i);
+            }
+        }
+        return null;
+    }
+
+    private static int parseCount(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException ex) {
+            return -1; //eg numberMatched="unknown"
+        }
+    }
+
+    /**
+     * Reads the feature counts (and the id of the first feature) from a WFS response using a streaming parser (no DOM
+     * is built). Reading stops as soon as the counts and first feature are known - members are only counted if the
+     * server doesn't report the number returned (or if countMembers is set).
+     *
+     * @param wfsResponse Will be closed by this method
+     * @param countMembers If true, every member element will be counted (the whole response will be read)
+     * @return
+     * @throws OWSException If the response is an ows:ExceptionReport
+     * @throws XMLStreamException If the response isn't well formed XML
+     */
+    public static FeatureCount countFeatures(InputStream wfsResponse, boolean countMembers) throws OWSException, XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        XMLStreamReader reader = factory.createXMLStreamReader(wfsResponse);
+        FeatureCount count = new FeatureCount();
+        try {
+            while (reader.hasNext() && reader.next() != XMLStreamConstants.START_ELEMENT) {
+                //skip prolog
+            }
+            if (!reader.isStartElement()) {
+                return count;
+            }
+
+            if ("ExceptionReport".equals(reader.getLocalName())) {
+                String exceptionCode = "";
+                String exceptionText = "[Cannot extract error message]";
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                        if ("Exception".equals(reader.getLocalName())) {
+                            String code = reader.getAttributeValue(null, "exceptionCode");
+                            exceptionCode = code == null ? "" : code;
+                        } else if ("ExceptionText".equals(reader.getLocalName())) {
+                            exceptionText = reader.getElementText();
+                            break;
+                        }
+                    }
+                }
+                throw new OWSException(String.format("Code='%1$s' Message='%2$s'", exceptionCode, exceptionText));
+            }
+
+            count.numberReturned = parseCount(reader.getAttributeValue(null, "numberReturned"));
+            if (count.numberReturned < 0) {
+                count.numberReturned = parseCount(reader.getAttributeValue(null, "numberOfFeatures"));
+            }
+            count.numberMatched = parseCount(reader.getAttributeValue(null, "numberMatched"));
+            boolean countRequired = count.numberReturned < 0 || countMembers;
+            if (!countRequired && count.numberReturned == 0) {
+                return count;
+            }
+
+            //Count wfs:member/gml:featureMember elements (or the children of gml:featureMembers)
+            int members = 0;
+            int depth = 1;
+            boolean inMember = false;
+            boolean inFeatureMembers = false;
+            boolean firstFeatureFound = false;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    String name = reader.getLocalName();
+                    if (depth == 2 && ("member".equals(name) || "featureMember".equals(name))) {
+                        members++;
+                        inMember = true;
+                    } else if (depth == 2 && "featureMembers".equals(name)) {
+                        inFeatureMembers = true;
+                    } else if (depth == 3 && inFeatureMembers) {
+                        members++;
+                    }
+
+                    //Only the children of a member are features (not eg gml:boundedBy/gml:Envelope)
+                    if (depth == 3 && (inMember || inFeatureMembers) && !firstFeatureFound) {
+                        firstFeatureFound = true;
+                        count.firstFeatureId = getFeatureId(reader);
+                        if (!countRequired) {
+                            return count;
+                        }
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                    if (depth == 1) {
+                        inMember = false;
+                        inFeatureMembers = false;
+                    }
+                }
+            }
+            count.memberCount = members;
+            return count;
+        } finally {
+            reader.close();
+            FileIOUtil.closeQuietly(wfsResponse);
+        }
+    }
+
 }
@@ -1,5 +1,6 @@
 package org.auscope.portal.core.util;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.Closeable;
@@ -12,14 +13,20 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
-import net.sf.json.JSONNull;
 import net.sf.json.JSONObject;
 
 import org.apache.commons.lang.exception.ExceptionUtils;
@@ -139,6 +146,42 @@ public class FileIOUtil {
         return success;
     }
 
+    /**
+     * Renames source to destination (replacing destination if it exists) so that readers of destination will
+     * only ever see the old or new file in full. Falls back to a non atomic rename if the file system can't
+     * rename atomically.
+     *
+     * @param source Source file
+     * @param destination Destination file
+     * @throws IOException If source couldn't be renamed
+     */
+    public static void atomicMove(File source, File destination) throws IOException {
+        try {
+            Files.move(source.toPath(), destination.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(source.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Gets the SHA-256 digest of the UTF-8 encoding of s as a lower case hex string (suitable for use as a file name)
+     *
+     * @param s The string to digest
+     * @return 64 hex characters
+     */
+    public static String sha256Hex(String s) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(s.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (Exception ex) {
+            throw new IllegalStateException("SHA-256 is unavailable", ex);
+        }
+    }
+
     /**
      * Recursively copies the contents of a directory into the destination
      * directory.
@@ -225,7 +268,7 @@ public class FileIOUtil {
      */
     public static void writeResponseToZip(ArrayList<DownloadResponse> gmlDownloads,ZipOutputStream zout) throws IOException{
         //VT: this assume all files will be of the sme extension. With paging, we have .zip in the mix.
-        if(gmlDownloads.get(0).getContentType().contains("text") || gmlDownloads.get(0).getContentType().contains("zip")){
+        if(isRawContentType(gmlDownloads.get(0).getContentType())){
             writeResponseToZip(gmlDownloads,zout,true);
         }else{ //VT: TODO: the different response type should be handled differently.
             //VT: eg. handle application/json and a final catch all.
@@ -235,6 +278,124 @@ public class FileIOUtil {
     }
 
 
+    /**
+     * Returns true if the first non whitespace character of in is '<'. in will be reset to its current position.
+     */
+    private static boolean startsWithMarkup(BufferedInputStream in) throws IOException {
+        in.mark(1024);
+        try {
+            for (int i = 0; i < 1024; i++) {
+                int b = in.read();
+                if (b < 0 || !Character.isWhitespace(b)) {
+                    return b == '<';
+                }
+            }
+            return false;
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Returns true if a download of contentType should be written to a zip as is (as opposed to being
+     * treated as a portal JSON response)
+     * @param contentType
+     * @return
+     */
+    private static boolean isRawContentType(String contentType) {
+        return contentType != null && (contentType.contains("text") || contentType.contains("zip"));
+    }
+
+    /**
+     * Writes a single DownloadResponse into its own zip entry as soon as it's available. The entry will be named
+     * entryPrefix followed by an extension appropriate to the download's content type. Portal JSON responses will
+     * have their GML extracted (as per writeResponseJSONToZip). Failed downloads are written as entryPrefix.error
+     *
+     * @param download The download to write
+     * @param entryPrefix The name of the entry (without an extension)
+     * @param zout The stream to receive the entry
+     * @param closeInput true to close the download's input stream
+     * @return A description of the written entry of the form {entry: 'name', success: true, error: 'message'}
+     * @throws IOException
+     */
+    public static JSONObject writeDownloadToZip(DownloadResponse download, String entryPrefix, ZipOutputStream zout, boolean closeInput) throws IOException {
+        return writeDownloadToZip(download, entryPrefix, zout, closeInput, null);
+    }
+
+    /**
+     * Writes a single DownloadResponse into its own zip entry (as per writeDownloadToZip) compressed according
+     * to policy (eg already compressed content will be stored).
+     *
+     * @param download The download to write
+     * @param entryPrefix The name of the entry (without an extension)
+     * @param zout The stream to receive the entry
+     * @param closeInput true to close the download's input stream
+     * @param policy Decides the compression level of the entry (if null zout's level is used)
+     * @return A description of the written entry of the form {entry: 'name', success: true, error: 'message'}
+     * @throws IOException
+     */
+    public static JSONObject writeDownloadToZip(DownloadResponse download, String entryPrefix, ZipOutputStream zout, boolean closeInput, ZipCompressionPolicy policy) throws IOException {
+        JSONObject result = new JSONObject();
+        if (policy != null) {
+            //Everything except raw content is compressible text
+            zout.setLevel(policy.getLevel());
+        }
+        if (download.hasException()) {
+            String entryName = entryPrefix + ".error";
+            writeErrorToZip(zout, download.getRequestURL(), download.getException(), entryName);
+            result.put("entry", entryName);
+            result.put("success", false);
+            result.put("error", String.valueOf(download.getException().getMessage()));
+            return result;
+        }
+
+        if (isRawContentType(download.getContentType())) {
+            String entryName = entryPrefix + "." + MimeUtil.mimeToFileExtension(download.getContentType());
+            if (policy != null) {
+                writeInputToZipEntry(zout, entryName, download.getResponseAsStream(), policy.getLevel(download.getContentType()), closeInput);
+            } else {
+                zout.putNextEntry(new ZipEntry(entryName));
+                writeInputToOutputStream(download.getResponseAsStream(), zout, 8 * 1024, closeInput);
+                zout.closeEntry();
+            }
+            result.put("entry", entryName);
+            result.put("success", true);
+            return result;
+        }
+
+        String entryName = entryPrefix + ".xml";
+        BufferedInputStream in = new BufferedInputStream(download.getResponseAsStream());
+        if (startsWithMarkup(in)) {
+            //Services that don't declare a content type will often just return raw XML
+            zout.putNextEntry(new ZipEntry(entryName));
+            writeInputToOutputStream(in, zout, 8 * 1024, closeInput);
+            zout.closeEntry();
+            result.put("entry", entryName);
+            result.put("success", true);
+            return result;
+        }
+
+        StreamingJSONExtractor extractor = new StreamingJSONExtractor(in);
+        try {
+            extractor.writeGMLToZip(zout, entryName);
+        } finally {
+            if (closeInput) {
+                FileIOUtil.closeQuietly(in);
+            }
+        }
+
+        if (Boolean.FALSE.equals(extractor.getSuccess())) {
+            String message = extractor.getMessage();
+            result.put("success", false);
+            result.put("error", message == null || message.length() == 0 ? "Unsuccessful JSON reply" : message);
+            return result;
+        }
+
+        result.put("entry", entryName);
+        result.put("success", true);
+        return result;
+    }
+
     /**
      * Writes a series of DownloadResponse objects to a zip stream, each
      * download response will be put into a separate zip entry.
@@ -245,18 +406,34 @@ public class FileIOUtil {
      * @param closeInput true to close all the input stream in the gmlDownloads
      */
     public static void writeResponseToZip(List<DownloadResponse> gmlDownloads, ZipOutputStream zout, boolean closeInputs) throws IOException {
+        writeResponseToZip(gmlDownloads, zout, closeInputs, null);
+    }
+
+    /**
+     * Writes a series of DownloadResponse objects to a zip stream, each download response will be put into a
+     * separate zip entry compressed according to policy (eg already compressed content will be stored).
+     *
+     * @param gmlDownloads The download responses
+     * @param zout The stream to receive the zip entries
+     * @param closeInputs true to close all the input stream in the gmlDownloads
+     * @param policy Decides the compression level of each entry (if null zout's level is used for every entry)
+     */
+    public static void writeResponseToZip(List<DownloadResponse> gmlDownloads, ZipOutputStream zout, boolean closeInputs, ZipCompressionPolicy policy) throws IOException {
         for (int i = 0; i < gmlDownloads.size(); i++) {
             DownloadResponse download = gmlDownloads.get(i);
-            String entryName = new SimpleDateFormat((i + 1) + "_yyyyMMdd_HHmmss").format(new Date()) + "." + MimeUtil.mimeToFileExtension(gmlDownloads.get(i).getContentType());
-            //TODO: VT - this method can be further improved if we thread this method as we are processing each stream one by one.
+            String entryName = getResponseEntryName(download, i);
             // Check that attempt to request is successful
             if (!download.hasException()) {
                 InputStream stream = download.getResponseAsStream();
 
                 //Write stream into the zip entry
-                zout.putNextEntry(new ZipEntry(entryName));
-                writeInputToOutputStream(stream, zout, 8 * 1024, closeInputs);
-                zout.closeEntry();
+                if (policy != null) {
+                    writeInputToZipEntry(zout, entryName, stream, policy.getLevel(download.getContentType()), closeInputs);
+                } else {
+                    zout.putNextEntry(new ZipEntry(entryName));
+                    writeInputToOutputStream(stream, zout, 8 * 1024, closeInputs);
+                    zout.closeEntry();
+                }
             } else {
                 writeErrorToZip(zout, download.getRequestURL(), download.getException(), entryName + ".error");
             }
@@ -264,30 +441,101 @@ public class FileIOUtil {
     }
 
     /**
-     * Writes an error to a zip stream.
-     * This are the same code as those in BasePortalController
-     * @param zout the zout
-     * @param debugQuery the debug query
-     * @param exceptionToPrint the exception to print
-     * @param errorFileName The name of the error file in the zip (defaults to 'error.txt')
+     * Writes input into a new zip entry. If level is Deflater.NO_COMPRESSION the entry will be STORED (a deflated
+     * entry at level 0 still carries deflate framing), otherwise it will be deflated at level. STORED entries
+     * need their size and CRC up front so input is first spooled to a temporary file.
+     *
+     * @param zout The stream to receive the entry
+     * @param entryName The name of the entry
+     * @param input The entry's content
+     * @param level A java.util.zip.Deflater level
+     * @param closeInput true to close input once it has been read
+     * @throws IOException
      */
-    public static void writeErrorToZip(ZipOutputStream zout, String debugQuery, Exception exceptionToPrint, String errorFileName) {
-        String message = null;
+    public static void writeInputToZipEntry(ZipOutputStream zout, String entryName, InputStream input, int level, boolean closeInput) throws IOException {
+        if (level != Deflater.NO_COMPRESSION) {
+            zout.setLevel(level);
+            ZipEntry entry = new ZipEntry(entryName);
+            entry.setMethod(ZipEntry.DEFLATED);
+            zout.putNextEntry(entry);
+            writeInputToOutputStream(input, zout, 8 * 1024, closeInput);
+            zout.closeEntry();
+            return;
+        }
+
+        File spool = File.createTempFile("APT_ZIP", ".part");
+        try {
+            CRC32 crc = new CRC32();
+            OutputStream out = new CheckedOutputStream(new FileOutputStream(spool), crc);
+            try {
+                writeInputToOutputStream(input, out, 8 * 1024, closeInput);
+            } finally {
+                out.close();
+            }
+
+            ZipEntry entry = new ZipEntry(entryName);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(spool.length());
+            entry.setCompressedSize(spool.length());
+            entry.setCrc(crc.getValue());
+            zout.putNextEntry(entry);
+            InputStream in = new FileInputStream(spool);
+            try {
+                byte[] buffer = new byte[8 * 1024];
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    zout.write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+            zout.closeEntry();
+        } finally {
+            if (!spool.delete()) {
+                log.warn("Unable to delete " + spool.getPath());
+            }
+        }
+    }
+
+    /**
+     * Gets the name of the zip entry for the index'th download
+     */
+    private static String getResponseEntryName(DownloadResponse download, int index) {
+        return new SimpleDateFormat((index + 1) + "_yyyyMMdd_HHmmss").format(new Date()) + "." + MimeUtil.mimeToFileExtension(download.getContentType());
+    }
+
+    /**
+     * Formats exceptionToPrint (and the query that caused it) into a message suitable for an error zip entry
+     */
+    private static String formatError(String debugQuery, Exception exceptionToPrint) {
         StringWriter sw = null;
         PrintWriter pw = null;
         try {
             sw = new StringWriter();
             pw = new PrintWriter(sw);
             exceptionToPrint.printStackTrace(pw);
-            message = String.format("An exception occured whilst requesting/parsing your download.\r\n%1$s\r\nMessage=%2$s\r\n%3$s", debugQuery, exceptionToPrint.getMessage(), sw.toString());
+            return String.format("An exception occured whilst requesting/parsing your download.\r\n%1$s\r\nMessage=%2$s\r\n%3$s", debugQuery, exceptionToPrint.getMessage(), sw.toString());
         } finally {
             FileIOUtil.closeQuietly(pw);
             FileIOUtil.closeQuietly(sw);
         }
+    }
+
+    /**
+     * Writes an error to a zip stream.
+     * This are the same code as those in BasePortalController
+     * @param zout the zout
+     * @param debugQuery the debug query
+     * @param exceptionToPrint the exception to print
+     * @param errorFileName The name of the error file in the zip (defaults to 'error.txt')
+     */
+    public static void writeErrorToZip(ZipOutputStream zout, String debugQuery, Exception exceptionToPrint, String errorFileName) {
+        String message = formatError(debugQuery, exceptionToPrint);
 
         try {
-            zout.putNextEntry(new ZipEntry(errorFileName == null ? errorFileName : "error.txt"));
+            zout.putNextEntry(new ZipEntry(errorFileName == null ? "error.txt" : errorFileName));
             zout.write(message.getBytes());
+            zout.closeEntry();
         } catch (IOException ex) {
             log.error("Couldnt create debug error.txt in output", ex);
         }
@@ -336,36 +584,26 @@ public class FileIOUtil {
             DownloadResponse download=gmlDownloads.get(i);
             //Check that attempt to request is successful
             if (!download.hasException()) {
-                JSONObject jsonObject = JSONObject.fromObject(download.getResponseAsString());
+                //Stream the GML straight into the zip - the response may be far too large to parse into memory
+                String entryName = new SimpleDateFormat((i + 1) + "_yyyyMMdd_HHmmss").format(new Date()) + ".xml";
+                StreamingJSONExtractor extractor = new StreamingJSONExtractor(download.getResponseAsStream());
+                try {
+                    extractor.writeGMLToZip(zout, entryName);
+                } finally {
+                    FileIOUtil.closeQuietly(download.getResponseAsStream());
+                }
+
                 //check that JSON reply is successful
-                if (jsonObject.get("success").toString().equals("false")) {
+                if (Boolean.FALSE.equals(extractor.getSuccess())) {
                     errorMsg.append("Unsuccessful JSON reply from: " + download.getRequestURL() + "\n");
 
-                    Object messageObject = jsonObject.get("msg");
-                    if (messageObject==null || messageObject.toString().length()==0) {
+                    String message = extractor.getMessage();
+                    if (message == null || message.length() == 0) {
                         errorMsg.append("No error message\n\n");
                     } else {
-                        errorMsg.append(messageObject.toString() + "\n\n");
-                    }
-                } else {
-                    byte[] gmlBytes = new byte[] {};
-                    Object dataObject = jsonObject.get("data");
-                    if (dataObject != null && !JSONNull.getInstance().equals(dataObject)) {
-                        Object gmlResponseObject = JSONObject.fromObject(dataObject)
-                                .get("gml");
-
-                        if (gmlResponseObject != null) {
-                            gmlBytes = gmlResponseObject.toString().getBytes();
-                        }
+                        errorMsg.append(message + "\n\n");
                     }
-
-                    zout.putNextEntry(new ZipEntry(new SimpleDateFormat(
-                            (i + 1) + "_yyyyMMdd_HHmmss").format(new Date())
-                            + ".xml"));
-                    zout.write(gmlBytes);
-                    zout.closeEntry();
                 }
-
             } else {
                 errorMsg.append("Exception thrown while attempting to download from: " + download.getRequestURL() + "\n");
                 errorMsg.append(download.getExceptionAsString() + "\n\n");
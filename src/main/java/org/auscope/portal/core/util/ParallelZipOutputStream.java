@@ -0,0 +1,169 @@
+package org.auscope.portal.core.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A ZipOutputStream whose entries are compressed in parallel by a ParallelZipWriter.
+ *
+ * Anything that already writes to a ZipOutputStream (eg ServiceDownloadManager.downloadAllToZip) can use this
+ * class unchanged. The content of each entry is spooled (uncompressed) to a temporary file as it is written and
+ * is handed to executor for compression when the entry is closed, so the caller can move on to the next entry
+ * straight away. Entries appear in the archive in the order they were closed.
+ *
+ * The compression of each entry is decided by the stream's level/method at the time the entry is put
+ * (a STORED entry or a level of Deflater.NO_COMPRESSION will be stored). Sizes and CRCs set on a ZipEntry are
+ * ignored as they are always calculated from the content.
+ */
+public class ParallelZipOutputStream extends ZipOutputStream {
+    /** The underlying ZipOutputStream never receives any data*/
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+
+        }
+    };
+
+    private ParallelZipWriter writer;
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private int method = DEFLATED;
+    private String entryName;
+    private int entryLevel;
+    private File spool;
+    private OutputStream spoolStream;
+    private boolean closed = false;
+
+    /**
+     * Creates a new stream
+     * @param out Will receive the archive (it will be closed when this stream is closed)
+     * @param executor Used to compress entries in parallel. If null, entries are compressed on the calling thread
+     */
+    public ParallelZipOutputStream(OutputStream out, Executor executor) {
+        super(DISCARD);
+        this.out = out;
+        this.writer = new ParallelZipWriter(out, executor, null);
+    }
+
+    @Override
+    public void setLevel(int level) {
+        if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("invalid compression level");
+        }
+        this.level = level;
+    }
+
+    @Override
+    public void setMethod(int method) {
+        if (method != DEFLATED && method != STORED) {
+            throw new IllegalArgumentException("invalid compression method");
+        }
+        this.method = method;
+    }
+
+    @Override
+    public void putNextEntry(ZipEntry e) throws IOException {
+        ensureOpen();
+        closeEntry();
+
+        int entryMethod = e.getMethod() == -1 ? method : e.getMethod();
+        entryName = e.getName();
+        entryLevel = entryMethod == STORED ? Deflater.NO_COMPRESSION : level;
+        spool = File.createTempFile("APT_ZIP", ".raw");
+        spool.deleteOnExit();
+        spoolStream = new BufferedOutputStream(new FileOutputStream(spool), 32 * 1024);
+    }
+
+    @Override
+    public void closeEntry() throws IOException {
+        ensureOpen();
+        if (spoolStream == null) {
+            return;
+        }
+
+        final File data = spool;
+        spoolStream.close();
+        spoolStream = null;
+        spool = null;
+        writer.putEntry(entryName, entryLevel, new FileInputStream(data) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    data.delete();
+                }
+            }
+        }, true);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (spoolStream == null) {
+            throw new ZipException("no current ZIP entry");
+        }
+        spoolStream.write(b, off, len);
+    }
+
+    /**
+     * Writes every entry that has finished compressing and flushes the underlying stream. Entries that are
+     * still compressing will be written by a later flush or finish.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        writer.flush();
+    }
+
+    /**
+     * Waits for every entry to finish compressing and writes them (and the central directory) without closing
+     * the underlying stream
+     */
+    @Override
+    public void finish() throws IOException {
+        ensureOpen();
+        try {
+            closeEntry();
+        } finally {
+            writer.finish();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            finish();
+        } finally {
+            closed = true;
+            if (spoolStream != null) {
+                FileIOUtil.closeQuietly(spoolStream);
+                spool.delete();
+            }
+            def.end();
+            out.close();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+}
@@ -0,0 +1,411 @@
+package org.auscope.portal.core.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Writes a zip archive whose entries are compressed in parallel.
+ *
+ * java.util.zip.ZipOutputStream can only deflate one entry at a time on the calling thread. This writer instead
+ * compresses each entry (on an executor) into its own temporary file and then writes the compressed entries to
+ * the underlying stream sequentially in the order they were added. Entries are written as soon as they (and
+ * every entry before them) are ready, so the archive is streamed while later entries are still compressing.
+ *
+ * The compression of each entry is decided by a ZipCompressionPolicy. Zip64 extensions are written only when they
+ * are needed - for entries (or offsets) of 4GB or more and for archives with more than 65535 entries - so smaller
+ * archives remain readable by tools without Zip64 support.
+ */
+public class ParallelZipWriter {
+    private static final long MAX_32 = 0xFFFFFFFFL;
+    private static final int MAX_16 = 0xFFFF;
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private OutputStream out;
+    private Executor executor;
+    private ZipCompressionPolicy policy;
+    private List<FutureTask<PreparedEntry>> pending = new ArrayList<FutureTask<PreparedEntry>>();
+    private List<PreparedEntry> written = new ArrayList<PreparedEntry>();
+    private long offset = 0;
+    private boolean finished = false;
+    private boolean forceZip64 = false;
+
+    /**
+     * Creates a new writer
+     * @param out Will receive the archive (it will NOT be closed)
+     * @param executor Used to compress entries in parallel. If null, entries are compressed on the calling thread
+     * @param policy Decides how each entry is compressed
+     */
+    public ParallelZipWriter(OutputStream out, Executor executor, ZipCompressionPolicy policy) {
+        this.out = out;
+        this.executor = executor;
+        this.policy = policy == null ? new ZipCompressionPolicy() : policy;
+    }
+
+    /**
+     * If true, Zip64 sizes are written for every entry along with a Zip64 end of central directory (even if they
+     * aren't needed). Offsets only use Zip64 when they need to (JDK 8's ZipFile misreads an entry whose sizes and
+     * offset are all in the Zip64 extra field).
+     * @param forceZip64
+     */
+    void setForceZip64(boolean forceZip64) {
+        this.forceZip64 = forceZip64;
+    }
+
+    /**
+     * Queues an entry for compression. in will be read (and compressed) in the background.
+     * @param name The name of the entry
+     * @param contentType The content type of in (used to decide the entry's compression)
+     * @param in The entry's content
+     * @param closeInput true if in should be closed once it has been read
+     * @throws IOException
+     */
+    public void putEntry(String name, String contentType, InputStream in, boolean closeInput) throws IOException {
+        putEntry(name, policy.getLevel(contentType), in, closeInput);
+    }
+
+    /**
+     * Queues an entry for compression at a specific level. in will be read (and compressed) in the background.
+     * @param name The name of the entry
+     * @param level A java.util.zip.Deflater level (Deflater.NO_COMPRESSION entries will be STORED)
+     * @param in The entry's content
+     * @param closeInput true if in should be closed once it has been read
+     * @throws IOException
+     */
+    public void putEntry(String name, int level, InputStream in, boolean closeInput) throws IOException {
+        if (finished) {
+            throw new IOException("The archive has already been finished");
+        }
+
+        FutureTask<PreparedEntry> task = new FutureTask<PreparedEntry>(new Compressor(name, level, in, closeInput));
+        pending.add(task);
+        if (executor == null) {
+            task.run();
+        } else {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException ex) {
+                task.run();
+            }
+        }
+        writeReadyEntries(false);
+    }
+
+    /**
+     * Queues an entry whose content is already in memory
+     * @param name The name of the entry
+     * @param data The entry's content
+     * @throws IOException
+     */
+    public void putEntry(String name, byte[] data) throws IOException {
+        putEntry(name, "text/plain", new ByteArrayInputStream(data), true);
+    }
+
+    /**
+     * Writes every entry that has finished compressing (and every entry before it) and flushes the underlying stream
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        writeReadyEntries(false);
+        out.flush();
+    }
+
+    /**
+     * Writes every compressed entry (in order) until the first entry that is still compressing
+     * @param wait if true, waits for every pending entry
+     */
+    private void writeReadyEntries(boolean wait) throws IOException {
+        while (!pending.isEmpty() && (wait || pending.get(0).isDone())) {
+            FutureTask<PreparedEntry> task = pending.remove(0);
+            PreparedEntry entry;
+            try {
+                entry = task.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for an entry to compress", ex);
+            } catch (ExecutionException ex) {
+                throw new IOException("Unable to compress zip entry", ex.getCause());
+            }
+
+            try {
+                writeEntry(entry);
+            } finally {
+                entry.data.delete();
+            }
+        }
+    }
+
+    /**
+     * Waits for every entry to finish compressing, writes them and then writes the zip central directory.
+     * The underlying stream is flushed but not closed.
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        try {
+            writeReadyEntries(true);
+        } finally {
+            finished = true;
+            discardPending();
+        }
+
+        long centralStart = offset;
+        for (PreparedEntry entry : written) {
+            //Only the values that don't fit are moved into the Zip64 extra field (in this order)
+            boolean zip64Size = forceZip64 || entry.size >= MAX_32 || entry.compressedSize >= MAX_32;
+            boolean zip64Offset = entry.offset >= MAX_32;
+            int extraLength = (zip64Size ? 16 : 0) + (zip64Offset ? 8 : 0);
+
+            writeInt(0x02014b50);
+            writeShort(extraLength > 0 ? 45 : 20); //version made by
+            writeShort(extraLength > 0 ? 45 : 20); //version needed
+            writeShort(0x0800); //UTF-8 names
+            writeShort(entry.method);
+            writeInt(entry.dosTime);
+            writeInt(entry.crc);
+            writeInt(zip64Size ? MAX_32 : entry.compressedSize);
+            writeInt(zip64Size ? MAX_32 : entry.size);
+            writeShort(entry.nameBytes.length);
+            writeShort(extraLength > 0 ? extraLength + 4 : 0); //extra
+            writeShort(0); //comment
+            writeShort(0); //disk start
+            writeShort(0); //internal attributes
+            writeInt(0); //external attributes
+            writeInt(zip64Offset ? MAX_32 : entry.offset);
+            writeBytes(entry.nameBytes, 0, entry.nameBytes.length);
+            if (extraLength > 0) {
+                writeShort(0x0001);
+                writeShort(extraLength);
+                if (zip64Size) {
+                    writeLong(entry.size);
+                    writeLong(entry.compressedSize);
+                }
+                if (zip64Offset) {
+                    writeLong(entry.offset);
+                }
+            }
+        }
+        long centralSize = offset - centralStart;
+
+        if (forceZip64 || written.size() >= MAX_16 || centralStart >= MAX_32 || centralSize >= MAX_32) {
+            long zip64End = offset;
+            writeInt(0x06064b50); //Zip64 end of central directory
+            writeLong(44);
+            writeShort(45);
+            writeShort(45);
+            writeInt(0);
+            writeInt(0);
+            writeLong(written.size());
+            writeLong(written.size());
+            writeLong(centralSize);
+            writeLong(centralStart);
+
+            writeInt(0x07064b50); //Zip64 end of central directory locator
+            writeInt(0);
+            writeLong(zip64End);
+            writeInt(1);
+
+            writeInt(0x06054b50);
+            writeShort(0);
+            writeShort(0);
+            writeShort(MAX_16);
+            writeShort(MAX_16);
+            writeInt(MAX_32);
+            writeInt(MAX_32);
+            writeShort(0);
+        } else {
+            writeInt(0x06054b50);
+            writeShort(0);
+            writeShort(0);
+            writeShort(written.size());
+            writeShort(written.size());
+            writeInt(centralSize);
+            writeInt(centralStart);
+            writeShort(0);
+        }
+        out.flush();
+    }
+
+    /**
+     * Abandons any entries that haven't been written (eg due to an earlier failure)
+     */
+    private void discardPending() {
+        for (FutureTask<PreparedEntry> task : pending) {
+            try {
+                task.get().data.delete();
+            } catch (Exception ex) {
+                log.debug("Discarding failed zip entry", ex);
+            }
+        }
+        pending.clear();
+    }
+
+    private void writeEntry(PreparedEntry entry) throws IOException {
+        //Sizes are known up front so the local header only needs Zip64 if the entry itself is too large
+        boolean zip64 = forceZip64 || entry.size >= MAX_32 || entry.compressedSize >= MAX_32;
+
+        entry.offset = offset;
+        writeInt(0x04034b50);
+        writeShort(zip64 ? 45 : 20);
+        writeShort(0x0800);
+        writeShort(entry.method);
+        writeInt(entry.dosTime);
+        writeInt(entry.crc);
+        writeInt(zip64 ? MAX_32 : entry.compressedSize);
+        writeInt(zip64 ? MAX_32 : entry.size);
+        writeShort(entry.nameBytes.length);
+        writeShort(zip64 ? 20 : 0);
+        writeBytes(entry.nameBytes, 0, entry.nameBytes.length);
+        if (zip64) {
+            writeShort(0x0001);
+            writeShort(16);
+            writeLong(entry.size);
+            writeLong(entry.compressedSize);
+        }
+
+        FileInputStream fis = new FileInputStream(entry.data);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = fis.read(buffer)) >= 0) {
+                writeBytes(buffer, 0, read);
+            }
+        } finally {
+            fis.close();
+        }
+        out.flush();
+        written.add(entry);
+    }
+
+    private void writeBytes(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        offset += len;
+    }
+
+    private void writeShort(int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >>> 8) & 0xff);
+        offset += 2;
+    }
+
+    private void writeInt(long value) throws IOException {
+        writeShort((int) (value & 0xffff));
+        writeShort((int) ((value >>> 16) & 0xffff));
+    }
+
+    private void writeLong(long value) throws IOException {
+        writeInt(value & MAX_32);
+        writeInt(value >>> 32);
+    }
+
+    /**
+     * Converts a java time into an MS-DOS date/time (date in the high 16 bits)
+     */
+    private static long toDosTime(long time) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time);
+        int year = c.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return ((long) (year - 1980) << 25) | ((c.get(Calendar.MONTH) + 1) << 21) | (c.get(Calendar.DAY_OF_MONTH) << 16) |
+               (c.get(Calendar.HOUR_OF_DAY) << 11) | (c.get(Calendar.MINUTE) << 5) | (c.get(Calendar.SECOND) >> 1);
+    }
+
+    /**
+     * A compressed entry waiting to be written
+     */
+    private static class PreparedEntry {
+        private String name;
+        private byte[] nameBytes;
+        private int method;
+        private long crc;
+        private long size;
+        private long compressedSize;
+        private long dosTime;
+        private long offset;
+        private File data;
+    }
+
+    /**
+     * Reads and compresses a single entry into a temporary file
+     */
+    private static class Compressor implements Callable<PreparedEntry> {
+        private String name;
+        private int level;
+        private InputStream in;
+        private boolean closeInput;
+
+        public Compressor(String name, int level, InputStream in, boolean closeInput) {
+            this.name = name;
+            this.level = level;
+            this.in = in;
+            this.closeInput = closeInput;
+        }
+
+        @Override
+        public PreparedEntry call() throws Exception {
+            PreparedEntry entry = new PreparedEntry();
+            entry.name = name;
+            entry.nameBytes = name.getBytes("UTF-8");
+            entry.method = level == Deflater.NO_COMPRESSION ? 0 : 8;
+            entry.dosTime = toDosTime(System.currentTimeMillis());
+            entry.data = File.createTempFile("APT_ZIP", ".part");
+            entry.data.deleteOnExit();
+
+            CRC32 crc = new CRC32();
+            Deflater deflater = entry.method == 0 ? null : new Deflater(level, true);
+            try {
+                FileOutputStream fos = new FileOutputStream(entry.data);
+                OutputStream os = deflater == null ? fos : new DeflaterOutputStream(fos, deflater, BUFFER_SIZE);
+                try {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int read;
+                    while ((read = in.read(buffer)) >= 0) {
+                        crc.update(buffer, 0, read);
+                        os.write(buffer, 0, read);
+                        entry.size += read;
+                    }
+                } finally {
+                    os.close();
+                }
+            } catch (Exception ex) {
+                entry.data.delete();
+                throw ex;
+            } finally {
+                if (deflater != null) {
+                    deflater.end();
+                }
+                if (closeInput) {
+                    FileIOUtil.closeQuietly(in);
+                }
+            }
+
+            entry.crc = crc.getValue();
+            entry.compressedSize = entry.data.length();
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,407 @@
+package org.auscope.portal.core.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Extracts the GML from a portal JSON response of the form {success: true, msg: '', data: {gml: '...', kml: '...'}}
+ * without parsing the response into memory.
+ *
+ * The response is tokenized as it is read and the (unescaped) gml string is streamed directly into a zip entry,
+ * so memory use is constant regardless of the size of the payload. If the gml arrives before the success flag
+ * it is spooled to a temporary file until the flag has been read.
+ */
+public class StreamingJSONExtractor {
+    /** The maximum number of characters of any key or msg value that will be kept*/
+    private static final int MAX_SHORT_STRING = 4096;
+
+    private Reader reader;
+    private char[] buffer = new char[64 * 1024];
+    private int position = 0;
+    private int limit = 0;
+    private int peeked = -2;
+
+    private Boolean success = null;
+    private String message = null;
+    private boolean entryWritten = false;
+    private File spooled = null;
+
+    /**
+     * Creates a new extractor reading a UTF-8 encoded JSON response
+     * @param in The response (will NOT be closed)
+     * @throws IOException
+     */
+    public StreamingJSONExtractor(InputStream in) throws IOException {
+        this.reader = new InputStreamReader(in, "UTF-8");
+    }
+
+    /**
+     * The value of the response's success flag (or null if the response had no success flag)
+     * @return
+     */
+    public Boolean getSuccess() {
+        return success;
+    }
+
+    /**
+     * The response's msg value (truncated to a sensible length) or null if there was none
+     * @return
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Reads the entire response, writing data.gml into a new entry (entryName) in zout. If the response reports
+     * success=false nothing will be written. If the response has no gml an empty entry will be written.
+     *
+     * @param zout Will receive the entry
+     * @param entryName The name of the entry
+     * @return true if an entry was written
+     * @throws IOException If the response is not valid JSON or zout cannot be written to
+     */
+    public boolean writeGMLToZip(ZipOutputStream zout, String entryName) throws IOException {
+        try {
+            parseResponse(zout, entryName);
+            if (Boolean.FALSE.equals(success)) {
+                return entryWritten;
+            }
+
+            if (!entryWritten) {
+                zout.putNextEntry(new ZipEntry(entryName));
+                if (spooled != null) {
+                    FileInputStream fis = new FileInputStream(spooled);
+                    try {
+                        FileIOUtil.writeInputToOutputStream(fis, zout, 8 * 1024, false);
+                    } finally {
+                        fis.close();
+                    }
+                }
+                zout.closeEntry();
+                entryWritten = true;
+            }
+            return entryWritten;
+        } finally {
+            if (spooled != null) {
+                spooled.delete();
+                spooled = null;
+            }
+        }
+    }
+
+    private void parseResponse(ZipOutputStream zout, String entryName) throws IOException {
+        expect('{');
+        while (true) {
+            int c = next();
+            if (c == '}') {
+                return;
+            } else if (c == ',') {
+                continue;
+            } else if (c != '"') {
+                throw error("Expected a key", c);
+            }
+
+            String key = readShortString();
+            expect(':');
+            if ("success".equals(key)) {
+                String value = readScalar();
+                success = value == null ? null : !"false".equals(value);
+            } else if ("msg".equals(key)) {
+                if (peek() == '"') {
+                    next();
+                    message = readShortString();
+                } else {
+                    message = readScalar();
+                }
+            } else if ("data".equals(key) && peek() == '{') {
+                next();
+                parseData(zout, entryName);
+            } else {
+                skipValue();
+            }
+        }
+    }
+
+    private void parseData(ZipOutputStream zout, String entryName) throws IOException {
+        while (true) {
+            int c = next();
+            if (c == '}') {
+                return;
+            } else if (c == ',') {
+                continue;
+            } else if (c != '"') {
+                throw error("Expected a key", c);
+            }
+
+            String key = readShortString();
+            expect(':');
+            if ("gml".equals(key) && peek() == '"') {
+                next();
+                writeGML(zout, entryName);
+            } else {
+                skipValue();
+            }
+        }
+    }
+
+    /**
+     * Writes the gml string (whose opening quote has been consumed) into zout or a spool file
+     */
+    private void writeGML(ZipOutputStream zout, String entryName) throws IOException {
+        if (Boolean.FALSE.equals(success) || entryWritten || spooled != null) {
+            readString(null);
+        } else if (Boolean.TRUE.equals(success)) {
+            zout.putNextEntry(new ZipEntry(entryName));
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new NonClosingOutputStream(zout), "UTF-8"));
+            readString(writer);
+            writer.close();
+            zout.closeEntry();
+            entryWritten = true;
+        } else {
+            //We don't know if the response is successful yet - hold onto the gml until we do
+            spooled = File.createTempFile("APT_JSON", ".gml");
+            spooled.deleteOnExit();
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(spooled), "UTF-8"));
+            try {
+                readString(writer);
+            } finally {
+                writer.close();
+            }
+        }
+    }
+
+    private IOException error(String message, int c) {
+        return new IOException(String.format("Invalid JSON - %1$s but found '%2$s'", message, c < 0 ? "EOF" : String.valueOf((char) c)));
+    }
+
+    /**
+     * Ensures there is at least one character in buffer
+     * @return false if the end of input has been reached
+     */
+    private boolean fill() throws IOException {
+        while (position >= limit) {
+            limit = reader.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit < 0) {
+                limit = 0;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int readRaw() throws IOException {
+        return fill() ? buffer[position++] : -1;
+    }
+
+    private int read() throws IOException {
+        if (peeked != -2) {
+            int c = peeked;
+            peeked = -2;
+            return c;
+        }
+        return readRaw();
+    }
+
+    /**
+     * Gets the next non whitespace character
+     */
+    private int next() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c == ' ' || c == '\t' || c == '\n' || c == '\r');
+        return c;
+    }
+
+    /**
+     * Gets (but doesn't consume) the next non whitespace character
+     */
+    private int peek() throws IOException {
+        int c = next();
+        peeked = c;
+        return c;
+    }
+
+    private void expect(char expected) throws IOException {
+        int c = next();
+        if (c != expected) {
+            throw error("Expected '" + expected + "'", c);
+        }
+    }
+
+    /**
+     * Reads a string (whose opening quote has been consumed), keeping at most MAX_SHORT_STRING characters
+     */
+    private String readShortString() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        readString(null, sb);
+        return sb.toString();
+    }
+
+    /**
+     * Reads a string (whose opening quote has been consumed) unescaping it into out (which can be null)
+     */
+    private void readString(Writer out) throws IOException {
+        readString(out, null);
+    }
+
+    /**
+     * Reads a string (whose opening quote has been consumed) unescaping it into either out or sb (either can be null).
+     * Runs of unescaped characters are copied straight from the read buffer.
+     */
+    private void readString(Writer out, StringBuilder sb) throws IOException {
+        while (true) {
+            if (!fill()) {
+                throw error("Unterminated string", -1);
+            }
+
+            //Copy everything up until the next quote or escape in one go
+            int start = position;
+            while (position < limit && buffer[position] != '"' && buffer[position] != '\\') {
+                position++;
+            }
+            if (position > start) {
+                if (out != null) {
+                    out.write(buffer, start, position - start);
+                } else if (sb != null && sb.length() < MAX_SHORT_STRING) {
+                    sb.append(buffer, start, Math.min(position - start, MAX_SHORT_STRING - sb.length()));
+                }
+            }
+            if (position >= limit) {
+                continue;
+            }
+
+            char c = buffer[position++];
+            if (c == '"') {
+                return;
+            }
+
+            int unescaped = readEscape();
+            if (out != null) {
+                out.write(unescaped);
+            } else if (sb != null && sb.length() < MAX_SHORT_STRING) {
+                sb.append((char) unescaped);
+            }
+        }
+    }
+
+    /**
+     * Reads the remainder of an escape sequence (whose backslash has been consumed)
+     */
+    private int readEscape() throws IOException {
+        int escaped = readRaw();
+        switch (escaped) {
+        case 'b': return '\b';
+        case 'f': return '\f';
+        case 'n': return '\n';
+        case 'r': return '\r';
+        case 't': return '\t';
+        case 'u':
+            char[] hex = new char[4];
+            for (int i = 0; i < 4; i++) {
+                int h = readRaw();
+                if (h < 0) {
+                    throw error("Unterminated unicode escape", h);
+                }
+                hex[i] = (char) h;
+            }
+            try {
+                return Integer.parseInt(new String(hex), 16);
+            } catch (NumberFormatException ex) {
+                throw new IOException("Invalid JSON - bad unicode escape \\u" + new String(hex));
+            }
+        default:
+            if (escaped < 0) {
+                throw error("Unterminated escape", escaped);
+            }
+            return escaped; //Covers \" \\ and \/
+        }
+    }
+
+    /**
+     * Reads a literal (true/false/null/number) or a short string, returning null for JSON null or for
+     * an object/array (which will be skipped)
+     */
+    private String readScalar() throws IOException {
+        int c = peek();
+        if (c == '"') {
+            next();
+            return readShortString();
+        } else if (c == '{' || c == '[') {
+            skipValue();
+            return null;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            c = read();
+            if (c < 0 || c == ',' || c == '}' || c == ']' || c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                peeked = c;
+                break;
+            }
+            if (sb.length() < MAX_SHORT_STRING) {
+                sb.append((char) c);
+            }
+        }
+        String value = sb.toString();
+        return "null".equals(value) ? null : value;
+    }
+
+    /**
+     * Skips over the next value (of any type) without storing it
+     */
+    private void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            int c = next();
+            if (c < 0) {
+                throw error("Unexpected end of input", c);
+            } else if (c == '"') {
+                readString(null);
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                depth--;
+                if (depth < 0) {
+                    throw error("Unexpected close", c);
+                }
+            } else if (depth == 0 && c != ',' && c != ':') {
+                //A literal value at the top level - consume the remainder of it
+                peeked = c;
+                readScalar();
+            }
+        } while (depth > 0);
+    }
+
+    /**
+     * Prevents the writer from closing the zip stream
+     */
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        public NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package org.auscope.portal.core.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Decides how each entry of a download archive should be compressed.
+ *
+ * Content that is already compressed (eg PNG/JPEG images, zipped shapefiles, KMZ, NetCDF) gains nothing from
+ * being deflated again so it is stored as is. Everything else is deflated at a configurable level.
+ */
+public class ZipCompressionPolicy {
+
+    /** Content types (or prefixes of content types) that are already compressed*/
+    public static final String[] DEFAULT_STORED_CONTENT_TYPES = {
+        "image/png", "image/jpeg", "image/jpg", "image/gif", "image/webp",
+        "application/zip", "application/x-zip-compressed", "application/gzip", "application/x-gzip",
+        "application/x-bzip2", "application/x-7z-compressed", "application/vnd.google-earth.kmz", "kmz",
+        "application/x-netcdf", "application/netcdf", "application/x-hdf", "application/pdf"
+    };
+
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private List<String> storedContentTypes = new ArrayList<String>(Arrays.asList(DEFAULT_STORED_CONTENT_TYPES));
+
+    /**
+     * Creates a new policy that deflates at the default level and stores DEFAULT_STORED_CONTENT_TYPES
+     */
+    public ZipCompressionPolicy() {
+
+    }
+
+    /**
+     * Creates a new policy that deflates at level and stores DEFAULT_STORED_CONTENT_TYPES
+     * @param level A java.util.zip.Deflater level (0-9 or -1 for the default)
+     */
+    public ZipCompressionPolicy(int level) {
+        this.level = level;
+    }
+
+    /**
+     * The deflate level (0-9 or -1 for the default) used for compressible content
+     * @return
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * The deflate level (0-9 or -1 for the default) used for compressible content
+     * @param level
+     */
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    /**
+     * Content types (or prefixes of content types) that will be stored without compression
+     * @return
+     */
+    public List<String> getStoredContentTypes() {
+        return storedContentTypes;
+    }
+
+    /**
+     * Content types (or prefixes of content types) that will be stored without compression
+     * @param storedContentTypes
+     */
+    public void setStoredContentTypes(List<String> storedContentTypes) {
+        this.storedContentTypes = storedContentTypes;
+    }
+
+    /**
+     * Returns true if content of contentType should be stored without compression
+     * @param contentType Can be null
+     * @return
+     */
+    public boolean shouldStore(String contentType) {
+        if (level == Deflater.NO_COMPRESSION) {
+            return true;
+        }
+        if (contentType == null) {
+            return false;
+        }
+
+        String normalised = contentType.trim().toLowerCase();
+        for (String stored : storedContentTypes) {
+            if (normalised.startsWith(stored.toLowerCase())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the deflate level that should be used for content of contentType (Deflater.NO_COMPRESSION if it should be stored)
+     * @param contentType Can be null
+     * @return
+     */
+    public int getLevel(String contentType) {
+        return shouldStore(contentType) ? Deflater.NO_COMPRESSION : level;
+    }
+}
@@ -0,0 +1,48 @@
+package org.auscope.portal.core.server.controllers;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.auscope.portal.core.services.CSWExportService;
+import org.auscope.portal.core.services.CSWExportService.ExportFormat;
+import org.auscope.portal.core.services.responses.csw.CSWGeographicBoundingBox;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.test.jmock.ReadableServletOutputStream;
+import org.jmock.Expectations;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for BaseCSWController
+ */
+public class TestBaseCSWController extends PortalTestClass {
+
+    private class BaseCSWControllerImpl extends BaseCSWController {
+        public BaseCSWControllerImpl() {
+            super(null, null);
+        }
+    }
+
+    private BaseCSWControllerImpl controller = new BaseCSWControllerImpl();
+    private CSWExportService mockExportService = context.mock(CSWExportService.class);
+    private HttpServletResponse mockResponse = context.mock(HttpServletResponse.class);
+
+    /**
+     * Exports should be streamed to the response as a gzip attachment
+     */
+    @Test
+    public void testWriteCSWRecordExport() throws Exception {
+        final ReadableServletOutputStream out = new ReadableServletOutputStream();
+        final String[] keywords = new String[] {"kw"};
+        final CSWGeographicBoundingBox bbox = new CSWGeographicBoundingBox(110, 150, -40, -10);
+
+        context.checking(new Expectations() {{
+            allowing(mockExportService).getFileName(ExportFormat.CSV);will(returnValue("cswRecords.csv.gz"));
+            oneOf(mockResponse).setContentType("application/gzip");
+            oneOf(mockResponse).setHeader("Content-Disposition", "attachment; filename=\"cswRecords.csv.gz\"");
+            oneOf(mockResponse).getOutputStream();will(returnValue(out));
+            oneOf(mockExportService).export(ExportFormat.CSV, keywords, bbox, out);will(returnValue(3));
+        }});
+
+        Assert.assertEquals(3, controller.writeCSWRecordExport(mockExportService, mockResponse, ExportFormat.CSV, keywords, bbox));
+    }
+}
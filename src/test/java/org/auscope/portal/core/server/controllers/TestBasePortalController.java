@@ -12,12 +12,19 @@ import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
+import javax.servlet.http.HttpServletResponse;
 
 import org.apache.http.client.methods.HttpGet;
+import org.auscope.portal.core.server.http.download.DownloadJournal;
 import org.auscope.portal.core.server.http.download.DownloadResponse;
+import org.auscope.portal.core.server.http.download.DownloadTracker;
+import org.auscope.portal.core.server.http.download.ServiceDownloadManager;
 import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.test.jmock.ReadableServletOutputStream;
 import org.auscope.portal.core.util.FileIOUtil;
 import org.jmock.Expectations;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
 import org.junit.Assert;
 import org.junit.Test;
 import org.springframework.ui.ModelMap;
@@ -222,4 +229,39 @@ public class TestBasePortalController extends PortalTestClass {
 
         FileIOUtil.writeInputToOutputStream(mockInput, outputStream, bufferSize, false);
     }
+
+    /**
+     * Downloads should be streamed straight into the response as a zip attachment
+     * @throws Exception
+     */
+    @Test
+    public void testWriteDownloadsToZipResponse() throws Exception {
+        final ServiceDownloadManager mockSdm = context.mock(ServiceDownloadManager.class);
+        final HttpServletResponse mockResponse = context.mock(HttpServletResponse.class);
+        final ReadableServletOutputStream out = new ReadableServletOutputStream();
+
+        context.checking(new Expectations() {{
+            oneOf(mockResponse).setContentType("application/zip");
+            oneOf(mockResponse).setHeader("Content-Disposition", "attachment; filename=\"downloads.zip\"");
+            oneOf(mockResponse).getOutputStream();will(returnValue(out));
+            oneOf(mockSdm).downloadAllToZip(with(any(ZipOutputStream.class)), with(same(DownloadTracker.getZipCompressionPolicy())), with(aNull(DownloadJournal.class)), with(aNull(DownloadJournal.Job.class)));
+            will(new CustomAction("write entry") {
+                @Override
+                public Object invoke(Invocation invocation) throws Throwable {
+                    ZipOutputStream zout = (ZipOutputStream) invocation.getParameter(0);
+                    zout.putNextEntry(new ZipEntry("1.xml"));
+                    zout.write("<xml/>".getBytes());
+                    zout.closeEntry();
+                    return 1;
+                }
+            });
+        }});
+
+        Assert.assertEquals(1, basePortalController.writeDownloadsToZipResponse(mockSdm, mockResponse, "downloads.zip"));
+
+        ZipInputStream zin = out.getZipInputStream();
+        ZipEntry entry = zin.getNextEntry();
+        Assert.assertEquals("1.xml", entry.getName());
+        Assert.assertNull(zin.getNextEntry());
+    }
 }
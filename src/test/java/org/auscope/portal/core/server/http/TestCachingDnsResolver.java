@@ -0,0 +1,101 @@
+package org.auscope.portal.core.server.http;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for CachingDnsResolver
+ */
+public class TestCachingDnsResolver extends PortalTestClass {
+
+    /**
+     * A resolver that resolves "good.example" to a fixed address (and fails everything else) and counts lookups
+     */
+    private static class CountingResolver extends CachingDnsResolver {
+        private AtomicInteger lookups = new AtomicInteger();
+
+        public CountingResolver(long ttlMs) {
+            super(ttlMs);
+        }
+
+        @Override
+        protected InetAddress[] lookup(String host) throws UnknownHostException {
+            lookups.incrementAndGet();
+            if ("good.example".equals(host)) {
+                return new InetAddress[] {InetAddress.getByAddress(host, new byte[] {10, 0, 0, 1})};
+            }
+            throw new UnknownHostException(host);
+        }
+    }
+
+    /**
+     * Successful lookups should be cached until they expire
+     */
+    @Test
+    public void testCachesUntilExpiry() throws Exception {
+        CountingResolver resolver = new CountingResolver(200);
+
+        InetAddress[] first = resolver.resolve("good.example");
+        InetAddress[] second = resolver.resolve("good.example");
+        Assert.assertEquals(1, resolver.lookups.get());
+        Assert.assertTrue(Arrays.equals(first, second));
+        Assert.assertEquals(Arrays.asList("good.example"), resolver.getCachedHosts());
+
+        Thread.sleep(250);
+        Assert.assertTrue(resolver.getCachedHosts().isEmpty());
+        resolver.resolve("good.example");
+        Assert.assertEquals(2, resolver.lookups.get());
+    }
+
+    /**
+     * Failed lookups should never be cached
+     */
+    @Test
+    public void testFailuresNotCached() throws Exception {
+        CountingResolver resolver = new CountingResolver(60000);
+
+        Assert.assertFalse(resolver.prefetch("bad.example"));
+        try {
+            resolver.resolve("bad.example");
+            Assert.fail("Expected UnknownHostException");
+        } catch (UnknownHostException ex) {
+            //expected
+        }
+        Assert.assertEquals(2, resolver.lookups.get());
+        Assert.assertTrue(resolver.getCachedHosts().isEmpty());
+    }
+
+    /**
+     * By default lookups should only be cached here if the JVM doesn't cache them
+     */
+    @Test
+    public void testDefaultTtl() {
+        Assert.assertEquals(0, CachingDnsResolver.getDefaultTtlMs(null));
+        Assert.assertEquals(0, CachingDnsResolver.getDefaultTtlMs("30"));
+        Assert.assertEquals(0, CachingDnsResolver.getDefaultTtlMs("-1"));
+        Assert.assertEquals(0, CachingDnsResolver.getDefaultTtlMs("junk"));
+        Assert.assertEquals(CachingDnsResolver.DEFAULT_TTL_MS, CachingDnsResolver.getDefaultTtlMs("0"));
+    }
+
+    /**
+     * Prefetch should always refresh the cache entry
+     */
+    @Test
+    public void testPrefetchRefreshes() throws Exception {
+        CountingResolver resolver = new CountingResolver(60000);
+
+        Assert.assertTrue(resolver.prefetch("good.example"));
+        Assert.assertTrue(resolver.prefetch("good.example"));
+        resolver.resolve("good.example");
+        Assert.assertEquals(2, resolver.lookups.get());
+
+        resolver.clear();
+        Assert.assertTrue(resolver.getCachedHosts().isEmpty());
+    }
+}
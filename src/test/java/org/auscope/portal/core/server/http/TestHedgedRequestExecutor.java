@@ -0,0 +1,323 @@
+package org.auscope.portal.core.server.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.params.CoreConnectionPNames;
+import org.auscope.portal.core.configuration.ServiceConfigurationItem;
+import org.auscope.portal.core.server.http.download.MyHttpResponse;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.jmock.Expectations;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for HedgedRequestExecutor
+ */
+public class TestHedgedRequestExecutor extends PortalTestClass {
+    private static final String PRIMARY_URL = "http://primary.example/csw";
+    private static final String MIRROR_URL = "http://mirror.example/csw";
+
+    private HttpServiceCaller mockServiceCaller = context.mock(HttpServiceCaller.class);
+    private HedgingPolicy policy;
+    private HedgedRequestExecutor executor;
+
+    @Before
+    public void setUp() {
+        policy = new HedgingPolicy();
+        policy.setDefaultDelayMs(100);
+        policy.setMinimumDelayMs(10);
+        executor = new HedgedRequestExecutor(policy);
+    }
+
+    /**
+     * A primary that responds quickly should never be hedged
+     */
+    @Test
+    public void testFastPrimaryNotHedged() throws Exception {
+        final HttpRequestBase primary = new HttpGet(PRIMARY_URL + "?request=GetRecords");
+        final HttpRequestBase mirror = new HttpGet(MIRROR_URL + "?request=GetRecords");
+        final HttpResponse primaryResponse = new MyHttpResponse(new ByteArrayInputStream("primary".getBytes()));
+
+        context.checking(new Expectations() {{
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(primary);will(returnValue(primaryResponse));
+            never(mockServiceCaller).getMethodResponseAsHttpResponse(mirror);
+        }});
+
+        Assert.assertSame(primaryResponse, executor.execute(mockServiceCaller, primary, new HttpRequestBase[] {mirror}));
+        Assert.assertEquals(1, executor.getRequestCount());
+        Assert.assertEquals(0, executor.getHedgedCount());
+        Assert.assertEquals(0.0, executor.getHedgeRate(), 0.0);
+    }
+
+    /**
+     * A slow primary should be hedged and the (faster) mirror response returned
+     */
+    @Test
+    public void testSlowPrimaryHedged() throws Exception {
+        final HttpRequestBase primary = new HttpGet(PRIMARY_URL + "?request=GetRecords");
+        final HttpRequestBase mirror = new HttpGet(MIRROR_URL + "?request=GetRecords");
+        final HttpResponse primaryResponse = new MyHttpResponse(new ByteArrayInputStream("primary".getBytes()));
+        final HttpResponse mirrorResponse = new MyHttpResponse(new ByteArrayInputStream("mirror".getBytes()));
+
+        context.checking(new Expectations() {{
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(primary);will(delayReturnValue(3000, primaryResponse));
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(mirror);will(delayReturnValue(50, mirrorResponse));
+        }});
+
+        startTimer();
+        HttpResponse response = executor.execute(mockServiceCaller, primary, new HttpRequestBase[] {mirror});
+        long elapsed = endTimer();
+
+        Assert.assertSame(mirrorResponse, response);
+        Assert.assertTrue("Took too long: " + elapsed, elapsed < 2000);
+        Assert.assertTrue("Primary should have been aborted", primary.isAborted());
+        Assert.assertEquals(1, executor.getHedgedCount());
+        Assert.assertEquals(1, executor.getHedgeWinCount());
+        Assert.assertEquals(1.0, executor.getHedgeWinRate(), 0.0);
+    }
+
+    /**
+     * A failing primary should immediately fall over to the mirror
+     */
+    @Test
+    public void testFailingPrimaryUsesMirror() throws Exception {
+        final HttpRequestBase primary = new HttpGet(PRIMARY_URL + "?request=GetRecords");
+        final HttpRequestBase mirror = new HttpGet(MIRROR_URL + "?request=GetRecords");
+        final HttpResponse mirrorResponse = new MyHttpResponse(new ByteArrayInputStream("mirror".getBytes()));
+
+        context.checking(new Expectations() {{
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(primary);will(throwException(new IOException("primary down")));
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(mirror);will(returnValue(mirrorResponse));
+        }});
+
+        Assert.assertSame(mirrorResponse, executor.execute(mockServiceCaller, primary, new HttpRequestBase[] {mirror}));
+    }
+
+    /**
+     * Each time the delay expires the next untried mirror should be requested
+     */
+    @Test
+    public void testHedgesEveryMirror() throws Exception {
+        final HttpRequestBase primary = new HttpGet(PRIMARY_URL + "?request=GetRecords");
+        final HttpRequestBase mirror1 = new HttpGet(MIRROR_URL + "?request=GetRecords");
+        final HttpRequestBase mirror2 = new HttpGet("http://mirror2.example/csw?request=GetRecords");
+        final HttpResponse mirror2Response = new MyHttpResponse(new ByteArrayInputStream("mirror2".getBytes()));
+
+        context.checking(new Expectations() {{
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(primary);will(delayReturnValue(3000, new MyHttpResponse(new ByteArrayInputStream("primary".getBytes()))));
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(mirror1);will(delayReturnValue(3000, new MyHttpResponse(new ByteArrayInputStream("mirror1".getBytes()))));
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(mirror2);will(delayReturnValue(50, mirror2Response));
+        }});
+
+        Assert.assertSame(mirror2Response, executor.execute(mockServiceCaller, primary, new HttpRequestBase[] {mirror1, mirror2}));
+        Assert.assertTrue(primary.isAborted());
+        Assert.assertTrue(mirror1.isAborted());
+        Assert.assertFalse(mirror2.isAborted());
+        Assert.assertEquals(1, executor.getHedgedCount());
+        Assert.assertEquals(1, executor.getHedgeWinCount());
+    }
+
+    /**
+     * Mirrors that are never requested should still be aborted so that callers can tell which request responded
+     */
+    @Test
+    public void testUnusedMirrorsAborted() throws Exception {
+        final HttpRequestBase primary = new HttpGet(PRIMARY_URL + "?request=GetRecords");
+        final HttpRequestBase mirror1 = new HttpGet(MIRROR_URL + "?request=GetRecords");
+        final HttpRequestBase mirror2 = new HttpGet("http://mirror2.example/csw?request=GetRecords");
+        final HttpResponse mirror1Response = new MyHttpResponse(new ByteArrayInputStream("mirror1".getBytes()));
+        policy.setDefaultDelayMs(60000);
+
+        context.checking(new Expectations() {{
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(primary);will(throwException(new IOException("primary down")));
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(mirror1);will(returnValue(mirror1Response));
+            never(mockServiceCaller).getMethodResponseAsHttpResponse(mirror2);
+        }});
+
+        Assert.assertSame(mirror1Response, executor.execute(mockServiceCaller, primary, new HttpRequestBase[] {mirror1, mirror2}));
+        Assert.assertTrue(primary.isAborted());
+        Assert.assertFalse(mirror1.isAborted());
+        Assert.assertTrue(mirror2.isAborted());
+    }
+
+    /**
+     * Failing mirrors should fall through to the next mirror straight away
+     */
+    @Test
+    public void testFailuresFallThroughMirrors() throws Exception {
+        final HttpRequestBase primary = new HttpGet(PRIMARY_URL + "?request=GetRecords");
+        final HttpRequestBase mirror1 = new HttpGet(MIRROR_URL + "?request=GetRecords");
+        final HttpRequestBase mirror2 = new HttpGet("http://mirror2.example/csw?request=GetRecords");
+        final HttpResponse mirror2Response = new MyHttpResponse(new ByteArrayInputStream("mirror2".getBytes()));
+        policy.setDefaultDelayMs(60000);
+
+        context.checking(new Expectations() {{
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(primary);will(throwException(new IOException("primary down")));
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(mirror1);will(throwException(new IOException("mirror1 down")));
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(mirror2);will(returnValue(mirror2Response));
+        }});
+
+        Assert.assertSame(mirror2Response, executor.execute(mockServiceCaller, primary, new HttpRequestBase[] {mirror1, mirror2}));
+    }
+
+    /**
+     * A request whose body can only be sent once should never be hedged
+     */
+    @Test
+    public void testNonRepeatablePostNotHedged() throws Exception {
+        final HttpPost primary = new HttpPost(PRIMARY_URL);
+        primary.setEntity(new InputStreamEntity(new ByteArrayInputStream("<body/>".getBytes()), -1));
+        final HttpRequestBase mirror = HedgedRequestExecutor.makeMirrorMethod(primary, PRIMARY_URL, MIRROR_URL);
+        final HttpResponse primaryResponse = new MyHttpResponse(new ByteArrayInputStream("primary".getBytes()));
+
+        context.checking(new Expectations() {{
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(primary);will(delayReturnValue(300, primaryResponse));
+            never(mockServiceCaller).getMethodResponseAsHttpResponse(mirror);
+        }});
+
+        Assert.assertSame(primaryResponse, executor.execute(mockServiceCaller, primary, new HttpRequestBase[] {mirror}));
+        Assert.assertEquals(0, executor.getRequestCount());
+    }
+
+    /**
+     * If every request fails the primary exception should be thrown
+     */
+    @Test(expected=IOException.class)
+    public void testAllFail() throws Exception {
+        final HttpRequestBase primary = new HttpGet(PRIMARY_URL + "?request=GetRecords");
+        final HttpRequestBase mirror = new HttpGet(MIRROR_URL + "?request=GetRecords");
+
+        context.checking(new Expectations() {{
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(primary);will(throwException(new IOException("primary down")));
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(mirror);will(throwException(new Exception("mirror down")));
+        }});
+
+        executor.execute(mockServiceCaller, primary, new HttpRequestBase[] {mirror});
+    }
+
+    /**
+     * When both requests complete, the losing response should have its entity closed (so its connection is released)
+     */
+    @Test
+    public void testLosingResponseClosed() throws Exception {
+        final HttpRequestBase primary = new HttpGet(PRIMARY_URL + "?request=GetRecords");
+        final HttpRequestBase mirror = new HttpGet(MIRROR_URL + "?request=GetRecords");
+        final CloseTrackingStream primaryStream = new CloseTrackingStream("primary");
+        final CloseTrackingStream mirrorStream = new CloseTrackingStream("mirror");
+        final HttpResponse primaryResponse = new MyHttpResponse(primaryStream);
+        final HttpResponse mirrorResponse = new MyHttpResponse(mirrorStream);
+        final AtomicBoolean mirrorStarted = new AtomicBoolean(false);
+
+        context.checking(new Expectations() {{
+            //The primary won't respond until the mirror has started (and won't respond to interrupts)
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(primary);will(new CustomAction("wait for mirror") {
+                @Override
+                public Object invoke(Invocation invocation) throws Throwable {
+                    while (!mirrorStarted.get()) {
+                        Thread.yield();
+                    }
+                    return primaryResponse;
+                }
+            });
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(mirror);will(new CustomAction("start mirror") {
+                @Override
+                public Object invoke(Invocation invocation) throws Throwable {
+                    mirrorStarted.set(true);
+                    return mirrorResponse;
+                }
+            });
+        }});
+
+        HttpResponse response = executor.execute(mockServiceCaller, primary, new HttpRequestBase[] {mirror});
+        CloseTrackingStream winner = response == primaryResponse ? primaryStream : mirrorStream;
+        CloseTrackingStream loser = response == primaryResponse ? mirrorStream : primaryStream;
+
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!loser.closed && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue("Losing response was never closed", loser.closed);
+        Assert.assertFalse("Winning response was closed", winner.closed);
+    }
+
+    /**
+     * Tests the delay calculation honours the percentile and bounds
+     */
+    @Test
+    public void testPolicyDelay() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        policy.setMinimumSamples(10);
+        policy.setMaximumDelayMs(500);
+        Assert.assertEquals(100, policy.calculateDelay(null));
+
+        for (int i = 0; i < 100; i++) {
+            histogram.recordValue(200);
+        }
+        long delay = policy.calculateDelay(histogram);
+        Assert.assertTrue("Delay was " + delay, delay >= 200 && delay < 220);
+
+        histogram.recordValue(100000);
+        policy.setDelayPercentile(100);
+        Assert.assertEquals(500, policy.calculateDelay(histogram));
+    }
+
+    /**
+     * Tests mirror methods are correctly generated
+     */
+    @Test
+    public void testMakeMirrorMethod() throws Exception {
+        HttpPost post = new HttpPost(PRIMARY_URL + "?service=CSW");
+        post.setEntity(new StringEntity("<body/>"));
+        post.addHeader("Content-Type", "text/xml");
+        post.getParams().setIntParameter(CoreConnectionPNames.SO_TIMEOUT, 1234);
+
+        HttpRequestBase mirror = HedgedRequestExecutor.makeMirrorMethod(post, PRIMARY_URL, MIRROR_URL);
+        Assert.assertTrue(mirror instanceof HttpPost);
+        Assert.assertEquals(MIRROR_URL + "?service=CSW", mirror.getURI().toString());
+        Assert.assertNotSame(post.getEntity(), ((HttpPost) mirror).getEntity());
+        Assert.assertEquals("<body/>", IOUtils.toString(((HttpPost) mirror).getEntity().getContent()));
+        Assert.assertEquals(post.getEntity().getContentType().getValue(), ((HttpPost) mirror).getEntity().getContentType().getValue());
+        Assert.assertEquals("text/xml", mirror.getFirstHeader("Content-Type").getValue());
+        Assert.assertEquals(1234, mirror.getParams().getIntParameter(CoreConnectionPNames.SO_TIMEOUT, 0));
+    }
+
+    /**
+     * Tests proxied request URLs are rewritten for each mirror
+     */
+    @Test
+    public void testMirrorRequestUrls() {
+        ServiceConfigurationItem item = new ServiceConfigurationItem("id", "http://primary.example/wfs", false);
+        Assert.assertEquals(0, item.getMirrorRequestUrls("http://portal/download.do?serviceUrl=http://primary.example/wfs").length);
+
+        item.setMirrorUrls(new String[] {"http://mirror.example/wfs"});
+        String[] urls = item.getMirrorRequestUrls("http://portal/download.do?serviceUrl=http%3A%2F%2Fprimary.example%2Fwfs&a=http://primary.example/wfs");
+        Assert.assertEquals(1, urls.length);
+        Assert.assertEquals("http://portal/download.do?serviceUrl=http%3A%2F%2Fmirror.example%2Fwfs&a=http://mirror.example/wfs", urls[0]);
+    }
+
+    private static class CloseTrackingStream extends ByteArrayInputStream {
+        private volatile boolean closed = false;
+
+        public CloseTrackingStream(String content) {
+            super(content.getBytes());
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            super.close();
+        }
+    }
+}
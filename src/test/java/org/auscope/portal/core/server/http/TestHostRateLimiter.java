@@ -0,0 +1,214 @@
+package org.auscope.portal.core.server.http;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for HostRateLimiter
+ */
+public class TestHostRateLimiter extends PortalTestClass {
+    private HostRateLimiter limiter;
+
+    @Before
+    public void setUp() {
+        limiter = new HostRateLimiter();
+    }
+
+    private HttpRequestBase makeMethod(String host, RequestPriority priority) {
+        HttpGet method = new HttpGet("http://" + host + "/wfs");
+        RequestPriority.setPriority(method, priority);
+        return method;
+    }
+
+    /**
+     * Unlimited hosts should never block
+     */
+    @Test
+    public void testUnlimited() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire(makeMethod("example.org", RequestPriority.BACKGROUND));
+        }
+        Assert.assertEquals(0, limiter.getActiveCount("example.org"));
+    }
+
+    /**
+     * Requests exceeding the concurrency limit should wait until their deadline
+     */
+    @Test
+    public void testConcurrencyLimit() throws Exception {
+        limiter.setHostLimits(Collections.singletonMap("example.org", new HostLimits(0, 1, 2)));
+
+        HostRateLimiter.Permit p1 = limiter.acquire(makeMethod("example.org", RequestPriority.INTERACTIVE));
+        HostRateLimiter.Permit p2 = limiter.acquire(makeMethod("example.org", RequestPriority.INTERACTIVE));
+        Assert.assertEquals(2, limiter.getActiveCount("example.org"));
+
+        //Other hosts are unaffected
+        limiter.acquire(makeMethod("example2.org", RequestPriority.INTERACTIVE));
+
+        HttpRequestBase method = makeMethod("example.org", RequestPriority.INTERACTIVE);
+        HostRateLimiter.setDeadline(method, System.currentTimeMillis() + 100);
+        try {
+            limiter.acquire(method);
+            Assert.fail("Expected a HostQueueTimeoutException");
+        } catch (HostQueueTimeoutException ex) {
+            //expected
+        }
+
+        p1.release();
+        p1.release(); //Double release should have no effect
+        Assert.assertEquals(1, limiter.getActiveCount("example.org"));
+        HostRateLimiter.Permit p3 = limiter.acquire(makeMethod("example.org", RequestPriority.INTERACTIVE));
+        Assert.assertEquals(2, limiter.getActiveCount("example.org"));
+        p2.release();
+        p3.release();
+        Assert.assertEquals(0, limiter.getActiveCount("example.org"));
+    }
+
+    /**
+     * A permit that goes unused for too long should be reclaimed so that waiting requests can start
+     */
+    @Test
+    public void testIdlePermitReclaimed() throws Exception {
+        limiter.setHostLimits(Collections.singletonMap("example.org", new HostLimits(0, 1, 1)));
+        limiter.setMaxPermitIdleMs(200);
+
+        HostRateLimiter.Permit abandoned = limiter.acquire(makeMethod("example.org", RequestPriority.INTERACTIVE));
+        HostRateLimiter.Permit p2 = limiter.acquire(makeMethod("example.org", RequestPriority.INTERACTIVE));
+        Assert.assertEquals(1, limiter.getActiveCount("example.org"));
+
+        abandoned.release(); //A late release of a reclaimed permit should have no effect
+        Assert.assertEquals(1, limiter.getActiveCount("example.org"));
+        p2.release();
+        Assert.assertEquals(0, limiter.getActiveCount("example.org"));
+    }
+
+    /**
+     * A permit that is still being used should never be reclaimed
+     */
+    @Test
+    public void testTouchedPermitKept() throws Exception {
+        limiter.setHostLimits(Collections.singletonMap("example.org", new HostLimits(0, 1, 1)));
+        limiter.setMaxPermitIdleMs(1000);
+
+        final HostRateLimiter.Permit p1 = limiter.acquire(makeMethod("example.org", RequestPriority.INTERACTIVE));
+        HttpRequestBase method = makeMethod("example.org", RequestPriority.INTERACTIVE);
+        HostRateLimiter.setDeadline(method, System.currentTimeMillis() + 1500);
+        Thread toucher = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 30; i++) {
+                        p1.touch();
+                        Thread.sleep(100);
+                    }
+                } catch (InterruptedException ex) {
+                    //finish early
+                }
+            }
+        };
+        toucher.start();
+        try {
+            limiter.acquire(method);
+            Assert.fail("Expected a HostQueueTimeoutException");
+        } catch (HostQueueTimeoutException ex) {
+            //expected
+        } finally {
+            toucher.interrupt();
+            toucher.join();
+        }
+
+        Assert.assertEquals(1, limiter.getActiveCount("example.org"));
+        p1.release();
+        Assert.assertEquals(0, limiter.getActiveCount("example.org"));
+    }
+
+    /**
+     * Non interactive requests cannot use the interactive reserve
+     */
+    @Test
+    public void testInteractiveReserve() throws Exception {
+        limiter.setHostLimits(Collections.singletonMap("example.org", new HostLimits(0, 1, 2)));
+
+        limiter.acquire(makeMethod("example.org", RequestPriority.DOWNLOAD));
+
+        HttpRequestBase download = makeMethod("example.org", RequestPriority.DOWNLOAD);
+        HostRateLimiter.setDeadline(download, System.currentTimeMillis() + 50);
+        try {
+            limiter.acquire(download);
+            Assert.fail("Expected a HostQueueTimeoutException");
+        } catch (HostQueueTimeoutException ex) {
+            //expected
+        }
+
+        limiter.acquire(makeMethod("example.org", RequestPriority.INTERACTIVE));
+        Assert.assertEquals(2, limiter.getActiveCount("example.org"));
+    }
+
+    /**
+     * Queued requests should be started in priority order (not arrival order)
+     */
+    @Test
+    public void testPriorityOrdering() throws Exception {
+        HostLimits limits = new HostLimits(0, 1, 1);
+        limits.setInteractiveReserve(0);
+        limiter.setHostLimits(Collections.singletonMap("example.org", limits));
+        final HostRateLimiter.Permit blocker = limiter.acquire(makeMethod("example.org", RequestPriority.INTERACTIVE));
+
+        final List<RequestPriority> order = new CopyOnWriteArrayList<RequestPriority>();
+        final List<Throwable> failures = new CopyOnWriteArrayList<Throwable>();
+        final CountDownLatch finished = new CountDownLatch(3);
+        RequestPriority[] arrivals = new RequestPriority[] {RequestPriority.BACKGROUND, RequestPriority.DOWNLOAD, RequestPriority.INTERACTIVE};
+        for (final RequestPriority priority : arrivals) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        HostRateLimiter.Permit permit = limiter.acquire(makeMethod("example.org", priority));
+                        order.add(priority);
+                        permit.release();
+                    } catch (Exception ex) {
+                        failures.add(ex);
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }.start();
+            Thread.sleep(50); //ensure arrival order
+        }
+
+        Assert.assertEquals(3, limiter.getQueueLength("example.org"));
+        blocker.release();
+        Assert.assertTrue(finished.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals("Worker failed: " + failures, 0, failures.size());
+        Assert.assertEquals(Arrays.asList(RequestPriority.INTERACTIVE, RequestPriority.DOWNLOAD, RequestPriority.BACKGROUND), order);
+    }
+
+    /**
+     * The token bucket should limit the rate requests start
+     */
+    @Test
+    public void testRateLimit() throws Exception {
+        limiter.setDefaultLimits(new HostLimits(20, 1, 0));
+
+        startTimer();
+        for (int i = 0; i < 5; i++) {
+            limiter.acquire(makeMethod("example.org", RequestPriority.INTERACTIVE)).release();
+        }
+        long elapsed = endTimer();
+
+        //First request is free, the next 4 need to wait 50ms each
+        Assert.assertTrue("Elapsed was " + elapsed, elapsed >= 180);
+        Assert.assertTrue("Elapsed was " + elapsed, elapsed < 1000);
+    }
+}
@@ -0,0 +1,158 @@
+package org.auscope.portal.core.server.http;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import net.sf.json.JSONObject;
+
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.StringEntity;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for HttpMetricsRegistry
+ */
+public class TestHttpMetricsRegistry extends PortalTestClass {
+
+    /**
+     * Tests the OGC operation is correctly extracted from GET and POST requests
+     */
+    @Test
+    public void testGetOperation() throws Exception {
+        Assert.assertEquals("GetMap", HttpMetricsRegistry.getOperation(new HttpGet("http://example.org/wms?service=WMS&REQUEST=GetMap&layers=a")));
+        Assert.assertEquals("GET", HttpMetricsRegistry.getOperation(new HttpGet("http://example.org/vocab/concepts")));
+
+        HttpPost post = new HttpPost("http://example.org/csw");
+        post.setEntity(new StringEntity("<?xml version=\"1.0\"?>\n<!-- comment -->\n<csw:GetRecords xmlns:csw=\"http://www.opengis.net/cat/csw/2.0.2\"/>"));
+        Assert.assertEquals("GetRecords", HttpMetricsRegistry.getOperation(post));
+
+        post = new HttpPost("http://example.org/wfs");
+        post.setEntity(new StringEntity("<GetFeature>"));
+        Assert.assertEquals("GetFeature", HttpMetricsRegistry.getOperation(post));
+
+        Assert.assertEquals("POST", HttpMetricsRegistry.getOperation(new HttpPost("http://example.org/wfs")));
+        Assert.assertEquals("example.org:8080", HttpMetricsRegistry.getHost(new HttpGet("http://example.org:8080/wfs")));
+    }
+
+    /**
+     * Unknown operations should be grouped together so a client can't create an unbounded number of metrics
+     */
+    @Test
+    public void testUnknownOperationsGrouped() throws Exception {
+        HttpMetricsRegistry registry = new HttpMetricsRegistry();
+
+        Assert.assertEquals("GetMap", registry.getMetrics(new HttpGet("http://example.org/wms?request=getmap")).getOperation());
+        Assert.assertEquals(HttpMetricsRegistry.OTHER_OPERATION, registry.getMetrics(new HttpGet("http://example.org/wms?request=Random123")).getOperation());
+        Assert.assertEquals(HttpMetricsRegistry.OTHER_OPERATION, registry.getMetrics(new HttpGet("http://example.org/wms?request=Random456")).getOperation());
+        Assert.assertEquals("GET", registry.getMetrics(new HttpGet("http://example.org/vocab/concepts")).getOperation());
+        Assert.assertArrayEquals(new String[] {"example.org GET", "example.org GetMap", "example.org other"}, registry.getHostOperations());
+
+        registry.setKnownOperations(Arrays.asList("Random123"));
+        Assert.assertEquals("Random123", registry.getMetrics(new HttpGet("http://example.org/wms?request=Random123")).getOperation());
+        Assert.assertEquals(HttpMetricsRegistry.OTHER_OPERATION, registry.getMetrics(new HttpGet("http://example.org/wms?request=GetMap")).getOperation());
+    }
+
+    /**
+     * A POST body should only be read once per request, and only the start of it
+     */
+    @Test
+    public void testPostBodySniffedOnce() throws Exception {
+        StringBuilder body = new StringBuilder("<csw:GetRecords xmlns:csw=\"http://www.opengis.net/cat/csw/2.0.2\">");
+        for (int i = 0; i < 100000; i++) {
+            body.append("<csw:Query/>");
+        }
+        body.append("</csw:GetRecords>");
+        final byte[] bytes = body.toString().getBytes("UTF-8");
+        final int[] reads = new int[] {0, 0};
+
+        HttpPost post = new HttpPost("http://example.org/csw");
+        post.setEntity(new ByteArrayEntity(bytes) {
+            @Override
+            public ByteArrayInputStream getContent() {
+                reads[0]++;
+                return new ByteArrayInputStream(bytes) {
+                    @Override
+                    public synchronized int read(byte[] b, int off, int len) {
+                        int read = super.read(b, off, len);
+                        reads[1] += Math.max(read, 0);
+                        return read;
+                    }
+                };
+            }
+        });
+
+        Assert.assertEquals("GetRecords", HttpMetricsRegistry.getOperation(post));
+        Assert.assertEquals("GetRecords", HttpMetricsRegistry.getOperation(post));
+        Assert.assertEquals(1, reads[0]);
+        Assert.assertTrue("Read " + reads[1] + " bytes", reads[1] < bytes.length);
+    }
+
+    /**
+     * Tests metrics are correctly aggregated and serialised
+     */
+    @Test
+    public void testAggregation() {
+        HttpMetricsRegistry registry = new HttpMetricsRegistry();
+
+        HttpOperationMetrics m1 = registry.getMetrics("host1", "GetFeature");
+        Assert.assertSame(m1, registry.getMetrics("host1", "GetFeature"));
+        m1.requestStarted(100);
+        m1.responseReceived(200, 10);
+        m1.responseCompleted(1000, 50);
+        m1.requestStarted(0);
+        m1.responseReceived(500, 5);
+
+        HttpOperationMetrics m2 = registry.getMetrics("host2", "GetMap");
+        m2.requestStarted(0);
+        m2.requestFailed(20);
+        m2.requestStarted(0);
+
+        Assert.assertEquals(4, registry.getTotalRequests());
+        Assert.assertEquals(2, registry.getTotalErrors());
+        Assert.assertEquals(1, registry.getTotalInFlight());
+        Assert.assertEquals(1, registry.getTotalOpenResponses());
+        Assert.assertArrayEquals(new String[] {"host1 GetFeature", "host2 GetMap"}, registry.getHostOperations());
+
+        JSONObject json = JSONObject.fromObject(registry.getMetricsJSON("host1", "GetFeature"));
+        Assert.assertEquals(100, json.getLong("bytesSent"));
+        Assert.assertEquals(1000, json.getLong("bytesReceived"));
+        Assert.assertEquals(1, json.getJSONObject("statusCodes").getLong("200"));
+        Assert.assertEquals(1, json.getJSONObject("statusCodes").getLong("500"));
+        Assert.assertEquals(2, json.getJSONObject("timeToFirstByteMs").getLong("count"));
+        Assert.assertEquals(50, json.getJSONObject("latencyMs").getLong("max"));
+        Assert.assertEquals(2, registry.toJSON().getJSONArray("operations").size());
+        Assert.assertNull(registry.getMetricsJSON("host3", "GetMap"));
+
+        registry.reset();
+        Assert.assertEquals(0, registry.getTotalRequests());
+        Assert.assertEquals(1, registry.getTotalInFlight());
+    }
+
+    /**
+     * Tests the registry can be registered/unregistered as an MBean
+     */
+    @Test
+    public void testRegisterMBean() throws Exception {
+        HttpMetricsRegistry registry = new HttpMetricsRegistry();
+        registry.setObjectName("org.auscope.portal.core:type=HttpMetrics,name=TestHttpMetricsRegistry");
+        registry.getMetrics("host1", "GetFeature").requestStarted(0);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(registry.getObjectName());
+        registry.registerMBean();
+        try {
+            Assert.assertEquals(1L, server.getAttribute(name, "TotalRequests"));
+        } finally {
+            registry.unregisterMBean();
+        }
+        Assert.assertFalse(server.isRegistered(name));
+    }
+}
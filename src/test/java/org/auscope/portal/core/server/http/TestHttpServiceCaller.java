@@ -2,12 +2,18 @@ package org.auscope.portal.core.server.http;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.util.Collections;
 
 import junit.framework.Assert;
 import org.apache.commons.io.IOUtils;
+import org.apache.http.ProtocolVersion;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
 import org.apache.http.params.BasicHttpParams;
 import org.auscope.portal.core.services.methodmakers.WFSGetFeatureMethodMaker;
 import org.auscope.portal.core.services.namespaces.ErmlNamespaceContext;
@@ -64,6 +70,134 @@ public class TestHttpServiceCaller extends PortalTestClass {
 
     }
 
+    /**
+     * The connection manager timeout should be applied to the request rather than the (shared) client's params
+     * @throws Exception
+     */
+    @Test
+    public void testConnManagerTimeoutNotSetOnClient() throws Exception {
+        final HttpPost method = (HttpPost)methodMaker.makePostMethod(SERVICE_URL, FEATURE_TYPE, FILTER_STRING, 0);
+        final BasicHttpParams clientParams = new BasicHttpParams();
+        final HttpClient client=context.mock(HttpClient.class);
+
+        context.checking(new Expectations() {
+            {
+                oneOf(client).execute(with(any(HttpRequestBase.class))); will(returnValue(new org.auscope.portal.core.server.http.download.MyHttpResponse(new ByteArrayInputStream("<xml/>".getBytes()))));
+                allowing(client).getParams();will(returnValue(clientParams));
+            }
+        });
+
+        httpServiceCaller.getMethodResponseAsString(method,client);
+        Assert.assertNull(clientParams.getParameter(ClientPNames.CONN_MANAGER_TIMEOUT));
+        Assert.assertEquals(9000L, method.getParams().getLongParameter(ClientPNames.CONN_MANAGER_TIMEOUT, 0));
+    }
+
+    /**
+     * Tests that a successful call is recorded against the metrics registry
+     * @throws Exception
+     */
+    @Test
+    public void testHttpServiceCallerMetrics() throws Exception {
+        final HttpPost method = (HttpPost)methodMaker.makePostMethod(SERVICE_URL, FEATURE_TYPE, FILTER_STRING, 0);
+        final String dummyResponse = "<xml>This is a test xml response</xml>";
+        final BasicHttpResponse response = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1), 200, "OK");
+        response.setEntity(new StringEntity(dummyResponse));
+
+        final HttpClient client=context.mock(HttpClient.class);
+
+        context.checking(new Expectations() {
+            {
+                oneOf(client).execute(with(any(HttpRequestBase.class))); will(returnValue(response));
+                oneOf(client).getParams();will(returnValue(new BasicHttpParams()));
+            }
+        });
+
+        Assert.assertEquals(dummyResponse, httpServiceCaller.getMethodResponseAsString(method,client));
+
+        HttpOperationMetrics metrics = httpServiceCaller.getMetricsRegistry().getMetrics("localhost", "GetFeature");
+        Assert.assertEquals(1, metrics.getRequestCount());
+        Assert.assertEquals(Long.valueOf(1), metrics.getStatusCodes().get(200));
+        Assert.assertEquals(dummyResponse.length(), metrics.getBytesReceived());
+        Assert.assertTrue(metrics.getBytesSent() > 0);
+        Assert.assertEquals(0, metrics.getInFlight());
+        Assert.assertEquals(0, metrics.getOpenResponses());
+        Assert.assertEquals(1, metrics.getLatency().getCount());
+    }
+
+    /**
+     * Aborting a request (or releasing its connection) before its response is read should release its rate limiter permit
+     * @throws Exception
+     */
+    @Test
+    public void testAbortReleasesPermit() throws Exception {
+        httpServiceCaller.getRateLimiter().setHostLimits(Collections.singletonMap("localhost", new HostLimits(0, 1, 2)));
+        final HttpClient client=context.mock(HttpClient.class);
+        final BasicHttpResponse abortedResponse = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1), 200, "OK");
+        abortedResponse.setEntity(new StringEntity("<xml>aborted</xml>"));
+        final BasicHttpResponse releasedResponse = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1), 200, "OK");
+        releasedResponse.setEntity(new StringEntity("<xml>released</xml>"));
+
+        context.checking(new Expectations() {
+            {
+                exactly(2).of(client).execute(with(any(HttpRequestBase.class))); will(onConsecutiveCalls(returnValue(abortedResponse), returnValue(releasedResponse)));
+                allowing(client).getParams();will(returnValue(new BasicHttpParams()));
+            }
+        });
+
+        HttpRequestBase aborted = methodMaker.makePostMethod(SERVICE_URL, FEATURE_TYPE, FILTER_STRING, 0);
+        httpServiceCaller.getMethodResponseAsStream(aborted, client);
+        Assert.assertEquals(1, httpServiceCaller.getRateLimiter().getActiveCount("localhost"));
+        aborted.abort();
+        Assert.assertEquals(0, httpServiceCaller.getRateLimiter().getActiveCount("localhost"));
+
+        HttpRequestBase released = methodMaker.makePostMethod(SERVICE_URL, FEATURE_TYPE, FILTER_STRING, 0);
+        httpServiceCaller.getMethodResponseAsStream(released, client);
+        Assert.assertEquals(1, httpServiceCaller.getRateLimiter().getActiveCount("localhost"));
+        released.releaseConnection();
+        Assert.assertEquals(0, httpServiceCaller.getRateLimiter().getActiveCount("localhost"));
+    }
+
+    /**
+     * Tests that requests opting into retries are retried after a 503
+     * @throws Exception
+     */
+    @Test
+    public void testHttpServiceCallerRetry() throws Exception {
+        final HttpPost method = (HttpPost)methodMaker.makePostMethod(SERVICE_URL, FEATURE_TYPE, FILTER_STRING, 0);
+        final String dummyResponse = "<xml>This is a test xml response</xml>";
+        final HttpClient client=context.mock(HttpClient.class);
+        final BasicHttpResponse unavailableResponse = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1), 503, "Service Unavailable");
+        unavailableResponse.setHeader("Retry-After", "0");
+
+        RetryPolicy.enableRetries(method);
+        RetryPolicy policy = new RetryPolicy();
+        policy.setInitialBackoffMs(10);
+        httpServiceCaller.setRetryPolicy(policy);
+
+        context.checking(new Expectations() {
+            {
+                exactly(2).of(client).execute(with(any(HttpRequestBase.class))); will(onConsecutiveCalls(
+                        returnValue(unavailableResponse),
+                        returnValue(new org.auscope.portal.core.server.http.download.MyHttpResponse(new ByteArrayInputStream(dummyResponse.getBytes())))));
+                allowing(client).getParams();will(returnValue(new BasicHttpParams()));
+            }
+        });
+
+        Assert.assertEquals(dummyResponse, httpServiceCaller.getMethodResponseAsString(method,client));
+        Assert.assertEquals(1, httpServiceCaller.getMetricsRegistry().getMetrics("localhost", "GetFeature").getRetryCount());
+    }
+
+    /**
+     * Tests Retry-After parsing
+     */
+    @Test
+    public void testParseRetryAfter() {
+        Assert.assertEquals(-1, HttpServiceCaller.parseRetryAfter(null));
+        Assert.assertEquals(120000, HttpServiceCaller.parseRetryAfter(new BasicHeader("Retry-After", "120")));
+        Assert.assertEquals(0, HttpServiceCaller.parseRetryAfter(new BasicHeader("Retry-After", "Wed, 21 Oct 2015 07:28:00 GMT")));
+        Assert.assertEquals(-1, HttpServiceCaller.parseRetryAfter(new BasicHeader("Retry-After", "soon")));
+    }
+
     /**
      * Test failure call that throws error 503
      * @throws Exception
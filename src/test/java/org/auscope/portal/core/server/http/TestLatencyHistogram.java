@@ -0,0 +1,66 @@
+package org.auscope.portal.core.server.http;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for LatencyHistogram
+ */
+public class TestLatencyHistogram extends PortalTestClass {
+
+    /**
+     * Tests that every index maps back to a range containing the original value
+     */
+    @Test
+    public void testBucketBoundaries() {
+        long[] values = {0, 1, 15, 16, 17, 31, 32, 33, 1000, 65535, 123456789L, Long.MAX_VALUE / 2};
+        for (long value : values) {
+            int index = LatencyHistogram.indexFor(value);
+            Assert.assertTrue("Lower bound failed for " + value, LatencyHistogram.lowestValueAt(index) <= value);
+            Assert.assertTrue("Upper bound failed for " + value, LatencyHistogram.highestValueAt(index) >= value);
+        }
+    }
+
+    /**
+     * Tests percentiles are accurate to within the histogram's precision
+     */
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.recordValue(i);
+        }
+
+        Assert.assertEquals(1000, histogram.getCount());
+        Assert.assertEquals(1000, histogram.getMax());
+        Assert.assertEquals(500.5, histogram.getMean(), 0.001);
+
+        long p50 = histogram.getValueAtPercentile(50);
+        long p95 = histogram.getValueAtPercentile(95);
+        long p100 = histogram.getValueAtPercentile(100);
+        Assert.assertTrue("p50 was " + p50, p50 >= 500 && p50 <= 500 * 1.07);
+        Assert.assertTrue("p95 was " + p95, p95 >= 950 && p95 <= 950 * 1.07);
+        Assert.assertEquals(1000, p100);
+    }
+
+    /**
+     * Tests an empty (or reset) histogram returns 0 for everything
+     */
+    @Test
+    public void testEmptyAndReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.getValueAtPercentile(99));
+        Assert.assertEquals(0.0, histogram.getMean(), 0.0);
+
+        histogram.recordValue(-5);
+        histogram.recordValue(100);
+        Assert.assertEquals(2, histogram.getCount());
+        Assert.assertEquals(0, histogram.getValueAtPercentile(1));
+
+        histogram.reset();
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.getMax());
+        Assert.assertEquals(0, histogram.getValueAtPercentile(50));
+    }
+}
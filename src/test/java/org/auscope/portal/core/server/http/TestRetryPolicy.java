@@ -0,0 +1,116 @@
+package org.auscope.portal.core.server.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for RetryPolicy
+ */
+public class TestRetryPolicy extends PortalTestClass {
+    private RetryPolicy policy;
+
+    @Before
+    public void setUp() {
+        policy = new RetryPolicy();
+        policy.setInitialBackoffMs(100);
+        policy.setMaxBackoffMs(1000);
+    }
+
+    /**
+     * Only opted in GETs and safe POSTs with a repeatable body should be retryable
+     */
+    @Test
+    public void testIsRetryable() throws Exception {
+        HttpGet get = new HttpGet("http://example.org/wfs?request=GetFeature");
+        Assert.assertFalse(policy.isRetryable(get));
+        RetryPolicy.enableRetries(get);
+        Assert.assertTrue(policy.isRetryable(get));
+
+        HttpPost post = new HttpPost("http://example.org/csw");
+        post.setEntity(new StringEntity("<csw:GetRecords/>"));
+        RetryPolicy.enableRetries(post);
+        Assert.assertTrue(policy.isRetryable(post));
+
+        HttpPost unsafePost = new HttpPost("http://example.org/wfs");
+        unsafePost.setEntity(new StringEntity("<wfs:Transaction/>"));
+        RetryPolicy.enableRetries(unsafePost);
+        Assert.assertFalse(policy.isRetryable(unsafePost));
+
+        HttpPost streamedPost = new HttpPost("http://example.org/csw");
+        streamedPost.setEntity(new InputStreamEntity(new ByteArrayInputStream("<csw:GetRecords/>".getBytes()), -1));
+        RetryPolicy.enableRetries(streamedPost);
+        Assert.assertFalse(policy.isRetryable(streamedPost));
+
+        policy.setMaxRetries(0);
+        Assert.assertFalse(policy.isRetryable(get));
+    }
+
+    /**
+     * Backoff should grow exponentially (with jitter) and be capped
+     */
+    @Test
+    public void testBackoff() {
+        for (int i = 0; i < 100; i++) {
+            long first = policy.calculateBackoff(0);
+            long third = policy.calculateBackoff(2);
+            long tenth = policy.calculateBackoff(10);
+            Assert.assertTrue(first >= 0 && first <= 100);
+            Assert.assertTrue(third >= 0 && third <= 400);
+            Assert.assertTrue(tenth >= 0 && tenth <= 1000);
+        }
+    }
+
+    /**
+     * Tests which failures are retried and how many times
+     */
+    @Test
+    public void testGetRetryDelay() {
+        HttpGet get = new HttpGet("http://example.org/wfs");
+
+        Assert.assertTrue(policy.getRetryDelay(get, new SocketTimeoutException(), 0, 0) >= 0);
+        Assert.assertTrue(policy.getRetryDelay(get, new ServiceUnavailableException(), 2, 0) >= 0);
+        Assert.assertEquals(-1, policy.getRetryDelay(get, new ServiceUnavailableException(), 3, 0));
+        Assert.assertEquals(-1, policy.getRetryDelay(get, new UnknownHostException(), 0, 0));
+        Assert.assertEquals(-1, policy.getRetryDelay(get, new IOException(), 0, 0));
+
+        //Retry-After should be honoured (or cause failure if it's too long)
+        Assert.assertEquals(2000, policy.getRetryDelay(get, new ServiceUnavailableException(2000), 0, 0));
+        Assert.assertEquals(-1, policy.getRetryDelay(get, new ServiceUnavailableException(policy.getMaxRetryAfterMs() + 1), 0, 0));
+
+        //Request budget
+        Assert.assertEquals(-1, policy.getRetryDelay(get, new ServiceUnavailableException(2000), 0, policy.getRequestBudgetMs() - 1000));
+    }
+
+    /**
+     * The per host retry budget should limit retries until replenished by new requests
+     */
+    @Test
+    public void testHostBudget() {
+        policy.setHostBudgetCapacity(2);
+        policy.setHostBudgetRatio(0.5);
+        HttpGet get = new HttpGet("http://example.org/wfs");
+        HttpGet otherHost = new HttpGet("http://example2.org/wfs");
+
+        Assert.assertTrue(policy.getRetryDelay(get, new SocketTimeoutException(), 0, 0) >= 0);
+        Assert.assertTrue(policy.getRetryDelay(get, new SocketTimeoutException(), 0, 0) >= 0);
+        Assert.assertEquals(-1, policy.getRetryDelay(get, new SocketTimeoutException(), 0, 0));
+        Assert.assertTrue(policy.getRetryDelay(otherHost, new SocketTimeoutException(), 0, 0) >= 0);
+
+        policy.recordRequest("example.org");
+        Assert.assertEquals(-1, policy.getRetryDelay(get, new SocketTimeoutException(), 0, 0));
+        policy.recordRequest("example.org");
+        Assert.assertEquals(1.0, policy.getAvailableRetries("example.org"), 0.0001);
+        Assert.assertTrue(policy.getRetryDelay(get, new SocketTimeoutException(), 0, 0) >= 0);
+    }
+}
@@ -0,0 +1,160 @@
+package org.auscope.portal.core.server.http.download;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+import org.apache.commons.io.IOUtils;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.util.FileIOUtil;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for DownloadCache
+ */
+public class TestDownloadCache extends PortalTestClass {
+
+    private File directory;
+    private DownloadCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("TestDownloadCache").toFile();
+        cache = new DownloadCache(directory);
+    }
+
+    @After
+    public void tearDown() {
+        FileIOUtil.deleteFilesRecursive(directory);
+    }
+
+    /**
+     * Reads a body through the cache (so that it gets stored)
+     */
+    private void storeBody(String fingerprint, String contentType, String body) throws Exception {
+        InputStream in = cache.store(fingerprint, contentType, new ByteArrayInputStream(body.getBytes("UTF-8")));
+        Assert.assertEquals(body, IOUtils.toString(in, "UTF-8"));
+        in.close();
+    }
+
+    /**
+     * Equivalent requests should share a fingerprint
+     */
+    @Test
+    public void testFingerprintNormalisation() {
+        String expected = DownloadCache.fingerprint("http://example.org/wfs?typeName=a:b&service=WFS", null);
+        Assert.assertEquals(expected, DownloadCache.fingerprint("HTTP://Example.ORG:80/wfs?service=WFS&typeName=a%3Ab", null));
+        Assert.assertFalse(expected.equals(DownloadCache.fingerprint("http://example.org/wfs?typeName=a:c&service=WFS", null)));
+        Assert.assertFalse(expected.equals(DownloadCache.fingerprint("http://example.org/wfs?typeName=a:b&service=WFS", "<body/>")));
+    }
+
+    /**
+     * Encoded separators must not be confused with real ones and repeated parameters must keep their order
+     */
+    @Test
+    public void testFingerprintEncodedSeparators() {
+        Assert.assertFalse(DownloadCache.fingerprint("http://example.org/wfs?a=b%26c", null).equals(
+                DownloadCache.fingerprint("http://example.org/wfs?a=b&c", null)));
+        Assert.assertFalse(DownloadCache.fingerprint("http://example.org/wfs?a%3Db=c", null).equals(
+                DownloadCache.fingerprint("http://example.org/wfs?a=b%3Dc", null)));
+        Assert.assertEquals(DownloadCache.fingerprint("http://example.org/wfs?x=1&a=2&a=1", null),
+                DownloadCache.fingerprint("http://example.org/wfs?a=2&x=1&a=1", null));
+        Assert.assertFalse(DownloadCache.fingerprint("http://example.org/wfs?a=2&a=1", null).equals(
+                DownloadCache.fingerprint("http://example.org/wfs?a=1&a=2", null)));
+    }
+
+    /**
+     * A fully read body should be served on subsequent requests
+     */
+    @Test
+    public void testStoreAndServe() throws Exception {
+        DownloadResponse response = new DownloadResponse("http://example.org");
+        Assert.assertFalse(cache.serve("fp", response));
+
+        storeBody("fp", "text/xml", "<data/>");
+
+        response = new DownloadResponse("http://example.org");
+        Assert.assertTrue(cache.serve("fp", response));
+        Assert.assertEquals("text/xml", response.getContentType());
+        Assert.assertEquals(7, response.getExpectedBytes());
+        Assert.assertEquals("<data/>", IOUtils.toString(response.getResponseAsStream(), "UTF-8"));
+        response.getResponseAsStream().close();
+
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+        Assert.assertEquals(0.5, cache.getHitRate(), 0.0001);
+    }
+
+    /**
+     * A body that isn't read in full must never be cached
+     */
+    @Test
+    public void testAbandonedBodyNotCached() throws Exception {
+        InputStream in = cache.store("fp", "text/xml", new ByteArrayInputStream("<data/>".getBytes()));
+        Assert.assertEquals('<', in.read());
+        in.close();
+
+        Assert.assertFalse(cache.serve("fp", new DownloadResponse("http://example.org")));
+        Assert.assertEquals(0, directory.listFiles().length);
+    }
+
+    /**
+     * Exception reports should be passed through to the consumer but never cached
+     */
+    @Test
+    public void testExceptionReportNotCached() throws Exception {
+        String report = "<ows:ExceptionReport xmlns:ows=\"http://www.opengis.net/ows\" version=\"1.0.0\">"
+                + "<ows:Exception exceptionCode=\"NoApplicableCode\"><ows:ExceptionText>error</ows:ExceptionText></ows:Exception>"
+                + "</ows:ExceptionReport>";
+        storeBody("ows", "text/xml", report);
+        storeBody("ogc", "text/xml", "<ServiceExceptionReport><ServiceException>error</ServiceException></ServiceExceptionReport>");
+        storeBody("json", "application/json", "{\"success\":true}");
+
+        Assert.assertFalse(cache.serve("ows", new DownloadResponse("http://example.org")));
+        Assert.assertFalse(cache.serve("ogc", new DownloadResponse("http://example.org")));
+        DownloadResponse response = new DownloadResponse("http://example.org");
+        Assert.assertTrue(cache.serve("json", response));
+        response.getResponseAsStream().close();
+    }
+
+    /**
+     * Expired entries should not be served
+     */
+    @Test
+    public void testTtl() throws Exception {
+        storeBody("fp", "text/xml", "<data/>");
+        cache.setTtlMs(-1);
+        Assert.assertFalse(cache.serve("fp", new DownloadResponse("http://example.org")));
+        cache.enforceLimits();
+        Assert.assertEquals(0, cache.getSizeBytes());
+    }
+
+    /**
+     * The least recently used entries should be evicted once the size budget is exceeded
+     */
+    @Test
+    public void testSizeBudgetLru() throws Exception {
+        cache.setMaxSizeBytes(25);
+        storeBody("first", "text/plain", "0123456789");
+        storeBody("second", "text/plain", "0123456789");
+
+        //Backdate the entries so that "first" was used most recently
+        long now = System.currentTimeMillis();
+        for (File f : directory.listFiles()) {
+            f.setLastModified(now - 10000);
+        }
+        DownloadResponse response = new DownloadResponse("http://example.org");
+        Assert.assertTrue(cache.serve("first", response));
+        response.getResponseAsStream().close();
+
+        storeBody("third", "text/plain", "0123456789");
+        Assert.assertEquals(20, cache.getSizeBytes());
+        Assert.assertTrue(cache.serve("first", new DownloadResponse("http://example.org")));
+        Assert.assertFalse(cache.serve("second", new DownloadResponse("http://example.org")));
+        Assert.assertTrue(cache.serve("third", new DownloadResponse("http://example.org")));
+    }
+}
@@ -0,0 +1,225 @@
+package org.auscope.portal.core.server.http.download;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.auscope.portal.core.server.http.HttpServiceCaller;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.jmock.Expectations;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for DownloadJournal
+ */
+public class TestDownloadJournal extends PortalTestClass {
+
+    private static final String[] URLS = {
+        "http://localhost:8088/doBoreholeFilter.do?&serviceUrl=http://example.org/wfs1",
+        "http://localhost:8088/doBoreholeFilter.do?&serviceUrl=http://example.org/wfs2",
+        "http://localhost:8088/doBoreholeFilter.do?&serviceUrl=http://example.org/wfs3"
+    };
+
+    private HttpServiceCaller mockServiceCaller = context.mock(HttpServiceCaller.class);
+    private ExecutorService threadPool;
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        threadPool = Executors.newCachedThreadPool();
+        dir = Files.createTempDirectory("TestDownloadJournal").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        threadPool.shutdownNow();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    /**
+     * Simulates a process that died after finishing service 0 and part way through writing service 1
+     */
+    private void crashMidJob(String email) throws Exception {
+        DownloadJournal journal = new DownloadJournal(dir);
+        DownloadJournal.Job job = journal.createJob(email, URLS);
+        journal.saveServiceOutput(job, 0, "text/xml", new ByteArrayInputStream("<first/>".getBytes()));
+        journal.markServiceFailed(job, 2, "connection refused");
+
+        //A body that never got committed
+        File dirs[] = dir.listFiles();
+        FileOutputStream fos = new FileOutputStream(new File(dirs[0], "1.body.tmp"));
+        fos.write("<secon".getBytes());
+        fos.close();
+    }
+
+    /**
+     * A body that can't be read should mark the service as failed (and not be committed) rather than
+     * journaling whatever was read so far
+     */
+    @Test
+    public void testSaveServiceOutputReadError() throws Exception {
+        DownloadJournal journal = new DownloadJournal(dir);
+        DownloadJournal.Job job = journal.createJob("user@example.org", URLS);
+        InputStream broken = new SequenceInputStream(new ByteArrayInputStream("<partial".getBytes()), new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("connection reset");
+            }
+        });
+
+        try {
+            journal.saveServiceOutput(job, 0, "text/xml", broken);
+            Assert.fail("Expected IOException");
+        } catch (IOException ex) {
+            Assert.assertEquals("connection reset", ex.getMessage());
+        }
+
+        Assert.assertEquals(DownloadJournal.ServiceState.FAILED, job.getState(0));
+        Assert.assertFalse(journal.restoreServiceOutput(job, 0, new DownloadResponse("")));
+        DownloadJournal.Job reloaded = new DownloadJournal(dir).getJobs().get(0);
+        Assert.assertEquals(DownloadJournal.ServiceState.FAILED, reloaded.getState(0));
+    }
+
+    /**
+     * Job state should survive being reloaded by a new journal instance
+     */
+    @Test
+    public void testPersistence() throws Exception {
+        crashMidJob("user@example.org");
+
+        List<DownloadJournal.Job> jobs = new DownloadJournal(dir).getJobs();
+        Assert.assertEquals(1, jobs.size());
+        DownloadJournal.Job job = jobs.get(0);
+        Assert.assertEquals("user@example.org", job.getEmail());
+        Assert.assertArrayEquals(URLS, job.getUrls());
+        Assert.assertEquals(DownloadJournal.ServiceState.COMPLETED, job.getState(0));
+        Assert.assertEquals("text/xml", job.getContentType(0));
+        Assert.assertEquals(DownloadJournal.ServiceState.PENDING, job.getState(1));
+        Assert.assertEquals(DownloadJournal.ServiceState.FAILED, job.getState(2));
+        Assert.assertEquals("connection refused", job.getError(2));
+        Assert.assertEquals(1, job.getCompletedCount());
+    }
+
+    /**
+     * Resuming a crashed job should only request the services that didn't complete
+     */
+    @Test
+    public void testResumeDoesNotRepeatCompletedServices() throws Exception {
+        crashMidJob("user@example.org");
+
+        context.checking(new Expectations() {{
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, URLS[1], null)));
+            will(returnValue(new MyHttpResponse(new ByteArrayInputStream("<second/>".getBytes()))));
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, URLS[2], null)));
+            will(returnValue(new MyHttpResponse(new ByteArrayInputStream("<third/>".getBytes()))));
+        }});
+
+        DownloadJournal journal = new DownloadJournal(dir);
+        DownloadJournal.Job job = journal.getJobs().get(0);
+        ServiceDownloadManager sdm = new ServiceDownloadManager(job.getUrls(), mockServiceCaller, threadPool);
+        List<DownloadResponse> responses = sdm.downloadAll(journal, job);
+
+        Assert.assertEquals(3, responses.size());
+        Assert.assertEquals("<first/>", IOUtils.toString(responses.get(0).getResponseAsStream()));
+        Assert.assertEquals("<second/>", IOUtils.toString(responses.get(1).getResponseAsStream()));
+        Assert.assertEquals("<third/>", IOUtils.toString(responses.get(2).getResponseAsStream()));
+        Assert.assertEquals(3, job.getCompletedCount());
+
+        //Another crash now shouldn't require any further requests
+        DownloadJournal.Job reloaded = new DownloadJournal(dir).getJobs().get(0);
+        Assert.assertEquals(3, reloaded.getCompletedCount());
+        List<DownloadResponse> again = new ServiceDownloadManager(URLS, mockServiceCaller, threadPool).downloadAll(journal, reloaded);
+        Assert.assertEquals("<third/>", IOUtils.toString(again.get(2).getResponseAsStream()));
+        for (DownloadResponse response : again) {
+            IOUtils.closeQuietly(response.getResponseAsStream());
+        }
+        for (DownloadResponse response : responses) {
+            IOUtils.closeQuietly(response.getResponseAsStream());
+        }
+    }
+
+    /**
+     * Resumed jobs should be picked up by a tracker and removed from disk once the zip has been written
+     */
+    @Test
+    public void testResumeJobs() throws Exception {
+        final String email = "TestDownloadJournal-" + System.nanoTime() + "@example.org";
+        crashMidJob(email);
+
+        context.checking(new Expectations() {{
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, URLS[1], null)));
+            will(returnValue(new MyHttpResponse(new ByteArrayInputStream("<second/>".getBytes()))));
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, URLS[2], null)));
+            will(returnValue(new MyHttpResponse(new ByteArrayInputStream("<third/>".getBytes()))));
+        }});
+
+        DownloadJournal journal = new DownloadJournal(dir);
+        journal.setServiceCaller(mockServiceCaller);
+        journal.setExecutor(threadPool);
+        Assert.assertEquals(1, journal.start());
+        Assert.assertEquals(0, journal.resumeJobs()); //Already running
+
+        DownloadTracker tracker = DownloadTracker.getTracker(email);
+        try {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (tracker.getProgress() != Progression.COMPLETED && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            Assert.assertEquals(Progression.COMPLETED, tracker.getProgress());
+            Assert.assertTrue(journal.getJobs().isEmpty());
+
+            List<String> contents = new ArrayList<String>();
+            ZipInputStream zin = new ZipInputStream(tracker.getFile());
+            ZipEntry entry;
+            while ((entry = zin.getNextEntry()) != null) {
+                if (!entry.getName().equals("manifest.json")) {
+                    contents.add(IOUtils.toString(zin));
+                }
+            }
+            zin.close();
+            Assert.assertEquals(3, contents.size());
+            Assert.assertTrue(contents.contains("<first/>"));
+            Assert.assertTrue(contents.contains("<second/>"));
+            Assert.assertTrue(contents.contains("<third/>"));
+        } finally {
+            tracker.evict();
+        }
+    }
+
+    /**
+     * Jobs that haven't progressed in ttlMs should be discarded (unless they are running)
+     */
+    @Test
+    public void testExpire() throws Exception {
+        crashMidJob("user@example.org");
+
+        DownloadJournal journal = new DownloadJournal(dir);
+        journal.setTtlMs(60000);
+        Assert.assertEquals(0, journal.expire());
+        Assert.assertEquals(1, journal.getJobs().size());
+
+        journal.createJob("running@example.org", URLS);
+        Thread.sleep(20);
+        journal.setTtlMs(1);
+        Assert.assertEquals(1, journal.expire());
+        Assert.assertEquals(1, journal.getJobs().size());
+        Assert.assertEquals("running@example.org", journal.getJobs().get(0).getEmail());
+        Assert.assertEquals(1, journal.toJSON().getJSONArray("jobs").size());
+    }
+}
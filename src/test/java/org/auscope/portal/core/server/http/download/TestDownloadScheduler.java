@@ -0,0 +1,300 @@
+package org.auscope.portal.core.server.http.download;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.sf.json.JSONObject;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for DownloadScheduler
+ */
+public class TestDownloadScheduler extends PortalTestClass {
+
+    /**
+     * Holds every job it's given until runAll is called (so dispatch order can be inspected)
+     */
+    private static class ManualExecutor implements Executor {
+        private List<Runnable> jobs = new ArrayList<Runnable>();
+
+        @Override
+        public synchronized void execute(Runnable command) {
+            jobs.add(command);
+        }
+
+        public synchronized Runnable take() {
+            return jobs.isEmpty() ? null : jobs.remove(0);
+        }
+
+        public synchronized int size() {
+            return jobs.size();
+        }
+    }
+
+    /**
+     * Records its name when run
+     */
+    private static class NamedJob implements Runnable {
+        private String name;
+        private List<String> log;
+
+        public NamedJob(String name, List<String> log) {
+            this.name = name;
+            this.log = log;
+        }
+
+        @Override
+        public void run() {
+            log.add(name);
+        }
+    }
+
+    private DownloadScheduler scheduler;
+    private ManualExecutor executor;
+    private List<String> log;
+
+    @Before
+    public void setUp() {
+        scheduler = new DownloadScheduler();
+        executor = new ManualExecutor();
+        log = Collections.synchronizedList(new ArrayList<String>());
+    }
+
+    /**
+     * Runs dispatched jobs one at a time until nothing is left
+     */
+    private void drain() {
+        Runnable job;
+        while ((job = executor.take()) != null) {
+            job.run();
+        }
+    }
+
+    /**
+     * No more than maxPerHost jobs should run against a host and queued jobs should start as slots free up
+     */
+    @Test
+    public void testHostLimit() {
+        scheduler.setMaxPerHost(1);
+        scheduler.setMaxPerSession(10);
+
+        scheduler.submit("s1", 1, "host1", new NamedJob("a", log), executor);
+        scheduler.submit("s1", 1, "host1", new NamedJob("b", log), executor);
+        scheduler.submit("s1", 1, "host2", new NamedJob("c", log), executor);
+
+        Assert.assertEquals(2, executor.size());
+        Assert.assertEquals(1, scheduler.getActiveCount("host1"));
+        Assert.assertEquals(1, scheduler.getQueueDepth("host1"));
+        Assert.assertEquals(1, scheduler.getQueueDepth());
+
+        drain();
+        Assert.assertEquals(3, log.size());
+        Assert.assertEquals(0, scheduler.getQueueDepth());
+        Assert.assertEquals(0, scheduler.getActiveCount());
+        Assert.assertEquals(0, scheduler.getSessionCount());
+        Assert.assertEquals(3, scheduler.getCompletedCount());
+        Assert.assertEquals(3, scheduler.getWaitTime().getCount());
+    }
+
+    /**
+     * Helpers submitted with an allowance should start alongside their parent (up to the allowance) even
+     * though the parent is using the host's only slot
+     */
+    @Test
+    public void testAllowance() {
+        scheduler.setMaxPerHost(1);
+        scheduler.setMaxPerSession(1);
+
+        scheduler.submit("s1", 1, "host1", new NamedJob("parent", log), executor);
+        scheduler.submit("s1", 1, "host1", new NamedJob("page1", log), executor, 2);
+        scheduler.submit("s1", 1, "host1", new NamedJob("page2", log), executor, 2);
+        scheduler.submit("s1", 1, "host1", new NamedJob("page3", log), executor, 2);
+        scheduler.submit("s2", 1, "host1", new NamedJob("other", log), executor);
+
+        Assert.assertEquals(3, executor.size());
+        Assert.assertEquals(3, scheduler.getActiveCount("host1"));
+        Assert.assertEquals(2, scheduler.getQueueDepth("host1"));
+
+        drain();
+        Assert.assertEquals(5, log.size());
+        Assert.assertEquals(0, scheduler.getActiveCount());
+    }
+
+    /**
+     * Per host overrides should take precedence over maxPerHost. Sessions should be limited to maxPerSession
+     */
+    @Test
+    public void testSessionLimitAndHostOverride() {
+        scheduler.setMaxPerHost(1);
+        scheduler.setMaxPerSession(2);
+        scheduler.getHostLimits().put("big", 5);
+
+        for (int i = 0; i < 4; i++) {
+            scheduler.submit("s1", 1, "big", new NamedJob("s1-" + i, log), executor);
+        }
+        Assert.assertEquals(2, executor.size());
+
+        scheduler.submit("s2", 1, "big", new NamedJob("s2-0", log), executor);
+        Assert.assertEquals(3, executor.size());
+        Assert.assertEquals(3, scheduler.getActiveCount("big"));
+        Assert.assertEquals(2, scheduler.getQueueDepth());
+
+        drain();
+        Assert.assertEquals(5, log.size());
+    }
+
+    /**
+     * A session with many queued jobs shouldn't starve a session that arrives later. Weights
+     * should give proportionally more dispatches.
+     */
+    @Test
+    public void testWeightedRoundRobin() {
+        scheduler.setMaxPerHost(1);
+        scheduler.setMaxPerSession(1);
+
+        for (int i = 0; i < 4; i++) {
+            scheduler.submit("heavy", 2, "host", new NamedJob("heavy", log), executor);
+        }
+        for (int i = 0; i < 2; i++) {
+            scheduler.submit("light", 1, "host", new NamedJob("light", log), executor);
+        }
+
+        drain();
+        Assert.assertEquals(6, log.size());
+        //The heavy session gets 2 dispatches per turn, the light session 1
+        Assert.assertEquals("heavy", log.get(0));
+        Assert.assertEquals("heavy", log.get(1));
+        Assert.assertEquals("light", log.get(2));
+        Assert.assertEquals("heavy", log.get(3));
+        Assert.assertEquals("heavy", log.get(4));
+        Assert.assertEquals("light", log.get(5));
+    }
+
+    /**
+     * A job that throws should still release its slots
+     */
+    @Test
+    public void testFailureReleasesSlot() {
+        scheduler.submit("s1", 1, "host", new Runnable() {
+            @Override
+            public void run() {
+                throw new RuntimeException("expected");
+            }
+        }, executor);
+        scheduler.submit("s1", 1, "host", new NamedJob("after", log), executor);
+
+        try {
+            executor.take().run();
+            Assert.fail("Expected exception");
+        } catch (RuntimeException ex) {
+            Assert.assertEquals("expected", ex.getMessage());
+        }
+
+        drain();
+        Assert.assertEquals(Collections.singletonList("after"), log);
+        Assert.assertEquals(0, scheduler.getActiveCount());
+    }
+
+    /**
+     * A job rejected by a saturated executor should have its failure handler run and release its slots
+     */
+    @Test
+    public void testSaturatedExecutorRejects() throws Exception {
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        ThreadPoolExecutor saturated = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>());
+        try {
+            scheduler.setMaxPerHost(2);
+            scheduler.submit("s1", 1, "host", new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        blocker.await();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, saturated);
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            final AtomicReference<RejectedExecutionException> rejection = new AtomicReference<RejectedExecutionException>();
+            scheduler.submit("s1", 1, "host", new DownloadScheduler.RejectableDownload() {
+                @Override
+                public void run() {
+                    log.add("ran");
+                }
+
+                @Override
+                public void rejected(RejectedExecutionException ex) {
+                    rejection.set(ex);
+                }
+            }, saturated);
+
+            Assert.assertNotNull(rejection.get());
+            Assert.assertTrue(log.isEmpty());
+            Assert.assertEquals(1, scheduler.getActiveCount());
+            Assert.assertEquals(0, scheduler.getQueueDepth());
+        } finally {
+            blocker.countDown();
+            saturated.shutdown();
+        }
+        Assert.assertTrue(saturated.awaitTermination(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, scheduler.getActiveCount());
+    }
+
+    /**
+     * Jobs should be able to run inline on the submitting thread without deadlocking
+     */
+    @Test
+    public void testInlineExecutor() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(3);
+        Executor inline = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        for (int i = 0; i < 3; i++) {
+            scheduler.submit("s1", 1, "host", new Runnable() {
+                @Override
+                public void run() {
+                    latch.countDown();
+                }
+            }, inline);
+        }
+        Assert.assertTrue(latch.await(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Metrics should be available as JSON
+     */
+    @Test
+    public void testToJSON() {
+        scheduler.submit("s1", 1, "host", new NamedJob("a", log), executor);
+        scheduler.submit("s1", 1, "host", new NamedJob("b", log), executor);
+
+        JSONObject json = scheduler.toJSON();
+        Assert.assertEquals(1, json.getInt("queueDepth"));
+        Assert.assertEquals(1, json.getInt("active"));
+        Assert.assertEquals(1, json.getJSONArray("hosts").size());
+        Assert.assertEquals("host", json.getJSONArray("hosts").getJSONObject(0).getString("host"));
+
+        drain();
+        json = scheduler.toJSON();
+        Assert.assertEquals(2, json.getLong("completed"));
+        Assert.assertEquals(2, json.getJSONObject("waitTimeMs").getLong("count"));
+    }
+}
@@ -72,6 +72,7 @@ public class TestDownloadTracker extends PortalTestClass  {
 
         downloadTracker.startTrack(sdm);
         Assert.assertEquals(Progression.INPROGRESS, downloadTracker.getProgress());
+        Assert.assertEquals("victor", sdm.getSessionId());
 
         while(downloadTracker.getProgress()!=Progression.COMPLETED && System.currentTimeMillis() < (startTime + 15000)){
             synchronized(this){
@@ -83,9 +84,14 @@ public class TestDownloadTracker extends PortalTestClass  {
 
         ZipInputStream zis = new ZipInputStream(downloadTracker.getFile());
         ZipEntry entry;
+        boolean manifestFound = false;
         while ((entry = zis.getNextEntry()) != null){
             byte[] bytes= new byte[1024];
             Assert.assertNotNull(entry);
+            if (entry.getName().equals("manifest.json")) {
+                manifestFound = true;
+                continue;
+            }
             Assert.assertTrue(entry.getName().endsWith(".xml"));
             zis.read(bytes, 0, bytes.length);
             String result= new String(bytes);
@@ -93,6 +99,7 @@ public class TestDownloadTracker extends PortalTestClass  {
             Assert.assertTrue(dummyGml.equals(result)||dummyGml2.equals(result));
         }
         zis.close();
+        Assert.assertTrue(manifestFound);
     }
 
 
@@ -121,6 +128,10 @@ public class TestDownloadTracker extends PortalTestClass  {
 
         context.checking(new Expectations() {
             {
+                //This service doesn't support hits so paging will be sequential
+                oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, serviceUrls[0]+"&resultType=hits", null)));
+                will(throwException(new Exception("hits unsupported")));
+
                 oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, serviceUrls[0]+"&startIndex=0", null)));
                 will(delayReturnValue(250, response1));
 
@@ -161,9 +172,14 @@ public class TestDownloadTracker extends PortalTestClass  {
 
         ZipInputStream zis = new ZipInputStream(downloadTracker.getFile());
         ZipEntry entry;
+        boolean manifestFound = false;
         while ((entry = zis.getNextEntry()) != null){
             byte[] bytes= new byte[1024];
             Assert.assertNotNull(entry);
+            if (entry.getName().equals("manifest.json")) {
+                manifestFound = true;
+                continue;
+            }
             Assert.assertTrue(entry.getName().endsWith(".xml") || entry.getName().endsWith(".zip"));
 
             if(entry.getName().endsWith(".xml")){
@@ -175,6 +191,7 @@ public class TestDownloadTracker extends PortalTestClass  {
 
         }
         zis.close();
+        Assert.assertTrue(manifestFound);
     }
 
     @Test
@@ -227,10 +244,15 @@ public class TestDownloadTracker extends PortalTestClass  {
 
         ZipInputStream zis = new ZipInputStream(downloadTracker.getFile());
         ZipEntry entry;
+        boolean manifestFound = false;
         while ((entry = zis.getNextEntry()) != null){
             byte[] bytes= new byte[1024];
             Assert.assertNotNull(entry);
-            Assert.assertTrue(entry.getName().endsWith(".xml")||entry.getName().endsWith(".txt"));
+            if (entry.getName().equals("manifest.json")) {
+                manifestFound = true;
+                continue;
+            }
+            Assert.assertTrue(entry.getName().endsWith(".xml")||entry.getName().endsWith(".error"));
             zis.read(bytes, 0, bytes.length);
             String result= new String(bytes);
             result=result.trim();
@@ -242,6 +264,7 @@ public class TestDownloadTracker extends PortalTestClass  {
             }
         }
         zis.close();
+        Assert.assertTrue(manifestFound);
     }
 
 
@@ -0,0 +1,230 @@
+package org.auscope.portal.core.server.http.download;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import net.sf.json.JSONObject;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.util.ZipCompressionPolicy;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for DownloadTrackerReaper
+ */
+public class TestDownloadTrackerReaper extends PortalTestClass {
+
+    /**
+     * Only considers a fixed set of trackers (so tests running in parallel can't interfere with each other)
+     * and expires them against a fixed time (so tests don't depend on the wall clock)
+     */
+    private static class FixedReaper extends DownloadTrackerReaper {
+        private List<DownloadTracker> trackers;
+        private long now = System.currentTimeMillis();
+
+        public FixedReaper(DownloadTracker... trackers) {
+            this.trackers = new ArrayList<DownloadTracker>(Arrays.asList(trackers));
+        }
+
+        @Override
+        protected List<DownloadTracker> getTrackers() {
+            return trackers;
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    /**
+     * Creates a completed tracker whose file contains size bytes
+     */
+    private DownloadTracker createCompleted(String email, int size) throws Exception {
+        DownloadTracker tracker = new DownloadTracker(email);
+        tracker.setDownloadComplete();
+        FileOutputStream fos = new FileOutputStream(tracker.getFileHandle());
+        fos.write(new byte[size]);
+        fos.close();
+        return tracker;
+    }
+
+    /**
+     * Finished downloads older than the TTL are removed (and their files deleted)
+     */
+    @Test
+    public void testTtlExpiry() throws Exception {
+        DownloadTracker tracker = DownloadTracker.getTracker("reaper-ttl@test");
+        tracker.setDownloadComplete();
+        File file = tracker.getFileHandle();
+
+        FixedReaper reaper = new FixedReaper(tracker);
+        reaper.setTtlMs(60000);
+        reaper.now = tracker.getLastUsedTime() + 30000;
+        Assert.assertEquals(0, reaper.reap());
+        Assert.assertTrue(file.exists());
+
+        reaper.now = tracker.getLastUsedTime() + 90000;
+        Assert.assertEquals(1, reaper.reap());
+        Assert.assertFalse(file.exists());
+        Assert.assertFalse(DownloadTracker.getTrackers().contains(tracker));
+    }
+
+    /**
+     * A finished download that was recently accessed should not expire, even if it finished long ago
+     */
+    @Test
+    public void testTtlRespectsRecentAccess() throws Exception {
+        DownloadTracker tracker = createCompleted("reaper-access@test", 1);
+        long accessTime = tracker.getLastCompletedTime() + 50000;
+        tracker.setLastAccessTime(accessTime);
+
+        FixedReaper reaper = new FixedReaper(tracker);
+        reaper.setTtlMs(30000);
+        reaper.now = accessTime + 20000;
+        Assert.assertEquals(0, reaper.reap());
+        Assert.assertEquals(1, tracker.getFileSize());
+
+        reaper.now = accessTime + 40000;
+        Assert.assertEquals(1, reaper.reap());
+        Assert.assertEquals(0, tracker.getFileSize());
+    }
+
+    /**
+     * Once a tracker has been evicted getTracker should never return it
+     */
+    @Test
+    public void testEvictedTrackerNotReturned() throws Exception {
+        DownloadTracker tracker = DownloadTracker.getTracker("reaper-evicted@test");
+        Assert.assertSame(tracker, DownloadTracker.getTracker("reaper-evicted@test"));
+        Assert.assertTrue(tracker.evictIfUnusedSince(System.currentTimeMillis() + 1000));
+        Assert.assertFalse(tracker.evictIfUnusedSince(0));
+
+        DownloadTracker replacement = DownloadTracker.getTracker("reaper-evicted@test");
+        Assert.assertNotSame(tracker, replacement);
+        Assert.assertFalse(replacement.evictIfUnusedSince(System.currentTimeMillis() - 1000));
+        replacement.evict();
+    }
+
+    /**
+     * Completed archives are evicted in least recently used order until the global quota is met
+     */
+    @Test
+    public void testGlobalQuotaLruEviction() throws Exception {
+        DownloadTracker oldest = createCompleted("reaper-a@test", 100);
+        DownloadTracker middle = createCompleted("reaper-b@test", 100);
+        DownloadTracker newest = createCompleted("reaper-c@test", 100);
+        File oldestFile = oldest.getFileHandle();
+        long base = newest.getLastUsedTime();
+        middle.setLastAccessTime(base + 1000);
+        newest.setLastAccessTime(base + 2000);
+        oldest.setLastAccessTime(base + 3000); //oldest is now the most recently used
+
+        FixedReaper reaper = new FixedReaper(oldest, middle, newest);
+        reaper.now = base + 4000;
+        reaper.setGlobalQuotaBytes(150);
+        Assert.assertEquals(2, reaper.reap());
+
+        Assert.assertTrue(oldestFile.exists());
+        Assert.assertEquals(0, middle.getFileSize());
+        Assert.assertEquals(0, newest.getFileSize());
+        oldest.evict();
+    }
+
+    /**
+     * In progress downloads are never removed, even if they're over quota
+     */
+    @Test
+    public void testInProgressNeverEvicted() throws Exception {
+        DownloadTracker tracker = new DownloadTracker("reaper-inprogress@test");
+        DownloadTracker completed = createCompleted("reaper-done@test", 10);
+        final CountDownLatch finishDownload = new CountDownLatch(1);
+        tracker.startTrack(new ServiceDownloadManager(new String[0], null, null) {
+            @Override
+            public int downloadAllToZip(ZipOutputStream zout, ZipCompressionPolicy policy, DownloadJournal journal, DownloadJournal.Job job) throws InterruptedException {
+                finishDownload.await();
+                return 0;
+            }
+        });
+
+        try {
+            FixedReaper reaper = new FixedReaper(tracker, completed);
+            reaper.setTtlMs(0);
+            reaper.setMaxTrackers(1);
+            reaper.now = Math.max(tracker.getLastUsedTime(), completed.getLastUsedTime()) + 1000;
+            Assert.assertEquals(1, reaper.reap());
+            Assert.assertEquals(Progression.INPROGRESS, tracker.getProgress());
+            Assert.assertFalse(tracker.evict());
+
+            JSONObject json = reaper.toJSON();
+            Assert.assertEquals(1, json.getJSONArray("active").size());
+            Assert.assertEquals("reaper-inprogress@test", json.getJSONArray("active").getJSONObject(0).getString("email"));
+        } finally {
+            finishDownload.countDown();
+        }
+    }
+
+    /**
+     * The number of trackers is bounded by maxTrackers
+     */
+    @Test
+    public void testMaxTrackers() throws Exception {
+        DownloadTracker a = createCompleted("reaper-max-a@test", 1);
+        DownloadTracker b = createCompleted("reaper-max-b@test", 1);
+        DownloadTracker c = createCompleted("reaper-max-c@test", 1);
+        long base = c.getLastUsedTime();
+        a.setLastAccessTime(base + 1000);
+        b.setLastAccessTime(base + 2000);
+        c.setLastAccessTime(base + 3000);
+
+        FixedReaper reaper = new FixedReaper(a, b, c);
+        reaper.setMaxTrackers(2);
+        Assert.assertEquals(1, reaper.reap());
+        Assert.assertEquals(0, a.getFileSize());
+        Assert.assertEquals(1, c.getFileSize());
+        b.evict();
+        c.evict();
+    }
+
+    /**
+     * The reaper's per user quota applies to the trackers it hands out and aborts downloads that exceed it
+     */
+    @Test
+    public void testPerUserQuota() throws Exception {
+        FixedReaper reaper = new FixedReaper();
+        reaper.setPerUserQuotaBytes(100);
+        DownloadTracker tracker = reaper.getTracker("reaper-quota@test");
+        Assert.assertEquals(100, tracker.getPerUserQuotaBytes());
+
+        tracker.startTrack(new ServiceDownloadManager(new String[0], null, null) {
+            @Override
+            public int downloadAllToZip(ZipOutputStream zout, ZipCompressionPolicy policy, DownloadJournal journal, DownloadJournal.Job job) throws IOException {
+                zout.putNextEntry(new ZipEntry("1.xml"));
+                zout.write(new byte[1000]);
+                zout.closeEntry();
+                return 1;
+            }
+        });
+        while (tracker.getProgress() != Progression.COMPLETED) {
+            Thread.sleep(10);
+        }
+
+        ZipInputStream zin = new ZipInputStream(tracker.getFile());
+        try {
+            Assert.assertEquals("error.txt", zin.getNextEntry().getName());
+            Assert.assertNull(zin.getNextEntry());
+        } finally {
+            zin.close();
+        }
+        tracker.evict();
+    }
+}
@@ -0,0 +1,152 @@
+package org.auscope.portal.core.server.http.download;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.test.jmock.ReadableServletOutputStream;
+import org.jmock.Expectations;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for RangeResponseWriter
+ */
+public class TestRangeResponseWriter extends PortalTestClass {
+    private final byte[] data = new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9};
+    private HttpServletRequest mockRequest = context.mock(HttpServletRequest.class);
+    private HttpServletResponse mockResponse = context.mock(HttpServletResponse.class);
+    private File file;
+    private String etag;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("TestRangeResponseWriter", ".zip");
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write(data);
+        fos.close();
+        etag = RangeResponseWriter.createETag(file);
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * Sets up the request headers and the response headers that are always written
+     */
+    private void expectRequest(final String range, final String ifRange, final String ifNoneMatch) {
+        context.checking(new Expectations() {{
+            allowing(mockRequest).getHeader("Range");will(returnValue(range));
+            allowing(mockRequest).getHeader("If-Range");will(returnValue(ifRange));
+            allowing(mockRequest).getHeader("If-None-Match");will(returnValue(ifNoneMatch));
+
+            oneOf(mockResponse).setHeader("Accept-Ranges", "bytes");
+            oneOf(mockResponse).setHeader("ETag", etag);
+            oneOf(mockResponse).setDateHeader("Last-Modified", file.lastModified());
+        }});
+    }
+
+    /**
+     * No Range header should return the entire file
+     */
+    @Test
+    public void testFullFile() throws Exception {
+        final ReadableServletOutputStream out = new ReadableServletOutputStream();
+        expectRequest(null, null, null);
+        context.checking(new Expectations() {{
+            oneOf(mockResponse).setContentType("application/zip");
+            oneOf(mockResponse).setHeader("Content-Disposition", "attachment; filename=\"download.zip\"");
+            oneOf(mockResponse).setHeader("Content-Length", "10");
+            oneOf(mockResponse).getOutputStream();will(returnValue(out));
+        }});
+
+        RangeResponseWriter.writeFile(mockRequest, mockResponse, file, "application/zip", "download.zip");
+        Assert.assertArrayEquals(data, out.getDataWritten());
+    }
+
+    /**
+     * A single range with a matching If-Range should return a 206
+     */
+    @Test
+    public void testPartialContent() throws Exception {
+        final ReadableServletOutputStream out = new ReadableServletOutputStream();
+        expectRequest("bytes=6-", etag, null);
+        context.checking(new Expectations() {{
+            oneOf(mockResponse).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            oneOf(mockResponse).setHeader("Content-Range", "bytes 6-9/10");
+            oneOf(mockResponse).setContentType("application/zip");
+            oneOf(mockResponse).setHeader("Content-Length", "4");
+            oneOf(mockResponse).getOutputStream();will(returnValue(out));
+        }});
+
+        RangeResponseWriter.writeFile(mockRequest, mockResponse, file, "application/zip", null);
+        Assert.assertArrayEquals(new byte[] {6, 7, 8, 9}, out.getDataWritten());
+    }
+
+    /**
+     * A stale If-Range should cause the entire file to be returned
+     */
+    @Test
+    public void testStaleIfRange() throws Exception {
+        final ReadableServletOutputStream out = new ReadableServletOutputStream();
+        expectRequest("bytes=6-", "\"stale\"", null);
+        context.checking(new Expectations() {{
+            oneOf(mockResponse).setContentType("application/zip");
+            oneOf(mockResponse).setHeader("Content-Length", "10");
+            oneOf(mockResponse).getOutputStream();will(returnValue(out));
+        }});
+
+        RangeResponseWriter.writeFile(mockRequest, mockResponse, file, "application/zip", null);
+        Assert.assertArrayEquals(data, out.getDataWritten());
+    }
+
+    /**
+     * Ranges beyond the end of the file should return a 416
+     */
+    @Test
+    public void testUnsatisfiable() throws Exception {
+        expectRequest("bytes=10-", null, null);
+        context.checking(new Expectations() {{
+            oneOf(mockResponse).setHeader("Content-Range", "bytes */10");
+            oneOf(mockResponse).setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        }});
+
+        RangeResponseWriter.writeFile(mockRequest, mockResponse, file, "application/zip", null);
+    }
+
+    /**
+     * A matching If-None-Match should return a 304
+     */
+    @Test
+    public void testNotModified() throws Exception {
+        expectRequest(null, null, etag);
+        context.checking(new Expectations() {{
+            oneOf(mockResponse).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        }});
+
+        RangeResponseWriter.writeFile(mockRequest, mockResponse, file, "application/zip", null);
+    }
+
+    /**
+     * Tests the various forms of Range header
+     */
+    @Test
+    public void testParseRange() {
+        Assert.assertArrayEquals(new long[] {0, 4}, RangeResponseWriter.parseRange("bytes=0-4", 10));
+        Assert.assertArrayEquals(new long[] {5, 9}, RangeResponseWriter.parseRange("bytes=5-100", 10));
+        Assert.assertArrayEquals(new long[] {7, 9}, RangeResponseWriter.parseRange("bytes=-3", 10));
+        Assert.assertArrayEquals(new long[] {0, 9}, RangeResponseWriter.parseRange("bytes=-30", 10));
+        Assert.assertEquals(0, RangeResponseWriter.parseRange("bytes=10-11", 10).length);
+        Assert.assertNull(RangeResponseWriter.parseRange("bytes=0-1,3-4", 10));
+        Assert.assertNull(RangeResponseWriter.parseRange("bytes=4-2", 10));
+        Assert.assertNull(RangeResponseWriter.parseRange("items=0-1", 10));
+        Assert.assertNull(RangeResponseWriter.parseRange("bytes=a-b", 10));
+    }
+}
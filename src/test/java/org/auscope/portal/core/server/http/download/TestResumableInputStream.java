@@ -0,0 +1,138 @@
+package org.auscope.portal.core.server.http.download;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.auscope.portal.core.server.http.HttpServiceCaller;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for ResumableInputStream (using an embedded stub server that drops connections mid body)
+ */
+public class TestResumableInputStream extends PortalTestClass {
+    private static final int BODY_LENGTH = 1000;
+    private static final int DROP_AFTER = 400;
+
+    private byte[] body;
+    private ServerSocket server;
+    private Thread serverThread;
+    private List<String> rangeHeaders = Collections.synchronizedList(new ArrayList<String>());
+    /** If true, range requests will be answered as if the content changed*/
+    private volatile boolean contentChanged = false;
+
+    @Before
+    public void setUp() throws Exception {
+        body = new byte[BODY_LENGTH];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+
+        server = new ServerSocket(0);
+        serverThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (!server.isClosed()) {
+                        Socket socket = server.accept();
+                        try {
+                            handle(socket);
+                        } finally {
+                            socket.close();
+                        }
+                    }
+                } catch (IOException ex) {
+                    //Server closed
+                }
+            }
+        };
+        serverThread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+        serverThread.join(1000);
+    }
+
+    /**
+     * Serves body. Full requests are cut off after DROP_AFTER bytes, range requests are served in full.
+     */
+    private void handle(Socket socket) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+        String range = null;
+        String line;
+        while ((line = reader.readLine()) != null && !line.isEmpty()) {
+            if (line.toLowerCase().startsWith("range:")) {
+                range = line.substring("range:".length()).trim();
+            }
+        }
+        rangeHeaders.add(String.valueOf(range));
+
+        OutputStream out = socket.getOutputStream();
+        if (range == null || contentChanged) {
+            out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/xml\r\nContent-Length: " + BODY_LENGTH +
+                    "\r\nAccept-Ranges: bytes\r\nETag: \"v1\"\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+            out.write(body, 0, range == null ? DROP_AFTER : BODY_LENGTH);
+        } else {
+            int start = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+            out.write(("HTTP/1.1 206 Partial Content\r\nContent-Type: application/xml\r\nContent-Length: " + (BODY_LENGTH - start) +
+                    "\r\nContent-Range: bytes " + start + "-" + (BODY_LENGTH - 1) + "/" + BODY_LENGTH +
+                    "\r\nAccept-Ranges: bytes\r\nETag: \"v1\"\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+            out.write(body, start, BODY_LENGTH - start);
+        }
+        out.flush();
+    }
+
+    private String getUrl() {
+        return "http://localhost:" + server.getLocalPort() + "/data";
+    }
+
+    /**
+     * A dropped connection should be resumed from where it left off
+     */
+    @Test
+    public void testResume() throws Exception {
+        HttpServiceCaller serviceCaller = new HttpServiceCaller(5000);
+        HttpResponse response = serviceCaller.getMethodResponseAsHttpResponse(new HttpGet(getUrl()));
+        Assert.assertTrue(ResumableInputStream.supportsResume(response));
+
+        ResumableInputStream is = new ResumableInputStream(serviceCaller, getUrl(), response, 3);
+        byte[] result = IOUtils.toByteArray(is);
+        is.close();
+
+        Assert.assertArrayEquals(body, result);
+        Assert.assertEquals(1, is.getResumeCount());
+        Assert.assertEquals("bytes=" + DROP_AFTER + "-", rangeHeaders.get(1));
+    }
+
+    /**
+     * If the upstream content has changed the download must fail rather than splice two versions together
+     */
+    @Test
+    public void testResumeContentChanged() throws Exception {
+        HttpServiceCaller serviceCaller = new HttpServiceCaller(5000);
+        HttpResponse response = serviceCaller.getMethodResponseAsHttpResponse(new HttpGet(getUrl()));
+        contentChanged = true;
+        ResumableInputStream is = new ResumableInputStream(serviceCaller, getUrl(), response, 3);
+        try {
+            IOUtils.toByteArray(is);
+            Assert.fail("Expected IOException");
+        } catch (IOException ex) {
+            Assert.assertTrue(ex.getMessage().contains("Unable to resume"));
+        }
+    }
+}
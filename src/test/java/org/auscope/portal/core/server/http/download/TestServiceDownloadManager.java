@@ -1,22 +1,25 @@
 package org.auscope.portal.core.server.http.download;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-
-
-
-
-
-
-
-
-
-
+import java.util.concurrent.RejectedExecutionException;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.apache.commons.io.IOUtils;
 
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpRequestBase;
@@ -24,7 +27,10 @@ import org.auscope.portal.core.configuration.ServiceConfiguration;
 import org.auscope.portal.core.configuration.ServiceConfigurationItem;
 import org.auscope.portal.core.server.http.HttpServiceCaller;
 import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.util.FileIOUtil;
 import org.jmock.Expectations;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -35,6 +41,19 @@ public class TestServiceDownloadManager extends PortalTestClass  {
     private HttpServiceCaller mockServiceCaller = context.mock(HttpServiceCaller.class);
     private ServiceConfiguration mockServiceConfiguration= context.mock(ServiceConfiguration.class);
 
+    /**
+     * Slots are released just after a download signals completion (and queued page helpers still need to
+     * start and exit) so give the scheduler a moment to settle
+     */
+    private static void assertSchedulerIdle(DownloadScheduler scheduler) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while ((scheduler.getActiveCount() > 0 || scheduler.getQueueDepth() > 0) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, scheduler.getActiveCount());
+        Assert.assertEquals(0, scheduler.getQueueDepth());
+    }
+
     @Before
     public void setUp() {
         threadPool = Executors.newCachedThreadPool();
@@ -49,15 +68,15 @@ public class TestServiceDownloadManager extends PortalTestClass  {
         final String dummyGml = "<someGmlHere/>";
         final String dummyJSONResponse = "{\"data\":{\"kml\":\"<someKmlHere/>\", \"gml\":\""
                 + dummyGml + "\"},\"success\":true}";
-        final InputStream dummyJSONResponseIS=new ByteArrayInputStream(dummyJSONResponse.getBytes());
-        final MyHttpResponse httpResponse=new MyHttpResponse(dummyJSONResponseIS);
+        final MyHttpResponse httpResponse1=new MyHttpResponse(new ByteArrayInputStream(dummyJSONResponse.getBytes()));
+        final MyHttpResponse httpResponse2=new MyHttpResponse(new ByteArrayInputStream(dummyJSONResponse.getBytes()));
 
 
         context.checking(new Expectations() {
             {
                 // calling the service
                 exactly(2).of(mockServiceCaller).getMethodResponseAsHttpResponse(with(any(HttpRequestBase.class)));
-                will(returnValue(httpResponse));
+                will(onConsecutiveCalls(returnValue(httpResponse1), returnValue(httpResponse2)));
 
                 allowing(mockServiceConfiguration).getServiceConfigurationItem(with(any(String.class)));
                 will(returnValue(null));
@@ -67,11 +86,22 @@ public class TestServiceDownloadManager extends PortalTestClass  {
         ServiceDownloadManager sdm=new ServiceDownloadManager(serviceUrls,mockServiceCaller,threadPool,mockServiceConfiguration);
         ArrayList<DownloadResponse> gmlDownloads=sdm.downloadAll();
         for(DownloadResponse response:gmlDownloads){
-            Assert.assertEquals(dummyJSONResponseIS,response.getResponseAsStream());
+            Assert.assertEquals(Progression.INPROGRESS, response.getStatus());
+            Assert.assertEquals(dummyJSONResponse, IOUtils.toString(response.getResponseAsStream(), "UTF-8"));
             Assert.assertFalse(response.hasException());
             Assert.assertNull(response.getException());
+
+            //The body has been read so the download is now complete
+            Assert.assertEquals(Progression.COMPLETED, response.getStatus());
+            Assert.assertEquals(dummyJSONResponse.length(), response.getBytesReceived());
         }
 
+        JSONObject progress = sdm.getProgressJSON();
+        Assert.assertEquals(2, progress.getInt("total"));
+        Assert.assertEquals(2, progress.getInt("completed"));
+        Assert.assertEquals(0, progress.getInt("failed"));
+        Assert.assertEquals(dummyJSONResponse.length() * 2, progress.getLong("bytesReceived"));
+        Assert.assertEquals(0, progress.getLong("etaMs"));
     }
 
 
@@ -100,6 +130,10 @@ public class TestServiceDownloadManager extends PortalTestClass  {
 
         context.checking(new Expectations() {
             {
+                //This service doesn't support hits so paging will be sequential
+                oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, serviceUrls[0]+"&resultType=hits", null)));
+                will(throwException(new Exception("hits unsupported")));
+
                 oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, serviceUrls[0]+"&startIndex=0", null)));
                 will(delayReturnValue(250, response1));
 
@@ -184,12 +218,35 @@ public class TestServiceDownloadManager extends PortalTestClass  {
                 Assert.assertNotNull(response.getException());
                 Assert.assertTrue("test exception".equals(response.getException().getMessage()));
             }else{
-                Assert.assertEquals(dummyJSONResponseIS,response.getResponseAsStream());
+                Assert.assertEquals(dummyJSONResponse, IOUtils.toString(response.getResponseAsStream(), "UTF-8"));
                 Assert.assertNull(response.getException());
             }
         }
     }
 
+    /**
+     * Downloads that the executor refuses to run should fail immediately rather than leaving downloadAll waiting
+     */
+    @Test
+    public void testDownloadAllRejected() throws Exception {
+        final String[] serviceUrls = {
+                "http://localhost/portal?serviceUrl=http://domain1/wfs",
+                "http://localhost/portal?serviceUrl=http://domain2/wfs"};
+        ExecutorService shutdownPool = Executors.newSingleThreadExecutor();
+        shutdownPool.shutdown();
+
+        ServiceDownloadManager sdm = new ServiceDownloadManager(serviceUrls, mockServiceCaller, shutdownPool, mockServiceConfiguration);
+        sdm.setScheduler(new DownloadScheduler());
+        long start = System.currentTimeMillis();
+        ArrayList<DownloadResponse> gmlDownloads = sdm.downloadAll();
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+        Assert.assertEquals(serviceUrls.length, gmlDownloads.size());
+        for (DownloadResponse response : gmlDownloads) {
+            Assert.assertTrue(response.getException() instanceof RejectedExecutionException);
+        }
+        assertSchedulerIdle(sdm.getScheduler());
+    }
+
     /**
      * A complicated scenario that sees 3 requests being firing off to 2 shared resources.
      *
@@ -270,6 +327,9 @@ public class TestServiceDownloadManager extends PortalTestClass  {
             Assert.assertNotNull(dr);
             Assert.assertFalse(dr.hasException());
         }
+
+        //The executor belongs to the caller - it shouldn't be shutdown
+        Assert.assertFalse(threadPool.isShutdown());
     }
 
     /**
@@ -298,10 +358,352 @@ public class TestServiceDownloadManager extends PortalTestClass  {
         ServiceDownloadManager sdm=new ServiceDownloadManager(serviceUrls,mockServiceCaller,threadPool,mockServiceConfiguration);
         ArrayList<DownloadResponse> gmlDownloads=sdm.downloadAll();
         for(DownloadResponse response:gmlDownloads){
-            Assert.assertEquals(dummyJSONResponseIS,response.getResponseAsStream());
+            Assert.assertEquals(dummyJSONResponse, IOUtils.toString(response.getResponseAsStream(), "UTF-8"));
             Assert.assertFalse(response.hasException());
             Assert.assertNull(response.getException());
         }
 
     }
+
+    /**
+     * Entries should be written in completion order with failures recorded and a manifest written last
+     * @throws Exception
+     */
+    @Test
+    public void testDownloadAllToZip() throws Exception {
+        final String[] serviceUrls = {
+                "http://localhost/portal?serviceUrl=http://slow.example/wfs",
+                "http://localhost/portal?serviceUrl=http://fast.example/wfs",
+                "http://localhost/portal?serviceUrl=http://broken.example/wfs"};
+        final String slowJSON = "{\"data\":{\"gml\":\"<slow/>\"},\"success\":true}";
+        final String fastJSON = "{\"data\":{\"gml\":\"<fast/>\"},\"success\":true}";
+
+        context.checking(new Expectations() {{
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, serviceUrls[0], null)));
+            will(delayReturnValue(300, new MyHttpResponse(new ByteArrayInputStream(slowJSON.getBytes()))));
+
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, serviceUrls[1], null)));
+            will(returnValue(new MyHttpResponse(new ByteArrayInputStream(fastJSON.getBytes()))));
+
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, serviceUrls[2], null)));
+            will(throwException(new Exception("test exception")));
+
+            allowing(mockServiceConfiguration).getServiceConfigurationItem(with(any(String.class)));
+            will(returnValue(null));
+        }});
+
+        ServiceDownloadManager sdm = new ServiceDownloadManager(serviceUrls, mockServiceCaller, threadPool, mockServiceConfiguration);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ZipOutputStream zout = new ZipOutputStream(bos);
+        Assert.assertEquals(2, sdm.downloadAllToZip(zout));
+        zout.close();
+
+        List<String> entryNames = new ArrayList<String>();
+        String manifest = null;
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        ZipEntry entry;
+        while ((entry = zis.getNextEntry()) != null) {
+            entryNames.add(entry.getName());
+            String content = IOUtils.toString(zis, "UTF-8");
+            if (entry.getName().startsWith("2_")) {
+                Assert.assertEquals("<fast/>", content);
+            } else if (entry.getName().startsWith("1_")) {
+                Assert.assertEquals("<slow/>", content);
+            } else if (entry.getName().equals("manifest.json")) {
+                manifest = content;
+            }
+        }
+        zis.close();
+
+        //The slow download must come after the others and the manifest must be last
+        Assert.assertEquals(4, entryNames.size());
+        Assert.assertTrue(entryNames.get(2).startsWith("1_"));
+        Assert.assertEquals("manifest.json", entryNames.get(3));
+        Assert.assertTrue(entryNames.get(0).startsWith("2_") || entryNames.get(0).startsWith("3_"));
+        Assert.assertTrue(entryNames.get(1).startsWith("2_") || entryNames.get(1).startsWith("3_"));
+
+        JSONArray manifestJson = JSONArray.fromObject(manifest);
+        Assert.assertEquals(3, manifestJson.size());
+        Assert.assertTrue(manifestJson.getJSONObject(0).getBoolean("success"));
+        Assert.assertTrue(manifestJson.getJSONObject(1).getBoolean("success"));
+        Assert.assertFalse(manifestJson.getJSONObject(2).getBoolean("success"));
+        Assert.assertEquals("test exception", manifestJson.getJSONObject(2).getString("error"));
+        Assert.assertTrue(manifestJson.getJSONObject(2).getString("entry").endsWith(".error"));
+        Assert.assertEquals(serviceUrls[2], manifestJson.getJSONObject(2).getString("url"));
+        Assert.assertFalse(threadPool.isShutdown());
+    }
+
+    /**
+     * If zout fails part way through, downloads that complete afterwards should still have their streams closed
+     * @throws Exception
+     */
+    @Test
+    public void testDownloadAllToZipClosesLateDownloads() throws Exception {
+        final String[] serviceUrls = {
+                "http://localhost/portal?serviceUrl=http://fast.example/wfs",
+                "http://localhost/portal?serviceUrl=http://slow.example/wfs"};
+        final CloseTrackingStream fastStream = new CloseTrackingStream("<fast/>");
+        final CloseTrackingStream slowStream = new CloseTrackingStream("<slow/>");
+
+        context.checking(new Expectations() {{
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, serviceUrls[0], null)));
+            will(returnValue(new MyHttpResponse(fastStream)));
+
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, serviceUrls[1], null)));
+            will(delayReturnValue(300, new MyHttpResponse(slowStream)));
+
+            allowing(mockServiceConfiguration).getServiceConfigurationItem(with(any(String.class)));
+            will(returnValue(null));
+        }});
+
+        //Simulates the client disconnecting
+        ZipOutputStream zout = new ZipOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("client disconnected");
+            }
+        });
+
+        ServiceDownloadManager sdm = new ServiceDownloadManager(serviceUrls, mockServiceCaller, threadPool, mockServiceConfiguration);
+        try {
+            sdm.downloadAllToZip(zout);
+            Assert.fail("Expected an IOException");
+        } catch (IOException ex) {
+            Assert.assertEquals("client disconnected", ex.getMessage());
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!slowStream.closed && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue("The fast download's stream was never closed", fastStream.closed);
+        Assert.assertTrue("The slow download's stream was never closed", slowStream.closed);
+    }
+
+    /**
+     * When the server reports the total number of features, the remaining pages should be requested in parallel
+     * and reassembled in order
+     * @throws Exception
+     */
+    @Test
+    public void testDownloadPagingParallel() throws Exception {
+        final ServiceConfigurationItem scItem = new ServiceConfigurationItem("exampleTestId", "exampleTest.com/test", true);
+        scItem.setMaxConcurrentPages(3);
+        final String url = "http://localhost/portal?serviceUrl=http://exampleTest.com/test/wfs";
+
+        final String hits = "<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs\" numberOfFeatures=\"17\"/>";
+        final String[] pages = new String[4];
+        for (int i = 0; i < pages.length; i++) {
+            pages[i] = "<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs\" numberOfFeatures=\"" + (i < 3 ? 5 : 2) + "\" page=\"" + i + "\"/>";
+        }
+
+        context.checking(new Expectations() {{
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, url + "&resultType=hits", null)));
+            will(returnValue(new MyHttpResponse(new ByteArrayInputStream(hits.getBytes()))));
+
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, url + "&startIndex=0", null)));
+            will(returnValue(new MyHttpResponse(new ByteArrayInputStream(pages[0].getBytes()))));
+
+            //The second page is always requested on its own (to check startIndex is honoured)
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, url + "&startIndex=5", null)));
+            will(returnValue(new MyHttpResponse(new ByteArrayInputStream(pages[1].getBytes()))));
+
+            //These two should be requested at the same time
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, url + "&startIndex=10", null)));
+            will(delayReturnValue(500, new MyHttpResponse(new ByteArrayInputStream(pages[2].getBytes()))));
+
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, url + "&startIndex=15", null)));
+            will(delayReturnValue(500, new MyHttpResponse(new ByteArrayInputStream(pages[3].getBytes()))));
+
+            allowing(mockServiceConfiguration).getServiceConfigurationItem(with(any(String.class)));
+            will(returnValue(scItem));
+        }});
+
+        //Page requests count towards the host limit so it has to allow them to run in parallel
+        DownloadScheduler scheduler = new DownloadScheduler();
+        scheduler.setMaxPerHost(3);
+        scheduler.setMaxPerSession(3);
+        ServiceDownloadManager sdm = new ServiceDownloadManager(new String[] {url}, mockServiceCaller, threadPool, mockServiceConfiguration);
+        sdm.setScheduler(scheduler);
+        startTimer();
+        ArrayList<DownloadResponse> gmlDownloads = sdm.downloadAll();
+        long elapsedTime = endTimer();
+        Assert.assertTrue("Pages were not requested in parallel: " + elapsedTime, elapsedTime < 900);
+
+        DownloadResponse response = gmlDownloads.get(0);
+        Assert.assertFalse(response.hasException());
+        Assert.assertEquals("application/zip", response.getContentType());
+        Assert.assertEquals(Progression.COMPLETED, response.getStatus());
+        Assert.assertEquals(17, response.getExpectedFeatures());
+        Assert.assertEquals(4, response.getExpectedPages());
+        Assert.assertEquals(4, response.getPagesCompleted());
+        Assert.assertEquals(pages[0].length() + pages[1].length() + pages[2].length() + pages[3].length(), response.getBytesReceived());
+
+        ZipInputStream zis = new ZipInputStream(response.getResponseAsStream());
+        List<String> entryNames = new ArrayList<String>();
+        ZipEntry entry;
+        while ((entry = zis.getNextEntry()) != null) {
+            entryNames.add(entry.getName());
+            Assert.assertEquals(pages[entryNames.size() - 1], IOUtils.toString(zis, "UTF-8"));
+        }
+        zis.close();
+        Assert.assertEquals(4, entryNames.size());
+        Assert.assertEquals("ResultIndexed-0.xml", entryNames.get(0));
+        Assert.assertEquals("ResultIndexed-5.xml", entryNames.get(1));
+        Assert.assertEquals("ResultIndexed-10.xml", entryNames.get(2));
+        Assert.assertEquals("ResultIndexed-15.xml", entryNames.get(3));
+        assertSchedulerIdle(scheduler);
+    }
+
+    /**
+     * Parallel page requests should honour maxConcurrentPages even when the scheduler only allows 1 download per
+     * host (but never exceed it)
+     */
+    @Test
+    public void testDownloadPagingHostLimit() throws Exception {
+        final ServiceConfigurationItem scItem = new ServiceConfigurationItem("exampleTestId", "exampleTest.com/test", true);
+        scItem.setMaxConcurrentPages(3);
+        final String url = "http://localhost/portal?serviceUrl=http://exampleTest.com/test/wfs";
+        final String hits = "<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs\" numberOfFeatures=\"4\"/>";
+        final DownloadScheduler scheduler = new DownloadScheduler();
+        scheduler.setMaxPerHost(1);
+        final int[] maxActive = {0};
+
+        context.checking(new Expectations() {{
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, url + "&resultType=hits", null)));
+            will(returnValue(new MyHttpResponse(new ByteArrayInputStream(hits.getBytes()))));
+
+            exactly(4).of(mockServiceCaller).getMethodResponseAsHttpResponse(with(any(HttpRequestBase.class)));
+            will(new CustomAction("return a page and record the host's active downloads") {
+                @Override
+                public Object invoke(Invocation invocation) throws Throwable {
+                    synchronized (maxActive) {
+                        maxActive[0] = Math.max(maxActive[0], scheduler.getActiveCount("http://exampleTest.com/test/wfs"));
+                    }
+                    Thread.sleep(100);
+                    String uri = ((HttpRequestBase) invocation.getParameter(0)).getURI().toString();
+                    String page = "<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs\" numberOfFeatures=\"1\" uri=\"" + uri.replace("&", "&amp;") + "\"/>";
+                    return new MyHttpResponse(new ByteArrayInputStream(page.getBytes()));
+                }
+            });
+
+            allowing(mockServiceConfiguration).getServiceConfigurationItem(with(any(String.class)));
+            will(returnValue(scItem));
+        }});
+
+        ServiceDownloadManager sdm = new ServiceDownloadManager(new String[] {url}, mockServiceCaller, threadPool, mockServiceConfiguration);
+        sdm.setScheduler(scheduler);
+        DownloadResponse response = sdm.downloadAll().get(0);
+        Assert.assertFalse(response.hasException());
+        Assert.assertEquals(4, response.getPagesCompleted());
+        Assert.assertTrue("pages were serialised", maxActive[0] > 1);
+        Assert.assertTrue("too many concurrent pages: " + maxActive[0], maxActive[0] <= 3);
+        assertSchedulerIdle(scheduler);
+    }
+
+    /**
+     * A server that ignores startIndex (and returns the first page again) should be requested once without paging
+     */
+    @Test
+    public void testDownloadPagingIgnoredStartIndex() throws Exception {
+        final ServiceConfigurationItem scItem = new ServiceConfigurationItem("exampleTestId", "exampleTest.com/test", true);
+        final String url = "http://localhost/portal?serviceUrl=http://exampleTest.com/test/wfs";
+        final String page = "<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs\" xmlns:gml=\"http://www.opengis.net/gml\" numberOfFeatures=\"2\">"
+                + "<gml:featureMember><a gml:id=\"a.1\"/></gml:featureMember><gml:featureMember><a gml:id=\"a.2\"/></gml:featureMember></wfs:FeatureCollection>";
+        final String unpaged = "<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs\" xmlns:gml=\"http://www.opengis.net/gml\" numberOfFeatures=\"3\">"
+                + "<gml:featureMember><a gml:id=\"a.1\"/></gml:featureMember><gml:featureMember><a gml:id=\"a.2\"/></gml:featureMember>"
+                + "<gml:featureMember><a gml:id=\"a.3\"/></gml:featureMember></wfs:FeatureCollection>";
+
+        context.checking(new Expectations() {{
+            //No hits support - without the fallback this would page forever
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, url + "&resultType=hits", null)));
+            will(throwException(new Exception("hits unsupported")));
+
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, url + "&startIndex=0", null)));
+            will(returnValue(new MyHttpResponse(new ByteArrayInputStream(page.getBytes()))));
+
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, url + "&startIndex=2", null)));
+            will(returnValue(new MyHttpResponse(new ByteArrayInputStream(page.getBytes()))));
+
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, url, null)));
+            will(returnValue(new MyHttpResponse(new ByteArrayInputStream(unpaged.getBytes()))));
+
+            allowing(mockServiceConfiguration).getServiceConfigurationItem(with(any(String.class)));
+            will(returnValue(scItem));
+        }});
+
+        ServiceDownloadManager sdm = new ServiceDownloadManager(new String[] {url}, mockServiceCaller, threadPool, mockServiceConfiguration);
+        sdm.setScheduler(new DownloadScheduler());
+        DownloadResponse response = sdm.downloadAll().get(0);
+        Assert.assertFalse(response.hasException());
+        Assert.assertEquals("application/zip", response.getContentType());
+
+        ZipInputStream zis = new ZipInputStream(response.getResponseAsStream());
+        ZipEntry entry = zis.getNextEntry();
+        Assert.assertEquals("ResultIndexed-0.xml", entry.getName());
+        Assert.assertEquals(unpaged, IOUtils.toString(zis, "UTF-8"));
+        Assert.assertNull(zis.getNextEntry());
+        zis.close();
+    }
+
+    /**
+     * A second request for the same (normalised) URL should be served from the download cache unless
+     * the service has opted out
+     * @throws Exception
+     */
+    @Test
+    public void testDownloadCache() throws Exception {
+        final String url = "http://localhost/portal?serviceUrl=http://cached.example/wfs&typeName=a";
+        final String liveUrl = "http://localhost/portal?serviceUrl=http://live.example/wfs&typeName=a";
+        final String body = "<wfs:FeatureCollection/>";
+        final ServiceConfigurationItem liveItem = new ServiceConfigurationItem("live", "live.example", false);
+        liveItem.setDownloadCacheable(false);
+        File cacheDir = Files.createTempDirectory("TestDownloadCache").toFile();
+
+        try {
+            context.checking(new Expectations() {{
+                oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, url, null)));
+                will(returnValue(new MyHttpResponse(new ByteArrayInputStream(body.getBytes()))));
+
+                exactly(2).of(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, liveUrl, null)));
+                will(onConsecutiveCalls(returnValue(new MyHttpResponse(new ByteArrayInputStream(body.getBytes()))),
+                        returnValue(new MyHttpResponse(new ByteArrayInputStream(body.getBytes())))));
+
+                allowing(mockServiceConfiguration).getServiceConfigurationItem(url);
+                will(returnValue(null));
+                allowing(mockServiceConfiguration).getServiceConfigurationItem(liveUrl);
+                will(returnValue(liveItem));
+            }});
+
+            DownloadCache cache = new DownloadCache(cacheDir);
+            for (int i = 0; i < 2; i++) {
+                ServiceDownloadManager sdm = new ServiceDownloadManager(new String[] {url, liveUrl}, mockServiceCaller, threadPool, mockServiceConfiguration);
+                sdm.setDownloadCache(cache);
+                for (DownloadResponse response : sdm.downloadAll()) {
+                    Assert.assertFalse(response.hasException());
+                    Assert.assertEquals(body, IOUtils.toString(response.getResponseAsStream(), "UTF-8"));
+                    response.getResponseAsStream().close();
+                }
+            }
+
+            Assert.assertEquals(1, cache.getHitCount());
+            Assert.assertEquals(1, cache.getMissCount());
+        } finally {
+            FileIOUtil.deleteFilesRecursive(cacheDir);
+        }
+    }
+
+    private static class CloseTrackingStream extends ByteArrayInputStream {
+        private volatile boolean closed = false;
+
+        public CloseTrackingStream(String content) {
+            super(content.getBytes());
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            super.close();
+        }
+    }
 }
@@ -1,16 +1,25 @@
 package org.auscope.portal.core.services;
 
 import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.net.ConnectException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
+
+import org.apache.http.client.methods.HttpRequestBase;
 import org.auscope.portal.core.server.http.HttpServiceCaller;
 import org.auscope.portal.core.services.csw.CSWServiceItem;
+import org.auscope.portal.core.services.responses.csw.AbstractCSWOnlineResource;
 import org.auscope.portal.core.services.responses.csw.AbstractCSWOnlineResource.OnlineResourceType;
 import org.auscope.portal.core.services.responses.csw.CSWRecord;
 import org.auscope.portal.core.test.BasicThreadExecutor;
@@ -610,4 +619,141 @@ public class TestCSWCacheService extends PortalTestClass {
         Assert.assertEquals(1, parent.getChildRecords().length);
         Assert.assertSame(child, parent.getChildRecords()[0]);
     }
+
+    /**
+     * Runs every task on its own thread. Tasks are started in a random order, each after a delay based
+     * on its (shuffled) position so that the order in which they complete is shuffled too.
+     */
+    private static class ShuffledExecutor implements Executor {
+        private Random random;
+        private List<Runnable> tasks = new ArrayList<Runnable>();
+
+        public ShuffledExecutor(Random random) {
+            this.random = random;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        public void runAll() throws InterruptedException {
+            Collections.shuffle(tasks, random);
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int i = 0; i < tasks.size(); i++) {
+                final Runnable task = tasks.get(i);
+                final long delay = i + random.nextInt(2);
+                Thread thread = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            Thread.sleep(delay);
+                        } catch (InterruptedException ex) {
+                            return;
+                        }
+                        task.run();
+                    }
+                };
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            tasks.clear();
+        }
+    }
+
+    /**
+     * Describes the contents (and order) of the record and keyword caches of service
+     */
+    private static String describeCaches(CSWCacheService service) {
+        StringBuilder sb = new StringBuilder();
+        for (CSWRecord rec : service.recordCache) {
+            sb.append(rec.getFileIdentifier()).append(' ').append(rec.getRecordInfoUrl());
+            sb.append(' ').append(Arrays.toString(rec.getDescriptiveKeywords()));
+            for (AbstractCSWOnlineResource resource : rec.getOnlineResources()) {
+                sb.append(' ').append(resource.getLinkage()).append('|').append(resource.getName());
+            }
+            for (CSWRecord child : rec.getChildRecords()) {
+                sb.append(" child:").append(child.getRecordInfoUrl());
+            }
+            sb.append('\n');
+        }
+        for (Map.Entry<String, Set<CSWRecord>> entry : service.keywordCache.entrySet()) {
+            sb.append(entry.getKey()).append(" =");
+            for (CSWRecord rec : entry.getValue()) {
+                sb.append(' ').append(rec.getRecordInfoUrl());
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Tests that the same harvest always produces the same caches (including which records are merged into which)
+     * regardless of the order in which each endpoint's harvest completes
+     * @throws Exception
+     */
+    @Test
+    public void testDeterministicPostProcessing() throws Exception {
+        final Map<String, String> responses = new HashMap<String, String>();
+        responses.put(String.format(serviceUrlFormatString, 1), ResourceUtil.loadResourceAsString("org/auscope/portal/core/test/responses/csw/cswRecordResponse_MergeRecords.xml"));
+        responses.put(String.format(serviceUrlFormatString, 2), ResourceUtil.loadResourceAsString("org/auscope/portal/core/test/responses/csw/cswRecordResponse_NoMoreRecords.xml"));
+        responses.put(String.format(serviceUrlFormatString, 3), ResourceUtil.loadResourceAsString("org/auscope/portal/core/test/responses/csw/cswRecordResponse_MergeRecords.xml"));
+        responses.put(String.format(serviceUrlFormatString, 4), ResourceUtil.loadResourceAsString("org/auscope/portal/core/test/responses/csw/cswRecordResponse_ParentRecord.xml"));
+        responses.put(String.format(serviceUrlFormatString, 5), ResourceUtil.loadResourceAsString("org/auscope/portal/core/test/responses/csw/cswRecordResponse_MergeRecords.xml"));
+
+        HttpServiceCaller serviceCaller = new HttpServiceCaller(1000) {
+            @Override
+            public InputStream getMethodResponseAsStream(HttpRequestBase method) throws Exception {
+                return new ByteArrayInputStream(responses.get(method.getURI().toString()).getBytes());
+            }
+        };
+
+        ArrayList<CSWServiceItem> serviceUrlList = new ArrayList<CSWServiceItem>();
+        for (int i = 1; i <= responses.size(); i++) {
+            String serviceUrl = String.format(serviceUrlFormatString, i);
+            serviceUrlList.add(new CSWServiceItem(String.format("id:%1$s", i), serviceUrl, serviceUrl + "record/%1$s"));
+        }
+        CSWServiceItem noCacheItem = new CSWServiceItem("id:nocache", "http://cswservice.nocache.url/", "http://cswservice.nocache.url/record/%1$s", "No cache");
+        noCacheItem.setNoCache(true);
+        serviceUrlList.add(noCacheItem);
+
+        Random random = new Random(8765L);
+        String expected = null;
+        for (int run = 0; run < 100; run++) {
+            ShuffledExecutor executor = new ShuffledExecutor(random);
+            CSWCacheService service = new CSWCacheService(executor, serviceCaller, serviceUrlList);
+            Assert.assertTrue(service.updateCache());
+            executor.runAll();
+            Assert.assertFalse(service.updateRunning);
+
+            String actual = describeCaches(service);
+            if (expected == null) {
+                expected = actual;
+            } else {
+                Assert.assertEquals("Run " + run, expected, actual);
+            }
+        }
+
+        //Sanity check the caches were populated (and merged) as expected
+        Assert.assertTrue(expected.contains("http://cswservice.1.url/record/"));
+        Assert.assertTrue(expected.contains("association:unique-keyword = http://cswservice.1.url/record/"));
+        Assert.assertTrue(expected.contains("id:nocache"));
+
+        //A pool supplied to the service should be used (and left running) rather than a per update pool
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            ShuffledExecutor executor = new ShuffledExecutor(random);
+            CSWCacheService service = new CSWCacheService(executor, serviceCaller, serviceUrlList);
+            service.setPostProcessingPool(pool);
+            Assert.assertTrue(service.updateCache());
+            executor.runAll();
+            Assert.assertEquals(expected, describeCaches(service));
+            Assert.assertFalse(pool.isShutdown());
+        } finally {
+            pool.shutdown();
+        }
+    }
 }
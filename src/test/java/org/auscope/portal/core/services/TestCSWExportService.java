@@ -0,0 +1,203 @@
+package org.auscope.portal.core.services;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+
+import net.sf.json.JSONObject;
+
+import org.auscope.portal.core.services.CSWExportService.ExportFormat;
+import org.auscope.portal.core.services.csw.CSWServiceItem;
+import org.auscope.portal.core.services.namespaces.CSWNamespaceContext;
+import org.auscope.portal.core.services.responses.csw.AbstractCSWOnlineResource;
+import org.auscope.portal.core.services.responses.csw.CSWGeographicBoundingBox;
+import org.auscope.portal.core.services.responses.csw.CSWGeographicElement;
+import org.auscope.portal.core.services.responses.csw.CSWGetRecordResponse;
+import org.auscope.portal.core.services.responses.csw.CSWOnlineResourceImpl;
+import org.auscope.portal.core.services.responses.csw.CSWRecord;
+import org.auscope.portal.core.services.responses.csw.CSWRecordTransformer;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.test.ResourceUtil;
+import org.auscope.portal.core.util.DOMUtil;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+/**
+ * Unit tests for CSWExportService
+ */
+public class TestCSWExportService extends PortalTestClass {
+
+    private CSWCacheService cacheService;
+    private CSWExportService exportService;
+
+    @Before
+    public void setUp() throws Exception {
+        cacheService = new CSWCacheService(null, null, new ArrayList<CSWServiceItem>());
+        exportService = new CSWExportService(cacheService);
+    }
+
+    private static List<CSWRecord> loadRecords() throws Exception {
+        Document doc = DOMUtil.buildDomFromStream(ResourceUtil.loadResourceAsStream("org/auscope/portal/core/test/responses/csw/cswRecordResponse.xml"));
+        XPathExpression expr = DOMUtil.compileXPathExpr("/csw:GetRecordsResponse/csw:SearchResults/gmd:MD_Metadata", new CSWNamespaceContext());
+        NodeList nodes = (NodeList) expr.evaluate(doc, XPathConstants.NODESET);
+
+        List<CSWRecord> records = new ArrayList<CSWRecord>();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            records.add(new CSWRecordTransformer(nodes.item(i)).transformToCSWRecord());
+        }
+        return records;
+    }
+
+    private static CSWRecord createRecord(String id, String title, String[] keywords, CSWGeographicBoundingBox bbox) throws Exception {
+        CSWRecord record = new CSWRecord(title, id, "http://example.org/record/" + id, "abstract of " + id,
+                new AbstractCSWOnlineResource[] {new CSWOnlineResourceImpl(new URL("http://example.org/wms"), "OGC:WMS-1.1.1-http-get-map", "layer", "")},
+                bbox == null ? new CSWGeographicElement[0] : new CSWGeographicElement[] {bbox});
+        record.setDescriptiveKeywords(keywords);
+        return record;
+    }
+
+    private static List<String> gunzipLines(byte[] data) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(data)), "UTF-8"));
+        List<String> lines = new ArrayList<String>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lines.add(line);
+        }
+        return lines;
+    }
+
+    /**
+     * The ISO 19139 export should be readable as a GetRecordsResponse containing every cached record
+     */
+    @Test
+    public void testExportIso19139() throws Exception {
+        List<CSWRecord> records = loadRecords();
+        cacheService.recordCache = records;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertEquals(records.size(), exportService.export(ExportFormat.ISO19139, null, null, out));
+
+        Document doc = DOMUtil.buildDomFromStream(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())));
+        CSWGetRecordResponse response = new CSWGetRecordResponse(new CSWServiceItem("id", "http://example.org/csw", "http://example.org/record/%1$s"), doc);
+        Assert.assertEquals(records.size(), response.getRecords().size());
+        for (int i = 0; i < records.size(); i++) {
+            Assert.assertEquals(records.get(i).getFileIdentifier(), response.getRecords().get(i).getFileIdentifier());
+            Assert.assertEquals(records.get(i).getServiceName(), response.getRecords().get(i).getServiceName());
+            Assert.assertArrayEquals(records.get(i).getDescriptiveKeywords(), response.getRecords().get(i).getDescriptiveKeywords());
+        }
+    }
+
+    /**
+     * The NDJSON export should have a JSON object per line
+     */
+    @Test
+    public void testExportNdjson() throws Exception {
+        List<CSWRecord> records = loadRecords();
+        cacheService.recordCache = records;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertEquals(records.size(), exportService.export(ExportFormat.NDJSON, null, null, out));
+
+        List<String> lines = gunzipLines(out.toByteArray());
+        Assert.assertEquals(records.size(), lines.size());
+        for (int i = 0; i < records.size(); i++) {
+            JSONObject json = JSONObject.fromObject(lines.get(i));
+            Assert.assertEquals(records.get(i).getFileIdentifier(), json.getString("fileIdentifier"));
+            Assert.assertEquals(records.get(i).getDescriptiveKeywords().length, json.getJSONArray("keywords").size());
+            Assert.assertEquals(records.get(i).getOnlineResources().length, json.getJSONArray("onlineResources").size());
+        }
+    }
+
+    /**
+     * The CSV export should only include records matching the keywords/bbox and quote values when required
+     */
+    @Test
+    public void testExportCsvFiltered() throws Exception {
+        CSWRecord placeholder = new CSWRecord("endpoint");
+        placeholder.setNoCache(true);
+        placeholder.setDescriptiveKeywords(new String[] {"gold"});
+        cacheService.recordCache = Arrays.asList(
+                createRecord("r1", "Gold, \"Perth\"", new String[] {"gold", "wa"}, new CSWGeographicBoundingBox(115, 116, -33, -31)),
+                createRecord("r2", "Gold Sydney", new String[] {"gold", "nsw"}, new CSWGeographicBoundingBox(150, 152, -35, -33)),
+                createRecord("r3", "Silver Perth", new String[] {"silver", "wa"}, new CSWGeographicBoundingBox(115, 116, -33, -31)),
+                createRecord("r4", "Gold nowhere", new String[] {"gold"}, null),
+                placeholder);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertEquals(1, exportService.export(ExportFormat.CSV, new String[] {"gold"}, new CSWGeographicBoundingBox(110, 130, -40, -20), out));
+
+        List<String> lines = gunzipLines(out.toByteArray());
+        Assert.assertEquals(2, lines.size());
+        Assert.assertTrue(lines.get(0).startsWith("fileIdentifier,parentIdentifier,title,abstract"));
+        Assert.assertEquals("r1,,\"Gold, \"\"Perth\"\"\",abstract of r1,,,gold;wa,115.0,116.0,-33.0,-31.0,http://example.org/wms,http://example.org/record/r1", lines.get(1));
+
+        //Without a bbox, records without an extent should also match
+        out = new ByteArrayOutputStream();
+        Assert.assertEquals(3, exportService.export(ExportFormat.CSV, new String[] {"gold"}, null, out));
+        out = new ByteArrayOutputStream();
+        Assert.assertEquals(4, exportService.export(ExportFormat.CSV, null, null, out));
+    }
+
+    /**
+     * Values that look like JSON literals/functions should still be written as strings, and separators
+     * within multi valued CSV fields should be escaped
+     */
+    @Test
+    public void testExportEscaping() throws Exception {
+        CSWRecord record = createRecord("null", "function(x) {return x;}", new String[] {"a;b", "c\\d", "[1,2]"}, null);
+        record.setDataIdentificationAbstract("tab\t\"quoted\"");
+        cacheService.recordCache = Arrays.asList(record);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertEquals(1, exportService.export(ExportFormat.NDJSON, null, null, out));
+        String line = gunzipLines(out.toByteArray()).get(0);
+        Assert.assertTrue(line, line.startsWith("{\"fileIdentifier\":\"null\",\"title\":\"function(x) {return x;}\",\"abstract\":\"tab\\t\\\"quoted\\\"\","));
+        Assert.assertTrue(line, line.contains("\"keywords\":[\"a;b\",\"c\\\\d\",\"[1,2]\"]"));
+
+        out = new ByteArrayOutputStream();
+        Assert.assertEquals(1, exportService.export(ExportFormat.CSV, null, null, out));
+        String row = gunzipLines(out.toByteArray()).get(1);
+        Assert.assertTrue(row, row.contains(",\"a\\;b;c\\\\d;[1,2]\","));
+    }
+
+    /**
+     * A harvest publishing a new record cache part way through an export should not affect it
+     */
+    @Test
+    public void testExportUsesSnapshot() throws Exception {
+        final List<CSWRecord> original = new ArrayList<CSWRecord>();
+        for (int i = 0; i < 2000; i++) {
+            original.add(createRecord("original-" + i, "Original " + i, new String[] {"kw"}, null));
+        }
+        final List<CSWRecord> updated = Arrays.asList(createRecord("updated", "Updated", new String[] {"kw"}, null));
+        cacheService.recordCache = original;
+
+        //Publish the new cache as soon as the first compressed bytes are written
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                cacheService.recordCache = updated;
+                super.write(b, off, len);
+            }
+        };
+        Assert.assertEquals(original.size(), exportService.export(ExportFormat.NDJSON, null, null, out));
+        Assert.assertSame(updated, cacheService.recordCache);
+
+        List<String> lines = gunzipLines(out.toByteArray());
+        Assert.assertEquals(original.size(), lines.size());
+        Assert.assertEquals("original-1999", JSONObject.fromObject(lines.get(lines.size() - 1)).getString("fileIdentifier"));
+    }
+}
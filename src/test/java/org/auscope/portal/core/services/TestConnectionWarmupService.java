@@ -0,0 +1,169 @@
+package org.auscope.portal.core.services;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.auscope.portal.core.server.http.CachingDnsResolver;
+import org.auscope.portal.core.server.http.HttpServiceCaller;
+import org.auscope.portal.core.services.admin.AdminDiagnosticResponse;
+import org.auscope.portal.core.services.csw.CSWServiceItem;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.view.knownlayer.KnownLayer;
+import org.auscope.portal.core.view.knownlayer.WFSSelector;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for ConnectionWarmupService
+ */
+public class TestConnectionWarmupService extends PortalTestClass {
+    private ServerSocket server;
+    private Thread acceptThread;
+    private List<Socket> accepted = new ArrayList<Socket>();
+    private AtomicInteger acceptCount = new AtomicInteger();
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newFixedThreadPool(2);
+        server = new ServerSocket(0);
+        acceptThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (!server.isClosed()) {
+                        Socket s = server.accept();
+                        synchronized (accepted) {
+                            accepted.add(s);
+                        }
+                        acceptCount.incrementAndGet();
+                    }
+                } catch (Exception ex) {
+                    //Server closed
+                }
+            }
+        };
+        acceptThread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdown();
+        server.close();
+        acceptThread.join(1000);
+        synchronized (accepted) {
+            for (Socket s : accepted) {
+                s.close();
+            }
+        }
+    }
+
+    /**
+     * Every unique host should have connectionsPerHost connections opened and left available in the pool
+     */
+    @Test
+    public void testWarmUp() throws Exception {
+        String endpoint = "http://localhost:" + server.getLocalPort();
+        CSWServiceItem cswItem = new CSWServiceItem("csw-id", endpoint + "/csw");
+        KnownLayer layer = new KnownLayer("kl-id", new WFSSelector("ft:name", new String[] {endpoint + "/wfs"}, true));
+
+        PoolingClientConnectionManager manager = new PoolingClientConnectionManager();
+        HttpServiceCaller serviceCaller = new HttpServiceCaller(10000);
+        serviceCaller.setConnectionManager(manager);
+
+        ConnectionWarmupService service = new ConnectionWarmupService(executor, serviceCaller,
+                new ArrayList(Arrays.asList(cswItem)), new ArrayList(Arrays.asList(layer)));
+        service.setConnectionsPerHost(2);
+        service.setTimeoutMs(5000);
+
+        Assert.assertFalse(service.isReady());
+        AdminDiagnosticResponse response = service.warmUp();
+        Assert.assertTrue(service.isReady());
+        Assert.assertSame(response, service.getReport());
+        Assert.assertTrue(response.isSuccess());
+        Assert.assertTrue(response.getWarnings().isEmpty());
+
+        Assert.assertEquals(2, manager.getTotalStats().getAvailable());
+        Assert.assertEquals(0, manager.getTotalStats().getLeased());
+
+        //Give the accept thread a moment to catch up
+        for (int i = 0; i < 50 && acceptCount.get() < 2; i++) {
+            Thread.sleep(20);
+        }
+        Assert.assertEquals(2, acceptCount.get());
+        manager.shutdown();
+    }
+
+    /**
+     * Unreachable hosts should be reported as warnings rather than failing the warm up
+     */
+    @Test
+    public void testWarmUpUnreachable() throws Exception {
+        int port = server.getLocalPort();
+        server.close();
+
+        PoolingClientConnectionManager manager = new PoolingClientConnectionManager();
+        HttpServiceCaller serviceCaller = new HttpServiceCaller(10000);
+        serviceCaller.setConnectionManager(manager);
+
+        ConnectionWarmupService service = new ConnectionWarmupService(executor, serviceCaller,
+                new ArrayList(Arrays.asList(new CSWServiceItem("csw-id", "http://localhost:" + port + "/csw"))), null);
+        service.setTimeoutMs(2000);
+
+        AdminDiagnosticResponse response = service.warmUp();
+        Assert.assertTrue(service.isReady());
+        Assert.assertEquals(1, response.getWarnings().size());
+        Assert.assertEquals(0, manager.getTotalStats().getAvailable());
+        Assert.assertEquals(0, manager.getTotalStats().getLeased());
+        manager.shutdown();
+    }
+
+    /**
+     * A warm up whose hosts never finish should give up after maxWaitMs rather than blocking startup
+     */
+    @Test
+    public void testWarmUpTimeout() throws Exception {
+        //An executor that accepts tasks but never runs them
+        Executor stalledExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+            }
+        };
+
+        HttpServiceCaller serviceCaller = new HttpServiceCaller(10000);
+        ConnectionWarmupService service = new ConnectionWarmupService(stalledExecutor, serviceCaller,
+                new ArrayList(Arrays.asList(new CSWServiceItem("csw-id", "http://localhost:" + server.getLocalPort() + "/csw"))), null);
+        service.setMaxWaitMs(100);
+
+        startTimer();
+        AdminDiagnosticResponse response = service.warmUp();
+        long elapsed = endTimer();
+
+        Assert.assertTrue("Took too long: " + elapsed, elapsed < 5000);
+        Assert.assertTrue(service.isReady());
+        Assert.assertEquals(1, response.getWarnings().size());
+    }
+
+    /**
+     * The warm up should resolve hosts with the same cache used by the service caller's connection pool
+     */
+    @Test
+    public void testSharesServiceCallerResolver() {
+        CachingDnsResolver resolver = new CachingDnsResolver();
+        HttpServiceCaller serviceCaller = new HttpServiceCaller(10000);
+        serviceCaller.setDnsResolver(resolver);
+
+        ConnectionWarmupService service = new ConnectionWarmupService(executor, serviceCaller, null, null);
+        Assert.assertSame(resolver, service.getDnsResolver());
+    }
+}
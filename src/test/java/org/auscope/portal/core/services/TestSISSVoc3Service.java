@@ -1,11 +1,19 @@
 package org.auscope.portal.core.services;
 
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.net.ConnectException;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
-
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.NameValuePair;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHttpResponse;
 import org.auscope.portal.core.server.http.HttpServiceCaller;
 import org.auscope.portal.core.services.methodmakers.sissvoc.SISSVoc3MethodMaker;
 import org.auscope.portal.core.services.methodmakers.sissvoc.SISSVoc3MethodMaker.Format;
@@ -153,4 +161,161 @@ public class TestSISSVoc3Service extends PortalTestClass {
 
         service.getResourceByUri(uri);
     }
+
+    /**
+     * A local SISSVoc 3 "server" that generates pages of concepts (reporting os:totalResults) after a delay
+     */
+    private static class StubSISSVocServer extends HttpServiceCaller {
+        private int conceptCount;
+        private int reportedTotal;
+        private long delayMs;
+        private int failingPage = -1;
+        private String eTag = "\"v1\"";
+        private AtomicInteger requestCount = new AtomicInteger();
+
+        public StubSISSVocServer(int conceptCount, int reportedTotal, long delayMs) {
+            super(900000);
+            this.conceptCount = conceptCount;
+            this.reportedTotal = reportedTotal;
+            this.delayMs = delayMs;
+        }
+
+        @Override
+        public HttpResponse getMethodResponseAsHttpResponse(HttpRequestBase method) throws Exception {
+            if (method.getFirstHeader("If-None-Match") != null && eTag.equals(method.getFirstHeader("If-None-Match").getValue())) {
+                requestCount.incrementAndGet();
+                BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_NOT_MODIFIED, "Not Modified");
+                response.addHeader("ETag", eTag);
+                return response;
+            }
+
+            BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+            response.addHeader("ETag", eTag);
+            response.setEntity(new InputStreamEntity(getMethodResponseAsStream(method), -1));
+            return response;
+        }
+
+        @Override
+        public InputStream getMethodResponseAsStream(HttpRequestBase method) throws Exception {
+            requestCount.incrementAndGet();
+            int page = 0;
+            int pageSize = 0;
+            for (NameValuePair nvp : URLEncodedUtils.parse(method.getURI(), "UTF-8")) {
+                if (nvp.getName().equals("_page")) {
+                    page = Integer.parseInt(nvp.getValue());
+                } else if (nvp.getName().equals("_pageSize")) {
+                    pageSize = Integer.parseInt(nvp.getValue());
+                }
+            }
+            Thread.sleep(delayMs);
+            if (page == failingPage) {
+                throw new ConnectException("error");
+            }
+
+            StringBuilder sb = new StringBuilder();
+            sb.append("<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\" xmlns:api=\"http://purl.org/linked-data/api/vocab#\" ");
+            sb.append("xmlns:os=\"http://a9.com/-/spec/opensearch/1.1/\" xmlns:xhv=\"http://www.w3.org/1999/xhtml/vocab#\" ");
+            sb.append("xmlns:skos=\"http://www.w3.org/2004/02/skos/core#\">");
+            sb.append("<api:Page rdf:about=\"http://example.org/page/" + page + "\">");
+            sb.append("<os:totalResults rdf:datatype=\"http://www.w3.org/2001/XMLSchema#long\">" + reportedTotal + "</os:totalResults>");
+            sb.append("<api:items rdf:parseType=\"Collection\">");
+            int end = Math.min(conceptCount, (page + 1) * pageSize);
+            for (int i = page * pageSize; i < end; i++) {
+                sb.append("<rdf:Description rdf:about=\"http://example.org/concept/" + i + "\">");
+                sb.append("<skos:prefLabel xml:lang=\"en\">concept " + i + "</skos:prefLabel>");
+                sb.append("<skos:broader rdf:resource=\"http://example.org/concept/" + (i / 10) + "\"/>");
+                sb.append("</rdf:Description>");
+            }
+            sb.append("</api:items>");
+            if (end < conceptCount) {
+                sb.append("<xhv:next rdf:resource=\"http://example.org/page/" + (page + 1) + "\"/>");
+            }
+            sb.append("</api:Page></rdf:RDF>");
+            return new ByteArrayInputStream(sb.toString().getBytes("UTF-8"));
+        }
+    }
+
+    private long harvest(StubSISSVocServer server, int maxConcurrentRequests, int expectedConcepts) throws Exception {
+        SISSVoc3Service stubService = new SISSVoc3Service(server, new SISSVoc3MethodMaker(), baseUrl, repository);
+        stubService.setPageSize(1000);
+        stubService.setMaxConcurrentRequests(maxConcurrentRequests);
+
+        long start = System.nanoTime();
+        Model model = stubService.getAllConcepts();
+        long elapsed = (System.nanoTime() - start) / 1000000;
+
+        Assert.assertEquals(expectedConcepts, Lists.newArrayList(model.listSubjects()).size());
+        Assert.assertEquals(expectedConcepts * 2, model.size());
+        Assert.assertFalse(model.containsResource(model.createResource("http://example.org/page/0")));
+        return elapsed;
+    }
+
+    /**
+     * Harvesting a 20,000 concept vocabulary should request each page once and do so faster concurrently
+     */
+    @Test
+    public void testGetAllConceptsConcurrently() throws Exception {
+        final int conceptCount = 20000;
+
+        StubSISSVocServer sequentialServer = new StubSISSVocServer(conceptCount, conceptCount, 25);
+        long sequentialTime = harvest(sequentialServer, 1, conceptCount);
+        Assert.assertEquals(20, sequentialServer.requestCount.get());
+
+        StubSISSVocServer concurrentServer = new StubSISSVocServer(conceptCount, conceptCount, 25);
+        long concurrentTime = harvest(concurrentServer, 4, conceptCount);
+        Assert.assertEquals(20, concurrentServer.requestCount.get());
+
+        Assert.assertTrue(String.format("concurrent took %1$dms, sequential took %2$dms", concurrentTime, sequentialTime),
+                concurrentTime < sequentialTime);
+    }
+
+    /**
+     * If os:totalResults is out of date the remaining pages should still be requested
+     */
+    @Test
+    public void testGetAllConceptsStaleTotal() throws Exception {
+        StubSISSVocServer server = new StubSISSVocServer(3500, 2000, 0);
+        harvest(server, 4, 3500);
+        Assert.assertEquals(4, server.requestCount.get());
+    }
+
+    /**
+     * A failure in any concurrently requested page should fail the harvest
+     */
+    @Test(expected = PortalServiceException.class)
+    public void testGetAllConceptsConcurrentError() throws Exception {
+        StubSISSVocServer server = new StubSISSVocServer(5000, 5000, 0);
+        server.failingPage = 3;
+        harvest(server, 4, 5000);
+    }
+
+    /**
+     * A conditional harvest should only request the first page if the repository hasn't been modified
+     */
+    @Test
+    public void testGetAllConceptsIfModified() throws Exception {
+        StubSISSVocServer server = new StubSISSVocServer(2500, 2500, 0);
+        SISSVoc3Service stubService = new SISSVoc3Service(server, new SISSVoc3MethodMaker(), baseUrl, repository);
+        stubService.setPageSize(1000);
+
+        SISSVoc3Service.ConceptHarvest harvest = stubService.getAllConceptsIfModified(null, null);
+        Assert.assertTrue(harvest.isModified());
+        Assert.assertEquals("\"v1\"", harvest.getETag());
+        Assert.assertNull(harvest.getLastModified());
+        Assert.assertEquals(2500, Lists.newArrayList(harvest.getConcepts().listSubjects()).size());
+        Assert.assertEquals(3, server.requestCount.get());
+
+        harvest = stubService.getAllConceptsIfModified("\"v1\"", null);
+        Assert.assertFalse(harvest.isModified());
+        Assert.assertNull(harvest.getConcepts());
+        Assert.assertEquals("\"v1\"", harvest.getETag());
+        Assert.assertEquals(4, server.requestCount.get());
+
+        server.eTag = "\"v2\"";
+        harvest = stubService.getAllConceptsIfModified("\"v1\"", null);
+        Assert.assertTrue(harvest.isModified());
+        Assert.assertEquals("\"v2\"", harvest.getETag());
+        Assert.assertEquals(2500, Lists.newArrayList(harvest.getConcepts().listSubjects()).size());
+        Assert.assertEquals(7, server.requestCount.get());
+    }
 }
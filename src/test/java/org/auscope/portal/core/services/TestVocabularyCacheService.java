@@ -0,0 +1,263 @@
+package org.auscope.portal.core.services;
+
+import java.io.File;
+import java.net.ConnectException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.apache.commons.io.FileUtils;
+import org.auscope.portal.core.services.methodmakers.sissvoc.SISSVoc3MethodMaker;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+/**
+ * Unit tests for VocabularyCacheService
+ */
+public class TestVocabularyCacheService extends PortalTestClass {
+
+    /**
+     * An executor that only runs tasks when asked
+     */
+    private static class QueuedExecutor implements Executor {
+        private List<Runnable> queue = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            queue.add(command);
+        }
+
+        public int runAll() {
+            int count = queue.size();
+            List<Runnable> tasks = new ArrayList<Runnable>(queue);
+            queue.clear();
+            for (Runnable task : tasks) {
+                task.run();
+            }
+            return count;
+        }
+    }
+
+    /**
+     * A repository whose content (and ETag) can be changed between harvests
+     */
+    private static class StubService extends SISSVoc3Service {
+        private String eTag;
+        private Model concepts;
+        private boolean fail;
+        /** If set, every request (even unconditional ones) will be answered with 'not modified'*/
+        private boolean notModified;
+        private List<String> requestedETags = new ArrayList<String>();
+
+        public StubService(String repository, String eTag, Model concepts) {
+            super(null, new SISSVoc3MethodMaker(), "http://example.org/sissvoc", repository);
+            this.eTag = eTag;
+            this.concepts = concepts;
+        }
+
+        @Override
+        public ConceptHarvest getAllConceptsIfModified(String eTag, String lastModified) throws PortalServiceException, URISyntaxException {
+            requestedETags.add(eTag);
+            if (fail) {
+                throw new PortalServiceException("error", new ConnectException("error"));
+            }
+            if (notModified || this.eTag.equals(eTag)) {
+                return new ConceptHarvest(null, eTag, null);
+            }
+            Model copy = ModelFactory.createDefaultModel();
+            copy.add(concepts);
+            return new ConceptHarvest(copy, this.eTag, null);
+        }
+    }
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("TestVocabularyCacheService").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private static Model createConcepts(String... labels) {
+        Model model = ModelFactory.createDefaultModel();
+        for (String label : labels) {
+            Resource concept = model.createResource("http://example.org/concept/" + label);
+            concept.addProperty(RDFS.label, label);
+        }
+        return model;
+    }
+
+    /**
+     * Harvested vocabularies should be persisted and available straight after start on the next run
+     */
+    @Test
+    public void testPersistAndReload() throws Exception {
+        StubService commodities = new StubService("commodities", "\"v1\"", createConcepts("gold", "silver"));
+        StubService minerals = new StubService("minerals", "\"v1\"", createConcepts("quartz"));
+        QueuedExecutor executor = new QueuedExecutor();
+
+        VocabularyCacheService cache = new VocabularyCacheService(executor, Arrays.<SISSVoc3Service>asList(commodities, minerals), dir);
+        cache.start();
+        Assert.assertNull(cache.getVocabulary("commodities"));
+        Assert.assertEquals(2, executor.runAll());
+        Assert.assertTrue(commodities.concepts.isIsomorphicWith(cache.getVocabulary("commodities")));
+        Assert.assertTrue(minerals.concepts.isIsomorphicWith(cache.getVocabulary("minerals")));
+        Assert.assertEquals(Arrays.asList((String) null), commodities.requestedETags);
+
+        //A new cache (i.e. after a restart) should load from disk and then only revalidate
+        QueuedExecutor restartExecutor = new QueuedExecutor();
+        VocabularyCacheService restarted = new VocabularyCacheService(restartExecutor, Arrays.<SISSVoc3Service>asList(commodities, minerals), dir);
+        restarted.start();
+        Assert.assertTrue(commodities.concepts.isIsomorphicWith(restarted.getVocabulary("commodities")));
+        Assert.assertTrue(minerals.concepts.isIsomorphicWith(restarted.getVocabulary("minerals")));
+        long loadedTime = restarted.getValidatedTime("commodities");
+
+        Thread.sleep(5);
+        Assert.assertEquals(2, restartExecutor.runAll());
+        Assert.assertEquals(Arrays.asList(null, "\"v1\""), commodities.requestedETags);
+        Assert.assertTrue(restarted.getValidatedTime("commodities") > loadedTime);
+        Assert.assertTrue(commodities.concepts.isIsomorphicWith(restarted.getVocabulary("commodities")));
+    }
+
+    /**
+     * Stale vocabularies should be returned immediately and revalidated (once) in the background
+     */
+    @Test
+    public void testStaleWhileRevalidate() throws Exception {
+        StubService commodities = new StubService("commodities", "\"v1\"", createConcepts("gold", "silver"));
+        QueuedExecutor executor = new QueuedExecutor();
+        VocabularyCacheService cache = new VocabularyCacheService(executor, Arrays.<SISSVoc3Service>asList(commodities), dir);
+        cache.start();
+        executor.runAll();
+        Model original = cache.getVocabulary("commodities");
+
+        //Fresh vocabularies aren't revalidated
+        Assert.assertSame(original, cache.getVocabulary("commodities"));
+        Assert.assertEquals(0, executor.runAll());
+
+        commodities.eTag = "\"v2\"";
+        commodities.concepts = createConcepts("gold", "silver", "copper");
+        cache.setRevalidateIntervalMs(-1);
+        Assert.assertSame(original, cache.getVocabulary("commodities"));
+        Assert.assertSame(original, cache.getVocabulary("commodities"));
+        Assert.assertEquals(1, executor.runAll());
+
+        Model updated = cache.getVocabulary("commodities");
+        Assert.assertEquals(3, updated.listSubjects().toList().size());
+        Assert.assertEquals(2, original.listSubjects().toList().size());
+
+        //The updated vocabulary should also have been persisted
+        VocabularyCacheService restarted = new VocabularyCacheService(new QueuedExecutor(), Arrays.<SISSVoc3Service>asList(commodities), dir);
+        restarted.start();
+        Assert.assertTrue(updated.isIsomorphicWith(restarted.getVocabulary("commodities")));
+    }
+
+    /**
+     * A failing revalidation should keep serving the cached vocabulary
+     */
+    @Test
+    public void testRevalidateError() throws Exception {
+        StubService commodities = new StubService("commodities", "\"v1\"", createConcepts("gold"));
+        QueuedExecutor executor = new QueuedExecutor();
+        VocabularyCacheService cache = new VocabularyCacheService(executor, Arrays.<SISSVoc3Service>asList(commodities), dir);
+        cache.start();
+        executor.runAll();
+        Model original = cache.getVocabulary("commodities");
+        long validatedTime = cache.getValidatedTime("commodities");
+
+        commodities.fail = true;
+        Assert.assertTrue(cache.revalidate("commodities"));
+        Assert.assertEquals(1, executor.runAll());
+        Assert.assertSame(original, cache.getVocabulary("commodities"));
+        Assert.assertEquals(validatedTime, cache.getValidatedTime("commodities"));
+
+        //Unknown vocabularies can't be revalidated
+        Assert.assertFalse(cache.revalidate("does-not-exist"));
+        Assert.assertNull(cache.getVocabulary("does-not-exist"));
+        Assert.assertEquals(-1, cache.getValidatedTime("does-not-exist"));
+    }
+
+    /**
+     * Once the last full harvest is older than maxHarvestAgeMs the vocabulary should be harvested unconditionally
+     * (as only the first page of a harvest is conditional)
+     */
+    @Test
+    public void testMaxHarvestAge() throws Exception {
+        StubService commodities = new StubService("commodities", "\"v1\"", createConcepts("gold"));
+        QueuedExecutor executor = new QueuedExecutor();
+        VocabularyCacheService cache = new VocabularyCacheService(executor, Arrays.<SISSVoc3Service>asList(commodities), dir);
+        cache.start();
+        executor.runAll();
+
+        //Within the max age we only revalidate
+        Assert.assertTrue(cache.revalidate("commodities"));
+        executor.runAll();
+        Assert.assertEquals(Arrays.asList(null, "\"v1\""), commodities.requestedETags);
+
+        //A later page changed without the ETag of the first page changing
+        commodities.concepts = createConcepts("gold", "copper");
+        cache.setMaxHarvestAgeMs(-1);
+        Assert.assertTrue(cache.revalidate("commodities"));
+        executor.runAll();
+        Assert.assertEquals(Arrays.asList(null, "\"v1\"", null), commodities.requestedETags);
+        Assert.assertEquals(2, cache.getVocabulary("commodities").listSubjects().toList().size());
+
+        //The harvest time should survive a restart
+        cache.setMaxHarvestAgeMs(VocabularyCacheService.DEFAULT_MAX_HARVEST_AGE_MS);
+        QueuedExecutor restartExecutor = new QueuedExecutor();
+        VocabularyCacheService restarted = new VocabularyCacheService(restartExecutor, Arrays.<SISSVoc3Service>asList(commodities), dir);
+        restarted.start();
+        restartExecutor.runAll();
+        Assert.assertEquals(Arrays.asList(null, "\"v1\"", null, "\"v1\""), commodities.requestedETags);
+    }
+
+    /**
+     * A 'not modified' response to the very first harvest must not cache an empty vocabulary
+     */
+    @Test
+    public void testFirstHarvestNotModified() throws Exception {
+        StubService commodities = new StubService("commodities", "\"v1\"", createConcepts("gold"));
+        commodities.notModified = true;
+        QueuedExecutor executor = new QueuedExecutor();
+        VocabularyCacheService cache = new VocabularyCacheService(executor, Arrays.<SISSVoc3Service>asList(commodities), dir);
+        cache.start();
+        Assert.assertEquals(1, executor.runAll());
+        Assert.assertNull(cache.getVocabulary("commodities"));
+        Assert.assertEquals(-1, cache.getValidatedTime("commodities"));
+        Assert.assertEquals(0, dir.list().length);
+
+        //The next lookup should try again
+        commodities.notModified = false;
+        Assert.assertEquals(1, executor.runAll());
+        Assert.assertTrue(commodities.concepts.isIsomorphicWith(cache.getVocabulary("commodities")));
+    }
+
+    /**
+     * Without a directory vocabularies are held in memory only
+     */
+    @Test
+    public void testMemoryOnly() throws Exception {
+        StubService commodities = new StubService("commodities", "\"v1\"", createConcepts("gold"));
+        QueuedExecutor executor = new QueuedExecutor();
+        VocabularyCacheService cache = new VocabularyCacheService(executor, Arrays.<SISSVoc3Service>asList(commodities), null);
+        cache.start();
+        executor.runAll();
+        Assert.assertTrue(commodities.concepts.isIsomorphicWith(cache.getVocabulary("commodities")));
+        Assert.assertEquals(0, dir.list().length);
+    }
+}
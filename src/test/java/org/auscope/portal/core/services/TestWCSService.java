@@ -10,6 +10,7 @@ import org.apache.http.client.methods.HttpRequestBase;
 import org.auscope.portal.core.server.http.HttpServiceCaller;
 import org.auscope.portal.core.services.methodmakers.WCSMethodMaker;
 import org.auscope.portal.core.services.responses.csw.CSWGeographicBoundingBox;
+import org.auscope.portal.core.services.responses.ows.OWSException;
 import org.auscope.portal.core.services.responses.wcs.DescribeCoverageRecord;
 import org.auscope.portal.core.services.responses.wcs.Resolution;
 import org.auscope.portal.core.services.responses.wcs.TimeConstraint;
@@ -100,12 +101,70 @@ public class TestWCSService extends PortalTestClass {
         Assert.assertEquals(1, recs.length);
     }
 
-    @Test(expected=PortalServiceException.class)
+    /**
+     * Repeat DescribeCoverage requests should be served from the cache until the TTL expires
+     */
+    @Test
+    public void testDescribeCoverageCache() throws Exception {
+        final String serviceUrl = "http://example.org/wcs";
+        final String coverageName = "coverage";
+
+        final InputStream responseStream1 = ResourceUtil.loadResourceAsStream("org/auscope/portal/core/test/responses/wcs/DescribeCoverageResponse1.xml");
+        final InputStream responseStream2 = ResourceUtil.loadResourceAsStream("org/auscope/portal/core/test/responses/wcs/DescribeCoverageResponse2.xml");
+        final InputStream responseStream3 = ResourceUtil.loadResourceAsStream("org/auscope/portal/core/test/responses/wcs/DescribeCoverageResponse1.xml");
+
+        context.checking(new Expectations() {{
+            oneOf(mockMethodMaker).describeCoverageMethod(serviceUrl, coverageName);will(returnValue(mockMethod));
+            oneOf(mockMethodMaker).describeCoverageMethod(serviceUrl, "other");will(returnValue(mockMethod));
+            oneOf(mockMethodMaker).describeCoverageMethod(serviceUrl, coverageName);will(returnValue(mockMethod));
+            exactly(3).of(mockServiceCaller).getMethodResponseAsStream(mockMethod);will(onConsecutiveCalls(returnValue(responseStream1), returnValue(responseStream2), returnValue(responseStream3)));
+            exactly(3).of(mockMethod).releaseConnection();
+        }});
+
+        DescribeCoverageRecord[] recs1 = service.describeCoverage(serviceUrl, coverageName);
+        DescribeCoverageRecord[] recs2 = service.describeCoverage(serviceUrl, coverageName);
+        Assert.assertEquals("name1", recs1[0].getName());
+        Assert.assertSame(recs1[0], recs2[0]);
+        Assert.assertEquals("name2", service.describeCoverage(serviceUrl, "other")[0].getName());
+
+        //Clearing the cache forces a refetch
+        service.clearDescribeCoverageCache();
+        DescribeCoverageRecord[] recs3 = service.describeCoverage(serviceUrl, coverageName);
+        Assert.assertNotSame(recs1[0], recs3[0]);
+    }
+
+    /**
+     * Disabling the cache should refetch every request
+     */
+    @Test
+    public void testDescribeCoverageCacheDisabled() throws Exception {
+        final String serviceUrl = "http://example.org/wcs";
+        final String coverageName = "coverage";
+
+        final InputStream responseStream1 = ResourceUtil.loadResourceAsStream("org/auscope/portal/core/test/responses/wcs/DescribeCoverageResponse1.xml");
+        final InputStream responseStream2 = ResourceUtil.loadResourceAsStream("org/auscope/portal/core/test/responses/wcs/DescribeCoverageResponse1.xml");
+
+        context.checking(new Expectations() {{
+            exactly(2).of(mockMethodMaker).describeCoverageMethod(serviceUrl, coverageName);will(returnValue(mockMethod));
+            exactly(2).of(mockServiceCaller).getMethodResponseAsStream(mockMethod);will(onConsecutiveCalls(returnValue(responseStream1), returnValue(responseStream2)));
+            exactly(2).of(mockMethod).releaseConnection();
+        }});
+
+        service.setDescribeCoverageTtlMs(0);
+        DescribeCoverageRecord[] recs1 = service.describeCoverage(serviceUrl, coverageName);
+        DescribeCoverageRecord[] recs2 = service.describeCoverage(serviceUrl, coverageName);
+        Assert.assertNotSame(recs1[0], recs2[0]);
+    }
+
+    /**
+     * An OWS exception report should be reported as a PortalServiceException caused by an OWSException
+     */
+    @Test
     public void testDescribeCoverageOwsError() throws Exception {
         final String serviceUrl = "http://example.org/wcs";
         final String coverageName = "coverage";
 
-        final InputStream responseStream = getClass().getResourceAsStream("/OWSExceptionSample1.xml");
+        final InputStream responseStream = ResourceUtil.loadResourceAsStream("org/auscope/portal/core/test/responses/ows/OWSExceptionSample1.xml");
 
         context.checking(new Expectations() {{
             oneOf(mockMethodMaker).describeCoverageMethod(serviceUrl, coverageName);will(returnValue(mockMethod));
@@ -113,7 +172,13 @@ public class TestWCSService extends PortalTestClass {
             oneOf(mockMethod).releaseConnection();
         }});
 
-        service.describeCoverage(serviceUrl, coverageName);
+        try {
+            service.describeCoverage(serviceUrl, coverageName);
+            Assert.fail("Expected a PortalServiceException");
+        } catch (PortalServiceException ex) {
+            Assert.assertTrue(String.valueOf(ex.getCause()), ex.getCause() instanceof OWSException);
+            Assert.assertTrue(ex.getCause().getMessage().contains("MissingParameterValue"));
+        }
     }
 
     @Test(expected=PortalServiceException.class)
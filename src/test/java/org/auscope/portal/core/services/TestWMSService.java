@@ -1,13 +1,19 @@
 package org.auscope.portal.core.services;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.ConnectException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.auscope.portal.core.configuration.ServiceConfiguration;
+import org.auscope.portal.core.configuration.ServiceConfigurationItem;
 import org.auscope.portal.core.server.http.HttpServiceCaller;
+import org.auscope.portal.core.server.http.download.MyHttpResponse;
 import org.auscope.portal.core.services.methodmakers.WMSMethodMaker;
 import org.auscope.portal.core.services.methodmakers.WMSMethodMakerInterface;
 import org.auscope.portal.core.services.responses.csw.CSWGeographicBoundingBox;
@@ -17,6 +23,8 @@ import org.auscope.portal.core.services.responses.wms.GetCapabilitiesWMSLayerRec
 import org.auscope.portal.core.test.PortalTestClass;
 import org.auscope.portal.core.test.ResourceUtil;
 import org.jmock.Expectations;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -165,6 +173,41 @@ public class TestWMSService extends PortalTestClass {
         Assert.assertEquals(response, service.getFeatureInfo(wmsUrl, format, layer, srs, westBoundLongitude, southBoundLatitude, eastBoundLongitude, northBoundLatitude, width, height, pointLng, pointLat, pointX, pointY, styles,null,false,null));
     }
 
+    /**
+     * GetFeatureInfo requests to a WMS with configured mirrors should be hedged against those mirrors
+     */
+    @Test
+    public void testGetFeatureInfoHedged() throws Exception {
+        final String wmsUrl = "http://example.org/wms";
+        final String mirrorUrl = "http://mirror.example.org/wms";
+        final HttpRequestBase method = new HttpGet(wmsUrl + "?request=GetFeatureInfo&layers=layer");
+        final String response = ResourceUtil.loadResourceAsString("org/auscope/portal/core/test/responses/wfs/EmptyWFSResponse.xml");
+
+        ServiceConfigurationItem item = new ServiceConfigurationItem("id", wmsUrl, false);
+        item.setMirrorUrls(new String[] {mirrorUrl});
+        service.setServiceConfiguration(new ServiceConfiguration(Arrays.asList(item)));
+
+        context.checking(new Expectations() {{
+            oneOf(mockMethodMaker).accepts(with(any(String.class)),with(any(String.class)));will(returnValue(true));
+
+            oneOf(mockMethodMaker).getFeatureInfo(with(wmsUrl), with(any(String.class)), with(any(String.class)), with(any(String.class)), with(any(Double.class)), with(any(Double.class)), with(any(Double.class)), with(any(Double.class)), with(any(Integer.class)), with(any(Integer.class)), with(any(Double.class)), with(any(Double.class)), with(any(Integer.class)), with(any(Integer.class)), with(any(String.class)), with(aNull(String.class)));
+            will(returnValue(method));
+
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(same(method)), with(any(HttpRequestBase[].class)));
+            will(new CustomAction("check mirrors") {
+                @Override
+                public Object invoke(Invocation invocation) throws Throwable {
+                    HttpRequestBase[] mirrors = (HttpRequestBase[]) invocation.getParameter(1);
+                    Assert.assertEquals(1, mirrors.length);
+                    Assert.assertEquals(mirrorUrl + "?request=GetFeatureInfo&layers=layer", mirrors[0].getURI().toString());
+                    return new MyHttpResponse(new ByteArrayInputStream(response.getBytes("UTF-8")));
+                }
+            });
+        }});
+
+        Assert.assertEquals(response, service.getFeatureInfo(wmsUrl, "text/xml", "layer", "srs", 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, "styles",null,false,null));
+    }
+
     @Test
     public void testGetFeatureInfoPost() throws Exception {
         final String wmsUrl = "http://example.org/wms";
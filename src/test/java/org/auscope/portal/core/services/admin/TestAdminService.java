@@ -6,6 +6,13 @@ import java.net.URL;
 import java.util.Arrays;
 import java.util.List;
 import java.util.regex.Pattern;
+
+import net.sf.json.JSONObject;
+
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.auscope.portal.core.server.http.HedgedRequestExecutor;
+import org.auscope.portal.core.server.http.HedgingPolicy;
+import org.auscope.portal.core.server.http.HttpMetricsRegistry;
 import org.auscope.portal.core.server.http.HttpServiceCaller;
 import org.auscope.portal.core.services.csw.CSWServiceItem;
 import org.auscope.portal.core.services.methodmakers.filter.FilterBoundingBox;
@@ -155,4 +162,28 @@ public class TestAdminService extends PortalTestClass {
         Assert.assertEquals(0, response.getWarnings().size());
         Assert.assertEquals(6, response.getErrors().size());
     }
+
+    /**
+     * Tests that http metrics are correctly returned
+     */
+    @Test
+    public void testHttpMetrics() {
+        final HttpMetricsRegistry registry = new HttpMetricsRegistry();
+        final HedgedRequestExecutor hedgedRequestExecutor = new HedgedRequestExecutor(new HedgingPolicy());
+        final PoolingClientConnectionManager connectionManager = new PoolingClientConnectionManager();
+        registry.getMetrics("example.org", "GetFeature").requestStarted(0);
+
+        context.checking(new Expectations() {{
+            allowing(mockServiceCaller).getMetricsRegistry();will(returnValue(registry));
+            allowing(mockServiceCaller).getHedgedRequestExecutor();will(returnValue(hedgedRequestExecutor));
+            allowing(mockServiceCaller).getConnectionManager();will(returnValue(connectionManager));
+        }});
+
+        JSONObject json = adminService.httpMetrics();
+        Assert.assertEquals(1, json.getLong("totalRequests"));
+        Assert.assertEquals("GetFeature", json.getJSONArray("operations").getJSONObject(0).getString("operation"));
+        Assert.assertEquals(0, json.getJSONObject("hedging").getLong("hedgedCount"));
+        Assert.assertEquals(connectionManager.getMaxTotal(), json.getJSONObject("connectionPool").getInt("max"));
+        connectionManager.shutdown();
+    }
 }
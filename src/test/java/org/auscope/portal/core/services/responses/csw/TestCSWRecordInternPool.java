@@ -0,0 +1,149 @@
+package org.auscope.portal.core.services.responses.csw;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for CSWRecordInternPool
+ */
+public class TestCSWRecordInternPool extends PortalTestClass {
+
+    /**
+     * Returns a copy of s that is NOT the same instance (just like the values parsed from a DOM)
+     */
+    private static String copy(String s) {
+        return new String(s.toCharArray());
+    }
+
+    private static CSWResponsibleParty createParty(int org) throws Exception {
+        CSWContact contact = new CSWContact();
+        contact.setTelephone(copy("+61 8 6436 " + (8000 + org)));
+        contact.setAddressCity(copy("Perth"));
+        contact.setAddressCountry(copy("Australia"));
+        contact.setAddressEmail(copy("contact@org" + org + ".example.org"));
+        contact.setOnlineResource(new CSWOnlineResourceImpl(new URL(copy("http://org" + org + ".example.org")), copy("WWW:LINK-1.0-http--link"), copy("Website"), copy("")));
+
+        CSWResponsibleParty party = new CSWResponsibleParty();
+        party.setOrganisationName(copy("Organisation " + org));
+        party.setPositionName(copy("Data Manager"));
+        party.setContactInfo(contact);
+        return party;
+    }
+
+    /**
+     * Creates a synthetic record whose repeated values are all distinct instances
+     */
+    private static CSWRecord createRecord(int i) throws Exception {
+        int service = i % 100;
+        CSWRecord record = new CSWRecord(copy("service name " + i), copy("file-identifier-" + i), copy("http://example.org/record/" + i), copy("abstract of record " + i),
+                new AbstractCSWOnlineResource[] {
+                    new CSWOnlineResourceImpl(new URL(copy("http://service" + service + ".example.org/wms")), copy("OGC:WMS-1.1.1-http-get-map"), copy("layer" + i), copy("WMS layer")),
+                    new CSWOnlineResourceImpl(new URL(copy("http://service" + service + ".example.org/wfs")), copy("OGC:WFS-1.0.0-http-get-feature"), copy("layer" + i), copy("WFS layer")),
+                    new CSWOnlineResourceImpl(new URL(copy("http://service" + service + ".example.org/")), copy("WWW:LINK-1.0-http--link"), copy("Service homepage"), copy(""))
+                }, new CSWGeographicElement[0]);
+        record.setResourceProvider(copy("Organisation " + (i % 20)));
+        record.setLanguage(copy("eng"));
+        record.setSupplementalInformation(copy("Supplemental information " + (i % 5)));
+        record.setDataQualityStatement(copy("Data quality statement " + (i % 5)));
+        String[] keywords = new String[8];
+        for (int j = 0; j < keywords.length; j++) {
+            keywords[j] = copy("keyword " + ((i + j * 31) % 200));
+        }
+        record.setDescriptiveKeywords(keywords);
+        record.setConstraints(new String[] {copy("Creative Commons Attribution 3.0 Australia"), copy("constraint " + (i % 10))});
+        record.setContact(createParty(i % 20));
+        return record;
+    }
+
+    /**
+     * Equal values across records should be shared after interning
+     */
+    @Test
+    public void testInternSharesValues() throws Exception {
+        CSWRecordInternPool pool = new CSWRecordInternPool();
+        CSWRecord r1 = pool.intern(createRecord(0));
+        CSWRecord r2 = pool.intern(createRecord(200));
+
+        Assert.assertSame(r1.getResourceProvider(), r2.getResourceProvider());
+        Assert.assertSame(r1.getLanguage(), r2.getLanguage());
+        Assert.assertSame(r1.getSupplementalInformation(), r2.getSupplementalInformation());
+        Assert.assertSame(r1.getDescriptiveKeywords()[0], r2.getDescriptiveKeywords()[0]);
+        Assert.assertSame(r1.getConstraints()[1], r2.getConstraints()[1]);
+        Assert.assertSame(r1.getContact(), r2.getContact());
+        Assert.assertSame(r1.getOnlineResources()[2], r2.getOnlineResources()[2]);
+        Assert.assertSame(r1.getOnlineResources()[0].getProtocol(), r2.getOnlineResources()[0].getProtocol());
+
+        //Unique values should be left alone
+        Assert.assertNotSame(r1.getOnlineResources()[0], r2.getOnlineResources()[0]);
+        Assert.assertEquals("layer0", r1.getOnlineResources()[0].getName());
+        Assert.assertEquals("layer200", r2.getOnlineResources()[0].getName());
+        Assert.assertEquals("file-identifier-200", r2.getFileIdentifier());
+        Assert.assertEquals("keyword 31", r1.getDescriptiveKeywords()[1]);
+    }
+
+    /**
+     * Contacts/parties that differ in any value (including their online resource) must not be shared
+     */
+    @Test
+    public void testDifferentPartiesNotShared() throws Exception {
+        CSWRecordInternPool pool = new CSWRecordInternPool();
+        CSWResponsibleParty p1 = pool.intern(createParty(1));
+        CSWResponsibleParty p2 = pool.intern(createParty(2));
+        Assert.assertNotSame(p1, p2);
+        Assert.assertNotSame(p1.getContactInfo(), p2.getContactInfo());
+        Assert.assertSame(p1.getPositionName(), p2.getPositionName());
+        Assert.assertSame(p1.getContactInfo().getAddressCity(), p2.getContactInfo().getAddressCity());
+
+        CSWResponsibleParty p3 = createParty(1);
+        p3.getContactInfo().setOnlineResource(new CSWOnlineResourceImpl(new URL("http://other.example.org"), "WWW:LINK-1.0-http--link", "Website", ""));
+        p3 = pool.intern(p3);
+        Assert.assertNotSame(p1, p3);
+        Assert.assertSame(p1.getOrganisationName(), p3.getOrganisationName());
+
+        Assert.assertSame(p1, pool.intern(createParty(1)));
+        Assert.assertNull(pool.intern((CSWResponsibleParty) null));
+        Assert.assertNull(pool.intern((String) null));
+    }
+
+    private static long usedHeap() throws Exception {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * A 50,000 record cache should use less heap when interned (the pool itself is included in the measurement)
+     */
+    @Test
+    public void testHeapFootprint() throws Exception {
+        final int recordCount = 50000;
+
+        long baseline = usedHeap();
+        List<CSWRecord> records = new ArrayList<CSWRecord>(recordCount);
+        for (int i = 0; i < recordCount; i++) {
+            records.add(createRecord(i));
+        }
+        long plainBytes = usedHeap() - baseline;
+        records = null;
+
+        baseline = usedHeap();
+        CSWRecordInternPool pool = new CSWRecordInternPool();
+        List<CSWRecord> interned = new ArrayList<CSWRecord>(recordCount);
+        for (int i = 0; i < recordCount; i++) {
+            interned.add(pool.intern(createRecord(i)));
+        }
+        long internedBytes = usedHeap() - baseline;
+
+        Assert.assertEquals(recordCount, interned.size());
+        Assert.assertTrue(String.format("interned %1$dKB, plain %2$dKB", internedBytes / 1024, plainBytes / 1024),
+                internedBytes < plainBytes);
+    }
+}
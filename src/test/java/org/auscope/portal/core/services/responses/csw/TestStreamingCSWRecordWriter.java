@@ -0,0 +1,265 @@
+package org.auscope.portal.core.services.responses.csw;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+
+import org.auscope.portal.core.services.namespaces.CSWNamespaceContext;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.test.ResourceUtil;
+import org.auscope.portal.core.util.DOMUtil;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Unit tests for StreamingCSWRecordWriter
+ */
+public class TestStreamingCSWRecordWriter extends PortalTestClass {
+
+    private static final String XMLNS_URI = "http://www.w3.org/2000/xmlns/";
+
+    private List<CSWRecord> records;
+    private StreamingCSWRecordWriter writer = new StreamingCSWRecordWriter();
+
+    @Before
+    public void setUp() throws Exception {
+        Document doc = DOMUtil.buildDomFromStream(ResourceUtil.loadResourceAsStream("org/auscope/portal/core/test/responses/csw/cswRecordResponse.xml"));
+        XPathExpression expr = DOMUtil.compileXPathExpr("/csw:GetRecordsResponse/csw:SearchResults/gmd:MD_Metadata", new CSWNamespaceContext());
+        NodeList nodes = (NodeList) expr.evaluate(doc, XPathConstants.NODESET);
+
+        records = new ArrayList<CSWRecord>();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            records.add(new CSWRecordTransformer(nodes.item(i)).transformToCSWRecord());
+        }
+    }
+
+    private static CSWRecord parse(String xml) throws Exception {
+        return new CSWRecordTransformer(DOMUtil.buildDomFromString(xml).getDocumentElement()).transformToCSWRecord();
+    }
+
+    /** Missing values are written as gco:nilReason="missing" and read back as empty strings*/
+    private static String nz(String s) {
+        return s == null ? "" : s;
+    }
+
+    /**
+     * Converts record into a string via CSWRecordTransformer.transformToNode (or null if the DOM can't be built)
+     */
+    private static String buildDomString(CSWRecord record) throws Exception {
+        try {
+            return DOMUtil.buildStringFromDom(new CSWRecordTransformer().transformToNode(record), true);
+        } catch (NullPointerException ex) {
+            //transformToNode doesn't support online resources without a linkage
+            return null;
+        }
+    }
+
+    private static void assertRecordsEqual(CSWRecord expected, CSWRecord actual) {
+        Assert.assertEquals(expected.getFileIdentifier(), actual.getFileIdentifier());
+        Assert.assertEquals(nz(expected.getServiceName()), nz(actual.getServiceName()));
+        Assert.assertEquals(nz(expected.getDataIdentificationAbstract()), nz(actual.getDataIdentificationAbstract()));
+        Assert.assertEquals(nz(expected.getSupplementalInformation()), nz(actual.getSupplementalInformation()));
+        Assert.assertEquals(nz(expected.getLanguage()), nz(actual.getLanguage()));
+        Assert.assertEquals(nz(expected.getDataQualityStatement()), nz(actual.getDataQualityStatement()));
+        Assert.assertEquals(expected.getDate(), actual.getDate());
+        Assert.assertArrayEquals(expected.getDescriptiveKeywords(), actual.getDescriptiveKeywords());
+        Assert.assertArrayEquals(expected.getConstraints(), actual.getConstraints());
+
+        Assert.assertEquals(expected.getOnlineResources().length, actual.getOnlineResources().length);
+        for (int i = 0; i < expected.getOnlineResources().length; i++) {
+            AbstractCSWOnlineResource e = expected.getOnlineResources()[i];
+            AbstractCSWOnlineResource a = actual.getOnlineResources()[i];
+            Assert.assertEquals(String.valueOf(e.getLinkage()), String.valueOf(a.getLinkage()));
+            Assert.assertEquals(nz(e.getProtocol()), nz(a.getProtocol()));
+            Assert.assertEquals(nz(e.getName()), nz(a.getName()));
+            Assert.assertEquals(nz(e.getDescription()), nz(a.getDescription()));
+            Assert.assertEquals(nz(e.getApplicationProfile()), nz(a.getApplicationProfile()));
+        }
+
+        Assert.assertEquals(expected.getCSWGeographicElements().length, actual.getCSWGeographicElements().length);
+        for (int i = 0; i < expected.getCSWGeographicElements().length; i++) {
+            CSWGeographicBoundingBox e = (CSWGeographicBoundingBox) expected.getCSWGeographicElements()[i];
+            CSWGeographicBoundingBox a = (CSWGeographicBoundingBox) actual.getCSWGeographicElements()[i];
+            Assert.assertEquals(e.getWestBoundLongitude(), a.getWestBoundLongitude(), 0.0);
+            Assert.assertEquals(e.getEastBoundLongitude(), a.getEastBoundLongitude(), 0.0);
+            Assert.assertEquals(e.getSouthBoundLatitude(), a.getSouthBoundLatitude(), 0.0);
+            Assert.assertEquals(e.getNorthBoundLatitude(), a.getNorthBoundLatitude(), 0.0);
+        }
+
+        if (expected.getContact() == null) {
+            Assert.assertNull(actual.getContact());
+        } else {
+            Assert.assertEquals(nz(expected.getContact().getOrganisationName()), nz(actual.getContact().getOrganisationName()));
+            Assert.assertEquals(nz(expected.getContact().getIndividualName()), nz(actual.getContact().getIndividualName()));
+            Assert.assertEquals(nz(expected.getContact().getPositionName()), nz(actual.getContact().getPositionName()));
+            CSWContact e = expected.getContact().getContactInfo();
+            CSWContact a = actual.getContact().getContactInfo();
+            Assert.assertEquals(nz(e.getTelephone()), nz(a.getTelephone()));
+            Assert.assertEquals(nz(e.getAddressCity()), nz(a.getAddressCity()));
+            Assert.assertEquals(nz(e.getAddressEmail()), nz(a.getAddressEmail()));
+        }
+    }
+
+    /**
+     * Gets every attribute of node that isn't a namespace declaration (CSWRecordTransformer declares namespaces
+     * with unqualified attributes named after each prefix)
+     */
+    private static List<Node> getAttributes(Node node) {
+        List<Node> attributes = new ArrayList<Node>();
+        NamedNodeMap map = node.getAttributes();
+        for (int i = 0; map != null && i < map.getLength(); i++) {
+            Node attr = map.item(i);
+            boolean prefixDeclaration = attr.getNamespaceURI() == null && new CSWNamespaceContext().getNamespaceURI(attr.getNodeName()).length() > 0;
+            if (!XMLNS_URI.equals(attr.getNamespaceURI()) && !prefixDeclaration) {
+                attributes.add(attr);
+            }
+        }
+        return attributes;
+    }
+
+    private static List<Node> getChildren(Node node, short type) {
+        List<Node> children = new ArrayList<Node>();
+        NodeList list = node.getChildNodes();
+        for (int i = 0; i < list.getLength(); i++) {
+            if (list.item(i).getNodeType() == type) {
+                children.add(list.item(i));
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Asserts that two element trees have the same namespaces, local names, attributes and text.
+     *
+     * Attributes are matched by local name as serialising the DOM drops the namespace of gco:nilReason
+     */
+    private static void assertTreesEquivalent(Node expected, Node actual) {
+        String location = expected.getLocalName();
+        Assert.assertEquals(location, expected.getNamespaceURI(), actual.getNamespaceURI());
+        Assert.assertEquals(location, expected.getLocalName(), actual.getLocalName());
+
+        List<Node> expectedAttrs = getAttributes(expected);
+        List<Node> actualAttrs = getAttributes(actual);
+        Assert.assertEquals(location, expectedAttrs.size(), actualAttrs.size());
+        for (Node attr : expectedAttrs) {
+            Node match = null;
+            for (Node candidate : actualAttrs) {
+                if (candidate.getLocalName().equals(attr.getLocalName())) {
+                    match = candidate;
+                }
+            }
+            Assert.assertNotNull(location + "@" + attr.getNodeName(), match);
+            Assert.assertEquals(location + "@" + attr.getNodeName(), attr.getNodeValue(), match.getNodeValue());
+        }
+
+        Assert.assertEquals(location, expected.getTextContent(), actual.getTextContent());
+
+        List<Node> expectedChildren = getChildren(expected, Node.ELEMENT_NODE);
+        List<Node> actualChildren = getChildren(actual, Node.ELEMENT_NODE);
+        Assert.assertEquals(location, expectedChildren.size(), actualChildren.size());
+        for (int i = 0; i < expectedChildren.size(); i++) {
+            assertTreesEquivalent(expectedChildren.get(i), actualChildren.get(i));
+        }
+    }
+
+    /**
+     * Records written by the streaming writer should parse back into the same records
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        Assert.assertFalse(records.isEmpty());
+        for (CSWRecord record : records) {
+            assertRecordsEqual(record, parse(writer.writeToString(record)));
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writer.write(record, out);
+            assertRecordsEqual(record, parse(new String(out.toByteArray(), "UTF-8")));
+        }
+    }
+
+    /**
+     * The streaming writer should produce the same elements as CSWRecordTransformer.transformToNode
+     */
+    @Test
+    public void testEquivalentToDOM() throws Exception {
+        int compared = 0;
+        for (CSWRecord record : records) {
+            String dom = buildDomString(record);
+            if (dom == null) {
+                continue;
+            }
+            String streamed = writer.writeToString(record);
+            compared++;
+
+            assertTreesEquivalent(DOMUtil.buildDomFromString(dom).getDocumentElement(), DOMUtil.buildDomFromString(streamed).getDocumentElement());
+        }
+        Assert.assertTrue(compared > 0);
+    }
+
+    /**
+     * Missing values, special characters and null linkages should be handled
+     */
+    @Test
+    public void testMissingValuesAndEscaping() throws Exception {
+        CSWRecord record = new CSWRecord("title <&> \"quoted\"", "id", "", "", new AbstractCSWOnlineResource[] {
+            new CSWOnlineResourceImpl(new URL("http://example.org/wms?a=1&b=2"), "OGC:WMS-1.1.1-http-get-map", "layer", "desc"),
+            new CSWOnlineResourceImpl(null, "WWW:LINK-1.0-http--link", "no url", "")
+        }, new CSWGeographicElement[] {new CSWGeographicBoundingBox(110, 150, -40, -10)});
+        record.setDescriptiveKeywords(new String[] {"k1", "k2"});
+
+        String xml = writer.writeToString(record);
+        Assert.assertTrue(xml.startsWith("<gmd:MD_Metadata"));
+
+        CSWRecord parsed = parse(xml);
+        Assert.assertEquals("title <&> \"quoted\"", parsed.getServiceName());
+        Assert.assertEquals("", parsed.getDataIdentificationAbstract());
+        Assert.assertNull(parsed.getDate());
+        Assert.assertNull(parsed.getContact());
+        Assert.assertEquals("http://example.org/wms?a=1&b=2", parsed.getOnlineResources()[0].getLinkage().toString());
+        Assert.assertNull(parsed.getOnlineResources()[1].getLinkage());
+        Assert.assertArrayEquals(new String[] {"k1", "k2"}, parsed.getDescriptiveKeywords());
+        Assert.assertEquals(150, ((CSWGeographicBoundingBox) parsed.getCSWGeographicElements()[0]).getEastBoundLongitude(), 0.0);
+    }
+
+    /**
+     * Streaming should be quicker than building (and serialising) a DOM for every record
+     */
+    @Test
+    public void testQuickerThanDOM() throws Exception {
+        final int iterations = 200;
+        List<CSWRecord> domRecords = new ArrayList<CSWRecord>();
+        for (CSWRecord record : records) {
+            if (buildDomString(record) != null) {
+                domRecords.add(record);
+            }
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (CSWRecord record : domRecords) {
+                DOMUtil.buildStringFromDom(new CSWRecordTransformer().transformToNode(record), true);
+            }
+        }
+        long domTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (CSWRecord record : domRecords) {
+                writer.writeToString(record);
+            }
+        }
+        long streamingTime = System.nanoTime() - start;
+
+        Assert.assertTrue(String.format("streaming took %1$sms, DOM took %2$sms", streamingTime / 1000000, domTime / 1000000),
+                streamingTime < domTime);
+    }
+}
@@ -1,8 +1,13 @@
 package org.auscope.portal.core.services.responses.ows;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
 import org.auscope.portal.core.test.PortalTestClass;
 import org.auscope.portal.core.test.ResourceUtil;
 import org.auscope.portal.core.util.DOMUtil;
+import org.junit.Assert;
 import org.junit.Test;
 import org.w3c.dom.Document;
 
@@ -16,6 +21,36 @@ public class TestOWSExceptionParser extends PortalTestClass {
         //Test both the string and document versions
         OWSExceptionParser.checkForExceptionResponse(xmlString);
         OWSExceptionParser.checkForExceptionResponse(doc);
+
+        //The stream version should hand back the entire response
+        InputStream in = OWSExceptionParser.checkForExceptionResponse(new ByteArrayInputStream(xmlString.getBytes("UTF-8")));
+        Assert.assertEquals(xmlString, IOUtils.toString(in, "UTF-8"));
+    }
+
+    /**
+     * Asserts that xml is reported as an exception with the specified message by every overload
+     */
+    private void assertException(String xml, String expectedMessage) throws Exception {
+        try {
+            OWSExceptionParser.checkForExceptionResponse(xml);
+            Assert.fail("Expected an OWSException");
+        } catch (OWSException ex) {
+            Assert.assertEquals(expectedMessage, ex.getMessage());
+        }
+
+        try {
+            OWSExceptionParser.checkForExceptionResponse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+            Assert.fail("Expected an OWSException");
+        } catch (OWSException ex) {
+            Assert.assertEquals(expectedMessage, ex.getMessage());
+        }
+
+        try {
+            OWSExceptionParser.checkForExceptionResponse(DOMUtil.buildDomFromString(xml));
+            Assert.fail("Expected an OWSException");
+        } catch (OWSException ex) {
+            Assert.assertEquals(expectedMessage, ex.getMessage());
+        }
     }
 
     @Test(expected=OWSException.class)
@@ -30,4 +65,63 @@ public class TestOWSExceptionParser extends PortalTestClass {
         check("org/auscope/portal/core/test/responses/wfs/GetWFSFeatureCount.xml");
         check("org/auscope/portal/core/test/responses/wfs/EmptyWFSResponse.xml");
     }
+
+    /**
+     * The message of the first exception should be reported
+     */
+    @Test
+    public void testExceptionMessage() throws Exception {
+        assertException(ResourceUtil.loadResourceAsString("org/auscope/portal/core/test/responses/ows/OWSExceptionSample1.xml"),
+                "Code='MissingParameterValue' Message='The query should specify either typeName or a featureId filter'");
+
+        //OWS 1.1 and OGC service exception reports
+        assertException("<ows:ExceptionReport xmlns:ows=\"http://www.opengis.net/ows/1.1\"><ows:Exception exceptionCode=\"A\"/>" +
+                "<ows:Exception exceptionCode=\"B\"><ows:ExceptionText>second</ows:ExceptionText></ows:Exception></ows:ExceptionReport>",
+                "Code='A' Message='[Cannot extract error message]'");
+        assertException("<?xml version=\"1.0\"?><!-- a comment --><ServiceExceptionReport version=\"1.1.1\">" +
+                "<ServiceException code=\"LayerNotDefined\">\n  Unknown layer\n</ServiceException></ServiceExceptionReport>",
+                "Code='LayerNotDefined' Message='Unknown layer'");
+
+        //An ExceptionReport without any namespace
+        assertException("<ExceptionReport><Exception exceptionCode=\"C\"><ExceptionText>none</ExceptionText></Exception></ExceptionReport>",
+                "Code='C' Message='none'");
+    }
+
+    /**
+     * Only the root element should be read - anything after it (even if malformed) is irrelevant
+     */
+    @Test
+    public void testOnlyRootIsRead() throws Exception {
+        String truncated = "<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs\"><gml:featureMember>";
+        OWSExceptionParser.checkForExceptionResponse(truncated);
+        InputStream in = OWSExceptionParser.checkForExceptionResponse(new ByteArrayInputStream(truncated.getBytes()));
+        Assert.assertEquals(truncated, IOUtils.toString(in));
+
+        //An ExceptionReport from an unrelated namespace isn't an OWS exception
+        OWSExceptionParser.checkForExceptionResponse("<ExceptionReport xmlns=\"http://example.org\"><Exception/></ExceptionReport>");
+    }
+
+    /**
+     * A stream whose root element lies beyond the lookahead limit should be passed through untouched
+     */
+    @Test
+    public void testLookaheadLimit() throws Exception {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\"?><!--");
+        while (sb.length() < OWSExceptionParser.MAX_LOOKAHEAD + 1024) {
+            sb.append("padding padding padding ");
+        }
+        sb.append("--><ows:ExceptionReport xmlns:ows=\"http://www.opengis.net/ows\"><ows:Exception/></ows:ExceptionReport>");
+        String xml = sb.toString();
+
+        InputStream in = OWSExceptionParser.checkForExceptionResponse(new ByteArrayInputStream(xml.getBytes()));
+        Assert.assertEquals(xml, IOUtils.toString(in));
+    }
+
+    /**
+     * Content that isn't XML should be rejected
+     */
+    @Test(expected = OWSException.class)
+    public void testNotXml() throws Exception {
+        OWSExceptionParser.checkForExceptionResponse(new ByteArrayInputStream("this is not xml".getBytes()));
+    }
 }
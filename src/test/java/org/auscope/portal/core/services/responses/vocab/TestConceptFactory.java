@@ -2,7 +2,9 @@ package org.auscope.portal.core.services.responses.vocab;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.xml.xpath.XPathConstants;
 
@@ -148,4 +150,87 @@ public class TestConceptFactory extends PortalTestClass {
         }
         Assert.assertTrue("Must contain: Gneiss - crusher dust", found);
     }
+
+    /**
+     * Generates an RDF document with conceptCount concepts arranged in a binary tree with additional
+     * narrower links (creating diamonds), a link from the last concept back to the first (creating a cycle)
+     * and references to a concept that is never defined.
+     */
+    private static String buildLargeGraph(int conceptCount) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<rdf:RDF xmlns:rdfs=\"http://www.w3.org/2000/01/rdf-schema#\" xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\" ");
+        sb.append("xmlns:skos=\"http://www.w3.org/2004/02/skos/core#\">");
+        for (int i = 0; i < conceptCount; i++) {
+            sb.append("<skos:Concept rdf:about=\"urn:c:" + i + "\"><skos:prefLabel>Concept " + i + "</skos:prefLabel></skos:Concept>");
+        }
+        for (int i = 0; i < conceptCount; i++) {
+            sb.append("<rdf:Description rdf:about=\"urn:c:" + i + "\">");
+            if (i > 0) {
+                sb.append("<skos:broader rdf:resource=\"urn:c:" + ((i - 1) / 2) + "\"/>");
+            }
+            for (int child = 2 * i + 1; child <= 2 * i + 2 && child < conceptCount; child++) {
+                sb.append("<skos:narrower rdf:resource=\"urn:c:" + child + "\"/>");
+            }
+            sb.append("<skos:narrower rdf:resource=\"urn:c:" + ((i * 7 + 3) % conceptCount) + "\"/>");
+            if (i == conceptCount - 1) {
+                sb.append("<skos:narrower rdf:resource=\"urn:c:0\"/>");
+            }
+            if (i % 100 == 0) {
+                sb.append("<skos:related rdf:resource=\"urn:missing\"/>");
+            }
+            sb.append("</rdf:Description>");
+        }
+        sb.append("</rdf:RDF>");
+        return sb.toString();
+    }
+
+    /**
+     * A large graph with cycles and diamonds should be related with a single Concept instance per URN
+     */
+    @Test
+    public void testLargeGraphSharesConcepts() throws Exception {
+        final int conceptCount = 5000;
+        Document responseDoc = DOMUtil.buildDomFromString(buildLargeGraph(conceptCount));
+        Node rdfNode = (Node) DOMUtil.compileXPathExpr("rdf:RDF", new VocabNamespaceContext()).evaluate(responseDoc, XPathConstants.NODE);
+
+        startTimer();
+        Concept[] concepts = new ConceptFactory().parseFromRDF(rdfNode);
+        long elapsed = endTimer();
+
+        Assert.assertEquals(conceptCount, concepts.length);
+        Map<String, Concept> byUrn = new HashMap<String, Concept>();
+        for (Concept concept : concepts) {
+            Assert.assertNull("Duplicate concept " + concept.getUrn(), byUrn.put(concept.getUrn(), concept));
+        }
+
+        Concept missing = null;
+        for (Concept concept : concepts) {
+            for (Concept[] relations : new Concept[][] {concept.getBroader(), concept.getNarrower(), concept.getRelated()}) {
+                for (Concept related : relations) {
+                    if (related.getUrn().equals("urn:missing")) {
+                        Assert.assertTrue(related.isHref());
+                        if (missing == null) {
+                            missing = related;
+                        }
+                        Assert.assertSame(missing, related);
+                    } else {
+                        Assert.assertSame(byUrn.get(related.getUrn()), related);
+                    }
+                }
+            }
+        }
+        Assert.assertNotNull(missing);
+
+        //Diamond: c:1 and c:3 (via c:0 -> c:3 and c:1 -> c:3) reach the same instance
+        Concept c0 = byUrn.get("urn:c:0");
+        Assert.assertEquals("Concept 0", c0.getPreferredLabel());
+        Assert.assertSame(c0.getNarrower()[0].getNarrower()[0], c0.getNarrower()[2]);
+
+        //Cycle: the last concept links back to the first
+        Concept last = byUrn.get("urn:c:" + (conceptCount - 1));
+        Assert.assertSame(c0, last.getNarrower()[last.getNarrower().length - 1]);
+        Assert.assertSame(c0, c0.getNarrower()[0].getBroader()[0]);
+
+        Assert.assertTrue("Relating took " + elapsed + "ms", elapsed < 10000);
+    }
 }
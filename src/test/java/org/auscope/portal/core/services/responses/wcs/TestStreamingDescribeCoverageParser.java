@@ -0,0 +1,186 @@
+package org.auscope.portal.core.services.responses.wcs;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.auscope.portal.core.services.responses.ows.OWSException;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.test.ResourceUtil;
+import org.auscope.portal.core.util.DOMUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for StreamingDescribeCoverageParser
+ */
+public class TestStreamingDescribeCoverageParser extends PortalTestClass {
+
+    private static final String[] RESPONSES = {
+        "org/auscope/portal/core/test/responses/wcs/DescribeCoverageResponse1.xml",
+        "org/auscope/portal/core/test/responses/wcs/DescribeCoverageResponse2.xml",
+        "org/auscope/portal/core/test/responses/wcs/DescribeCoverageResponse3.xml"
+    };
+
+    private static void assertValuesEqual(ValueEnumType[] expected, ValueEnumType[] actual) {
+        Assert.assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertEquals(expected[i].getClass(), actual[i].getClass());
+            Assert.assertEquals(expected[i].getType(), actual[i].getType());
+            if (expected[i] instanceof SingleValue) {
+                Assert.assertEquals(((SingleValue) expected[i]).getValue(), ((SingleValue) actual[i]).getValue());
+            } else {
+                Interval e = (Interval) expected[i];
+                Interval a = (Interval) actual[i];
+                Assert.assertEquals(e.getMin(), a.getMin());
+                Assert.assertEquals(e.getMax(), a.getMax());
+                Assert.assertEquals(e.getResolution(), a.getResolution());
+            }
+        }
+    }
+
+    private static void assertRecordsEqual(DescribeCoverageRecord expected, DescribeCoverageRecord actual) {
+        Assert.assertEquals(expected.getDescription(), actual.getDescription());
+        Assert.assertEquals(expected.getName(), actual.getName());
+        Assert.assertEquals(expected.getLabel(), actual.getLabel());
+        Assert.assertArrayEquals(expected.getSupportedRequestCRSs(), actual.getSupportedRequestCRSs());
+        Assert.assertArrayEquals(expected.getSupportedResponseCRSs(), actual.getSupportedResponseCRSs());
+        Assert.assertArrayEquals(expected.getSupportedFormats(), actual.getSupportedFormats());
+        Assert.assertArrayEquals(expected.getSupportedInterpolations(), actual.getSupportedInterpolations());
+        Assert.assertArrayEquals(expected.getNativeCRSs(), actual.getNativeCRSs());
+
+        SpatialDomain es = expected.getSpatialDomain();
+        SpatialDomain as = actual.getSpatialDomain();
+        Assert.assertEquals(es.getEnvelopes().length, as.getEnvelopes().length);
+        for (int i = 0; i < es.getEnvelopes().length; i++) {
+            SimpleEnvelope e = es.getEnvelopes()[i];
+            SimpleEnvelope a = as.getEnvelopes()[i];
+            Assert.assertEquals(e.getSrsName(), a.getSrsName());
+            Assert.assertEquals(e.getType(), a.getType());
+            Assert.assertEquals(e.getEastBoundLongitude(), a.getEastBoundLongitude(), 0.0);
+            Assert.assertEquals(e.getWestBoundLongitude(), a.getWestBoundLongitude(), 0.0);
+            Assert.assertEquals(e.getNorthBoundLatitude(), a.getNorthBoundLatitude(), 0.0);
+            Assert.assertEquals(e.getSouthBoundLatitude(), a.getSouthBoundLatitude(), 0.0);
+        }
+        if (es.getRectifiedGrid() == null) {
+            Assert.assertNull(as.getRectifiedGrid());
+        } else {
+            RectifiedGrid e = es.getRectifiedGrid();
+            RectifiedGrid a = as.getRectifiedGrid();
+            Assert.assertEquals(e.getSrsName(), a.getSrsName());
+            Assert.assertEquals(e.getDimension(), a.getDimension());
+            Assert.assertArrayEquals(e.getAxisNames(), a.getAxisNames());
+            Assert.assertArrayEquals(e.getEnvelopeLowValues(), a.getEnvelopeLowValues());
+            Assert.assertArrayEquals(e.getEnvelopeHighValues(), a.getEnvelopeHighValues());
+            Assert.assertArrayEquals(e.getOrigin(), a.getOrigin(), 0.0);
+            Assert.assertEquals(e.getOffsetVectors().length, a.getOffsetVectors().length);
+            for (int i = 0; i < e.getOffsetVectors().length; i++) {
+                Assert.assertArrayEquals(e.getOffsetVectors()[i], a.getOffsetVectors()[i], 0.0);
+            }
+        }
+
+        if (expected.getTemporalDomain() == null) {
+            Assert.assertNull(actual.getTemporalDomain());
+        } else {
+            Assert.assertEquals(expected.getTemporalDomain().length, actual.getTemporalDomain().length);
+            for (int i = 0; i < expected.getTemporalDomain().length; i++) {
+                SimpleTimePosition e = (SimpleTimePosition) expected.getTemporalDomain()[i];
+                SimpleTimePosition a = (SimpleTimePosition) actual.getTemporalDomain()[i];
+                Assert.assertEquals(e.getType(), a.getType());
+                Assert.assertEquals(e.getTimePosition(), a.getTimePosition());
+            }
+        }
+
+        RangeSet er = expected.getRangeSet();
+        RangeSet ar = actual.getRangeSet();
+        Assert.assertEquals(er.getDescription(), ar.getDescription());
+        Assert.assertEquals(er.getName(), ar.getName());
+        Assert.assertEquals(er.getLabel(), ar.getLabel());
+        assertValuesEqual(er.getNullValues(), ar.getNullValues());
+        Assert.assertEquals(er.getAxisDescriptions().length, ar.getAxisDescriptions().length);
+        for (int i = 0; i < er.getAxisDescriptions().length; i++) {
+            AxisDescription e = er.getAxisDescriptions()[i];
+            AxisDescription a = ar.getAxisDescriptions()[i];
+            Assert.assertEquals(e.getDescription(), a.getDescription());
+            Assert.assertEquals(e.getName(), a.getName());
+            Assert.assertEquals(e.getLabel(), a.getLabel());
+            assertValuesEqual(e.getValues(), a.getValues());
+        }
+    }
+
+    /**
+     * Every test response should produce the same records as the DOM based parser
+     */
+    @Test
+    public void testMatchesDOMParser() throws Exception {
+        for (String response : RESPONSES) {
+            DescribeCoverageRecord[] expected = DescribeCoverageRecord.parseRecords(DOMUtil.buildDomFromString(ResourceUtil.loadResourceAsString(response)));
+            DescribeCoverageRecord[] actual = StreamingDescribeCoverageParser.parseRecords(ResourceUtil.loadResourceAsStream(response));
+
+            Assert.assertEquals(response, expected.length, actual.length);
+            for (int i = 0; i < expected.length; i++) {
+                assertRecordsEqual(expected[i], actual[i]);
+            }
+        }
+    }
+
+    /**
+     * Intervals, null values and time periods should be parsed
+     */
+    @Test
+    public void testIntervalsAndTimePeriods() throws Exception {
+        String xml = "<CoverageDescription xmlns=\"http://www.opengis.net/wcs\" xmlns:gml=\"http://www.opengis.net/gml\">" +
+                "<CoverageOffering><name>n</name>" +
+                "<domainSet><temporalDomain><timePeriod><gml:beginPosition>2001-01-01T00:00:00Z</gml:beginPosition>" +
+                "<gml:endPosition>2002-01-01T00:00:00Z</gml:endPosition></timePeriod></temporalDomain></domainSet>" +
+                "<rangeSet><RangeSet><name>rs</name><label>rsl</label>" +
+                "<axisDescription><AxisDescription><name>ad</name><label>adl</label><values>" +
+                "<interval><min>1.5</min><max>3</max></interval><singleValue>7</singleValue></values></AxisDescription></axisDescription>" +
+                "<nullValues><singleValue>-999</singleValue></nullValues></RangeSet></rangeSet>" +
+                "</CoverageOffering></CoverageDescription>";
+
+        DescribeCoverageRecord[] records = StreamingDescribeCoverageParser.parseRecords(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+        Assert.assertEquals(1, records.length);
+        DescribeCoverageRecord record = records[0];
+        Assert.assertEquals("n", record.getName());
+        Assert.assertEquals("", record.getLabel());
+        Assert.assertNull(record.getSpatialDomain());
+
+        SimpleTimePeriod period = (SimpleTimePeriod) record.getTemporalDomain()[0];
+        Assert.assertEquals("timePeriod", period.getType());
+        Assert.assertTrue(period.getBeginPosition().before(period.getEndPosition()));
+
+        RangeSet rangeSet = record.getRangeSet();
+        Assert.assertNull(rangeSet.getDescription());
+        Assert.assertEquals("-999", ((SingleValue) rangeSet.getNullValues()[0]).getValue());
+        ValueEnumType[] values = rangeSet.getAxisDescriptions()[0].getValues();
+        Assert.assertEquals(2, values.length);
+        Interval interval = (Interval) values[0];
+        Assert.assertEquals("interval", interval.getType());
+        Assert.assertEquals(1.5, interval.getMin(), 0.0);
+        Assert.assertEquals(3.0, interval.getMax(), 0.0);
+        Assert.assertNull(interval.getResolution());
+        Assert.assertEquals("7", ((SingleValue) values[1]).getValue());
+    }
+
+    /**
+     * OWS exception reports should be raised as OWSExceptions
+     */
+    @Test(expected = OWSException.class)
+    public void testOWSException() throws Exception {
+        InputStream in = ResourceUtil.loadResourceAsStream("org/auscope/portal/core/test/responses/ows/OWSExceptionSample1.xml");
+        try {
+            StreamingDescribeCoverageParser.parseRecords(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Responses that aren't a CoverageDescription produce no records
+     */
+    @Test
+    public void testNotCoverageDescription() throws Exception {
+        DescribeCoverageRecord[] records = StreamingDescribeCoverageParser.parseRecords(new ByteArrayInputStream("<Other><CoverageOffering/></Other>".getBytes()));
+        Assert.assertEquals(0, records.length);
+    }
+}
@@ -0,0 +1,188 @@
+package org.auscope.portal.core.services.responses.wms;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.auscope.portal.core.services.responses.csw.CSWGeographicBoundingBox;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.test.ResourceUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for StreamingGetCapabilitiesRecord
+ */
+public class TestStreamingGetCapabilitiesRecord extends PortalTestClass {
+    static final double PRECISION = 0.01;
+
+    private static final String WMS_1_1_1 = "org/auscope/portal/core/test/responses/wms/wmsGetCapabilities.xml";
+    private static final String WMS_1_3_0 = "org/auscope/portal/core/test/responses/wms/GetCapabilitiesControllerWMSResponse_1_3_0.xml";
+
+    private static void assertBbox(CSWGeographicBoundingBox bbox, double west, double east, double south, double north) {
+        Assert.assertNotNull(bbox);
+        Assert.assertEquals(west, bbox.getWestBoundLongitude(), PRECISION);
+        Assert.assertEquals(east, bbox.getEastBoundLongitude(), PRECISION);
+        Assert.assertEquals(south, bbox.getSouthBoundLatitude(), PRECISION);
+        Assert.assertEquals(north, bbox.getNorthBoundLatitude(), PRECISION);
+    }
+
+    /**
+     * The streaming record should produce the same results as GetCapabilitiesRecord_1_1_1
+     */
+    @Test
+    public void testParseWMS_1_1_1() throws Exception {
+        StreamingGetCapabilitiesRecord rec = new StreamingGetCapabilitiesRecord(ResourceUtil.loadResourceAsStream(WMS_1_1_1));
+
+        Assert.assertEquals("wms", rec.getServiceType());
+        Assert.assertEquals("1.1.1", rec.getVersion());
+        Assert.assertEquals("Contact Org", rec.getOrganisation());
+        Assert.assertEquals("http://my.server/getmap/wms", rec.getMapUrl());
+        Assert.assertArrayEquals(new String[] {"image/bmp", "image/jpeg", "image/tiff"}, rec.getGetMapFormats());
+        Assert.assertArrayEquals(new String[] {"CRS:84", "EPSG:4326", "EPSG:4283"}, rec.getLayerSRS());
+
+        List<GetCapabilitiesWMSLayerRecord> layers = rec.getLayers();
+        Assert.assertEquals(5, layers.size());
+        Assert.assertEquals("", layers.get(0).getName());
+        Assert.assertEquals("Grouping 1", layers.get(0).getTitle());
+
+        GetCapabilitiesWMSLayerRecord layer = layers.get(1);
+        Assert.assertEquals("name1", layer.getName());
+        Assert.assertEquals("title1", layer.getTitle());
+        Assert.assertEquals("abstract1", layer.getAbstract());
+        Assert.assertArrayEquals(new String[] {"EPSG:4326"}, layer.getChildLayerSRS());
+        assertBbox(layer.getBoundingBox(), 10, 20, 30, 40);
+
+        layer = layers.get(2);
+        Assert.assertEquals("name2", layer.getName());
+        Assert.assertArrayEquals(new String[] {"EPSG:4283"}, layer.getChildLayerSRS());
+        assertBbox(layer.getBoundingBox(), 11, 22, 33, 44);
+
+        Assert.assertEquals("Grouping 2", layers.get(3).getTitle());
+        Assert.assertNull(layers.get(3).getBoundingBox());
+
+        layer = layers.get(4);
+        Assert.assertEquals("name3", layer.getName());
+        Assert.assertEquals("abstract3", layer.getAbstract());
+        Assert.assertArrayEquals(new String[0], layer.getChildLayerSRS());
+        assertBbox(layer.getBoundingBox(), 1, 2, 3, 4);
+    }
+
+    /**
+     * The streaming record should produce the same results as GetCapabilitiesRecord_1_3_0
+     */
+    @Test
+    public void testParseWMS_1_3_0() throws Exception {
+        StreamingGetCapabilitiesRecord rec = new StreamingGetCapabilitiesRecord(ResourceUtil.loadResourceAsStream(WMS_1_3_0));
+
+        Assert.assertEquals("wms", rec.getServiceType());
+        Assert.assertEquals("1.3.0", rec.getVersion());
+        Assert.assertEquals("Test Organization", rec.getOrganisation());
+        Assert.assertEquals("http://localhost:8080/geoserver/ows?SERVICE=WMS", rec.getMapUrl());
+        Assert.assertEquals(14, rec.getGetMapFormats().length);
+        Assert.assertEquals("image/png", rec.getGetMapFormats()[0]);
+        Assert.assertEquals(4717, rec.getLayerSRS().length);
+
+        Assert.assertEquals(2, rec.getLayers().size());
+        Assert.assertEquals("", rec.getLayers().get(0).getName());
+
+        GetCapabilitiesWMSLayerRecord layer = rec.getLayers().get(1);
+        Assert.assertEquals("gsml:MappedFeature", layer.getName());
+        Assert.assertEquals("abstract about MappedFeature", layer.getAbstract());
+        Assert.assertEquals("MappedFeature", layer.getTitle());
+        Assert.assertArrayEquals(new String[] {"EPSG:4326", "CRS:84"}, layer.getChildLayerSRS());
+        assertBbox(layer.getBoundingBox(), -180, 180, -90, 90);
+    }
+
+    /**
+     * SRS and bounding boxes should be inherited from parent layers. Styles and legends should be indexed
+     */
+    @Test
+    public void testInheritanceAndStyles() throws Exception {
+        StreamingGetCapabilitiesRecord rec = new StreamingGetCapabilitiesRecord(ResourceUtil.loadResourceAsStream(WMS_1_1_1));
+
+        StreamingGetCapabilitiesWMSLayer name3 = rec.getLayer("name3");
+        Assert.assertNotNull(name3);
+        Assert.assertEquals("Grouping 2", name3.getParent().getTitle());
+        Assert.assertArrayEquals(new String[] {"CRS:84", "EPSG:4326", "EPSG:4283"}, name3.getEffectiveSRS());
+        assertBbox(name3.getEffectiveBoundingBox(), 1, 2, 3, 4);
+
+        //Grouping 2 has no bbox of its own
+        assertBbox(name3.getParent().getEffectiveBoundingBox(), -180, 180, -90, 90);
+
+        StreamingGetCapabilitiesWMSLayer name1 = rec.getLayer("name1");
+        Assert.assertArrayEquals(new String[] {"EPSG:4326", "CRS:84", "EPSG:4283"}, name1.getEffectiveSRS());
+        Assert.assertArrayEquals(new String[] {"default"}, name1.getStyles());
+        Assert.assertEquals("http://example/default0.png", name1.getLegendURL());
+
+        Assert.assertNull(rec.getLayer("does-not-exist"));
+        Assert.assertNull(rec.getLayer(""));
+    }
+
+    /**
+     * Non WMS responses should not produce any layers
+     */
+    @Test
+    public void testNonWMS() throws Exception {
+        StreamingGetCapabilitiesRecord rec = new StreamingGetCapabilitiesRecord(new ByteArrayInputStream("<WFS_Capabilities><Layer/></WFS_Capabilities>".getBytes()));
+        Assert.assertFalse(rec.isWMS());
+        Assert.assertNull(rec.getLayers());
+    }
+
+    /**
+     * Builds a 1.1.1 response with layerCount named layers (based on the test capabilities response)
+     */
+    private static byte[] buildLargeResponse(int layerCount) throws Exception {
+        String template = IOUtils.toString(ResourceUtil.loadResourceAsStream(WMS_1_1_1), "UTF-8");
+        int start = template.indexOf("<Layer queryable=\"1\">");
+        int end = template.indexOf("</Layer>", start) + "</Layer>".length();
+        String layer = template.substring(start, end);
+
+        StringBuilder sb = new StringBuilder(template.length() + layer.length() * layerCount);
+        sb.append(template, 0, start);
+        for (int i = 0; i < layerCount; i++) {
+            sb.append(layer.replace("name1", "layer" + i));
+        }
+        sb.append(template.substring(end));
+        return sb.toString().getBytes("UTF-8");
+    }
+
+    /**
+     * A response with 250 layers should produce the same layers as the DOM based record
+     */
+    @Test
+    public void testMatchesDOMRecord() throws Exception {
+        final int layerCount = 250;
+        byte[] xml = buildLargeResponse(layerCount);
+
+        StreamingGetCapabilitiesRecord streamed = new StreamingGetCapabilitiesRecord(new ByteArrayInputStream(xml));
+        GetCapabilitiesRecord dom = new GetCapabilitiesRecord_1_1_1(new ByteArrayInputStream(xml));
+
+        Assert.assertEquals(dom.getLayers().size(), streamed.getLayers().size());
+        for (int i = 0; i < dom.getLayers().size(); i++) {
+            GetCapabilitiesWMSLayerRecord expected = dom.getLayers().get(i);
+            GetCapabilitiesWMSLayerRecord actual = streamed.getLayers().get(i);
+            Assert.assertEquals(expected.getName(), actual.getName());
+            Assert.assertEquals(expected.getTitle(), actual.getTitle());
+            Assert.assertEquals(expected.getAbstract(), actual.getAbstract());
+            Assert.assertArrayEquals(expected.getChildLayerSRS(), actual.getChildLayerSRS());
+        }
+    }
+
+    /**
+     * A response with 10,000 layers should be indexed in a single pass
+     */
+    @Test
+    public void testLargeResponse() throws Exception {
+        final int layerCount = 10000;
+        byte[] xml = buildLargeResponse(layerCount);
+
+        StreamingGetCapabilitiesRecord streamed = new StreamingGetCapabilitiesRecord(new ByteArrayInputStream(xml));
+
+        Assert.assertEquals(layerCount + 4, streamed.getLayerCount());
+        StreamingGetCapabilitiesWMSLayer last = streamed.getLayer("layer" + (layerCount - 1));
+        Assert.assertEquals("title1", last.getTitle());
+        Assert.assertEquals("Grouping 1", last.getParent().getTitle());
+        assertBbox(last.getBoundingBox(), 10, 20, 30, 40);
+    }
+}
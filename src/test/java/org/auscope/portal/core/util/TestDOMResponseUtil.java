@@ -0,0 +1,120 @@
+package org.auscope.portal.core.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.auscope.portal.core.services.responses.ows.OWSException;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.util.DOMResponseUtil.FeatureCount;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for DOMResponseUtil
+ */
+public class TestDOMResponseUtil extends PortalTestClass {
+
+    private static InputStream toStream(String xml) {
+        return new ByteArrayInputStream(xml.getBytes());
+    }
+
+    /**
+     * WFS 1.1 responses report their size with numberOfFeatures
+     */
+    @Test
+    public void testCountWFS11() throws Exception {
+        String xml = "<?xml version=\"1.0\"?><wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs\" xmlns:gml=\"http://www.opengis.net/gml\" numberOfFeatures=\"2\">"
+                + "<gml:featureMember><a/></gml:featureMember><gml:featureMember><a/></gml:featureMember></wfs:FeatureCollection>";
+
+        FeatureCount count = DOMResponseUtil.countFeatures(toStream(xml), false);
+        Assert.assertEquals(2, count.getNumberReturned());
+        Assert.assertEquals(-1, count.getNumberMatched());
+    }
+
+    /**
+     * WFS 2.0 responses report numberReturned and numberMatched
+     */
+    @Test
+    public void testCountWFS20() throws Exception {
+        String xml = "<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs/2.0\" numberReturned=\"1\" numberMatched=\"42\">"
+                + "<wfs:member><a/></wfs:member></wfs:FeatureCollection>";
+
+        FeatureCount count = DOMResponseUtil.countFeatures(toStream(xml), false);
+        Assert.assertEquals(1, count.getNumberReturned());
+        Assert.assertEquals(42, count.getNumberMatched());
+
+        xml = "<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs/2.0\" numberReturned=\"0\" numberMatched=\"unknown\"/>";
+        Assert.assertEquals(-1, DOMResponseUtil.countFeatures(toStream(xml), false).getNumberMatched());
+    }
+
+    /**
+     * Members should be counted when the server doesn't report a count
+     */
+    @Test
+    public void testCountMembers() throws Exception {
+        String xml = "<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs\" xmlns:gml=\"http://www.opengis.net/gml\">"
+                + "<gml:boundedBy/><gml:featureMembers><a><gml:featureMember/></a><b/><c/></gml:featureMembers></wfs:FeatureCollection>";
+
+        FeatureCount count = DOMResponseUtil.countFeatures(toStream(xml), false);
+        Assert.assertEquals(3, count.getNumberReturned());
+        Assert.assertEquals(-1, count.getNumberMatched());
+    }
+
+    /**
+     * The id of the first feature should be available (without needing to count members)
+     */
+    @Test
+    public void testFirstFeatureId() throws Exception {
+        String xml = "<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs\" xmlns:gml=\"http://www.opengis.net/gml\" numberOfFeatures=\"2\">"
+                + "<gml:featureMember><a gml:id=\"a.1\"/></gml:featureMember><gml:featureMember><a gml:id=\"a.2\"/></gml:featureMember></wfs:FeatureCollection>";
+        FeatureCount count = DOMResponseUtil.countFeatures(toStream(xml), false);
+        Assert.assertEquals(2, count.getNumberReturned());
+        Assert.assertEquals("a.1", count.getFirstFeatureId());
+
+        xml = "<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs\" xmlns:gml=\"http://www.opengis.net/gml\">"
+                + "<gml:featureMembers><b fid=\"b.7\"/><b fid=\"b.8\"/></gml:featureMembers></wfs:FeatureCollection>";
+        count = DOMResponseUtil.countFeatures(toStream(xml), false);
+        Assert.assertEquals(2, count.getNumberReturned());
+        Assert.assertEquals("b.7", count.getFirstFeatureId());
+
+        xml = "<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs\" numberOfFeatures=\"0\"/>";
+        Assert.assertNull(DOMResponseUtil.countFeatures(toStream(xml), false).getFirstFeatureId());
+    }
+
+    /**
+     * Other children of the collection (eg gml:boundedBy/gml:Envelope) aren't features
+     */
+    @Test
+    public void testFirstFeatureIdSkipsBoundedBy() throws Exception {
+        String xml = "<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs\" xmlns:gml=\"http://www.opengis.net/gml\" numberOfFeatures=\"1\">"
+                + "<gml:boundedBy><gml:Envelope gml:id=\"env.1\"/></gml:boundedBy>"
+                + "<gml:featureMember><a gml:id=\"a.1\"/></gml:featureMember></wfs:FeatureCollection>";
+        FeatureCount count = DOMResponseUtil.countFeatures(toStream(xml), false);
+        Assert.assertEquals(1, count.getNumberReturned());
+        Assert.assertEquals("a.1", count.getFirstFeatureId());
+    }
+
+    /**
+     * A WFS 1.1 hits response has numberOfFeatures but no members
+     */
+    @Test
+    public void testCountHits() throws Exception {
+        String hits = "<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs\" numberOfFeatures=\"12\"/>";
+        Assert.assertEquals(12, DOMResponseUtil.countFeatures(toStream(hits), true).getNumberMatched());
+
+        //A server that ignores resultType=hits will return features
+        String notHits = "<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs\" xmlns:gml=\"http://www.opengis.net/gml\" numberOfFeatures=\"1\">"
+                + "<gml:featureMember><a/></gml:featureMember></wfs:FeatureCollection>";
+        Assert.assertEquals(-1, DOMResponseUtil.countFeatures(toStream(notHits), true).getNumberMatched());
+    }
+
+    /**
+     * Exception reports should be raised as OWSExceptions
+     */
+    @Test(expected = OWSException.class)
+    public void testCountException() throws Exception {
+        String xml = "<ows:ExceptionReport xmlns:ows=\"http://www.opengis.net/ows\"><ows:Exception exceptionCode=\"InvalidParameterValue\">"
+                + "<ows:ExceptionText>bad request</ows:ExceptionText></ows:Exception></ows:ExceptionReport>";
+        DOMResponseUtil.countFeatures(toStream(xml), false);
+    }
+}
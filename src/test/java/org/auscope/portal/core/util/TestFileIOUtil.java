@@ -1,10 +1,14 @@
 package org.auscope.portal.core.util;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
 import org.auscope.portal.core.test.PortalTestClass;
+import org.apache.commons.io.FileUtils;
 import org.jmock.Expectations;
+import org.junit.Assert;
 import org.junit.Test;
 
 /**
@@ -53,4 +57,33 @@ public class TestFileIOUtil extends PortalTestClass {
 
         FileIOUtil.closeQuietly(null);
     }
+
+    /**
+     * Tests sha256Hex against a known digest
+     */
+    @Test
+    public void testSha256Hex() {
+        Assert.assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", FileIOUtil.sha256Hex("abc"));
+    }
+
+    /**
+     * Tests atomicMove replaces an existing destination
+     */
+    @Test
+    public void testAtomicMove() throws Exception {
+        File source = File.createTempFile("TestFileIOUtil", ".src");
+        File destination = File.createTempFile("TestFileIOUtil", ".dest");
+        try {
+            FileOutputStream out = new FileOutputStream(source);
+            out.write("new".getBytes("UTF-8"));
+            out.close();
+
+            FileIOUtil.atomicMove(source, destination);
+            Assert.assertFalse(source.exists());
+            Assert.assertEquals("new", FileUtils.readFileToString(destination, "UTF-8"));
+        } finally {
+            source.delete();
+            destination.delete();
+        }
+    }
 }
@@ -0,0 +1,450 @@
+package org.auscope.portal.core.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.LogFactory;
+import org.auscope.portal.core.server.http.download.DownloadResponse;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for ParallelZipWriter and ZipCompressionPolicy
+ */
+public class TestParallelZipWriter extends PortalTestClass {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * An input stream that waits before returning its content
+     */
+    private static class SlowInputStream extends ByteArrayInputStream {
+        private long delay;
+
+        public SlowInputStream(byte[] data, long delay) {
+            super(data);
+            this.delay = delay;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                delay = 0;
+            }
+            return super.read(b, off, len);
+        }
+    }
+
+    private static String repeat(String s, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Already compressed content types should be stored, everything else deflated
+     */
+    @Test
+    public void testPolicy() {
+        ZipCompressionPolicy policy = new ZipCompressionPolicy(6);
+        Assert.assertTrue(policy.shouldStore("image/png"));
+        Assert.assertTrue(policy.shouldStore("application/zip; charset=binary"));
+        Assert.assertTrue(policy.shouldStore("IMAGE/JPEG"));
+        Assert.assertFalse(policy.shouldStore("text/xml"));
+        Assert.assertFalse(policy.shouldStore(null));
+        Assert.assertEquals(0, policy.getLevel("image/png"));
+        Assert.assertEquals(6, policy.getLevel("text/xml"));
+
+        policy.setLevel(0);
+        Assert.assertTrue(policy.shouldStore("text/xml"));
+    }
+
+    /**
+     * Entries should be written in the order they were added (regardless of which finishes compressing first)
+     * and be readable by both ZipInputStream and ZipFile
+     */
+    @Test
+    public void testOrderAndFormat() throws Exception {
+        String gml = repeat("<gml:feature id=\"1\"><gml:name>example</gml:name></gml:feature>", 500);
+        byte[] png = new byte[2048];
+        new Random(42).nextBytes(png);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ParallelZipWriter writer = new ParallelZipWriter(bos, executor, new ZipCompressionPolicy());
+        writer.putEntry("slow.xml", "text/xml", new SlowInputStream(gml.getBytes("UTF-8"), 300), true);
+        writer.putEntry("image.png", "image/png", new ByteArrayInputStream(png), true);
+        writer.putEntry("empty.txt", new byte[0]);
+        writer.putEntry("unicode-\u00e9.txt", "hello".getBytes("UTF-8"));
+        writer.finish();
+
+        List<String> names = new ArrayList<String>();
+        ZipInputStream zin = new ZipInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        ZipEntry entry;
+        while ((entry = zin.getNextEntry()) != null) {
+            names.add(entry.getName());
+            byte[] content = IOUtils.toByteArray(zin);
+            if (entry.getName().equals("slow.xml")) {
+                Assert.assertEquals(gml, new String(content, "UTF-8"));
+            } else if (entry.getName().equals("image.png")) {
+                Assert.assertArrayEquals(png, content);
+            } else if (entry.getName().equals("empty.txt")) {
+                Assert.assertEquals(0, content.length);
+            }
+        }
+        zin.close();
+        Assert.assertEquals(Arrays.asList("slow.xml", "image.png", "empty.txt", "unicode-\u00e9.txt"), names);
+
+        //The central directory must be valid too
+        File f = File.createTempFile("TestParallelZipWriter", ".zip");
+        try {
+            FileOutputStream fos = new FileOutputStream(f);
+            fos.write(bos.toByteArray());
+            fos.close();
+
+            ZipFile zipFile = new ZipFile(f);
+            try {
+                Assert.assertEquals(4, zipFile.size());
+                ZipEntry pngEntry = zipFile.getEntry("image.png");
+                Assert.assertEquals(ZipEntry.STORED, pngEntry.getMethod());
+                Assert.assertEquals(png.length, pngEntry.getCompressedSize());
+
+                ZipEntry xmlEntry = zipFile.getEntry("slow.xml");
+                Assert.assertEquals(ZipEntry.DEFLATED, xmlEntry.getMethod());
+                Assert.assertTrue(xmlEntry.getCompressedSize() < xmlEntry.getSize());
+                Assert.assertEquals(gml, IOUtils.toString(zipFile.getInputStream(xmlEntry), "UTF-8"));
+
+                Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                Assert.assertEquals("slow.xml", entries.nextElement().getName());
+            } finally {
+                zipFile.close();
+            }
+        } finally {
+            f.delete();
+        }
+    }
+
+    /**
+     * Writes data to a temporary file and opens it as a ZipFile (so the central directory is validated)
+     */
+    private ZipFile toZipFile(byte[] data, File f) throws IOException {
+        FileOutputStream fos = new FileOutputStream(f);
+        try {
+            fos.write(data);
+        } finally {
+            fos.close();
+        }
+        return new ZipFile(f);
+    }
+
+    /**
+     * Archives using Zip64 records should be readable by both ZipInputStream and ZipFile
+     */
+    @Test
+    public void testZip64Format() throws Exception {
+        String gml = repeat("<gml:feature/>", 500);
+        byte[] png = new byte[2048];
+        new Random(42).nextBytes(png);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ParallelZipWriter writer = new ParallelZipWriter(bos, executor, new ZipCompressionPolicy());
+        writer.setForceZip64(true);
+        writer.putEntry("data.xml", "text/xml", new ByteArrayInputStream(gml.getBytes("UTF-8")), true);
+        writer.putEntry("image.png", "image/png", new ByteArrayInputStream(png), true);
+        writer.finish();
+
+        ZipInputStream zin = new ZipInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        Assert.assertEquals("data.xml", zin.getNextEntry().getName());
+        Assert.assertEquals(gml, IOUtils.toString(zin, "UTF-8"));
+        Assert.assertEquals("image.png", zin.getNextEntry().getName());
+        Assert.assertArrayEquals(png, IOUtils.toByteArray(zin));
+        Assert.assertNull(zin.getNextEntry());
+        zin.close();
+
+        File f = File.createTempFile("TestParallelZipWriter", ".zip");
+        try {
+            ZipFile zipFile = toZipFile(bos.toByteArray(), f);
+            try {
+                Assert.assertEquals(2, zipFile.size());
+                ZipEntry pngEntry = zipFile.getEntry("image.png");
+                Assert.assertEquals(png.length, pngEntry.getSize());
+                Assert.assertArrayEquals(png, IOUtils.toByteArray(zipFile.getInputStream(pngEntry)));
+                Assert.assertEquals(gml, IOUtils.toString(zipFile.getInputStream(zipFile.getEntry("data.xml")), "UTF-8"));
+            } finally {
+                zipFile.close();
+            }
+        } finally {
+            f.delete();
+        }
+    }
+
+    /**
+     * Archives with more than 65535 entries need a Zip64 end of central directory
+     */
+    @Test
+    public void testZip64EntryCount() throws Exception {
+        int count = 0x10000 + 10;
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ParallelZipWriter writer = new ParallelZipWriter(bos, null, new ZipCompressionPolicy());
+        for (int i = 0; i < count; i++) {
+            writer.putEntry(i + ".txt", new byte[] {(byte) i});
+        }
+        writer.finish();
+
+        File f = File.createTempFile("TestParallelZipWriter", ".zip");
+        try {
+            ZipFile zipFile = toZipFile(bos.toByteArray(), f);
+            try {
+                Assert.assertEquals(count, zipFile.size());
+                ZipEntry last = zipFile.getEntry((count - 1) + ".txt");
+                Assert.assertEquals((byte) (count - 1), (byte) zipFile.getInputStream(last).read());
+            } finally {
+                zipFile.close();
+            }
+        } finally {
+            f.delete();
+        }
+    }
+
+    /**
+     * A failure reading an entry should fail the archive
+     */
+    @Test(expected = IOException.class)
+    public void testInputFailure() throws Exception {
+        ParallelZipWriter writer = new ParallelZipWriter(new ByteArrayOutputStream(), executor, null);
+        writer.putEntry("broken.xml", "text/xml", new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("connection reset");
+            }
+        }, true);
+        writer.finish();
+    }
+
+    /**
+     * Download responses (including failures) written to a ParallelZipOutputStream should be separate entries
+     * in the order they were written
+     */
+    @Test
+    public void testWriteResponseToParallelZipOutputStream() throws Exception {
+        List<DownloadResponse> downloads = new ArrayList<DownloadResponse>();
+        for (int i = 0; i < 50; i++) {
+            DownloadResponse response = new DownloadResponse("http://example.org/" + i);
+            response.setContentType("text/xml");
+            response.setResponseStream(new ByteArrayInputStream(repeat("<feature index=\"" + i + "\"/>", 200).getBytes()));
+            downloads.add(response);
+        }
+        downloads.get(10).setException(new Exception("test exception"));
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ZipOutputStream zout = new ParallelZipOutputStream(bos, executor);
+        FileIOUtil.writeResponseToZip(downloads, zout, true, new ZipCompressionPolicy(1));
+        zout.close();
+
+        ZipInputStream zin = new ZipInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        int count = 0;
+        ZipEntry entry;
+        while ((entry = zin.getNextEntry()) != null) {
+            String content = IOUtils.toString(zin, "UTF-8");
+            Assert.assertTrue(entry.getName().startsWith((count + 1) + "_"));
+            if (count == 10) {
+                Assert.assertTrue(entry.getName().endsWith(".xml.error"));
+                Assert.assertTrue(content.contains("test exception"));
+            } else {
+                Assert.assertTrue(entry.getName().endsWith(".xml"));
+                Assert.assertTrue(content.startsWith("<feature index=\"" + count + "\"/>"));
+            }
+            count++;
+        }
+        Assert.assertEquals(50, count);
+    }
+
+    /**
+     * Content the policy stores should be written as STORED entries (with the correct size and CRC) when
+     * written sequentially to a ZipOutputStream
+     */
+    @Test
+    public void testWriteResponseToZipOutputStreamStored() throws Exception {
+        byte[] png = new byte[4096];
+        new java.util.Random(42).nextBytes(png);
+        String gml = repeat("<feature/>", 500);
+
+        DownloadResponse image = new DownloadResponse("http://example.org/image");
+        image.setContentType("image/png");
+        image.setResponseStream(new ByteArrayInputStream(png));
+        DownloadResponse xml = new DownloadResponse("http://example.org/xml");
+        xml.setContentType("text/xml");
+        xml.setResponseStream(new ByteArrayInputStream(gml.getBytes("UTF-8")));
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ZipOutputStream zout = new ZipOutputStream(bos);
+        FileIOUtil.writeResponseToZip(Arrays.asList(image, xml), zout, true, new ZipCompressionPolicy());
+        zout.close();
+
+        ZipInputStream zin = new ZipInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        ZipEntry entry = zin.getNextEntry();
+        Assert.assertEquals(ZipEntry.STORED, entry.getMethod());
+        Assert.assertEquals(png.length, entry.getCompressedSize());
+        Assert.assertArrayEquals(png, IOUtils.toByteArray(zin));
+
+        entry = zin.getNextEntry();
+        Assert.assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+        Assert.assertEquals(gml, IOUtils.toString(zin, "UTF-8"));
+
+        Assert.assertNull(zin.getNextEntry());
+        zin.close();
+    }
+
+    /**
+     * STORED entries written to a ParallelZipOutputStream should be stored (with their size and CRC calculated)
+     * and entries after a failed write should not be accepted
+     */
+    @Test
+    public void testParallelZipOutputStreamStored() throws Exception {
+        byte[] png = new byte[4096];
+        new Random(7).nextBytes(png);
+        String gml = repeat("<feature/>", 500);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ZipOutputStream zout = new ParallelZipOutputStream(bos, executor);
+        ZipEntry stored = new ZipEntry("image.png");
+        stored.setMethod(ZipEntry.STORED);
+        zout.putNextEntry(stored);
+        zout.write(png);
+        zout.setLevel(9);
+        zout.putNextEntry(new ZipEntry("data.xml"));
+        zout.write(gml.getBytes("UTF-8"));
+        zout.closeEntry();
+        try {
+            zout.write(1);
+            Assert.fail("Writing outside of an entry should fail");
+        } catch (IOException ex) {
+            //expected
+        }
+        zout.close();
+
+        ZipInputStream zin = new ZipInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        ZipEntry entry = zin.getNextEntry();
+        Assert.assertEquals("image.png", entry.getName());
+        Assert.assertEquals(ZipEntry.STORED, entry.getMethod());
+        Assert.assertArrayEquals(png, IOUtils.toByteArray(zin));
+
+        entry = zin.getNextEntry();
+        Assert.assertEquals("data.xml", entry.getName());
+        Assert.assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+        Assert.assertEquals(gml, IOUtils.toString(zin, "UTF-8"));
+        Assert.assertNull(zin.getNextEntry());
+        zin.close();
+    }
+
+    /**
+     * Creates a 50 entry GML download (roughly 400KB per entry)
+     */
+    private static List<DownloadResponse> createGMLDownloads() throws Exception {
+        List<DownloadResponse> downloads = new ArrayList<DownloadResponse>();
+        Random random = new Random(50);
+        for (int i = 0; i < 50; i++) {
+            StringBuilder gml = new StringBuilder("<wfs:FeatureCollection>");
+            for (int j = 0; j < 2000; j++) {
+                gml.append(String.format("<gml:featureMember><er:Feature gml:id=\"f.%1$s.%2$s\"><gml:pos>%3$s %4$s</gml:pos></er:Feature></gml:featureMember>",
+                        i, j, random.nextDouble() * 180, random.nextDouble() * 90));
+            }
+            gml.append("</wfs:FeatureCollection>");
+
+            DownloadResponse response = new DownloadResponse("http://example.org/" + i);
+            response.setContentType("text/xml");
+            response.setResponseStream(new ByteArrayInputStream(gml.toString().getBytes("UTF-8")));
+            downloads.add(response);
+        }
+        return downloads;
+    }
+
+    /**
+     * Compares the throughput of a sequential ZipOutputStream against a ParallelZipOutputStream using every core
+     * for a 50 entry GML archive. The timings are logged (rather than asserted) as they depend on the machine,
+     * but both archives must hold the same content.
+     */
+    @Test
+    public void testThroughputComparison() throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(cores);
+        try {
+            //Warm up the JIT so that the first archive isn't penalised
+            ZipOutputStream zout = new ZipOutputStream(new ByteArrayOutputStream());
+            FileIOUtil.writeResponseToZip(createGMLDownloads(), zout, true, new ZipCompressionPolicy());
+            zout.close();
+
+            List<DownloadResponse> downloads = createGMLDownloads();
+            long bytes = 0;
+            for (DownloadResponse download : downloads) {
+                bytes += download.getResponseAsStream().available();
+            }
+
+            ByteArrayOutputStream sequential = new ByteArrayOutputStream();
+            startTimer();
+            zout = new ZipOutputStream(sequential);
+            FileIOUtil.writeResponseToZip(downloads, zout, true, new ZipCompressionPolicy());
+            zout.close();
+            long sequentialMs = endTimer();
+
+            downloads = createGMLDownloads();
+            ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+            startTimer();
+            zout = new ParallelZipOutputStream(parallel, pool);
+            FileIOUtil.writeResponseToZip(downloads, zout, true, new ZipCompressionPolicy());
+            zout.close();
+            long parallelMs = endTimer();
+
+            LogFactory.getLog(getClass()).info(String.format("50 entry GML archive (%1$s bytes) on %2$s core(s): ZipOutputStream %3$sms, ParallelZipOutputStream %4$sms (%5$.2fx)",
+                    bytes, cores, sequentialMs, parallelMs, (double) sequentialMs / Math.max(1, parallelMs)));
+
+            ZipInputStream expected = new ZipInputStream(new ByteArrayInputStream(sequential.toByteArray()));
+            ZipInputStream actual = new ZipInputStream(new ByteArrayInputStream(parallel.toByteArray()));
+            int count = 0;
+            while (expected.getNextEntry() != null) {
+                Assert.assertNotNull(actual.getNextEntry());
+                Assert.assertArrayEquals(IOUtils.toByteArray(expected), IOUtils.toByteArray(actual));
+                count++;
+            }
+            Assert.assertNull(actual.getNextEntry());
+            Assert.assertEquals(50, count);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
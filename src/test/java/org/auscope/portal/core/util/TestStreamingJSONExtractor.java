@@ -0,0 +1,186 @@
+package org.auscope.portal.core.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for StreamingJSONExtractor
+ */
+public class TestStreamingJSONExtractor extends PortalTestClass {
+
+    /**
+     * Runs json through an extractor, returning the written entry's content (or null if nothing was written)
+     */
+    private String extract(String json, StreamingJSONExtractor[] extractorOut) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ZipOutputStream zout = new ZipOutputStream(bos);
+        StreamingJSONExtractor extractor = new StreamingJSONExtractor(new ByteArrayInputStream(json.getBytes("UTF-8")));
+        extractor.writeGMLToZip(zout, "entry.xml");
+        zout.close();
+        if (extractorOut != null) {
+            extractorOut[0] = extractor;
+        }
+
+        ZipInputStream zin = new ZipInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        ZipEntry entry = zin.getNextEntry();
+        if (entry == null) {
+            return null;
+        }
+        Assert.assertEquals("entry.xml", entry.getName());
+        return IOUtils.toString(zin, "UTF-8");
+    }
+
+    /**
+     * The gml should be extracted regardless of whether it appears before or after the success flag
+     */
+    @Test
+    public void testFieldOrder() throws Exception {
+        Assert.assertEquals("<gml/>", extract("{\"success\":true,\"data\":{\"kml\":\"<kml/>\",\"gml\":\"<gml/>\"},\"msg\":\"\"}", null));
+        Assert.assertEquals("<gml/>", extract("{\"data\":{\"gml\":\"<gml/>\",\"kml\":\"<kml/>\"},\"msg\":\"\",\"success\":true}", null));
+    }
+
+    /**
+     * Escape sequences (including unicode/surrogate pairs) should be unescaped
+     */
+    @Test
+    public void testEscapes() throws Exception {
+        String json = "{\"success\":true,\"data\":{\"gml\":\"<a href=\\\"x\\\"/>\\n\\t\\\\\\/\\u00e9\\ud83d\\ude00\"}}";
+        Assert.assertEquals("<a href=\"x\"/>\n\t\\/\u00e9\ud83d\ude00", extract(json, null));
+    }
+
+    /**
+     * Unrelated values of every type should be skipped
+     */
+    @Test
+    public void testSkipsOtherValues() throws Exception {
+        String json = "{ \"totalResults\" : 12, \"other\" : [1, {\"gml\":\"no\"}, [true, null], \"s}\"], " +
+                "\"success\" : \"true\", \"data\" : { \"nested\": {\"a\": [1.5e3]}, \"gml\" : \"yes\" } }";
+        Assert.assertEquals("yes", extract(json, null));
+    }
+
+    /**
+     * An unsuccessful response shouldn't produce an entry
+     */
+    @Test
+    public void testUnsuccessful() throws Exception {
+        StreamingJSONExtractor[] extractor = new StreamingJSONExtractor[1];
+        Assert.assertNull(extract("{\"data\":{\"gml\":\"<gml/>\"},\"success\":false,\"msg\":\"it broke\"}", extractor));
+        Assert.assertEquals(Boolean.FALSE, extractor[0].getSuccess());
+        Assert.assertEquals("it broke", extractor[0].getMessage());
+    }
+
+    /**
+     * A response without any gml should produce an empty entry
+     */
+    @Test
+    public void testNoGml() throws Exception {
+        Assert.assertEquals("", extract("{\"success\":true,\"data\":null}", null));
+        Assert.assertEquals("", extract("{\"success\":true,\"data\":{\"gml\":null}}", null));
+    }
+
+    /**
+     * Malformed JSON should raise an IOException
+     */
+    @Test(expected = IOException.class)
+    public void testMalformed() throws Exception {
+        extract("{\"success\":true,\"data\":{\"gml\":\"<gml/>", null);
+    }
+
+    /**
+     * Generates {"success":true,"data":{"gml":"<f/><f/>..."}} on the fly
+     */
+    private static class LargeResponseStream extends InputStream {
+        private static final byte[] PREFIX = "{\"success\":true,\"data\":{\"gml\":\"".getBytes();
+        private static final byte[] SUFFIX = "\"}}".getBytes();
+        private static final byte[] FEATURE = "<f id=\\\"1\\\"/>".getBytes();
+        private long featureBytes;
+        private long position = 0;
+
+        public LargeResponseStream(long featureBytes) {
+            this.featureBytes = featureBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long p = position++;
+            if (p < PREFIX.length) {
+                return PREFIX[(int) p];
+            }
+            p -= PREFIX.length;
+            if (p < featureBytes) {
+                return FEATURE[(int) (p % FEATURE.length)];
+            }
+            p -= featureBytes;
+            return p < SUFFIX.length ? SUFFIX[(int) p] : -1;
+        }
+    }
+
+    /**
+     * Counts (and discards) everything written to it while tracking how far the input has been read ahead of
+     * the output (ie the most response data that could be held in memory at any one time)
+     */
+    private static class CountingOutputStream extends OutputStream {
+        private LargeResponseStream input;
+        private double inputBytesPerOutputByte;
+        private long count = 0;
+        private long maxReadAhead = 0;
+
+        public CountingOutputStream(LargeResponseStream input, double inputBytesPerOutputByte) {
+            this.input = input;
+            this.inputBytesPerOutputByte = inputBytesPerOutputByte;
+        }
+
+        private void written(long len) {
+            count += len;
+            maxReadAhead = Math.max(maxReadAhead, input.position - (long) (count * inputBytesPerOutputByte));
+        }
+
+        @Override
+        public void write(int b) {
+            written(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            written(len);
+        }
+    }
+
+    /**
+     * A large payload should be streamed straight through to the zip. Rather than measuring the heap (which
+     * depends on the GC) this asserts the extractor never reads more than a small, fixed amount of the response
+     * ahead of what it has written - a buffering implementation would read the entire response first.
+     */
+    @Test
+    public void testLargePayload() throws Exception {
+        final int featureCount = 2 * 1024 * 1024;
+        final long maxReadAhead = 256 * 1024;
+        byte[] unescapedFeature = "<f id=\"1\"/>".getBytes();
+        long escapedLength = (long) featureCount * (unescapedFeature.length + 2);
+
+        LargeResponseStream input = new LargeResponseStream(escapedLength);
+        CountingOutputStream counter = new CountingOutputStream(input, (unescapedFeature.length + 2) / (double) unescapedFeature.length);
+        ZipOutputStream zout = new ZipOutputStream(counter);
+        zout.setLevel(0);
+        StreamingJSONExtractor extractor = new StreamingJSONExtractor(input);
+        Assert.assertTrue(extractor.writeGMLToZip(zout, "big.xml"));
+        zout.close();
+
+        //Stored (level 0) entries are still deflate framed so allow a little overhead
+        long expected = (long) featureCount * unescapedFeature.length;
+        Assert.assertTrue(counter.count > expected);
+        Assert.assertTrue(counter.count < expected + expected / 100);
+        Assert.assertTrue("Read ahead " + counter.maxReadAhead + " bytes", counter.maxReadAhead < maxReadAhead);
+    }
+}